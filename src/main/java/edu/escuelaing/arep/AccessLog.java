@@ -0,0 +1,326 @@
+package edu.escuelaing.arep;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The `AccessLog` class writes a line of JSON for every response: when it was sent, the
+ * address of the client, the method and path of the request, the status code, the bytes it
+ * took on the wire and the time the server took to produce it.
+ *
+ * <pre>
+ * {"time":"2026-10-18T09:30:12.482Z","client":"127.0.0.1","method":"GET","path":"/app/hello","status":200,"bytes":152,"latencyMicros":87}
+ * </pre>
+ *
+ * Handler threads never touch the file. `log` claims a slot of a ring buffer with one
+ * compare-and-set and stores the fields of the record in arrays allocated up front; a
+ * background thread takes the records in order, formats them and writes them in batches
+ * of up to 64 KB, one system call each. When the writer falls behind and the ring is full,
+ * records are dropped and counted in the `ServerMetrics` instead of making requests wait.
+ *
+ * The file is rotated by size: before a line would take it past `maxFileSize`, `access.log`
+ * is renamed to `access.log.1`, `access.log.1` to `access.log.2` and so on, and the oldest
+ * file past `maxFiles` is deleted.
+ */
+final class AccessLog implements Closeable {
+    private static final int BATCH_SIZE = 64 * 1024;
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final Path file;
+    private final long maxFileSize;
+    private final int maxFiles;
+    private final ServerMetrics metrics;
+    private final int mask;
+    // Slot i holds the record of sequence s once sequences[i] == s + 1, and is free for
+    // sequence s once sequences[i] == s
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong();
+    private final long[] times;
+    private final long[] latencies;
+    private final long[] sizes;
+    private final String[] statuses;
+    private final String[] methods;
+    private final String[] targets;
+    private final InetAddress[] clients;
+    private final Thread writer;
+    private final JsonOutput line = new JsonOutput(256);
+    private final ByteBuffer batch = ByteBuffer.allocateDirect(BATCH_SIZE);
+    private long head;  // Only touched by the writer thread
+    private FileChannel channel;
+    private long fileSize;
+    private volatile boolean closed;
+
+    /**
+     * Creates the log of a file, appending to it if it exists. Records are buffered until
+     * `start()` is called.
+     *
+     * @param file the file written to; its directory is created if needed.
+     * @param capacity the records the ring buffer holds, rounded up to a power of two.
+     * @param maxFileSize the size in bytes past which the file is rotated.
+     * @param maxFiles the rotated files kept; 0 deletes the file when it is full.
+     * @param metrics the metrics dropped records are counted in.
+     * @throws IOException if the file cannot be opened.
+     */
+    AccessLog(Path file, int capacity, long maxFileSize, int maxFiles, ServerMetrics metrics) throws IOException {
+        if (capacity < 1 || maxFileSize < 1 || maxFiles < 0) {
+            throw new IllegalArgumentException("Invalid access log: " + capacity + " records, "
+                    + maxFiles + " x " + maxFileSize + " bytes");
+        }
+        this.file = file.toAbsolutePath();
+        this.maxFileSize = maxFileSize;
+        this.maxFiles = maxFiles;
+        this.metrics = metrics;
+        int slots = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        this.mask = slots - 1;
+        this.sequences = new AtomicLongArray(slots);
+        for (int i = 0; i < slots; i++) {
+            sequences.set(i, i);
+        }
+        this.times = new long[slots];
+        this.latencies = new long[slots];
+        this.sizes = new long[slots];
+        this.statuses = new String[slots];
+        this.methods = new String[slots];
+        this.targets = new String[slots];
+        this.clients = new InetAddress[slots];
+        Files.createDirectories(this.file.getParent());
+        this.channel = open();
+        this.writer = new Thread(this::run, "access-log");
+        this.writer.setDaemon(true);
+    }
+
+    /**
+     * Starts the thread that writes the records to the file.
+     */
+    void start() {
+        writer.start();
+    }
+
+    /**
+     * Records a response. Never blocks: if the ring buffer is full the record is dropped.
+     *
+     * @param method the method of the request, or null if it could not be read.
+     * @param target the target of the request, or null; its query string is not logged.
+     * @param client the address of the client, or null if unknown.
+     * @param status the status line of the response, e.g. "200 OK".
+     * @param bytes the bytes the response took on the wire.
+     * @param latencyNanos the nanoseconds the server took to answer the request.
+     * @return whether the record was buffered.
+     */
+    boolean log(String method, String target, InetAddress client, String status, long bytes, long latencyNanos) {
+        while (true) {
+            long sequence = tail.get();
+            int slot = (int) sequence & mask;
+            long state = sequences.get(slot);
+            if (state < sequence) {
+                metrics.recordAccessLogDropped();  // The writer has not taken the record of the previous lap
+                return false;
+            }
+            if (state == sequence && tail.compareAndSet(sequence, sequence + 1)) {
+                times[slot] = System.currentTimeMillis();
+                latencies[slot] = latencyNanos;
+                sizes[slot] = bytes;
+                statuses[slot] = status;
+                methods[slot] = method;
+                targets[slot] = target;
+                clients[slot] = client;
+                sequences.lazySet(slot, sequence + 1);
+                return true;
+            }
+            // Another thread claimed the slot first
+        }
+    }
+
+    /**
+     * Writes the records buffered so far and stops the writer thread.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        if (writer.getState() == Thread.State.NEW) {
+            writer.start();  // Never started: write what was buffered all the same
+        }
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Writes records as they come, parking while there are none, until the log is closed.
+     */
+    private void run() {
+        try {
+            while (true) {
+                boolean closing = closed;  // Read first, so that no record logged before close() is missed
+                if (!drain() && closing) {
+                    break;
+                }
+                LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+            }
+        } finally {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Takes every record published so far and writes them.
+     *
+     * @return whether there was any record.
+     */
+    private boolean drain() {
+        boolean any = false;
+        while (true) {
+            int slot = (int) head & mask;
+            if (sequences.get(slot) != head + 1) {
+                break;
+            }
+            format(slot);
+            statuses[slot] = null;
+            methods[slot] = null;
+            targets[slot] = null;
+            clients[slot] = null;
+            sequences.lazySet(slot, head + mask + 1);  // Free for the next lap
+            head++;
+            any = true;
+            try {
+                append(line.toByteArray());
+            } catch (IOException e) {
+                e.printStackTrace();
+                batch.clear();
+            }
+        }
+        try {
+            flush();
+        } catch (IOException e) {
+            e.printStackTrace();
+            batch.clear();
+        }
+        return any;
+    }
+
+    /**
+     * Formats the record of a slot into `line`.
+     */
+    private void format(int slot) {
+        line.reset();
+        line.writeAscii("{\"time\":");
+        line.writeString(DateTimeFormatter.ISO_INSTANT.format(Instant.ofEpochMilli(times[slot])));
+        line.writeAscii(",\"client\":");
+        if (clients[slot] == null) {
+            line.writeNull();
+        } else {
+            line.writeString(clients[slot].getHostAddress());
+        }
+        line.writeAscii(",\"method\":");
+        if (methods[slot] == null) {
+            line.writeNull();
+        } else {
+            line.writeString(methods[slot]);
+        }
+        line.writeAscii(",\"path\":");
+        String target = targets[slot];
+        if (target == null) {
+            line.writeNull();
+        } else {
+            int queryStart = target.indexOf('?');
+            line.writeString(queryStart < 0 ? target : target.substring(0, queryStart));
+        }
+        String status = statuses[slot];
+        line.writeAscii(",\"status\":");
+        line.writeLong((status.charAt(0) - '0') * 100 + (status.charAt(1) - '0') * 10 + status.charAt(2) - '0');
+        line.writeAscii(",\"bytes\":");
+        line.writeLong(sizes[slot]);
+        line.writeAscii(",\"latencyMicros\":");
+        line.writeLong(TimeUnit.NANOSECONDS.toMicros(latencies[slot]));
+        line.writeAscii("}\n");
+    }
+
+    /**
+     * Adds a line to the batch, writing the batch first if the line does not fit in it, and
+     * rotating the file first if the line does not fit in it either.
+     */
+    private void append(byte[] bytes) throws IOException {
+        if (fileSize + batch.position() + bytes.length > maxFileSize && fileSize + batch.position() > 0) {
+            flush();
+            rotate();
+        } else if (bytes.length > batch.remaining()) {
+            flush();
+        }
+        if (bytes.length > batch.remaining()) {
+            write(ByteBuffer.wrap(bytes));  // Longer than a whole batch
+        } else {
+            batch.put(bytes);
+        }
+    }
+
+    /**
+     * Writes the batch to the file.
+     */
+    private void flush() throws IOException {
+        batch.flip();
+        try {
+            write(batch);
+        } finally {
+            batch.clear();
+        }
+    }
+
+    private void write(ByteBuffer bytes) throws IOException {
+        while (bytes.hasRemaining()) {
+            fileSize += channel.write(bytes);
+        }
+    }
+
+    /**
+     * Shifts the rotated files by one, deleting the oldest, and starts a new file.
+     */
+    private void rotate() throws IOException {
+        channel.close();
+        try {
+            if (maxFiles == 0) {
+                Files.deleteIfExists(file);
+            } else {
+                for (int i = maxFiles - 1; i >= 1; i--) {
+                    Path older = rotated(i);
+                    if (Files.exists(older)) {
+                        Files.move(older, rotated(i + 1), StandardCopyOption.REPLACE_EXISTING);
+                    }
+                }
+                Files.move(file, rotated(1), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            channel = open();  // Go on writing, to the same file if it could not be moved
+        }
+    }
+
+    private Path rotated(int index) {
+        return file.resolveSibling(file.getFileName() + "." + index);
+    }
+
+    private FileChannel open() throws IOException {
+        FileChannel opened = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+        fileSize = opened.size();
+        return opened;
+    }
+}
@@ -0,0 +1,36 @@
+package edu.escuelaing.arep;
+
+import java.io.IOException;
+
+/**
+ * Signals that the bytes received from a client are not a valid HTTP request, or exceed
+ * one of the limits of the server. The server answers with the status of the exception,
+ * `400 Bad Request` unless a more precise one applies, and closes the connection.
+ */
+public class BadRequestException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    private final String status;
+
+    public BadRequestException(String message) {
+        this("400 Bad Request", message);
+    }
+
+    /**
+     * Creates an exception answered with a specific status.
+     *
+     * @param status the status code and reason phrase, e.g. "413 Payload Too Large".
+     * @param message the detail message.
+     */
+    public BadRequestException(String status, String message) {
+        super(message);
+        this.status = status;
+    }
+
+    /**
+     * @return the status line to answer the request with.
+     */
+    public String getStatus() {
+        return status;
+    }
+}
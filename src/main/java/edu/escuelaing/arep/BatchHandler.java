@@ -0,0 +1,433 @@
+package edu.escuelaing.arep;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * The `BatchHandler` class answers `POST /app/_batch`, which carries many controller calls
+ * in one request, so that a client calling `/app/sqrt` or `/app/hello` hundreds of times
+ * pays for parsing and for the round trip once. The body is a JSON array of sub-requests,
+ * each one either the target of a GET request or an object with a `route` and its `params`:
+ *
+ * <pre>
+ * {@code
+ * ["/app/sqrt?number=16", {"route": "/app/hello", "params": {"name": "Ana"}}]
+ * }
+ * </pre>
+ *
+ * The sub-requests are dispatched in parallel on a `ForkJoinPool`, the array being split in
+ * halves until the parts are small, through the same route table, parameter binding, caches
+ * and rate limits as single requests. The response is a JSON array holding one object per
+ * sub-request, in the order they were sent, with its `status` and, when it has one, its
+ * `contentType` and `body`; a sub-request that fails gets an `error` next to its status
+ * without failing the others. JSON bodies are embedded as they are, others as strings.
+ * Streamed results cannot be embedded and are answered with `501`.
+ *
+ * A batch larger than `batchMaxSize` is refused with `413 Payload Too Large`, and a body
+ * that is not such an array with `400 Bad Request`. Asynchronous controllers do not hold a
+ * thread of the pool: the response completes when the last sub-request does.
+ */
+final class BatchHandler {
+    static final String ENDPOINT = "/app/_batch";
+    private static final int SEQUENTIAL_THRESHOLD = 8;
+    private static final byte[] STATUS = "{\"status\":".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CONTENT_TYPE = ",\"contentType\":".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] BODY = ",\"body\":".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] ERROR = ",\"error\":".getBytes(StandardCharsets.US_ASCII);
+    private static final ThreadLocal<JsonOutput> OUTPUT = ThreadLocal.withInitial(() -> new JsonOutput(4096));
+
+    private final ForkJoinPool pool;
+    private final int maxSize;
+
+    /**
+     * Creates the handler of the batch endpoint.
+     *
+     * @param pool the pool the sub-requests are dispatched on.
+     * @param maxSize the largest number of sub-requests in one batch.
+     */
+    BatchHandler(ForkJoinPool pool, int maxSize) {
+        this.pool = pool;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Dispatches the sub-requests of a batch.
+     *
+     * @param request the `POST` request carrying the batch.
+     * @param dispatcher the dispatcher each sub-request goes through.
+     * @param compressionMinSize the size from which the response is compressed for clients that accept it.
+     * @return the response holding the results of the sub-requests, pending until they all completed.
+     */
+    CompletableFuture<HttpResponse> handle(HttpRequest request, RequestDispatcher dispatcher, int compressionMinSize) {
+        List<String> targets;
+        try {
+            targets = new Parser(new String(request.getBody(), StandardCharsets.UTF_8)).parseBatch();
+        } catch (IllegalArgumentException e) {
+            return CompletableFuture.completedFuture(error("400 Bad Request", e.getMessage()));
+        }
+        if (targets.size() > maxSize) {
+            return CompletableFuture.completedFuture(error("413 Payload Too Large",
+                    "A batch holds at most " + maxSize + " requests, this one has " + targets.size()));
+        }
+
+        String acceptEncoding = request.getHeader("accept-encoding");
+        Map<String, String> headers = new LinkedHashMap<>(request.getHeaders());
+        headers.remove("accept-encoding");  // Bodies are embedded in the response, never compressed on their own
+        headers.remove("content-length");
+        headers.remove("content-type");
+        List<CompletableFuture<HttpResponse>> responses =
+                new ArrayList<>(Collections.<CompletableFuture<HttpResponse>>nCopies(targets.size(), null));
+        CompletableFuture<HttpResponse> batch = new CompletableFuture<>();
+        pool.execute(() -> {
+            try {
+                new Dispatch(dispatcher, request, targets, headers, responses, 0, responses.size()).invoke();
+            } catch (RuntimeException e) {
+                batch.completeExceptionally(e);
+                return;
+            }
+            CompletableFuture.allOf(responses.toArray(new CompletableFuture<?>[0])).whenComplete((done, error) ->
+                    batch.complete(ContentEncoding.encode(render(responses), acceptEncoding, compressionMinSize)));
+        });
+        batch.whenComplete((done, error) -> {
+            if (batch.isCancelled()) {
+                for (CompletableFuture<HttpResponse> response : responses) {
+                    if (response != null) {
+                        response.cancel(true);
+                    }
+                }
+            }
+        });
+        return batch;
+    }
+
+    /**
+     * Writes the results of the sub-requests as a JSON array.
+     */
+    private static HttpResponse render(List<CompletableFuture<HttpResponse>> responses) {
+        JsonOutput out = OUTPUT.get().reset();
+        out.writeByte('[');
+        for (int i = 0; i < responses.size(); i++) {
+            if (i > 0) {
+                out.writeByte(',');
+            }
+            CompletableFuture<HttpResponse> pending = responses.get(i);
+            HttpResponse response = pending.isCompletedExceptionally()
+                    ? new HttpResponse("500 Internal Server Error")
+                    : pending.join();
+            writeItem(response, out);
+        }
+        out.writeByte(']');
+        return new HttpResponse("200 OK", "application/json", out.toByteArray());
+    }
+
+    private static void writeItem(HttpResponse response, JsonOutput out) {
+        if (response.getBodyStream() != null) {
+            try {
+                response.getBodyStream().close();  // Its length is unknown until it has been produced
+            } catch (IOException e) {
+                // Nothing left to release
+            }
+            response = new HttpResponse("501 Not Implemented");
+        }
+        String status = response.getStatus();
+        out.writeRaw(STATUS);
+        out.writeLong(Integer.parseInt(status.substring(0, 3)));
+        if (status.charAt(0) != '2') {
+            out.writeRaw(ERROR);
+            out.writeString(status.substring(4));
+        }
+        byte[] body = bodyOf(response);
+        String contentType = response.getContentType();
+        if (body.length > 0 && contentType != null) {
+            out.writeRaw(CONTENT_TYPE);
+            out.writeString(contentType);
+            out.writeRaw(BODY);
+            if (contentType.startsWith("application/json")) {
+                out.writeRaw(body);
+            } else {
+                out.writeString(new String(body, StandardCharsets.UTF_8));
+            }
+        }
+        out.writeByte('}');
+    }
+
+    private static byte[] bodyOf(HttpResponse response) {
+        if (response.getBody() != null) {
+            return response.getBody();
+        }
+        if (response.getBodyBuffer() != null) {
+            ByteBuffer buffer = response.getBodyBuffer();
+            byte[] body = new byte[buffer.remaining()];
+            buffer.get(body);
+            return body;
+        }
+        return new byte[0];  // Controllers never answer with a file
+    }
+
+    private static HttpResponse error(String status, String message) {
+        return new HttpResponse(status, "text/plain; charset=UTF-8", message.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Dispatches a range of the sub-requests, splitting it in halves run in parallel while it
+     * is larger than a few requests.
+     */
+    private static final class Dispatch extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final RequestDispatcher dispatcher;
+        private final HttpRequest batch;
+        private final List<String> targets;
+        private final Map<String, String> headers;
+        private final List<CompletableFuture<HttpResponse>> responses;
+        private final int from;
+        private final int to;
+
+        Dispatch(RequestDispatcher dispatcher, HttpRequest batch, List<String> targets, Map<String, String> headers,
+                 List<CompletableFuture<HttpResponse>> responses, int from, int to) {
+            this.dispatcher = dispatcher;
+            this.batch = batch;
+            this.targets = targets;
+            this.headers = headers;
+            this.responses = responses;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > SEQUENTIAL_THRESHOLD) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new Dispatch(dispatcher, batch, targets, headers, responses, from, middle),
+                        new Dispatch(dispatcher, batch, targets, headers, responses, middle, to));
+                return;
+            }
+            for (int i = from; i < to; i++) {
+                HttpRequest item = new HttpRequest("GET", targets.get(i), batch.getVersion(), headers);
+                item.setRemoteAddress(batch.getRemoteAddress());
+                responses.set(i, dispatcher.dispatchBatchItem(item));  // Each task sets its own range
+            }
+        }
+    }
+
+    /**
+     * Reads the JSON array of a batch. Only what a batch may hold is accepted: strings, and
+     * objects with a `route` and `params` whose values are strings, numbers, booleans or
+     * arrays of them for repeated parameters.
+     */
+    private static final class Parser {
+        private final String text;
+        private int position;
+
+        Parser(String text) {
+            this.text = text;
+        }
+
+        List<String> parseBatch() {
+            List<String> targets = new ArrayList<>();
+            expect('[');
+            if (!consume(']')) {
+                do {
+                    targets.add(parseRequest());
+                } while (consume(','));
+                expect(']');
+            }
+            skipWhitespace();
+            if (position < text.length()) {
+                throw fail("Unexpected content after the batch");
+            }
+            return targets;
+        }
+
+        private String parseRequest() {
+            if (peek() == '"') {
+                return checked(parseString());
+            }
+            String route = null;
+            StringBuilder query = new StringBuilder();
+            expect('{');
+            if (!consume('}')) {
+                do {
+                    String name = parseString();
+                    expect(':');
+                    if (name.equals("route")) {
+                        route = parseString();
+                    } else if (name.equals("params")) {
+                        parseParams(query);
+                    } else {
+                        throw fail("Unknown property \"" + name + "\"");
+                    }
+                } while (consume(','));
+                expect('}');
+            }
+            if (route == null) {
+                throw fail("Request without a route");
+            }
+            if (query.length() == 0) {
+                return checked(route);
+            }
+            return checked(route + (route.indexOf('?') < 0 ? '?' : '&') + query);
+        }
+
+        private void parseParams(StringBuilder query) {
+            expect('{');
+            if (consume('}')) {
+                return;
+            }
+            do {
+                String name = parseString();
+                expect(':');
+                if (consume('[')) {
+                    if (!consume(']')) {
+                        do {
+                            appendParam(query, name, parseScalar());
+                        } while (consume(','));
+                        expect(']');
+                    }
+                } else {
+                    appendParam(query, name, parseScalar());
+                }
+            } while (consume(','));
+            expect('}');
+        }
+
+        private static void appendParam(StringBuilder query, String name, String value) {
+            if (query.length() > 0) {
+                query.append('&');
+            }
+            query.append(encode(name)).append('=').append(encode(value));
+        }
+
+        private static String encode(String value) {
+            try {
+                return URLEncoder.encode(value, "UTF-8").replace("+", "%20");
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);  // UTF-8 is always supported
+            }
+        }
+
+        private String checked(String target) {
+            if (!target.startsWith("/")) {
+                throw fail("Route \"" + target + "\" does not start with /");
+            }
+            return target;
+        }
+
+        private String parseScalar() {
+            char c = peek();
+            if (c == '"') {
+                return parseString();
+            }
+            int start = position;
+            while (position < text.length() && "-+.eE0123456789truefals".indexOf(text.charAt(position)) >= 0) {
+                position++;
+            }
+            String value = text.substring(start, position);
+            if (value.equals("true") || value.equals("false")) {
+                return value;
+            }
+            try {
+                Double.parseDouble(value);
+            } catch (NumberFormatException e) {
+                throw fail("Expected a string, a number or a boolean");
+            }
+            return value;
+        }
+
+        private String parseString() {
+            expect('"');
+            StringBuilder value = new StringBuilder();
+            while (true) {
+                if (position >= text.length()) {
+                    throw fail("Unterminated string");
+                }
+                char c = text.charAt(position++);
+                if (c == '"') {
+                    return value.toString();
+                }
+                if (c != '\\') {
+                    value.append(c);
+                    continue;
+                }
+                if (position >= text.length()) {
+                    throw fail("Unterminated string");
+                }
+                char escaped = text.charAt(position++);
+                switch (escaped) {
+                    case 'b':
+                        value.append('\b');
+                        break;
+                    case 'f':
+                        value.append('\f');
+                        break;
+                    case 'n':
+                        value.append('\n');
+                        break;
+                    case 'r':
+                        value.append('\r');
+                        break;
+                    case 't':
+                        value.append('\t');
+                        break;
+                    case 'u':
+                        if (position + 4 > text.length()) {
+                            throw fail("Truncated \\u escape");
+                        }
+                        try {
+                            value.append((char) Integer.parseInt(text.substring(position, position + 4), 16));
+                        } catch (NumberFormatException e) {
+                            throw fail("Invalid \\u escape");
+                        }
+                        position += 4;
+                        break;
+                    default:
+                        value.append(escaped);  // \" \\ and \/
+                }
+            }
+        }
+
+        private char peek() {
+            skipWhitespace();
+            if (position >= text.length()) {
+                throw fail("Unexpected end of the batch");
+            }
+            return text.charAt(position);
+        }
+
+        private boolean consume(char c) {
+            skipWhitespace();
+            if (position < text.length() && text.charAt(position) == c) {
+                position++;
+                return true;
+            }
+            return false;
+        }
+
+        private void expect(char c) {
+            if (!consume(c)) {
+                throw fail("Expected '" + c + "'");
+            }
+        }
+
+        private void skipWhitespace() {
+            while (position < text.length() && Character.isWhitespace(text.charAt(position))) {
+                position++;
+            }
+        }
+
+        private IllegalArgumentException fail(String message) {
+            return new IllegalArgumentException(message + " at offset " + position);
+        }
+    }
+}
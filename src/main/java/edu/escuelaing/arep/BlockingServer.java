@@ -0,0 +1,222 @@
+package edu.escuelaing.arep;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The `BlockingServer` class is the thread-per-connection engine behind the "blocking" and
+ * "virtual" engines. Acceptor threads accept connections from one or more listening sockets
+ * and run a `ClientHandler` for each one on an executor: a bounded pool of platform threads
+ * or a virtual thread per connection.
+ *
+ * A semaphore caps the connections in flight at `maxConnections`: once the cap is reached
+ * the server stops accepting, so clients wait in the kernel backlog instead of piling up in
+ * memory. When the executor rejects a connection because its queue is full, the connection
+ * is answered with `503 Service Unavailable` and closed right away.
+ *
+ * `shutdown(timeout)` stops the server gracefully: it closes the listening sockets, closes
+ * the connections that wait for their next request, lets the requests in flight complete
+ * with `Connection: close` and, past the timeout, closes whatever is left.
+ */
+class BlockingServer {
+    private final ServerConfig config;
+    private final ExecutorService workers;
+    private final ServerMetrics metrics = SimpleWebServer.getMetrics();
+    private final Semaphore connectionPermits;
+    private final Set<ClientHandler> connections = ConcurrentHashMap.newKeySet();
+    private volatile boolean running = true;
+    private volatile boolean draining;
+    private ServerSocketChannel[] listeners;
+
+    /**
+     * Creates the engine.
+     *
+     * @param config the server configuration.
+     * @param workers the executor that runs the client handlers; shut down by `shutdown`.
+     */
+    BlockingServer(ServerConfig config, ExecutorService workers) {
+        this.config = config;
+        this.workers = workers;
+        this.connectionPermits = new Semaphore(config.getMaxConnections());
+    }
+
+    /**
+     * Binds the listening sockets and accepts connections until the server is shut down.
+     * The first socket is served by the calling thread and every other one by a thread of
+     * its own.
+     */
+    public void serve() throws IOException {
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+            listeners = SimpleWebServer.openListeners(config);
+        }
+        for (int i = 1; i < listeners.length; i++) {
+            ServerSocketChannel listener = listeners[i];
+            Thread acceptor = new Thread(() -> {
+                try {
+                    accept(listener);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }, "acceptor-" + i);
+            acceptor.start();
+        }
+        accept(listeners[0]);
+    }
+
+    /**
+     * Accepts connections from one listening socket until it is closed.
+     *
+     * @param listener the listening socket.
+     */
+    private void accept(ServerSocketChannel listener) throws IOException {
+        try {
+            while (running) {
+                connectionPermits.acquireUninterruptibly();
+                Socket clientSocket;
+                try {
+                    clientSocket = listener.accept().socket();  // Accept new client connection
+                } catch (IOException e) {
+                    connectionPermits.release();
+                    throw e;
+                }
+                ClientHandler handler = new ClientHandler(clientSocket, config, System.nanoTime(),
+                        SimpleWebServer.getConcurrencyLimiter(), this);
+                try {
+                    workers.submit(() -> {  // Handle the request in another thread
+                        try {
+                            handler.run();
+                        } finally {
+                            connectionPermits.release();
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    connectionPermits.release();
+                    metrics.recordRejectedQueueFull();
+                    rejectConnection(clientSocket);
+                }
+            }
+        } catch (ClosedChannelException e) {
+            if (running) {
+                throw e;
+            }
+            // shutdown() closed the listening socket
+        }
+    }
+
+    /**
+     * Answers a connection with `503 Service Unavailable` without reading its request, and
+     * closes it. The response is small enough to fit in the socket buffer, so the accepting
+     * thread does not block on a slow client.
+     *
+     * @param clientSocket the connection to reject.
+     */
+    private void rejectConnection(Socket clientSocket) {
+        try (Socket socket = clientSocket) {
+            HttpResponse response = SimpleWebServer.serviceUnavailable(config);
+            metrics.recordResponse(response.getStatus());
+            byte[] header = response.encodeHeader(false);
+            socket.getOutputStream().write(header);
+            socket.shutdownOutput();
+            AccessLog accessLog = SimpleWebServer.getAccessLog();
+            if (accessLog != null) {
+                accessLog.log(null, null, socket.getInetAddress(), response.getStatus(), header.length, 0);
+            }
+        } catch (IOException e) {
+            // The client is gone already
+        }
+    }
+
+    /**
+     * @return whether accepted connections are waiting in the queue of the executor for a
+     *         thread; always false for an executor that starts a thread per connection.
+     */
+    boolean hasQueuedConnections() {
+        return workers instanceof ThreadPoolExecutor && !((ThreadPoolExecutor) workers).getQueue().isEmpty();
+    }
+
+    /**
+     * @return whether the server is shutting down, in which case connections are closed
+     *         after the response they are working on.
+     */
+    boolean isDraining() {
+        return draining;
+    }
+
+    /**
+     * Tracks a connection from the moment its handler starts running.
+     *
+     * @param handler the handler of the connection.
+     */
+    void connectionOpened(ClientHandler handler) {
+        connections.add(handler);
+    }
+
+    /**
+     * Stops tracking a connection whose handler has finished.
+     *
+     * @param handler the handler of the connection.
+     */
+    void connectionClosed(ClientHandler handler) {
+        connections.remove(handler);
+    }
+
+    /**
+     * Shuts the server down gracefully. New connections are refused at once, connections
+     * waiting for their next request are closed, and the requests in flight are answered
+     * with `Connection: close`. Connections still open when the timeout expires are closed.
+     *
+     * @param timeout the time in milliseconds to wait for the requests in flight.
+     * @return whether every request in flight completed within the timeout.
+     */
+    public boolean shutdown(long timeout) {
+        long deadline = System.currentTimeMillis() + timeout;
+        synchronized (this) {
+            running = false;
+            SimpleWebServer.closeListeners(listeners);
+        }
+        draining = true;
+        for (ClientHandler handler : connections) {
+            handler.closeIfIdle();
+        }
+        workers.shutdown();
+        boolean drained = false;
+        try {
+            drained = workers.awaitTermination(Math.max(0, deadline - System.currentTimeMillis()),
+                    TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (!drained) {
+            workers.shutdownNow();
+            for (ClientHandler handler : connections) {
+                handler.close();
+            }
+            try {
+                // Closed connections fail at once; give their threads a moment to clean up
+                workers.awaitTermination(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return drained;
+    }
+
+    /**
+     * Stops the server at once, closing every connection.
+     */
+    public void stop() {
+        shutdown(0);
+    }
+}
@@ -0,0 +1,98 @@
+package edu.escuelaing.arep;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The `BufferPool` class keeps direct buffers of a fixed size for reuse. Direct buffers are
+ * what the kernel reads from on a socket write: a heap buffer is first copied into a
+ * temporary direct one by the JDK. They are also costly to allocate and are only freed by
+ * the garbage collector, so the `ResponseWriter`s take them from here and give them back
+ * as soon as their content has been written.
+ *
+ * The pool is an array of slots. A thread first looks at the few slots next to its home
+ * slot, picked from its id, so threads rarely compete for the same slot and a thread tends
+ * to get back the buffer it released last. When those slots are empty a new buffer is
+ * allocated; when they are full a released buffer is left to the garbage collector. Both
+ * operations are lock-free.
+ */
+public class BufferPool {
+    private static final int PROBES = 8;
+
+    private final int bufferSize;
+    private final AtomicReferenceArray<ByteBuffer> slots;
+    private final LongAdder allocated = new LongAdder();
+
+    /**
+     * Creates an empty pool.
+     *
+     * @param bufferSize the capacity of each buffer in bytes.
+     * @param maxPooled the number of idle buffers kept for reuse.
+     */
+    public BufferPool(int bufferSize, int maxPooled) {
+        if (bufferSize < 1 || maxPooled < 0) {
+            throw new IllegalArgumentException("Invalid buffer pool: " + maxPooled + " x " + bufferSize);
+        }
+        this.bufferSize = bufferSize;
+        this.slots = new AtomicReferenceArray<>(maxPooled);
+    }
+
+    /**
+     * Takes an idle buffer, or allocates one if there is none nearby.
+     *
+     * @return a cleared buffer in write mode.
+     */
+    public ByteBuffer acquire() {
+        int length = slots.length();
+        int home = home(length);
+        for (int i = 0; i < PROBES && i < length; i++) {
+            int index = (home + i) % length;
+            ByteBuffer buffer = slots.get(index);
+            if (buffer != null && slots.compareAndSet(index, buffer, null)) {
+                buffer.clear();
+                return buffer;
+            }
+        }
+        allocated.increment();
+        return ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    /**
+     * Gives a buffer back to the pool. The caller must not touch it afterwards.
+     *
+     * @param buffer a buffer taken with `acquire()`.
+     */
+    public void release(ByteBuffer buffer) {
+        int length = slots.length();
+        int home = home(length);
+        for (int i = 0; i < PROBES && i < length; i++) {
+            int index = (home + i) % length;
+            if (slots.get(index) == null && slots.compareAndSet(index, null, buffer)) {
+                return;
+            }
+        }
+    }
+
+    private static int home(int length) {
+        if (length == 0) {
+            return 0;
+        }
+        long id = Thread.currentThread().getId();
+        return (int) ((id * 0x9E3779B97F4A7C15L >>> 33) % length);
+    }
+
+    /**
+     * @return the capacity of each buffer in bytes.
+     */
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * @return the number of buffers allocated since the pool was created.
+     */
+    public long getAllocated() {
+        return allocated.sum();
+    }
+}
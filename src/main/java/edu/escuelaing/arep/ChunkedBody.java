@@ -0,0 +1,364 @@
+package edu.escuelaing.arep;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+/**
+ * The `ChunkedBody` class is a response body of unknown length, produced while it is sent.
+ * The `ResponseWriter` pulls it one buffer at a time, only when the previous chunk has been
+ * written to the socket, and frames each buffer as a chunk of `Transfer-Encoding: chunked`.
+ * A slow client therefore slows the production of the body down instead of making it pile
+ * up in memory.
+ *
+ * Controllers produce one by returning:
+ * <ul>
+ *   <li>a `Stream` or an `Iterator`: each element is sent as a line of text, or as it is if
+ *       it is a `byte[]`; elements are only taken when there is room for them;</li>
+ *   <li>a `StreamingBody`: the callback runs on a thread of its own and writes into a bounded
+ *       buffer, blocking while the buffer is full.</li>
+ * </ul>
+ *
+ * A body is read by one thread at a time and can only be sent once.
+ */
+public abstract class ChunkedBody implements Closeable {
+    private static final int PIPE_CAPACITY = 64 * 1024;
+    private static final AtomicInteger PRODUCER_COUNT = new AtomicInteger();
+    private static final ExecutorService PRODUCERS = Executors.newCachedThreadPool(task -> {
+        Thread thread = new Thread(task, "streaming-body-" + PRODUCER_COUNT.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Builds the body of a controller result, if the result is one that is streamed.
+     *
+     * @param result the value returned by a controller method.
+     * @return the body, or null if the result is sent as a whole.
+     */
+    public static ChunkedBody of(Object result) {
+        if (result instanceof Stream) {
+            Stream<?> stream = (Stream<?>) result;
+            return new IteratorBody(stream.iterator(), stream);
+        } else if (result instanceof Iterator) {
+            return new IteratorBody((Iterator<?>) result, null);
+        } else if (result instanceof StreamingBody) {
+            return new PipeBody((StreamingBody) result, null, PIPE_CAPACITY);
+        }
+        return null;
+    }
+
+    /**
+     * Tells whether a controller method returns a body that is streamed.
+     *
+     * @param type the declared return type of the method.
+     * @return true for `Stream`, `Iterator` and `StreamingBody` and their subtypes.
+     */
+    public static boolean isStreamed(Class<?> type) {
+        return Stream.class.isAssignableFrom(type) || Iterator.class.isAssignableFrom(type)
+                || StreamingBody.class.isAssignableFrom(type);
+    }
+
+    /**
+     * Copies the next bytes of the body into a buffer.
+     *
+     * @param target the buffer to fill, in write mode.
+     * @return the number of bytes copied, 0 if none are ready yet, or -1 at the end of the body.
+     * @throws IOException if producing the body failed; the response must then be aborted.
+     */
+    public abstract int read(ByteBuffer target) throws IOException;
+
+    /**
+     * Registers a task to run once the body has bytes ready, or has ended. It runs at once
+     * if it already has; otherwise it runs on the thread that produces the body. A body that
+     * never returns 0 from `read` never needs it.
+     *
+     * @param task the task, run at most once.
+     */
+    public void onReadable(Runnable task) {
+        task.run();
+    }
+
+    /**
+     * Blocks until the body has bytes ready, or has ended.
+     *
+     * @throws InterruptedIOException if the thread is interrupted.
+     */
+    public void awaitReadable() throws IOException {
+        CountDownLatch readable = new CountDownLatch(1);
+        onReadable(readable::countDown);
+        try {
+            readable.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the response body");
+        }
+    }
+
+    /**
+     * Returns a body that can be read from an event loop: one whose `read` never blocks on
+     * the work of producing it.
+     *
+     * @return this body, or a body produced by this one on another thread.
+     */
+    public ChunkedBody nonBlocking() {
+        return this;
+    }
+
+    /**
+     * Releases the body before its end, for instance because the client went away.
+     */
+    @Override
+    public void close() throws IOException {
+    }
+
+    /**
+     * The elements of an iterator, taken as they fit in the buffer being filled.
+     */
+    static final class IteratorBody extends ChunkedBody {
+        private final Iterator<?> iterator;
+        private final AutoCloseable resource;
+        private byte[] pending;
+        private int offset;
+        private boolean ended;
+
+        IteratorBody(Iterator<?> iterator, AutoCloseable resource) {
+            this.iterator = iterator;
+            this.resource = resource;
+        }
+
+        @Override
+        public int read(ByteBuffer target) throws IOException {
+            if (ended) {
+                return -1;
+            }
+            int copied = 0;
+            while (target.hasRemaining()) {
+                if (pending == null) {
+                    if (!iterator.hasNext()) {
+                        ended = true;
+                        close();
+                        return copied == 0 ? -1 : copied;
+                    }
+                    pending = encode(iterator.next());
+                    offset = 0;
+                }
+                int n = Math.min(pending.length - offset, target.remaining());
+                target.put(pending, offset, n);
+                offset += n;
+                copied += n;
+                if (offset == pending.length) {
+                    pending = null;
+                }
+            }
+            return copied;
+        }
+
+        private static byte[] encode(Object element) {
+            if (element instanceof byte[]) {
+                return (byte[]) element;
+            }
+            return (element + "\n").getBytes(StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Moves the iteration to a producer thread, so that slow elements do not stall an event loop.
+         */
+        @Override
+        public ChunkedBody nonBlocking() {
+            return new PipeBody(out -> {
+                // The iterator is only touched by the producer, which stops at its next write once closed
+                try {
+                    ByteBuffer buffer = ByteBuffer.allocate(8192);
+                    while (read(buffer) >= 0) {
+                        out.write(buffer.array(), 0, buffer.position());
+                        buffer.clear();
+                    }
+                } finally {
+                    close();
+                }
+            }, this, PIPE_CAPACITY);
+        }
+
+        @Override
+        public void close() throws IOException {
+            pending = null;
+            if (resource != null) {
+                try {
+                    resource.close();
+                } catch (IOException | RuntimeException e) {
+                    throw e;
+                } catch (Exception e) {
+                    throw new IOException(e);
+                }
+            }
+        }
+    }
+
+    /**
+     * The bytes written by a `StreamingBody` on a producer thread, through a ring buffer of
+     * fixed capacity. The producer blocks while the buffer is full and fails once the body is
+     * closed; the reader never blocks.
+     */
+    static class PipeBody extends ChunkedBody {
+        private final StreamingBody producer;
+        private final Closeable source;
+        private final byte[] ring;
+        private int head;
+        private int count;
+        private boolean started;
+        private boolean finished;
+        private boolean closed;
+        private Throwable failure;
+        private Runnable readable;
+
+        PipeBody(StreamingBody producer, Closeable source, int capacity) {
+            this.producer = producer;
+            this.source = source;
+            this.ring = new byte[capacity];
+        }
+
+        /**
+         * Starts the producer the first time the body is read, so a response that is never
+         * sent never takes a thread.
+         */
+        private void start() {
+            synchronized (this) {
+                if (started) {
+                    return;
+                }
+                started = true;
+            }
+            PRODUCERS.execute(() -> {
+                Throwable error = null;
+                try (OutputStream out = new PipeOutputStream()) {
+                    producer.writeTo(out);
+                } catch (Throwable e) {
+                    error = e;
+                }
+                finish(error);
+            });
+        }
+
+        @Override
+        public int read(ByteBuffer target) throws IOException {
+            start();
+            synchronized (this) {
+                if (failure != null) {
+                    throw new IOException("Streaming body failed", failure);
+                }
+                if (count == 0) {
+                    return finished ? -1 : 0;
+                }
+                int copied = 0;
+                while (count > 0 && target.hasRemaining()) {
+                    int n = Math.min(Math.min(count, ring.length - head), target.remaining());
+                    target.put(ring, head, n);
+                    head = (head + n) % ring.length;
+                    count -= n;
+                    copied += n;
+                }
+                notifyAll();  // Room for the producer
+                return copied;
+            }
+        }
+
+        @Override
+        public void onReadable(Runnable task) {
+            start();
+            synchronized (this) {
+                if (count == 0 && !finished && failure == null) {
+                    readable = task;
+                    return;
+                }
+            }
+            task.run();
+        }
+
+        private void write(byte[] bytes, int offset, int length) throws IOException {
+            Runnable task;
+            synchronized (this) {
+                while (length > 0) {
+                    while (count == ring.length && !closed) {
+                        try {
+                            wait();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new InterruptedIOException();
+                        }
+                    }
+                    if (closed) {
+                        throw new IOException("The client closed the connection");
+                    }
+                    int tail = (head + count) % ring.length;
+                    int n = Math.min(length, Math.min(ring.length - count, ring.length - tail));
+                    System.arraycopy(bytes, offset, ring, tail, n);
+                    count += n;
+                    offset += n;
+                    length -= n;
+                }
+                task = readable;
+                readable = null;
+            }
+            if (task != null) {
+                task.run();
+            }
+        }
+
+        private void finish(Throwable error) {
+            Runnable task;
+            synchronized (this) {
+                finished = true;
+                failure = closed ? null : error;
+                task = readable;
+                readable = null;
+            }
+            if (task != null) {
+                task.run();
+            }
+        }
+
+        /**
+         * Stops the producer at its next write. The source of a body that was never read is
+         * closed here, since no producer will close it.
+         */
+        @Override
+        public void close() throws IOException {
+            boolean unread;
+            synchronized (this) {
+                closed = true;
+                readable = null;
+                unread = !started;
+                started = true;
+                notifyAll();
+            }
+            if (unread && source != null) {
+                source.close();
+            }
+        }
+
+        /**
+         * The stream handed to the `StreamingBody`.
+         */
+        private class PipeOutputStream extends OutputStream {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] {(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                PipeBody.this.write(b, off, len);
+            }
+        }
+    }
+}
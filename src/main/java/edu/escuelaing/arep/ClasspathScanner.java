@@ -0,0 +1,147 @@
+package edu.escuelaing.arep;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import edu.escuelaing.arep.annotations.RestController;
+
+/**
+ * The `ClasspathScanner` class finds `@RestController` classes by walking the directories
+ * and jars of the classpath. It is the fallback for applications compiled without the
+ * `ControllerIndexProcessor`, and is much slower than reading the index: its cost grows
+ * with every class on the classpath, not just with the controllers.
+ *
+ * To keep that cost down, classes are not loaded to look at their annotations. The bytes
+ * of each class file are searched for the descriptor of `@RestController` first, and only
+ * the classes that contain it are loaded, without being initialized.
+ */
+public class ClasspathScanner {
+    private static final byte[] MARKER = ("L" + RestController.class.getName().replace('.', '/') + ";")
+            .getBytes(StandardCharsets.ISO_8859_1);
+
+    private final ClassLoader loader;
+    private final String[] packages;
+
+    /**
+     * Creates a scanner.
+     *
+     * @param loader the class loader that loads the controllers.
+     * @param packages the package prefixes to scan, e.g. "com.example"; none to scan everything.
+     */
+    public ClasspathScanner(ClassLoader loader, String... packages) {
+        this.loader = loader;
+        this.packages = new String[packages.length];
+        for (int i = 0; i < packages.length; i++) {
+            this.packages[i] = packages[i].replace('.', '/');
+        }
+    }
+
+    /**
+     * Scans the entries of the `java.class.path` system property.
+     *
+     * @return the controller classes, in classpath order.
+     * @throws IOException if a directory or jar cannot be read.
+     * @throws ClassNotFoundException if a class file that mentions `@RestController` cannot be loaded.
+     */
+    public List<Class<?>> findControllers() throws IOException, ClassNotFoundException {
+        List<Class<?>> controllers = new ArrayList<>();
+        for (String entry : System.getProperty("java.class.path", "").split(File.pathSeparator)) {
+            File file = new File(entry);
+            if (file.isDirectory()) {
+                scanDirectory(file.toPath(), controllers);
+            } else if (file.isFile() && entry.endsWith(".jar")) {
+                scanJar(file, controllers);
+            }
+        }
+        return controllers;
+    }
+
+    private void scanDirectory(Path root, List<Class<?>> controllers) throws IOException, ClassNotFoundException {
+        List<Path> classFiles = new ArrayList<>();
+        try (Stream<Path> files = Files.walk(root)) {
+            files.filter(path -> path.toString().endsWith(".class")).forEach(classFiles::add);
+        }
+        for (Path classFile : classFiles) {
+            String resource = root.relativize(classFile).toString().replace(File.separatorChar, '/');
+            if (isCandidate(resource) && contains(Files.readAllBytes(classFile), MARKER)) {
+                addIfController(resource, controllers);
+            }
+        }
+    }
+
+    private void scanJar(File jar, List<Class<?>> controllers) throws IOException, ClassNotFoundException {
+        try (ZipFile zip = new ZipFile(jar)) {
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                if (!entry.isDirectory() && isCandidate(entry.getName())) {
+                    try (InputStream in = zip.getInputStream(entry)) {
+                        if (contains(readAll(in), MARKER)) {
+                            addIfController(entry.getName(), controllers);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private boolean isCandidate(String resource) {
+        if (!resource.endsWith(".class") || resource.endsWith("module-info.class")
+                || resource.endsWith("package-info.class") || resource.startsWith("META-INF/")) {
+            return false;
+        }
+        if (packages.length == 0) {
+            return true;
+        }
+        for (String prefix : packages) {
+            if (resource.startsWith(prefix + "/")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void addIfController(String resource, List<Class<?>> controllers) throws ClassNotFoundException {
+        String className = resource.substring(0, resource.length() - ".class".length()).replace('/', '.');
+        Class<?> type = Class.forName(className, false, loader);
+        if (type.isAnnotationPresent(RestController.class)) {
+            controllers.add(type);
+        }
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        byte[] buffer = new byte[8192];
+        int length = 0;
+        int n;
+        while ((n = in.read(buffer, length, buffer.length - length)) != -1) {
+            length += n;
+            if (length == buffer.length) {
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+        }
+        return Arrays.copyOf(buffer, length);
+    }
+
+    static boolean contains(byte[] data, byte[] marker) {
+        outer:
+        for (int i = 0; i <= data.length - marker.length; i++) {
+            for (int j = 0; j < marker.length; j++) {
+                if (data[i + j] != marker[j]) {
+                    continue outer;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,472 @@
+package edu.escuelaing.arep;
+
+import java.io.*;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The `ClientHandler` class implements Runnable and handles individual client connections.
+ * It processes HTTP requests and responds accordingly, either by serving static files or 
+ * invoking controller methods for dynamic content.
+ *
+ * Connections are persistent: requests are read one after the other from the same socket
+ * (pipelined requests included) until the client asks to close, the connection stays idle
+ * longer than the keep-alive timeout or the maximum number of requests per connection is reached.
+ * An idle connection gives its thread up early when other connections wait for one in the
+ * queue of the server, so that idle clients cannot starve new ones.
+ *
+ * Under overload requests are shed with `503 Service Unavailable` and a `Retry-After` header:
+ * the first request of a connection that waited longer than the queue timeout for a thread,
+ * and any request above the limit of the adaptive `ConcurrencyLimiter`.
+ *
+ * While an asynchronous controller works on a response, the thread of the connection waits
+ * for it and checks every so often that the client is still there; if the client has closed
+ * the connection the response is cancelled. Only the "nio" engine frees the thread
+ * altogether while a response is pending.
+ *
+ * Streamed bodies are written by the thread of the connection as they are produced, one
+ * buffer at a time, so a slow client holds the thread but never more than a buffer of memory.
+ *
+ * While its `BlockingServer` shuts down, a connection is closed after the response it is
+ * working on, and one waiting for its next request is closed right away.
+ *
+ * A connection that starts with the HTTP/2 preface, or asks for `Upgrade: h2c`, is handed
+ * over to an `Http2Connection` for the rest of its life.
+ */
+class ClientHandler implements Runnable {
+    private static final long DISCONNECT_CHECK_INTERVAL = 100;
+    private static final int IDLE_CHECK_INTERVAL = 100;
+
+    private Socket clientSocket;
+    private final ServerConfig config;
+    private final RequestDispatcher dispatcher = new RequestDispatcher();
+    private final ServerMetrics metrics = SimpleWebServer.getMetrics();
+    private final AccessLog accessLog = SimpleWebServer.getAccessLog();
+    private final ConcurrencyLimiter limiter;
+    private final long acceptedAt;
+    private final BlockingServer server;
+    private volatile boolean idle;
+    private volatile Http2Connection http2;
+
+    public ClientHandler(Socket socket) {
+        this(socket, SimpleWebServer.getConfig());
+    }
+
+    public ClientHandler(Socket socket, ServerConfig config) {
+        this(socket, config, System.nanoTime());
+    }
+
+    /**
+     * Creates the handler of a connection that may wait in a queue before it runs.
+     *
+     * @param socket the accepted connection.
+     * @param config the server configuration.
+     * @param acceptedAt the `System.nanoTime()` at which the connection was accepted; a
+     *                   connection that waited longer than the queue timeout is answered with `503`.
+     */
+    public ClientHandler(Socket socket, ServerConfig config, long acceptedAt) {
+        this(socket, config, acceptedAt, SimpleWebServer.getConcurrencyLimiter());
+    }
+
+    ClientHandler(Socket socket, ServerConfig config, long acceptedAt, ConcurrencyLimiter limiter) {
+        this(socket, config, acceptedAt, limiter, null);
+    }
+
+    /**
+     * Creates the handler of a connection accepted by a `BlockingServer`.
+     *
+     * @param socket the accepted connection.
+     * @param config the server configuration.
+     * @param acceptedAt the `System.nanoTime()` at which the connection was accepted.
+     * @param limiter the adaptive concurrency limiter, or null if requests are not limited.
+     * @param server the server that tracks the connection for a graceful shutdown, or null.
+     */
+    ClientHandler(Socket socket, ServerConfig config, long acceptedAt, ConcurrencyLimiter limiter,
+                  BlockingServer server) {
+        this.clientSocket = socket;
+        this.config = config;
+        this.acceptedAt = acceptedAt;
+        this.limiter = limiter;
+        this.server = server;
+    }
+
+    @Override
+    public void run() {
+        metrics.connectionOpened();
+        if (server != null) {
+            server.connectionOpened(this);
+        }
+        try (InputStream in = clientSocket.getInputStream();
+             ResponseWriter out = new ResponseWriter(channelOf(clientSocket), SimpleWebServer.getBufferPool(),
+                     metrics)) {
+
+            clientSocket.setSoTimeout(config.getKeepAliveTimeout());
+            HttpRequestDecoder decoder = new HttpRequestDecoder(config);
+            ByteBuffer buffer = ByteBuffer.allocate(HttpRequestDecoder.bufferSize(config.getMaxHeaderSize()));
+            buffer.flip();
+            int requestCount = 0;
+            boolean keepAlive = true;
+
+            while (keepAlive) {
+                HttpRequest request;
+                // Between requests a shutdown closes the connection; the first request is always served
+                idle = requestCount > 0;
+                if (idle && isDraining()) break;
+                try {
+                    if (idle && !awaitNextRequest(in, buffer, out)) break;
+                    request = readRequest(in, buffer, decoder, out, metrics);
+                } catch (BadRequestException e) {
+                    metrics.recordResponse(e.getStatus());
+                    long bytes = out.write(new HttpResponse(e.getStatus()), false);
+                    metrics.recordBytesSent(bytes);
+                    if (accessLog != null) {
+                        accessLog.log(null, null, clientSocket.getInetAddress(), e.getStatus(), bytes, 0);
+                    }
+                    out.flush();
+                    break;
+                } finally {
+                    idle = false;
+                }
+                if (request == null) break;
+                long start = System.nanoTime();
+                request.setRemoteAddress(clientSocket.getInetAddress());
+                if (config.isHttp2() && (requestCount == 0 && Http2Connection.isPreface(request)
+                        || Http2Connection.isUpgrade(request))) {
+                    serveHttp2(in, buffer, out, Http2Connection.isPreface(request) ? null : request);
+                    break;
+                }
+
+                requestCount++;
+                keepAlive = request.isKeepAlive() && requestCount < config.getMaxKeepAliveRequests() && !isDraining();
+
+                HttpResponse response;
+                if (requestCount == 1 && config.getQueueTimeout() > 0
+                        && System.nanoTime() - acceptedAt > config.getQueueTimeout() * 1_000_000L) {
+                    // The client has most likely given up already; free the thread for the next one
+                    metrics.recordRejectedDeadline();
+                    response = reject();
+                    keepAlive = false;
+                } else {
+                    response = dispatch(request, buffer, out);
+                    if (response == null) {
+                        break;  // The client went away while the response was pending
+                    }
+                    keepAlive &= !isDraining();  // The server started shutting down meanwhile
+                }
+
+                // A streamed body without chunked coding ends with the connection
+                boolean chunked = request.acceptsChunked();
+                if (response.getBodyStream() != null && !chunked) {
+                    keepAlive = false;
+                }
+                // Responses to pipelined requests are flushed together, before the next blocking read
+                long bytes = out.write(response, keepAlive, chunked);
+                metrics.recordBytesSent(bytes);
+                if (accessLog != null) {
+                    accessLog.log(request.getMethod(), request.getTarget(), request.getRemoteAddress(),
+                            response.getStatus(), bytes, System.nanoTime() - start);
+                }
+            }
+            out.flush();
+
+        } catch (SocketTimeoutException e) {
+            // The connection stayed idle longer than the keep-alive timeout
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            metrics.connectionClosed();
+            if (server != null) {
+                server.connectionClosed(this);
+            }
+            try {
+                clientSocket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Waits for the first bytes of the next request of a persistent connection, up to the
+     * keep-alive timeout. The wait is sliced so that every `IDLE_CHECK_INTERVAL` the handler
+     * checks whether connections are queued for a thread of its server; if so it gives its
+     * own thread up, as the client may never send another request.
+     *
+     * @param in the input stream of the connection.
+     * @param buffer the read buffer of the connection, in read mode.
+     * @param out the writer of the connection, flushed before waiting.
+     * @return true if bytes are ready to decode, false if the connection should be closed.
+     */
+    private boolean awaitNextRequest(InputStream in, ByteBuffer buffer, ResponseWriter out) throws IOException {
+        if (buffer.hasRemaining() || server == null) {
+            return true;  // Pipelined bytes to decode, or no queue to give the thread up to
+        }
+        out.flush();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(config.getKeepAliveTimeout());
+        try {
+            while (true) {
+                long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (config.getKeepAliveTimeout() > 0 && remaining <= 0) {
+                    return false;  // Idle longer than the keep-alive timeout
+                }
+                clientSocket.setSoTimeout(config.getKeepAliveTimeout() > 0
+                        ? (int) Math.min(remaining, IDLE_CHECK_INTERVAL) : IDLE_CHECK_INTERVAL);
+                buffer.compact();
+                int n;
+                try {
+                    n = in.read(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+                } catch (SocketTimeoutException e) {
+                    n = 0;
+                }
+                if (n > 0) {
+                    metrics.recordBytesReceived(n);
+                    buffer.position(buffer.position() + n);
+                }
+                buffer.flip();
+                if (n != 0) {
+                    return n > 0;
+                }
+                if (server.hasQueuedConnections()) {
+                    return false;
+                }
+            }
+        } finally {
+            clientSocket.setSoTimeout(config.getKeepAliveTimeout());
+        }
+    }
+
+    private boolean isDraining() {
+        return server != null && server.isDraining();
+    }
+
+    /**
+     * Ends the input of the connection if it is waiting for its next request, so that its
+     * blocked read returns and the handler finishes. Called by a shutting-down server after
+     * it started draining; a handler that goes idle afterwards sees the draining flag itself.
+     */
+    void closeIfIdle() {
+        Http2Connection connection = http2;
+        if (connection != null) {
+            connection.shutdown();
+        } else if (idle) {
+            try {
+                clientSocket.shutdownInput();
+            } catch (IOException e) {
+                // Already closed
+            }
+        }
+    }
+
+    /**
+     * Closes the connection, failing whatever its handler is doing with it.
+     */
+    void close() {
+        Http2Connection connection = http2;
+        if (connection != null) {
+            connection.close();
+        }
+        try {
+            clientSocket.close();
+        } catch (IOException e) {
+            // Already closed
+        }
+    }
+
+    /**
+     * Switches the connection to HTTP/2 and serves it until it ends.
+     *
+     * @param in the input stream of the connection.
+     * @param buffer the read buffer of the connection, in read mode, holding the bytes
+     *               received after the request.
+     * @param out the writer of the connection, flushed before the protocol changes.
+     * @param upgrade the request that asked for `Upgrade: h2c`, or null if the client sent
+     *                the HTTP/2 preface.
+     */
+    private void serveHttp2(InputStream in, ByteBuffer buffer, ResponseWriter out, HttpRequest upgrade)
+            throws IOException {
+        out.flush();
+        if (upgrade != null) {
+            clientSocket.getOutputStream().write(Http2Connection.SWITCHING_PROTOCOLS);
+            metrics.recordBytesSent(Http2Connection.SWITCHING_PROTOCOLS.length);
+        }
+        http2 = new Http2Connection(clientSocket, in, buffer, config, dispatcher, limiter,
+                SimpleWebServer.getStreamExecutor(), metrics, accessLog);
+        if (isDraining()) {
+            http2.shutdown();  // The server started shutting down while the connection switched
+        }
+        http2.serve(upgrade);
+    }
+
+    /**
+     * Returns the channel responses are written to: the channel of the socket when it was
+     * accepted from a `ServerSocketChannel`, so files are sent with zero-copy transfer, or
+     * else a channel over its output stream.
+     */
+    private static WritableByteChannel channelOf(Socket socket) throws IOException {
+        if (socket.getChannel() != null) {
+            return socket.getChannel();
+        }
+        return Channels.newChannel(socket.getOutputStream());
+    }
+
+    /**
+     * Dispatches a request within the concurrency limit, or rejects it if the limit is reached.
+     * Rate limits are checked first, so that a `429` never takes a permit.
+     *
+     * @param request the request.
+     * @param buffer the read buffer of the connection, in read mode.
+     * @param out the writer of the connection.
+     * @return the response to send, or null if the client closed the connection before it was ready.
+     */
+    private HttpResponse dispatch(HttpRequest request, ByteBuffer buffer, ResponseWriter out) throws IOException {
+        if (limiter == null) {
+            return await(dispatcher.dispatchAsync(request), buffer, out);
+        }
+        HttpResponse limited = dispatcher.rateLimit(request);
+        if (limited != null) {
+            return limited;
+        }
+        if (!limiter.tryAcquire()) {
+            metrics.recordRejectedConcurrency();
+            return reject();
+        }
+        long start = System.nanoTime();
+        boolean completed = false;
+        try {
+            HttpResponse response = await(dispatcher.dispatchAdmittedAsync(request), buffer, out);
+            completed = response != null;
+            return response;
+        } finally {
+            if (completed) {
+                limiter.release(System.nanoTime() - start);
+            } else {
+                limiter.releaseWithoutSample();
+            }
+        }
+    }
+
+    /**
+     * Waits for a pending response. The responses already written are flushed first, and
+     * while waiting the socket is polled in non-blocking mode: bytes of pipelined requests
+     * go to the read buffer, and the end of the stream cancels the response.
+     *
+     * @param response the response from `dispatchAsync`.
+     * @param buffer the read buffer of the connection, in read mode.
+     * @param out the writer of the connection.
+     * @return the response, or null if the client closed the connection.
+     */
+    private HttpResponse await(CompletableFuture<HttpResponse> response, ByteBuffer buffer, ResponseWriter out)
+            throws IOException {
+        if (response.isDone()) {
+            return response.join();
+        }
+        out.flush();
+        SocketChannel channel = clientSocket.getChannel();
+        if (channel == null) {
+            return response.join();  // No way to watch a plain socket; the timeout of the route still applies
+        }
+        channel.configureBlocking(false);
+        try {
+            while (true) {
+                try {
+                    return response.get(DISCONNECT_CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+                } catch (TimeoutException e) {
+                    if (!isConnected(channel, buffer)) {
+                        response.cancel(true);
+                        return null;
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    response.cancel(true);
+                    return null;
+                } catch (ExecutionException e) {
+                    throw new IOException(e.getCause());  // dispatchAsync turns errors into responses
+                }
+            }
+        } finally {
+            channel.configureBlocking(true);
+        }
+    }
+
+    /**
+     * Reads what the client sent without blocking, to find out whether it closed the connection.
+     */
+    private boolean isConnected(SocketChannel channel, ByteBuffer buffer) {
+        buffer.compact();
+        try {
+            int n = channel.read(buffer);
+            if (n > 0) {
+                metrics.recordBytesReceived(n);
+            }
+            return n != -1;
+        } catch (IOException e) {
+            return false;  // Reset by the client
+        } finally {
+            buffer.flip();
+        }
+    }
+
+    private HttpResponse reject() {
+        HttpResponse response = SimpleWebServer.serviceUnavailable(config);
+        metrics.recordResponse(response.getStatus());
+        return response;
+    }
+
+    /**
+     * Reads the next complete request, body included, from the connection. Bytes left over
+     * from the previous read are decoded first; the stream is only read when they do not
+     * hold a complete request, and any buffered response is flushed before blocking on it.
+     *
+     * @param in the input stream of the connection.
+     * @param buffer the read buffer of the connection, in read mode.
+     * @param decoder the decoder of the connection.
+     * @param pending the buffered output to flush before blocking, or null.
+     * @return the request, or null if the client closed the connection.
+     * @throws BadRequestException if the request is malformed or exceeds a limit.
+     */
+    static HttpRequest readRequest(InputStream in, ByteBuffer buffer, HttpRequestDecoder decoder,
+                                   Flushable pending) throws IOException {
+        return readRequest(in, buffer, decoder, pending, null);
+    }
+
+    /**
+     * Reads the next complete request, counting the bytes read from the connection.
+     *
+     * @param in the input stream of the connection.
+     * @param buffer the read buffer of the connection, in read mode.
+     * @param decoder the decoder of the connection.
+     * @param pending the buffered output to flush before blocking, or null.
+     * @param metrics the metrics that count the bytes received, or null.
+     * @return the request, or null if the client closed the connection.
+     * @throws BadRequestException if the request is malformed or exceeds a limit.
+     */
+    static HttpRequest readRequest(InputStream in, ByteBuffer buffer, HttpRequestDecoder decoder,
+                                   Flushable pending, ServerMetrics metrics) throws IOException {
+        HttpRequest request;
+        while ((request = decoder.decode(buffer)) == null) {
+            if (pending != null) {
+                pending.flush();
+            }
+            buffer.compact();
+            int n = in.read(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            if (n == -1) {
+                buffer.flip();
+                return null;
+            }
+            if (metrics != null) {
+                metrics.recordBytesReceived(n);
+            }
+            buffer.position(buffer.position() + n);
+            buffer.flip();
+        }
+        return request;
+    }
+}
@@ -0,0 +1,129 @@
+package edu.escuelaing.arep;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The `ConcurrencyLimiter` class caps the number of requests served at once and adapts the
+ * cap to the latency it observes, following the gradient algorithm of TCP Vegas and of
+ * Netflix's concurrency-limits. It keeps two moving averages of the latency: a long one,
+ * the latency the server has when it is not overloaded, and a short one, the latency now.
+ * While the short one stays within a tolerance of the long one the limit grows by about
+ * its square root per sample; once requests start queueing inside the server the short
+ * average rises, the gradient `long / short` drops below one and the limit shrinks with it.
+ *
+ * Requests above the limit are rejected at once instead of waiting, so that an overloaded
+ * server answers a few clients with `503` rather than all of them late.
+ *
+ * Acquiring and releasing a permit are lock-free. Only the update of the limit, once per
+ * released permit, takes a lock, and it is skipped when another thread is already updating.
+ */
+public class ConcurrencyLimiter {
+    private static final double LONG_WINDOW = 600;
+    private static final double SHORT_WINDOW = 10;
+    private static final double TOLERANCE = 1.5;
+    private static final double SMOOTHING = 0.2;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger updating = new AtomicInteger();
+    private volatile int limit;
+    private double estimatedLimit;
+    private double longRtt;
+    private double shortRtt;
+
+    /**
+     * Creates a limiter.
+     *
+     * @param initialLimit the limit before any latency has been observed.
+     * @param minLimit the lowest limit.
+     * @param maxLimit the highest limit.
+     */
+    public ConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit) {
+        if (minLimit < 1 || maxLimit < minLimit) {
+            throw new IllegalArgumentException("Invalid concurrency limits: " + minLimit + ".." + maxLimit);
+        }
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.estimatedLimit = Math.max(minLimit, Math.min(maxLimit, initialLimit));
+        this.limit = (int) estimatedLimit;
+    }
+
+    /**
+     * Takes a permit if fewer requests than the limit are in flight.
+     *
+     * @return true if the request may be served, false if it must be rejected.
+     */
+    public boolean tryAcquire() {
+        while (true) {
+            int current = inFlight.get();
+            if (current >= limit) {
+                return false;
+            }
+            if (inFlight.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Returns a permit and feeds the latency of its request to the limit.
+     *
+     * @param latencyNanos the time the request took to serve.
+     */
+    public void release(long latencyNanos) {
+        int requests = inFlight.getAndDecrement();
+        if (updating.compareAndSet(0, 1)) {
+            try {
+                update(Math.max(latencyNanos, 1), requests);
+            } finally {
+                updating.set(0);
+            }
+        }
+    }
+
+    /**
+     * Returns a permit without feeding the limit, for a request that failed before its
+     * latency meant anything.
+     */
+    public void releaseWithoutSample() {
+        inFlight.decrementAndGet();
+    }
+
+    private void update(double rtt, int requests) {
+        if (longRtt == 0) {
+            longRtt = rtt;
+            shortRtt = rtt;
+            return;
+        }
+        shortRtt += (rtt - shortRtt) / SHORT_WINDOW;
+        longRtt += (rtt - longRtt) / LONG_WINDOW;
+        // After a long overload the long average has drifted up; let it come back down
+        if (longRtt / shortRtt > 2) {
+            longRtt *= 0.95;
+        }
+        // With few requests in flight the latency says nothing about the limit
+        if (requests < estimatedLimit / 2) {
+            return;
+        }
+        double gradient = Math.max(0.5, Math.min(1.0, TOLERANCE * longRtt / shortRtt));
+        double newLimit = estimatedLimit * gradient + Math.sqrt(estimatedLimit);
+        newLimit = estimatedLimit * (1 - SMOOTHING) + newLimit * SMOOTHING;
+        estimatedLimit = Math.max(minLimit, Math.min(maxLimit, newLimit));
+        limit = (int) estimatedLimit;
+    }
+
+    /**
+     * @return the current limit.
+     */
+    public int getLimit() {
+        return limit;
+    }
+
+    /**
+     * @return the requests holding a permit.
+     */
+    public int getInFlight() {
+        return inFlight.get();
+    }
+}
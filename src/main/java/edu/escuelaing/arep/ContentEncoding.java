@@ -0,0 +1,191 @@
+package edu.escuelaing.arep;
+
+import java.util.Arrays;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * The `ContentEncoding` enum lists the response encodings the server can produce and
+ * implements their negotiation against the `Accept-Encoding` header of a request.
+ *
+ * Both encodings are produced by the same raw deflate stream: `gzip` wraps it in a gzip
+ * header and a CRC-32 trailer, `deflate` in a zlib header and an Adler-32 trailer. Each
+ * thread reuses one `Deflater`, so compressing a response does not allocate a new native
+ * compression stream.
+ */
+public enum ContentEncoding {
+    GZIP("gzip"),
+    DEFLATE("deflate");
+
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+    private static final byte[] ZLIB_HEADER = {0x78, (byte) 0x9c};
+    private static final ThreadLocal<Deflater> DEFLATER = ThreadLocal.withInitial(() -> new Deflater(
+            Deflater.DEFAULT_COMPRESSION, true));
+
+    private final String token;
+
+    ContentEncoding(String token) {
+        this.token = token;
+    }
+
+    /**
+     * @return the name of the encoding in `Content-Encoding` and `Accept-Encoding` headers.
+     */
+    public String token() {
+        return token;
+    }
+
+    /**
+     * Chooses the encoding of a response. The available encoding with the highest quality
+     * value wins, `gzip` on a tie; an encoding with `q=0` is never chosen, and `*` stands
+     * for every encoding the client does not name.
+     *
+     * @param acceptEncoding the `Accept-Encoding` header, or null if the client did not send one.
+     * @param gzip whether a gzip variant is available.
+     * @param deflate whether a deflate variant is available.
+     * @return the chosen encoding, or null to send the response unencoded.
+     */
+    public static ContentEncoding negotiate(String acceptEncoding, boolean gzip, boolean deflate) {
+        if (acceptEncoding == null || (!gzip && !deflate)) {
+            return null;
+        }
+        float gzipQuality = -1;
+        float deflateQuality = -1;
+        float anyQuality = -1;
+        for (String element : acceptEncoding.split(",")) {
+            int semicolon = element.indexOf(';');
+            String coding = (semicolon < 0 ? element : element.substring(0, semicolon)).trim();
+            float quality = semicolon < 0 ? 1 : quality(element.substring(semicolon + 1));
+            if (coding.equalsIgnoreCase("gzip") || coding.equalsIgnoreCase("x-gzip")) {
+                gzipQuality = quality;
+            } else if (coding.equalsIgnoreCase("deflate")) {
+                deflateQuality = quality;
+            } else if (coding.equals("*")) {
+                anyQuality = quality;
+            }
+        }
+        gzipQuality = gzip ? (gzipQuality < 0 ? anyQuality : gzipQuality) : 0;
+        deflateQuality = deflate ? (deflateQuality < 0 ? anyQuality : deflateQuality) : 0;
+
+        if (gzipQuality > 0 && gzipQuality >= deflateQuality) {
+            return GZIP;
+        }
+        return deflateQuality > 0 ? DEFLATE : null;
+    }
+
+    private static float quality(String parameters) {
+        for (String parameter : parameters.split(";")) {
+            String trimmed = parameter.trim();
+            if (trimmed.startsWith("q=") || trimmed.startsWith("Q=")) {
+                try {
+                    return Float.parseFloat(trimmed.substring(2));
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+            }
+        }
+        return 1;
+    }
+
+    /**
+     * Tells whether a content type is worth compressing. Images, audio, video and archives
+     * are already compressed, so only textual types are.
+     *
+     * @param contentType the MIME type of a body, or null.
+     * @return true for text, JavaScript, JSON, XML and SVG.
+     */
+    public static boolean isCompressible(String contentType) {
+        return contentType != null && (contentType.startsWith("text/")
+                || contentType.startsWith("application/javascript")
+                || contentType.startsWith("application/json")
+                || contentType.startsWith("application/xml")
+                || contentType.startsWith("image/svg+xml"));
+    }
+
+    /**
+     * Compresses a body with this encoding.
+     *
+     * @param data the body to compress.
+     * @param level the deflate level, from `Deflater.BEST_SPEED` to `Deflater.BEST_COMPRESSION`.
+     * @return the encoded body.
+     */
+    public byte[] encode(byte[] data, int level) {
+        Deflater deflater = DEFLATER.get();
+        deflater.reset();
+        deflater.setLevel(level);
+        deflater.setInput(data);
+        deflater.finish();
+
+        byte[] header = this == GZIP ? GZIP_HEADER : ZLIB_HEADER;
+        byte[] out = new byte[header.length + data.length / 2 + 64];
+        System.arraycopy(header, 0, out, 0, header.length);
+        int length = header.length;
+        while (!deflater.finished()) {
+            if (length == out.length) {
+                out = Arrays.copyOf(out, out.length * 2);
+            }
+            length += deflater.deflate(out, length, out.length - length);
+        }
+
+        out = Arrays.copyOf(out, length + (this == GZIP ? 8 : 4));
+        if (this == GZIP) {
+            CRC32 crc = new CRC32();
+            crc.update(data, 0, data.length);
+            writeIntLittleEndian(out, length, (int) crc.getValue());
+            writeIntLittleEndian(out, length + 4, data.length);
+            return out;
+        }
+        Adler32 adler = new Adler32();
+        adler.update(data, 0, data.length);
+        int checksum = (int) adler.getValue();
+        out[length] = (byte) (checksum >>> 24);
+        out[length + 1] = (byte) (checksum >>> 16);
+        out[length + 2] = (byte) (checksum >>> 8);
+        out[length + 3] = (byte) checksum;
+        return out;
+    }
+
+    private static void writeIntLittleEndian(byte[] out, int offset, int value) {
+        out[offset] = (byte) value;
+        out[offset + 1] = (byte) (value >>> 8);
+        out[offset + 2] = (byte) (value >>> 16);
+        out[offset + 3] = (byte) (value >>> 24);
+    }
+
+    /**
+     * Compresses a dynamic response when the client accepts it and the body is textual
+     * and large enough for compression to pay off.
+     *
+     * @param response the response produced by a controller.
+     * @param acceptEncoding the `Accept-Encoding` header of the request, or null.
+     * @param minSize the body size below which responses are sent unencoded.
+     * @return the encoded response, or the given one if it is not compressed.
+     */
+    public static HttpResponse encode(HttpResponse response, String acceptEncoding, int minSize) {
+        byte[] body = response.getBody();
+        if (body == null || body.length < minSize || !isCompressible(response.getContentType())) {
+            return response;
+        }
+        ContentEncoding encoding = negotiate(acceptEncoding, true, true);
+        if (encoding == null) {
+            return response.withHeader("Vary", "Accept-Encoding");
+        }
+        return new HttpResponse(response.getStatus(), response.getContentType(),
+                encoding.encode(body, Deflater.DEFAULT_COMPRESSION))
+                .withHeader("Content-Encoding", encoding.token())
+                .withHeader("Vary", vary(response));
+    }
+
+    /**
+     * Returns the `Vary` header of the compressed version of a response, which keeps the
+     * request headers the response already varies on, such as `Accept`.
+     *
+     * @param response the uncompressed response.
+     * @return the header value.
+     */
+    static String vary(HttpResponse response) {
+        String vary = response.getHeader("Vary");
+        return vary == null ? "Accept-Encoding" : vary + ", Accept-Encoding";
+    }
+}
@@ -0,0 +1,172 @@
+package edu.escuelaing.arep;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The `ControllerIndex` class reads the list of controllers and routes that the
+ * `ControllerIndexProcessor` writes into the jar at build time. With the index the server
+ * knows every controller class, every route and the exact signature of every handler
+ * method up front, so startup loads only the controller classes instead of walking the
+ * classpath, and its cost does not depend on how many other classes the application has.
+ *
+ * The index is a UTF-8 text file with one entry per line and tab-separated fields:
+ *
+ * <pre>
+ * controller  &lt;class&gt;
+ * route       &lt;pattern&gt;  &lt;class&gt;  &lt;method&gt;  [&lt;parameter type&gt; ...]
+ * </pre>
+ *
+ * Class names are binary names, as accepted by `Class.forName`; primitive parameter
+ * types are written as their keyword. Every jar on the classpath may carry its own index,
+ * all of them are merged.
+ */
+public class ControllerIndex {
+    public static final String RESOURCE = "META-INF/springeci/controllers.idx";
+
+    private static final Map<String, Class<?>> PRIMITIVES = new LinkedHashMap<>();
+
+    static {
+        for (Class<?> type : Arrays.asList(boolean.class, byte.class, char.class, short.class,
+                int.class, long.class, float.class, double.class)) {
+            PRIMITIVES.put(type.getName(), type);
+        }
+    }
+
+    private final Map<String, List<Route>> controllers = new LinkedHashMap<>();
+
+    /**
+     * Reads and merges every index visible to a class loader.
+     *
+     * @param loader the class loader of the application.
+     * @return the index, or null if no jar or directory of the classpath carries one.
+     * @throws IOException if an index cannot be read or is malformed.
+     */
+    public static ControllerIndex load(ClassLoader loader) throws IOException {
+        Enumeration<URL> resources = loader.getResources(RESOURCE);
+        if (!resources.hasMoreElements()) {
+            return null;
+        }
+        ControllerIndex index = new ControllerIndex();
+        while (resources.hasMoreElements()) {
+            URL url = resources.nextElement();
+            try (BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(url.openStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    index.parse(line, url);
+                }
+            }
+        }
+        return index;
+    }
+
+    private void parse(String line, URL source) throws IOException {
+        if (line.isEmpty() || line.startsWith("#")) {
+            return;
+        }
+        String[] fields = line.split("\t");
+        if (fields[0].equals("controller") && fields.length == 2) {
+            controllers.computeIfAbsent(fields[1], name -> new ArrayList<>());
+        } else if (fields[0].equals("route") && fields.length >= 4) {
+            Route route = new Route(fields[1], fields[3], Arrays.copyOfRange(fields, 4, fields.length));
+            controllers.computeIfAbsent(fields[2], name -> new ArrayList<>()).add(route);
+        } else {
+            throw new IOException("Malformed entry in " + source + ": " + line);
+        }
+    }
+
+    /**
+     * @return the binary names of the indexed controller classes, in index order.
+     */
+    public Set<String> controllers() {
+        return Collections.unmodifiableSet(controllers.keySet());
+    }
+
+    /**
+     * @param controller the binary name of a controller class.
+     * @return the routes handled by the controller.
+     */
+    public List<Route> routes(String controller) {
+        List<Route> routes = controllers.get(controller);
+        return routes == null ? Collections.<Route>emptyList() : Collections.unmodifiableList(routes);
+    }
+
+    /**
+     * Formats the entry of a controller class.
+     *
+     * @param controller the binary name of the class.
+     * @return the index line, without line terminator.
+     */
+    public static String controllerEntry(String controller) {
+        return "controller\t" + controller;
+    }
+
+    /**
+     * Formats the entry of a route.
+     *
+     * @param pattern the route pattern.
+     * @param controller the binary name of the controller class.
+     * @param method the name of the handler method.
+     * @param parameterTypes the binary names of the parameter types of the handler method.
+     * @return the index line, without line terminator.
+     */
+    public static String routeEntry(String pattern, String controller, String method, List<String> parameterTypes) {
+        StringBuilder entry = new StringBuilder("route\t").append(pattern).append('\t').append(controller)
+                .append('\t').append(method);
+        for (String type : parameterTypes) {
+            entry.append('\t').append(type);
+        }
+        return entry.toString();
+    }
+
+    /**
+     * A route of the index: its pattern and the signature of its handler method.
+     */
+    public static final class Route {
+        private final String pattern;
+        private final String methodName;
+        private final String[] parameterTypes;
+
+        Route(String pattern, String methodName, String[] parameterTypes) {
+            this.pattern = pattern;
+            this.methodName = methodName;
+            this.parameterTypes = parameterTypes;
+        }
+
+        public String getPattern() {
+            return pattern;
+        }
+
+        public String getMethodName() {
+            return methodName;
+        }
+
+        /**
+         * Resolves the parameter types of the handler method.
+         *
+         * @param loader the class loader of the controller.
+         * @return the parameter types, ready for `Class.getDeclaredMethod`.
+         * @throws ClassNotFoundException if a parameter type is not on the classpath.
+         */
+        public Class<?>[] parameterClasses(ClassLoader loader) throws ClassNotFoundException {
+            Class<?>[] classes = new Class<?>[parameterTypes.length];
+            for (int i = 0; i < parameterTypes.length; i++) {
+                Class<?> primitive = PRIMITIVES.get(parameterTypes[i]);
+                classes[i] = primitive != null ? primitive : Class.forName(parameterTypes[i], false, loader);
+            }
+            return classes;
+        }
+    }
+}
@@ -0,0 +1,282 @@
+package edu.escuelaing.arep;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+import edu.escuelaing.arep.annotations.GetMapping;
+
+/**
+ * The `ControllerRegistry` class holds the controllers of the server and the table that
+ * routes requests to their methods. The table is an immutable snapshot published through
+ * an `AtomicReference`: a request pays one volatile read to get the current snapshot and
+ * then matches against it without any lock, however often controllers change.
+ *
+ * Changes are copy-on-write. Registering, unregistering or reloading a controller builds a
+ * new `Router` from the current snapshot and swaps it in with a compare-and-set, retrying
+ * if another change got in first. Requests already matched keep running against the
+ * snapshot they started with, so routes can change under live traffic without a pause.
+ *
+ * Usage example:
+ *
+ * <pre>
+ * {@code
+ * ControllerRegistry registry = SimpleWebServer.getRegistry();
+ * registry.register(GreetingController.class);
+ * registry.reload(GreetingController.class.getName(), new URLClassLoader(urls, parent));
+ * registry.unregister(GreetingController.class.getName());
+ * }
+ * </pre>
+ */
+public class ControllerRegistry {
+    private final AtomicReference<Snapshot> snapshot = new AtomicReference<>(new Snapshot());
+
+    /**
+     * Matches a whole path against the current routes.
+     *
+     * @param path the request path, without query string.
+     * @param match the object that receives the handler and the path variables.
+     * @return true if a route matched.
+     */
+    public boolean match(CharSequence path, RouteMatch<RouteInvoker> match) {
+        return snapshot.get().router.match(path, match);
+    }
+
+    /**
+     * Matches the path held in a region of a character sequence against the current routes.
+     *
+     * @param source the characters holding the path.
+     * @param start the index of the leading '/'.
+     * @param end the index just past the last character of the path.
+     * @param match the object that receives the handler and the path variables.
+     * @return true if a route matched.
+     */
+    public boolean match(CharSequence source, int start, int end, RouteMatch<RouteInvoker> match) {
+        return snapshot.get().router.match(source, start, end, match);
+    }
+
+    /**
+     * Returns the handler registered for exactly this pattern.
+     *
+     * @param pattern the pattern used at registration.
+     * @return the handler, or null if none is registered.
+     */
+    public RouteInvoker get(String pattern) {
+        return snapshot.get().router.get(pattern);
+    }
+
+    /**
+     * @return the current routes and their handlers, in registration order; the map does
+     *         not change when controllers do.
+     */
+    public Map<String, RouteInvoker> routes() {
+        return snapshot.get().router.routes();
+    }
+
+    /**
+     * @return the current controllers by class name; the map does not change when controllers do.
+     */
+    public Map<String, Object> controllers() {
+        return snapshot.get().controllers;
+    }
+
+    /**
+     * Creates a controller with its no-argument constructor and registers it.
+     *
+     * @param controllerClass the class of the controller.
+     * @throws IllegalArgumentException if one of its routes is malformed or already taken.
+     */
+    public void register(Class<?> controllerClass) throws ReflectiveOperationException {
+        register(newController(controllerClass));
+    }
+
+    /**
+     * Registers a controller and maps its methods annotated with @GetMapping. A controller
+     * of the same class registered before is replaced, routes included.
+     *
+     * @param controller the controller instance.
+     * @throws IllegalArgumentException if one of its routes is malformed or already taken.
+     */
+    public void register(Object controller) throws IllegalAccessException {
+        publish(Collections.singletonList(scan(controller)));
+    }
+
+    /**
+     * Registers several controllers with a single change of the route table, so that
+     * registering all the controllers at startup builds the table once.
+     *
+     * @param controllers the controllers, each with the routes to map.
+     */
+    void registerAll(Collection<Registration> controllers) {
+        publish(controllers);
+    }
+
+    /**
+     * Maps a single route, keeping the other routes of its controller.
+     *
+     * @param pattern the path pattern.
+     * @param invoker the handler of the route.
+     * @throws IllegalArgumentException if the pattern is malformed or already taken.
+     */
+    public void add(String pattern, RouteInvoker invoker) {
+        String owner = invoker.getMethod().getDeclaringClass().getName();
+        snapshot.updateAndGet(current -> current.with(null, Collections.singletonList(
+                new Registration(owner, null, Collections.singletonMap(pattern, invoker)))));
+    }
+
+    /**
+     * Removes a controller and every route of its methods. Requests already matched to
+     * one of them complete normally.
+     *
+     * @param controllerName the class name of the controller.
+     * @return whether the controller or any of its routes was registered.
+     */
+    public boolean unregister(String controllerName) {
+        Snapshot before = snapshot.getAndUpdate(current -> current.without(controllerName));
+        return before.controllers.containsKey(controllerName) || before.owners.containsValue(controllerName);
+    }
+
+    /**
+     * Replaces a controller with a new version of its class loaded by another class loader,
+     * such as one over a freshly compiled directory. The routes of the old version are
+     * replaced by those of the new one in a single change of the route table, so every
+     * request is served by one version or the other.
+     *
+     * @param controllerName the class name of the controller.
+     * @param loader the class loader that loads the new version.
+     * @throws IllegalArgumentException if one of its routes is malformed or taken by another controller.
+     */
+    public void reload(String controllerName, ClassLoader loader) throws ReflectiveOperationException {
+        register(Class.forName(controllerName, true, loader));
+    }
+
+    /**
+     * Finds the methods of a controller annotated with @GetMapping and resolves their invokers.
+     *
+     * @param controller the controller instance.
+     * @return the controller with its routes.
+     */
+    static Registration scan(Object controller) throws IllegalAccessException {
+        Map<String, RouteInvoker> routes = new LinkedHashMap<>();
+        for (Method method : controller.getClass().getDeclaredMethods()) {
+            GetMapping getMapping = method.getAnnotation(GetMapping.class);
+            if (getMapping != null) {
+                routes.put(getMapping.value(), RouteInvoker.create(controller, method));
+            }
+        }
+        return new Registration(controller.getClass().getName(), controller, routes);
+    }
+
+    /**
+     * Creates a controller with its no-argument constructor, which may be private.
+     *
+     * @param controllerClass the class of the controller.
+     * @return the new instance.
+     */
+    static Object newController(Class<?> controllerClass) throws ReflectiveOperationException {
+        Constructor<?> constructor = controllerClass.getDeclaredConstructor();
+        constructor.setAccessible(true);
+        return constructor.newInstance();
+    }
+
+    private void publish(Collection<Registration> controllers) {
+        List<String> replaced = new ArrayList<>();
+        for (Registration controller : controllers) {
+            replaced.add(controller.name);
+        }
+        snapshot.updateAndGet(current -> current.with(replaced, controllers));
+    }
+
+    /**
+     * A controller waiting to be registered, with the invokers of its routes already resolved.
+     */
+    static final class Registration {
+        final String name;
+        final Object instance;
+        final Map<String, RouteInvoker> routes;
+
+        /**
+         * @param name the class name of the controller.
+         * @param instance the controller, or null to map routes without registering a controller.
+         * @param routes the patterns and their handlers.
+         */
+        Registration(String name, Object instance, Map<String, RouteInvoker> routes) {
+            this.name = name;
+            this.instance = instance;
+            this.routes = routes;
+        }
+    }
+
+    /**
+     * An immutable state of the registry. A snapshot is never modified once it has been
+     * published, so it can be read by any number of threads without synchronization.
+     */
+    private static final class Snapshot {
+        final Router<RouteInvoker> router;
+        final Map<String, Object> controllers;
+        final Map<String, String> owners;  // Class name of the controller of every pattern
+
+        Snapshot() {
+            this(new Router<>(), new LinkedHashMap<>(), new HashMap<>());
+        }
+
+        private Snapshot(Router<RouteInvoker> router, Map<String, Object> controllers, Map<String, String> owners) {
+            this.router = router;
+            this.controllers = Collections.unmodifiableMap(controllers);
+            this.owners = owners;
+        }
+
+        /**
+         * Builds the snapshot with controllers added.
+         *
+         * @param replaced the controllers whose current routes are dropped, or null to keep every route.
+         * @param added the controllers and routes to add.
+         * @return the new snapshot.
+         * @throws IllegalArgumentException if a route is malformed or conflicts with one kept.
+         */
+        Snapshot with(Collection<String> replaced, Collection<Registration> added) {
+            Router<RouteInvoker> router = new Router<>();
+            Map<String, Object> controllers = new LinkedHashMap<>(this.controllers);
+            Map<String, String> owners = new HashMap<>();
+            for (Map.Entry<String, RouteInvoker> route : this.router.routes().entrySet()) {
+                String owner = this.owners.get(route.getKey());
+                if (replaced == null || !replaced.contains(owner)) {
+                    router.add(route.getKey(), route.getValue());
+                    owners.put(route.getKey(), owner);
+                }
+            }
+            for (Registration controller : added) {
+                for (Map.Entry<String, RouteInvoker> route : controller.routes.entrySet()) {
+                    router.add(route.getKey(), route.getValue());
+                    owners.put(route.getKey(), controller.name);
+                }
+                if (controller.instance != null) {
+                    controllers.put(controller.name, controller.instance);
+                }
+            }
+            return new Snapshot(router, controllers, owners);
+        }
+
+        /**
+         * Builds the snapshot without a controller.
+         *
+         * @param name the class name of the controller.
+         * @return the new snapshot, or this one if the controller is not registered.
+         */
+        Snapshot without(String name) {
+            if (!controllers.containsKey(name) && !owners.containsValue(name)) {
+                return this;
+            }
+            Snapshot snapshot = with(Collections.singletonList(name), Collections.emptyList());
+            Map<String, Object> controllers = new LinkedHashMap<>(snapshot.controllers);
+            controllers.remove(name);
+            return new Snapshot(snapshot.router, controllers, snapshot.owners);
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package edu.escuelaing.arep;
+
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
+import edu.escuelaing.arep.annotations.GetMapping;
+import edu.escuelaing.arep.annotations.RequestParam;
+import edu.escuelaing.arep.annotations.RestController;
+
+/**
+ * The `CountService` class represents a RESTful service that counts up to a number, one line
+ * per number. Its method returns a `Stream`, so the response is sent chunked as the numbers
+ * are generated and never held in memory as a whole, however large it is.
+ */
+@RestController
+public class CountService {
+
+    /**
+     * Handles HTTP GET requests to the `/app/count` endpoint.
+     *
+     * @param to the last number. If the parameter is not provided, the default value 10
+     *           will be used.
+     * @return the numbers from 1 to `to`, sent one per line.
+     *
+     * Usage examples:
+     *
+     * <pre>
+     * {@code
+     * GET /app/count?to=3
+     * Response: "1\n2\n3\n", with Transfer-Encoding: chunked
+     *
+     * GET /app/count?to=100000000
+     * Response: about 900 MB, streamed as fast as the client reads it
+     * }
+     * </pre>
+     */
+    @GetMapping("/app/count")
+    public Stream<Long> count(@RequestParam(value = "to", defaultValue = "10") long to) {
+        return LongStream.rangeClosed(1, to).boxed();
+    }
+}
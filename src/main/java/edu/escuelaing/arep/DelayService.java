@@ -0,0 +1,54 @@
+package edu.escuelaing.arep;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import edu.escuelaing.arep.annotations.GetMapping;
+import edu.escuelaing.arep.annotations.RequestParam;
+import edu.escuelaing.arep.annotations.RestController;
+import edu.escuelaing.arep.annotations.Timeout;
+
+/**
+ * The `DelayService` class represents a RESTful service that answers after a delay, as a
+ * controller waiting on a slow backend would. Its method returns a `CompletableFuture`, so
+ * no server thread is held while the delay runs; a single scheduler thread completes the
+ * futures of every request.
+ */
+@RestController
+public class DelayService {
+    private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "delay-service");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Handles HTTP GET requests to the `/app/delay` endpoint. The response is sent once the
+     * delay has elapsed, or `504 Gateway Timeout` after five seconds.
+     *
+     * @param ms the delay in milliseconds. If the parameter is not provided, the default
+     *           value 1000 will be used.
+     * @return a future completed with a message after the delay.
+     *
+     * Usage examples:
+     *
+     * <pre>
+     * {@code
+     * GET /app/delay?ms=200
+     * Response: "Answered after 200 ms"
+     *
+     * GET /app/delay?ms=10000
+     * Response: 504 Gateway Timeout
+     * }
+     * </pre>
+     */
+    @GetMapping("/app/delay")
+    @Timeout(5000)
+    public CompletableFuture<String> delay(@RequestParam(value = "ms", defaultValue = "1000") long ms) {
+        CompletableFuture<String> result = new CompletableFuture<>();
+        SCHEDULER.schedule(() -> result.complete("Answered after " + ms + " ms"), Math.max(ms, 0),
+                TimeUnit.MILLISECONDS);
+        return result;
+    }
+}
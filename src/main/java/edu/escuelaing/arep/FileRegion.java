@@ -0,0 +1,115 @@
+package edu.escuelaing.arep;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The `FileRegion` class is a response body that stays on disk. It is sent with
+ * `FileChannel.transferTo`, which lets the kernel copy the file straight to the socket
+ * (sendfile on Linux) without moving its bytes through the Java heap. It also handles
+ * files larger than 2 GB, which cannot be held in a single array.
+ *
+ * A region remembers how much of it has been sent, so each response needs its own instance.
+ */
+public class FileRegion implements Closeable {
+    private final Path path;
+    private final long end;
+    private long position;
+    private FileChannel channel;
+
+    /**
+     * Creates a region of a file.
+     *
+     * @param path the file.
+     * @param position the offset of the first byte to send.
+     * @param count the number of bytes to send.
+     */
+    public FileRegion(Path path, long position, long count) {
+        this.path = path;
+        this.position = position;
+        this.end = position + count;
+    }
+
+    /**
+     * @return the number of bytes still to be sent.
+     */
+    public long remaining() {
+        return end - position;
+    }
+
+    /**
+     * Sends as many bytes as the target accepts. With a blocking target the call returns
+     * once the region is complete; with a non-blocking one it may stop early.
+     *
+     * @param target the channel to write to.
+     * @return the number of bytes written.
+     */
+    public long transferTo(WritableByteChannel target) throws IOException {
+        if (channel == null) {
+            channel = FileChannel.open(path, StandardOpenOption.READ);
+        }
+        long written = 0;
+        while (position < end) {
+            long n = channel.transferTo(position, end - position, target);
+            if (n <= 0) {
+                if (position >= channel.size()) {
+                    throw new IOException("File truncated while being sent: " + path);
+                }
+                break;  // The non-blocking target is full
+            }
+            position += n;
+            written += n;
+        }
+        if (position >= end) {
+            close();
+        }
+        return written;
+    }
+
+    /**
+     * Copies the next bytes of the region into a buffer, for protocols that frame the body
+     * and so cannot hand the file to the socket as it is.
+     *
+     * @param target the buffer to fill, in write mode.
+     * @return the number of bytes copied, or -1 once the whole region has been read.
+     */
+    public int read(ByteBuffer target) throws IOException {
+        if (position >= end) {
+            close();
+            return -1;
+        }
+        if (channel == null) {
+            channel = FileChannel.open(path, StandardOpenOption.READ);
+        }
+        int limit = target.limit();
+        if (target.remaining() > end - position) {
+            target.limit(target.position() + (int) (end - position));
+        }
+        try {
+            int n = channel.read(target, position);
+            if (n < 0) {
+                throw new IOException("File truncated while being sent: " + path);
+            }
+            position += n;
+            return n;
+        } finally {
+            target.limit(limit);
+        }
+    }
+
+    /**
+     * Releases the file channel.
+     */
+    @Override
+    public void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+}
@@ -0,0 +1,347 @@
+package edu.escuelaing.arep;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The `Hpack` class holds what the `HpackEncoder` and the `HpackDecoder` share: the static
+ * table of RFC 7541, the Huffman code used for string literals, the coding of integers with
+ * an N-bit prefix, and the dynamic table each side keeps of the headers sent before.
+ *
+ * Huffman decoding walks a binary tree built once from the code, stored in two parallel
+ * arrays rather than as node objects.
+ */
+final class Hpack {
+    static final int DEFAULT_TABLE_SIZE = 4096;
+    static final int ENTRY_OVERHEAD = 32;
+
+    /**
+     * The static table, indexed from 1; names are lower case as HTTP/2 requires.
+     */
+    static final String[][] STATIC_TABLE = {
+            null,
+            {":authority", ""}, {":method", "GET"}, {":method", "POST"}, {":path", "/"},
+            {":path", "/index.html"}, {":scheme", "http"}, {":scheme", "https"}, {":status", "200"},
+            {":status", "204"}, {":status", "206"}, {":status", "304"}, {":status", "400"},
+            {":status", "404"}, {":status", "500"}, {"accept-charset", ""}, {"accept-encoding", "gzip, deflate"},
+            {"accept-language", ""}, {"accept-ranges", ""}, {"accept", ""}, {"access-control-allow-origin", ""},
+            {"age", ""}, {"allow", ""}, {"authorization", ""}, {"cache-control", ""},
+            {"content-disposition", ""}, {"content-encoding", ""}, {"content-language", ""}, {"content-length", ""},
+            {"content-location", ""}, {"content-range", ""}, {"content-type", ""}, {"cookie", ""},
+            {"date", ""}, {"etag", ""}, {"expect", ""}, {"expires", ""},
+            {"from", ""}, {"host", ""}, {"if-match", ""}, {"if-modified-since", ""},
+            {"if-none-match", ""}, {"if-range", ""}, {"if-unmodified-since", ""}, {"last-modified", ""},
+            {"link", ""}, {"location", ""}, {"max-forwards", ""}, {"proxy-authenticate", ""},
+            {"proxy-authorization", ""}, {"range", ""}, {"referer", ""}, {"refresh", ""},
+            {"retry-after", ""}, {"server", ""}, {"set-cookie", ""}, {"strict-transport-security", ""},
+            {"transfer-encoding", ""}, {"user-agent", ""}, {"vary", ""}, {"via", ""},
+            {"www-authenticate", ""},
+    };
+    static final int STATIC_TABLE_LENGTH = STATIC_TABLE.length - 1;
+
+    private static final Map<String, Integer> STATIC_NAMES = new HashMap<>();
+    private static final Map<String, Integer> STATIC_FIELDS = new HashMap<>();
+
+    /**
+     * The Huffman code of every byte and of the end-of-string symbol (256), from Appendix B
+     * of RFC 7541, right-aligned in `CODES` with their bit lengths in `LENGTHS`.
+     */
+    private static final int[] CODES = {
+            0x1ff8, 0x7fffd8, 0xfffffe2, 0xfffffe3, 0xfffffe4, 0xfffffe5, 0xfffffe6, 0xfffffe7,
+            0xfffffe8, 0xffffea, 0x3ffffffc, 0xfffffe9, 0xfffffea, 0x3ffffffd, 0xfffffeb, 0xfffffec,
+            0xfffffed, 0xfffffee, 0xfffffef, 0xffffff0, 0xffffff1, 0xffffff2, 0x3ffffffe, 0xffffff3,
+            0xffffff4, 0xffffff5, 0xffffff6, 0xffffff7, 0xffffff8, 0xffffff9, 0xffffffa, 0xffffffb,
+            0x14, 0x3f8, 0x3f9, 0xffa, 0x1ff9, 0x15, 0xf8, 0x7fa,
+            0x3fa, 0x3fb, 0xf9, 0x7fb, 0xfa, 0x16, 0x17, 0x18,
+            0x0, 0x1, 0x2, 0x19, 0x1a, 0x1b, 0x1c, 0x1d,
+            0x1e, 0x1f, 0x5c, 0xfb, 0x7ffc, 0x20, 0xffb, 0x3fc,
+            0x1ffa, 0x21, 0x5d, 0x5e, 0x5f, 0x60, 0x61, 0x62,
+            0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6a,
+            0x6b, 0x6c, 0x6d, 0x6e, 0x6f, 0x70, 0x71, 0x72,
+            0xfc, 0x73, 0xfd, 0x1ffb, 0x7fff0, 0x1ffc, 0x3ffc, 0x22,
+            0x7ffd, 0x3, 0x23, 0x4, 0x24, 0x5, 0x25, 0x26,
+            0x27, 0x6, 0x74, 0x75, 0x28, 0x29, 0x2a, 0x7,
+            0x2b, 0x76, 0x2c, 0x8, 0x9, 0x2d, 0x77, 0x78,
+            0x79, 0x7a, 0x7b, 0x7ffe, 0x7fc, 0x3ffd, 0x1ffd, 0xffffffc,
+            0xfffe6, 0x3fffd2, 0xfffe7, 0xfffe8, 0x3fffd3, 0x3fffd4, 0x3fffd5, 0x7fffd9,
+            0x3fffd6, 0x7fffda, 0x7fffdb, 0x7fffdc, 0x7fffdd, 0x7fffde, 0xffffeb, 0x7fffdf,
+            0xffffec, 0xffffed, 0x3fffd7, 0x7fffe0, 0xffffee, 0x7fffe1, 0x7fffe2, 0x7fffe3,
+            0x7fffe4, 0x1fffdc, 0x3fffd8, 0x7fffe5, 0x3fffd9, 0x7fffe6, 0x7fffe7, 0xffffef,
+            0x3fffda, 0x1fffdd, 0xfffe9, 0x3fffdb, 0x3fffdc, 0x7fffe8, 0x7fffe9, 0x1fffde,
+            0x7fffea, 0x3fffdd, 0x3fffde, 0xfffff0, 0x1fffdf, 0x3fffdf, 0x7fffeb, 0x7fffec,
+            0x1fffe0, 0x1fffe1, 0x3fffe0, 0x1fffe2, 0x7fffed, 0x3fffe1, 0x7fffee, 0x7fffef,
+            0xfffea, 0x3fffe2, 0x3fffe3, 0x3fffe4, 0x7ffff0, 0x3fffe5, 0x3fffe6, 0x7ffff1,
+            0x3ffffe0, 0x3ffffe1, 0xfffeb, 0x7fff1, 0x3fffe7, 0x7ffff2, 0x3fffe8, 0x1ffffec,
+            0x3ffffe2, 0x3ffffe3, 0x3ffffe4, 0x7ffffde, 0x7ffffdf, 0x3ffffe5, 0xfffff1, 0x1ffffed,
+            0x7fff2, 0x1fffe3, 0x3ffffe6, 0x7ffffe0, 0x7ffffe1, 0x3ffffe7, 0x7ffffe2, 0xfffff2,
+            0x1fffe4, 0x1fffe5, 0x3ffffe8, 0x3ffffe9, 0xffffffd, 0x7ffffe3, 0x7ffffe4, 0x7ffffe5,
+            0xfffec, 0xfffff3, 0xfffed, 0x1fffe6, 0x3fffe9, 0x1fffe7, 0x1fffe8, 0x7ffff3,
+            0x3fffea, 0x3fffeb, 0x1ffffee, 0x1ffffef, 0xfffff4, 0xfffff5, 0x3ffffea, 0x7ffff4,
+            0x3ffffeb, 0x7ffffe6, 0x3ffffec, 0x3ffffed, 0x7ffffe7, 0x7ffffe8, 0x7ffffe9, 0x7ffffea,
+            0x7ffffeb, 0xffffffe, 0x7ffffec, 0x7ffffed, 0x7ffffee, 0x7ffffef, 0x7fffff0, 0x3ffffee,
+            0x3fffffff,
+    };
+    private static final byte[] LENGTHS = {
+            13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28,
+            28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+            6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6,
+            5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+            13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+            7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+            15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5,
+            6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+            20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23,
+            24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+            22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23,
+            21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+            26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25,
+            19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+            20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23,
+            26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26,
+            30,
+    };
+    private static final int EOS = 256;
+
+    // The decoding tree: node 0 is the root, a child below zero is the leaf of symbol ~child
+    private static final int[] ZERO;
+    private static final int[] ONE;
+
+    static {
+        for (int i = STATIC_TABLE_LENGTH; i >= 1; i--) {
+            STATIC_NAMES.put(STATIC_TABLE[i][0], i);
+            STATIC_FIELDS.put(STATIC_TABLE[i][0] + '\0' + STATIC_TABLE[i][1], i);
+        }
+        int[] zero = new int[EOS + 1];
+        int[] one = new int[EOS + 1];
+        int nodes = 1;
+        for (int symbol = 0; symbol <= EOS; symbol++) {
+            int node = 0;
+            for (int bit = LENGTHS[symbol] - 1; bit >= 0; bit--) {
+                int[] children = (CODES[symbol] >>> bit & 1) == 0 ? zero : one;
+                if (bit == 0) {
+                    children[node] = ~symbol;
+                } else {
+                    if (children[node] == 0) {
+                        children[node] = nodes++;
+                    }
+                    node = children[node];
+                }
+            }
+        }
+        ZERO = zero;
+        ONE = one;
+    }
+
+    private Hpack() {
+    }
+
+    /**
+     * @return the index of a name and value in the static table, or 0 if it is not there.
+     */
+    static int staticIndex(String name, String value) {
+        Integer index = STATIC_FIELDS.get(name + '\0' + value);
+        return index == null ? 0 : index;
+    }
+
+    /**
+     * @return the lowest index of a name in the static table, or 0 if it is not there.
+     */
+    static int staticNameIndex(String name) {
+        Integer index = STATIC_NAMES.get(name);
+        return index == null ? 0 : index;
+    }
+
+    /**
+     * Writes an integer with an N-bit prefix (RFC 7541, section 5.1).
+     *
+     * @param out the header block being written.
+     * @param value the integer, not negative.
+     * @param prefixBits the bits of the first byte that hold the integer.
+     * @param flags the bits of the first byte above the prefix.
+     */
+    static void writeInteger(ByteArrayOutputStream out, int value, int prefixBits, int flags) {
+        int max = (1 << prefixBits) - 1;
+        if (value < max) {
+            out.write(flags | value);
+            return;
+        }
+        out.write(flags | max);
+        value -= max;
+        while (value >= 0x80) {
+            out.write(value & 0x7F | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    /**
+     * Writes a string literal, Huffman coded when that makes it shorter (RFC 7541, section 5.2).
+     *
+     * @param out the header block being written.
+     * @param value the string, made of ISO-8859-1 characters.
+     */
+    static void writeString(ByteArrayOutputStream out, String value) {
+        long bits = 0;
+        for (int i = 0; i < value.length(); i++) {
+            bits += LENGTHS[value.charAt(i) & 0xFF];
+        }
+        int huffmanLength = (int) ((bits + 7) / 8);
+        if (huffmanLength >= value.length()) {
+            byte[] raw = value.getBytes(StandardCharsets.ISO_8859_1);
+            writeInteger(out, raw.length, 7, 0);
+            out.write(raw, 0, raw.length);
+            return;
+        }
+        writeInteger(out, huffmanLength, 7, 0x80);
+        long pending = 0;
+        int pendingBits = 0;
+        for (int i = 0; i < value.length(); i++) {
+            int symbol = value.charAt(i) & 0xFF;
+            pending = pending << LENGTHS[symbol] | CODES[symbol] & 0xFFFFFFFFL;
+            pendingBits += LENGTHS[symbol];
+            while (pendingBits >= 8) {
+                pendingBits -= 8;
+                out.write((int) (pending >>> pendingBits));
+            }
+        }
+        if (pendingBits > 0) {
+            // Padded with the most significant bits of the end-of-string code, all ones
+            out.write((int) (pending << (8 - pendingBits) | 0xFF >>> pendingBits));
+        }
+    }
+
+    /**
+     * Decodes a Huffman-coded string.
+     *
+     * @param source the header block.
+     * @param offset the index of the first byte of the string.
+     * @param length the number of bytes of the string.
+     * @return the decoded string.
+     * @throws IOException if the code is invalid, holds the end-of-string symbol, or is
+     *                     padded with more than seven bits or with anything but ones.
+     */
+    static String decodeHuffman(byte[] source, int offset, int length) throws IOException {
+        StringBuilder decoded = new StringBuilder(length * 8 / 5);
+        int node = 0;
+        int depth = 0;  // Bits read since the last symbol
+        boolean allOnes = true;
+        for (int i = offset; i < offset + length; i++) {
+            int b = source[i];
+            for (int bit = 7; bit >= 0; bit--) {
+                int one = b >>> bit & 1;
+                int child = one == 0 ? ZERO[node] : ONE[node];
+                depth++;
+                allOnes &= one == 1;
+                if (child < 0) {
+                    if (~child == EOS) {
+                        throw new IOException("Huffman-coded string holds the end-of-string symbol");
+                    }
+                    decoded.append((char) ~child);
+                    node = 0;
+                    depth = 0;
+                    allOnes = true;
+                } else if (child == 0) {
+                    throw new IOException("Invalid Huffman code");
+                } else {
+                    node = child;
+                }
+            }
+        }
+        if (depth > 7 || !allOnes) {
+            throw new IOException("Invalid Huffman padding");
+        }
+        return decoded.toString();
+    }
+
+    /**
+     * The dynamic table of one side of a connection: the headers added most recently come
+     * first, and the oldest are evicted once the entries exceed the maximum size, each one
+     * counting its name, its value and 32 bytes of overhead.
+     */
+    static final class DynamicTable {
+        private String[] names = new String[16];
+        private String[] values = new String[16];
+        private int first;  // Index in the arrays of the newest entry
+        private int length;
+        private int size;
+        private int maxSize;
+
+        DynamicTable(int maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        /**
+         * @return the number of entries.
+         */
+        int length() {
+            return length;
+        }
+
+        /**
+         * @param index the index of the entry, 1 for the newest.
+         */
+        String name(int index) {
+            return names[(first + index - 1) % names.length];
+        }
+
+        /**
+         * @param index the index of the entry, 1 for the newest.
+         */
+        String value(int index) {
+            return values[(first + index - 1) % values.length];
+        }
+
+        /**
+         * Adds an entry, evicting the oldest ones to make room. An entry larger than the
+         * table empties it and is not added.
+         */
+        void add(String name, String value) {
+            int entrySize = name.length() + value.length() + ENTRY_OVERHEAD;
+            evict(maxSize - entrySize);
+            if (entrySize > maxSize) {
+                return;
+            }
+            if (length == names.length) {
+                String[] grownNames = new String[length * 2];
+                String[] grownValues = new String[length * 2];
+                for (int i = 0; i < length; i++) {
+                    grownNames[i] = name(i + 1);
+                    grownValues[i] = value(i + 1);
+                }
+                names = grownNames;
+                values = grownValues;
+                first = 0;
+            }
+            first = (first - 1 + names.length) % names.length;
+            names[first] = name;
+            values[first] = value;
+            length++;
+            size += entrySize;
+        }
+
+        /**
+         * Changes the maximum size, evicting entries that no longer fit.
+         */
+        void setMaxSize(int maxSize) {
+            this.maxSize = maxSize;
+            evict(maxSize);
+        }
+
+        int getMaxSize() {
+            return maxSize;
+        }
+
+        private void evict(int targetSize) {
+            while (length > 0 && size > targetSize) {
+                int last = (first + length - 1) % names.length;
+                size -= names[last].length() + values[last].length() + ENTRY_OVERHEAD;
+                names[last] = null;
+                values[last] = null;
+                length--;
+            }
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package edu.escuelaing.arep;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The `HpackDecoder` class decodes the header blocks a client sends on an HTTP/2 connection
+ * (RFC 7541). It keeps the dynamic table of the connection, so the blocks must be decoded
+ * in the order they were received, every one of them, even those of requests that end up
+ * rejected.
+ *
+ * Usage example:
+ *
+ * <pre>
+ * {@code
+ * HpackDecoder decoder = new HpackDecoder(4096);
+ * List<String> headers = decoder.decode(block, 0, block.length);  // name, value, name, value...
+ * }
+ * </pre>
+ */
+class HpackDecoder {
+    private final Hpack.DynamicTable table = new Hpack.DynamicTable(Hpack.DEFAULT_TABLE_SIZE);
+    private final int maxTableSize;
+    private byte[] source;
+    private int position;
+
+    /**
+     * Creates the decoder of a connection.
+     *
+     * @param maxTableSize the largest dynamic table the client may use, as announced in
+     *                     `SETTINGS_HEADER_TABLE_SIZE`.
+     */
+    HpackDecoder(int maxTableSize) {
+        this.maxTableSize = maxTableSize;
+        table.setMaxSize(maxTableSize);
+    }
+
+    /**
+     * Decodes a complete header block.
+     *
+     * @param block the bytes of the block.
+     * @param offset the index of the first byte.
+     * @param length the number of bytes.
+     * @return the names and values of the headers, alternating, in the order they were sent.
+     * @throws IOException if the block is malformed; the connection cannot go on after it.
+     */
+    List<String> decode(byte[] block, int offset, int length) throws IOException {
+        return decode(block, offset, length, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Decodes a complete header block, giving up on the headers once they add up to more
+     * than a limit. A few bytes can reference a large entry of the dynamic table over and
+     * over, so the size of the decoded headers is only bounded by this limit. The rest of the
+     * block is still decoded, as the dynamic table must follow it, but nothing more is kept.
+     *
+     * @param block the bytes of the block.
+     * @param offset the index of the first byte.
+     * @param length the number of bytes.
+     * @param maxSize the largest size of the headers, counted as in the dynamic table.
+     * @return the names and values of the headers, alternating, in the order they were sent,
+     *         or null if they are larger than `maxSize`.
+     * @throws IOException if the block is malformed; the connection cannot go on after it.
+     */
+    List<String> decode(byte[] block, int offset, int length, int maxSize) throws IOException {
+        source = block;
+        position = offset;
+        int end = offset + length;
+        List<String> headers = new ArrayList<>(32);
+        long size = 0;
+        boolean fieldSeen = false;
+        try {
+            while (position < end) {
+                int b = source[position] & 0xFF;
+                String name;
+                String value;
+                if ((b & 0x80) != 0) {  // Indexed header field
+                    int index = readInteger(7, end);
+                    name = name(index);
+                    value = value(index);
+                } else if ((b & 0xC0) == 0x40) {  // Literal with incremental indexing
+                    name = readName(6, end);
+                    value = readString(end);
+                    table.add(name, value);
+                } else if ((b & 0xE0) == 0x20) {  // Dynamic table size update
+                    if (fieldSeen) {
+                        throw new IOException("Dynamic table size update after a header field");
+                    }
+                    int tableSize = readInteger(5, end);
+                    if (tableSize > maxTableSize) {
+                        throw new IOException("Dynamic table size above the limit: " + tableSize);
+                    }
+                    table.setMaxSize(tableSize);
+                    continue;
+                } else {  // Literal without indexing, or never indexed
+                    name = readName(4, end);
+                    value = readString(end);
+                }
+                fieldSeen = true;
+                size += name.length() + value.length() + Hpack.ENTRY_OVERHEAD;
+                if (size <= maxSize) {
+                    headers.add(name);
+                    headers.add(value);
+                }
+            }
+        } finally {
+            source = null;
+        }
+        return size <= maxSize ? headers : null;
+    }
+
+    private String readName(int prefixBits, int end) throws IOException {
+        int index = readInteger(prefixBits, end);
+        return index == 0 ? readString(end) : name(index);
+    }
+
+    private String name(int index) throws IOException {
+        if (index >= 1 && index <= Hpack.STATIC_TABLE_LENGTH) {
+            return Hpack.STATIC_TABLE[index][0];
+        }
+        int dynamic = index - Hpack.STATIC_TABLE_LENGTH;
+        if (index == 0 || dynamic > table.length()) {
+            throw new IOException("Invalid header table index: " + index);
+        }
+        return table.name(dynamic);
+    }
+
+    private String value(int index) {
+        if (index <= Hpack.STATIC_TABLE_LENGTH) {
+            return Hpack.STATIC_TABLE[index][1];
+        }
+        return table.value(index - Hpack.STATIC_TABLE_LENGTH);
+    }
+
+    private int readInteger(int prefixBits, int end) throws IOException {
+        int max = (1 << prefixBits) - 1;
+        int value = source[position++] & max;
+        if (value < max) {
+            return value;
+        }
+        for (int shift = 0; ; shift += 7) {
+            if (position >= end || shift > 21) {
+                throw new IOException("Truncated or oversized integer in header block");
+            }
+            int b = source[position++] & 0xFF;
+            value += (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+    }
+
+    private String readString(int end) throws IOException {
+        if (position >= end) {
+            throw new IOException("Truncated header block");
+        }
+        boolean huffman = (source[position] & 0x80) != 0;
+        int length = readInteger(7, end);
+        if (length > end - position) {
+            throw new IOException("String literal past the end of the header block");
+        }
+        String value = huffman
+                ? Hpack.decodeHuffman(source, position, length)
+                : new String(source, position, length, StandardCharsets.ISO_8859_1);
+        position += length;
+        return value;
+    }
+}
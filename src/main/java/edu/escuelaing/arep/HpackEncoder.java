@@ -0,0 +1,106 @@
+package edu.escuelaing.arep;
+
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+
+/**
+ * The `HpackEncoder` class encodes the header blocks of the responses sent on an HTTP/2
+ * connection (RFC 7541). A header found whole in the static or dynamic table is sent as a
+ * single index; any other is sent as a literal, Huffman coded when that is shorter, and added
+ * to the dynamic table so that the next response repeating it, as the responses of a page's
+ * assets repeat their `content-type` and `cache-control`, sends one byte for it.
+ *
+ * Headers whose value changes with every response, such as `content-length` or `etag`, are
+ * never added to the table, so they do not evict the ones that repeat.
+ *
+ * The encoder keeps the dynamic table of the connection, so blocks must be sent in the
+ * order they are encoded.
+ */
+class HpackEncoder {
+    private final Hpack.DynamicTable table = new Hpack.DynamicTable(Hpack.DEFAULT_TABLE_SIZE);
+    private int pendingSizeUpdate = -1;
+
+    /**
+     * Limits the dynamic table to the size the client announced in `SETTINGS_HEADER_TABLE_SIZE`.
+     * The change is signalled at the start of the next header block.
+     *
+     * @param maxSize the largest size the client accepts.
+     */
+    void setMaxTableSize(int maxSize) {
+        int size = Math.min(maxSize, Hpack.DEFAULT_TABLE_SIZE);
+        if (size != table.getMaxSize()) {
+            table.setMaxSize(size);
+            pendingSizeUpdate = size;
+        }
+    }
+
+    /**
+     * Encodes a header block.
+     *
+     * @param headers the names, in lower case, and values of the headers, alternating.
+     * @return the header block.
+     */
+    byte[] encode(List<String> headers) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(64);
+        if (pendingSizeUpdate >= 0) {
+            Hpack.writeInteger(out, pendingSizeUpdate, 5, 0x20);
+            pendingSizeUpdate = -1;
+        }
+        for (int i = 0; i < headers.size(); i += 2) {
+            encode(out, headers.get(i), headers.get(i + 1));
+        }
+        return out.toByteArray();
+    }
+
+    private void encode(ByteArrayOutputStream out, String name, String value) {
+        int index = Hpack.staticIndex(name, value);
+        int nameIndex = 0;
+        for (int i = 1; index == 0 && i <= table.length(); i++) {
+            if (table.name(i).equals(name)) {
+                if (table.value(i).equals(value)) {
+                    index = Hpack.STATIC_TABLE_LENGTH + i;
+                } else if (nameIndex == 0) {
+                    nameIndex = Hpack.STATIC_TABLE_LENGTH + i;
+                }
+            }
+        }
+        if (index != 0) {
+            Hpack.writeInteger(out, index, 7, 0x80);
+            return;
+        }
+        int staticName = Hpack.staticNameIndex(name);
+        if (staticName != 0) {
+            nameIndex = staticName;
+        }
+        boolean indexed = isRepeated(name);
+        if (indexed) {
+            Hpack.writeInteger(out, nameIndex, 6, 0x40);
+        } else {
+            Hpack.writeInteger(out, nameIndex, 4, 0);
+        }
+        if (nameIndex == 0) {
+            Hpack.writeString(out, name);
+        }
+        Hpack.writeString(out, value);
+        if (indexed) {
+            table.add(name, value);
+        }
+    }
+
+    /**
+     * @return whether the values of a header are likely to repeat on the connection.
+     */
+    private static boolean isRepeated(String name) {
+        switch (name) {
+            case "content-length":
+            case "content-range":
+            case "etag":
+            case "last-modified":
+            case "date":
+            case "set-cookie":
+                return false;
+            default:
+                return true;
+        }
+    }
+}
@@ -0,0 +1,1066 @@
+package edu.escuelaing.arep;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * The `Http2Connection` class speaks cleartext HTTP/2 (h2c, RFC 9113) on a connection, so
+ * that a browser loads a page and all its assets over one socket instead of several. The
+ * connection starts either with the HTTP/2 preface ("prior knowledge") or with an HTTP/1.1
+ * request carrying `Upgrade: h2c`, which is then answered as stream 1.
+ *
+ * The thread of the connection reads frames and decodes header blocks with the `HpackDecoder`
+ * of the connection. Each complete request becomes a stream that is dispatched on an
+ * executor through the same `RequestDispatcher` as HTTP/1.1, so static files and controllers
+ * are served exactly as they are on the other protocol, and the responses of several
+ * streams are produced at the same time. Each stream writes its own frames: the header
+ * block, encoded with the `HpackEncoder` of the connection, and then the body in `DATA`
+ * frames of at most 16 KB, taking the write lock for one frame at a time so that the
+ * bodies of concurrent streams are interleaved on the socket.
+ *
+ * Sending respects the flow-control windows of the client: a stream whose window, or the
+ * window of the connection, is exhausted waits until the client sends `WINDOW_UPDATE`.
+ * Request bodies are acknowledged as they arrive. Server push is not used.
+ *
+ * `shutdown()` sends `GOAWAY`, lets the streams in flight complete and then ends the
+ * connection; a connection idle for longer than the keep-alive timeout does the same.
+ */
+class Http2Connection {
+    static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+    static final byte[] SWITCHING_PROTOCOLS = ("HTTP/1.1 101 Switching Protocols\r\n"
+            + "Connection: Upgrade\r\nUpgrade: h2c\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+
+    private static final int FRAME_HEADER_LENGTH = 9;
+    private static final int DEFAULT_FRAME_SIZE = 16384;
+    private static final int MAX_FRAME_SIZE = 16777215;
+    private static final int DEFAULT_WINDOW = 65535;
+    private static final long MAX_WINDOW = Integer.MAX_VALUE;
+
+    private static final int DATA = 0x0;
+    private static final int HEADERS = 0x1;
+    private static final int PRIORITY = 0x2;
+    private static final int RST_STREAM = 0x3;
+    private static final int SETTINGS = 0x4;
+    private static final int PUSH_PROMISE = 0x5;
+    private static final int PING = 0x6;
+    private static final int GOAWAY = 0x7;
+    private static final int WINDOW_UPDATE = 0x8;
+    private static final int CONTINUATION = 0x9;
+
+    private static final int FLAG_END_STREAM = 0x1;
+    private static final int FLAG_ACK = 0x1;
+    private static final int FLAG_END_HEADERS = 0x4;
+    private static final int FLAG_PADDED = 0x8;
+    private static final int FLAG_PRIORITY = 0x20;
+
+    private static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+    private static final int SETTINGS_ENABLE_PUSH = 0x2;
+    private static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+    private static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+    private static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+    private static final int SETTINGS_MAX_HEADER_LIST_SIZE = 0x6;
+
+    private static final int NO_ERROR = 0x0;
+    private static final int PROTOCOL_ERROR = 0x1;
+    private static final int FLOW_CONTROL_ERROR = 0x3;
+    private static final int STREAM_CLOSED = 0x5;
+    private static final int FRAME_SIZE_ERROR = 0x6;
+    private static final int REFUSED_STREAM = 0x7;
+    private static final int COMPRESSION_ERROR = 0x9;
+
+    private final Socket socket;
+    private final DataInputStream in;
+    private final OutputStream out;
+    private final ServerConfig config;
+    private final RequestDispatcher dispatcher;
+    private final ConcurrencyLimiter limiter;
+    private final Executor executor;
+    private final ServerMetrics metrics;
+    private final AccessLog accessLog;
+    private final HpackDecoder hpackDecoder = new HpackDecoder(Hpack.DEFAULT_TABLE_SIZE);
+    private final HpackEncoder hpackEncoder = new HpackEncoder();  // Guarded by writeLock
+    private final Object writeLock = new Object();
+    private final Map<Integer, Stream> streams = new ConcurrentHashMap<>();
+    private final byte[] frameHeader = new byte[FRAME_HEADER_LENGTH];  // Guarded by writeLock
+    private long connectionWindow = DEFAULT_WINDOW;  // Guarded by this, as are the stream windows
+    private long initialWindow = DEFAULT_WINDOW;
+    private volatile int maxFrameSize = DEFAULT_FRAME_SIZE;
+    private volatile int lastStreamId;
+    private volatile boolean goingAway;
+    private boolean started;  // Guarded by writeLock
+    private volatile boolean closed;
+    private ByteArrayOutputStream headerBlock;  // The fragments of a header block split over CONTINUATION frames
+    private int headerBlockStream;
+    private int headerBlockFlags;
+
+    /**
+     * Creates the HTTP/2 side of a connection.
+     *
+     * @param socket the connection.
+     * @param in the input stream of the connection.
+     * @param received the bytes read from the connection but not consumed yet, in read mode.
+     * @param config the server configuration.
+     * @param dispatcher the dispatcher that produces the responses.
+     * @param limiter the adaptive concurrency limiter, or null if requests are not limited.
+     * @param executor the executor the streams are dispatched on.
+     * @param metrics the metrics of the server.
+     * @param accessLog the log the responses are recorded in, or null if requests are not logged.
+     */
+    Http2Connection(Socket socket, InputStream in, ByteBuffer received, ServerConfig config,
+                    RequestDispatcher dispatcher, ConcurrencyLimiter limiter, Executor executor,
+                    ServerMetrics metrics, AccessLog accessLog) throws IOException {
+        byte[] pending = new byte[received.remaining()];
+        received.get(pending);
+        this.socket = socket;
+        this.in = new DataInputStream(new BufferedInputStream(
+                new SequenceInputStream(new ByteArrayInputStream(pending), in), DEFAULT_FRAME_SIZE));
+        this.out = new BufferedOutputStream(socket.getOutputStream(), FRAME_HEADER_LENGTH + DEFAULT_FRAME_SIZE);
+        this.config = config;
+        this.dispatcher = dispatcher;
+        this.limiter = limiter;
+        this.executor = executor;
+        this.metrics = metrics;
+        this.accessLog = accessLog;
+    }
+
+    /**
+     * @return whether a request is the start of the HTTP/2 preface, which an HTTP/1.1
+     *         decoder reads as a request of method `PRI`.
+     */
+    static boolean isPreface(HttpRequest request) {
+        return request.getMethod().equals("PRI") && request.getTarget().equals("*")
+                && request.getVersion().equals("HTTP/2.0");
+    }
+
+    /**
+     * @return whether a request asks to switch the connection to h2c. Requests with a body
+     *         are answered over HTTP/1.1, as the protocol allows.
+     */
+    static boolean isUpgrade(HttpRequest request) {
+        String upgrade = request.getHeader("upgrade");
+        if (upgrade == null || request.getHeader("http2-settings") == null
+                || !request.getVersion().equals("HTTP/1.1") || request.getBody().length > 0) {
+            return false;
+        }
+        for (String protocol : upgrade.split(",")) {
+            if (protocol.trim().equalsIgnoreCase("h2c")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Serves the connection until the client or the server closes it, and the streams in
+     * flight have been answered.
+     *
+     * @param upgraded the HTTP/1.1 request that carried `Upgrade: h2c`, already answered
+     *                 with `101 Switching Protocols`, or null if the connection started
+     *                 with the preface, whose request line has already been read.
+     */
+    void serve(HttpRequest upgraded) throws IOException {
+        try {
+            if (upgraded == null) {
+                expect(PREFACE, 18);  // "PRI * HTTP/2.0\r\n\r\n" was read as a request
+            } else {
+                byte[] settings = Base64.getUrlDecoder().decode(upgraded.getHeader("http2-settings").trim());
+                applySettings(settings);
+            }
+            writeSettings();
+            if (upgraded != null) {
+                Stream stream = new Stream(1, initialWindow);
+                stream.request = upgraded;
+                stream.remoteClosed = true;
+                lastStreamId = 1;
+                streams.put(1, stream);
+                dispatch(stream);
+            }
+            synchronized (writeLock) {
+                started = true;
+                if (goingAway) {
+                    goingAway = false;
+                    shutdown();  // Called before SETTINGS, which must be the first frame, was sent
+                }
+            }
+            if (upgraded != null) {
+                expect(PREFACE, 0);
+            }
+            readFrames();
+            awaitStreams();
+        } catch (EOFException e) {
+            // The client went away in the middle of a frame
+        } catch (IllegalArgumentException e) {
+            goAway(PROTOCOL_ERROR);  // HTTP2-Settings is not base64url
+        } catch (Http2Exception e) {
+            goAway(e.errorCode);
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Reads the preface of the client, or the part of it not read yet.
+     */
+    private void expect(byte[] preface, int from) throws IOException {
+        byte[] received = new byte[preface.length - from];
+        in.readFully(received);
+        if (!Arrays.equals(received, Arrays.copyOfRange(preface, from, preface.length))) {
+            throw new Http2Exception(PROTOCOL_ERROR, "Invalid connection preface");
+        }
+    }
+
+    /**
+     * Reads and handles frames until the client closes the connection, or the connection
+     * is shut down and idle.
+     */
+    private void readFrames() throws IOException {
+        byte[] header = new byte[FRAME_HEADER_LENGTH];
+        while (readFrameHeader(header)) {
+            int length = (header[0] & 0xFF) << 16 | (header[1] & 0xFF) << 8 | header[2] & 0xFF;
+            int type = header[3] & 0xFF;
+            int flags = header[4] & 0xFF;
+            int streamId = readInt(header, 5) & 0x7FFFFFFF;
+            if (length > DEFAULT_FRAME_SIZE) {
+                throw new Http2Exception(FRAME_SIZE_ERROR, "Frame larger than SETTINGS_MAX_FRAME_SIZE");
+            }
+            byte[] payload = new byte[length];
+            in.readFully(payload);
+            metrics.recordBytesReceived(FRAME_HEADER_LENGTH + length);
+            if (headerBlock != null && (type != CONTINUATION || streamId != headerBlockStream)) {
+                throw new Http2Exception(PROTOCOL_ERROR, "Header block interrupted by another frame");
+            }
+            switch (type) {
+                case DATA:
+                    onData(streamId, flags, payload);
+                    break;
+                case HEADERS:
+                    onHeaders(streamId, flags, payload);
+                    break;
+                case PRIORITY:
+                    if (length != 5) {
+                        throw new Http2Exception(FRAME_SIZE_ERROR, "PRIORITY frame of " + length + " bytes");
+                    }
+                    break;  // Streams are served as they come
+                case RST_STREAM:
+                    onResetStream(streamId, payload);
+                    break;
+                case SETTINGS:
+                    onSettings(streamId, flags, payload);
+                    break;
+                case PUSH_PROMISE:
+                    throw new Http2Exception(PROTOCOL_ERROR, "PUSH_PROMISE sent by a client");
+                case PING:
+                    onPing(streamId, flags, payload);
+                    break;
+                case GOAWAY:
+                    goingAway = true;  // The client opens no more streams; answer those in flight
+                    break;
+                case WINDOW_UPDATE:
+                    onWindowUpdate(streamId, payload);
+                    break;
+                case CONTINUATION:
+                    onContinuation(streamId, flags, payload);
+                    break;
+                default:
+                    break;  // Unknown frame types are ignored
+            }
+        }
+    }
+
+    /**
+     * Reads the header of the next frame. While no stream is in flight, a connection idle
+     * for longer than the keep-alive timeout is closed with `GOAWAY`.
+     *
+     * @return false at the end of the input.
+     */
+    private boolean readFrameHeader(byte[] header) throws IOException {
+        int first;
+        while (true) {
+            try {
+                first = in.read();
+                break;
+            } catch (SocketTimeoutException e) {
+                if (streams.isEmpty()) {
+                    shutdown();
+                    return false;
+                }
+            }
+        }
+        if (first == -1) {
+            return false;
+        }
+        header[0] = (byte) first;
+        try {
+            in.readFully(header, 1, FRAME_HEADER_LENGTH - 1);
+        } catch (EOFException e) {
+            return false;
+        }
+        return true;
+    }
+
+    private void onHeaders(int streamId, int flags, byte[] payload) throws IOException {
+        if (streamId == 0) {
+            throw new Http2Exception(PROTOCOL_ERROR, "HEADERS frame on stream 0");
+        }
+        int start = 0;
+        int end = payload.length;
+        if ((flags & FLAG_PADDED) != 0) {
+            end -= payload.length > 0 ? payload[0] & 0xFF : payload.length + 1;
+            start = 1;
+        }
+        if ((flags & FLAG_PRIORITY) != 0) {
+            start += 5;
+        }
+        if (start > end) {
+            throw new Http2Exception(PROTOCOL_ERROR, "Padding longer than the HEADERS frame");
+        }
+        headerBlock = new ByteArrayOutputStream(end - start);
+        headerBlock.write(payload, start, end - start);
+        headerBlockStream = streamId;
+        headerBlockFlags = flags;
+        if ((flags & FLAG_END_HEADERS) != 0) {
+            onHeaderBlock();
+        }
+    }
+
+    private void onContinuation(int streamId, int flags, byte[] payload) throws IOException {
+        if (headerBlock == null) {
+            throw new Http2Exception(PROTOCOL_ERROR, "CONTINUATION frame without HEADERS");
+        }
+        headerBlock.write(payload, 0, payload.length);
+        if (headerBlock.size() > 4 * config.getMaxHeaderSize()) {
+            throw new Http2Exception(PROTOCOL_ERROR, "Header block too large");
+        }
+        if ((flags & FLAG_END_HEADERS) != 0) {
+            onHeaderBlock();
+        }
+    }
+
+    /**
+     * Handles a complete header block: opens a stream, or ends the body of one with trailers.
+     */
+    private void onHeaderBlock() throws IOException {
+        byte[] block = headerBlock.toByteArray();
+        int streamId = headerBlockStream;
+        boolean endStream = (headerBlockFlags & FLAG_END_STREAM) != 0;
+        headerBlock = null;
+        List<String> headers;
+        try {
+            headers = hpackDecoder.decode(block, 0, block.length, config.getMaxHeaderSize());
+        } catch (IOException e) {
+            throw new Http2Exception(COMPRESSION_ERROR, e.getMessage());
+        }
+
+        if (streamId <= lastStreamId) {
+            Stream stream = streams.get(streamId);
+            if (stream == null || stream.remoteClosed || !endStream) {
+                throw new Http2Exception(PROTOCOL_ERROR, "HEADERS on closed stream " + streamId);
+            }
+            stream.remoteClosed = true;  // Trailers, which the dispatcher has no use for
+            dispatch(stream);
+            return;
+        }
+        if ((streamId & 1) == 0) {
+            throw new Http2Exception(PROTOCOL_ERROR, "Client opened even stream " + streamId);
+        }
+        lastStreamId = streamId;
+        if (goingAway) {
+            return;  // Above the last stream of the GOAWAY already sent
+        }
+        if (streams.size() >= config.getHttp2MaxConcurrentStreams()) {
+            writeFrame(RST_STREAM, 0, streamId, errorPayload(REFUSED_STREAM), 0, 4);
+            return;
+        }
+        Stream stream;
+        synchronized (this) {
+            stream = new Stream(streamId, initialWindow);
+        }
+        stream.request = toRequest(headers, stream);
+        stream.remoteClosed = endStream;
+        streams.put(streamId, stream);
+        if (endStream) {
+            dispatch(stream);
+        }
+    }
+
+    /**
+     * Builds the request of a stream from its headers. A malformed request gets its error
+     * response in `stream.error` instead, sent once the client has finished the stream.
+     * Headers past `maxHeaderSize` are neither stored nor joined: the request gets `431`.
+     *
+     * @param headers the decoded headers, or null if the decoder found them too large.
+     */
+    private HttpRequest toRequest(List<String> headers, Stream stream) {
+        String method = null;
+        String path = null;
+        String authority = null;
+        Map<String, String> fields = new LinkedHashMap<>();
+        int size = 0;
+        boolean tooLarge = headers == null;
+        for (int i = 0; !tooLarge && i < headers.size(); i += 2) {
+            String name = headers.get(i);
+            String value = headers.get(i + 1);
+            size += name.length() + value.length() + Hpack.ENTRY_OVERHEAD;
+            if (size > config.getMaxHeaderSize()) {
+                tooLarge = true;
+            } else if (name.startsWith(":")) {
+                if (!fields.isEmpty()) {
+                    stream.error = new HttpResponse("400 Bad Request");  // Pseudo-header after a header
+                } else if (name.equals(":method")) {
+                    method = value;
+                } else if (name.equals(":path")) {
+                    path = value;
+                } else if (name.equals(":authority")) {
+                    authority = value;
+                }
+            } else if (name.equals("cookie") && fields.containsKey("cookie")) {
+                fields.put("cookie", fields.get("cookie") + "; " + value);
+            } else if (!name.equals(name.toLowerCase(Locale.ROOT)) || name.equals("connection")
+                    || name.equals("transfer-encoding")) {
+                stream.error = new HttpResponse("400 Bad Request");  // Not allowed in HTTP/2
+            } else {
+                fields.putIfAbsent(name, value);
+            }
+        }
+        if (authority != null) {
+            fields.putIfAbsent("host", authority);
+        }
+        if (tooLarge || fields.size() > config.getMaxHeaderCount()) {
+            stream.error = new HttpResponse("431 Request Header Fields Too Large");
+        } else if (method == null || path == null || path.isEmpty()) {
+            stream.error = new HttpResponse("400 Bad Request");
+        }
+        HttpRequest request = new HttpRequest(method == null ? "GET" : method, path == null ? "/" : path,
+                "HTTP/2.0", fields);
+        request.setRemoteAddress(socket.getInetAddress());
+        return request;
+    }
+
+    private void onData(int streamId, int flags, byte[] payload) throws IOException {
+        if (streamId == 0) {
+            throw new Http2Exception(PROTOCOL_ERROR, "DATA frame on stream 0");
+        }
+        int start = 0;
+        int end = payload.length;
+        if ((flags & FLAG_PADDED) != 0) {
+            end -= payload.length > 0 ? payload[0] & 0xFF : payload.length + 1;
+            start = 1;
+        }
+        if (start > end) {
+            throw new Http2Exception(PROTOCOL_ERROR, "Padding longer than the DATA frame");
+        }
+        if (payload.length > 0) {
+            writeWindowUpdate(0, payload.length);  // The bytes are consumed at once
+        }
+        Stream stream = streams.get(streamId);
+        if (stream == null || stream.remoteClosed) {
+            if (streamId > lastStreamId) {
+                throw new Http2Exception(PROTOCOL_ERROR, "DATA frame on idle stream " + streamId);
+            }
+            writeFrame(RST_STREAM, 0, streamId, errorPayload(STREAM_CLOSED), 0, 4);
+            return;
+        }
+        if (stream.error == null) {
+            if (stream.body.size() + end - start > config.getMaxBodySize()) {
+                stream.error = new HttpResponse("413 Payload Too Large");
+                stream.body = new ByteArrayOutputStream(0);
+            } else {
+                stream.body.write(payload, start, end - start);
+            }
+        }
+        if ((flags & FLAG_END_STREAM) != 0) {
+            stream.remoteClosed = true;
+            stream.request.setBody(stream.body.toByteArray());
+            dispatch(stream);
+        } else if (payload.length > 0) {
+            writeWindowUpdate(streamId, payload.length);
+        }
+    }
+
+    private void onResetStream(int streamId, byte[] payload) throws IOException {
+        if (payload.length != 4) {
+            throw new Http2Exception(FRAME_SIZE_ERROR, "RST_STREAM frame of " + payload.length + " bytes");
+        }
+        if (streamId == 0) {
+            throw new Http2Exception(PROTOCOL_ERROR, "RST_STREAM frame on stream 0");
+        }
+        Stream stream = streams.remove(streamId);
+        if (stream != null) {
+            stream.cancel();
+            synchronized (this) {
+                notifyAll();  // Wakes the stream up if it waits for its window
+            }
+        }
+    }
+
+    private void onSettings(int streamId, int flags, byte[] payload) throws IOException {
+        if (streamId != 0) {
+            throw new Http2Exception(PROTOCOL_ERROR, "SETTINGS frame on stream " + streamId);
+        }
+        if ((flags & FLAG_ACK) != 0) {
+            if (payload.length != 0) {
+                throw new Http2Exception(FRAME_SIZE_ERROR, "SETTINGS acknowledgement with a payload");
+            }
+            return;
+        }
+        applySettings(payload);
+        writeFrame(SETTINGS, FLAG_ACK, 0, payload, 0, 0);
+    }
+
+    /**
+     * Applies the settings of the client, from a `SETTINGS` frame or from the
+     * `HTTP2-Settings` header of an upgrade.
+     */
+    private void applySettings(byte[] payload) throws IOException {
+        if (payload.length % 6 != 0) {
+            throw new Http2Exception(FRAME_SIZE_ERROR, "SETTINGS frame of " + payload.length + " bytes");
+        }
+        for (int i = 0; i < payload.length; i += 6) {
+            int id = (payload[i] & 0xFF) << 8 | payload[i + 1] & 0xFF;
+            long value = readInt(payload, i + 2) & 0xFFFFFFFFL;
+            switch (id) {
+                case SETTINGS_HEADER_TABLE_SIZE:
+                    synchronized (writeLock) {
+                        hpackEncoder.setMaxTableSize((int) Math.min(value, Integer.MAX_VALUE));
+                    }
+                    break;
+                case SETTINGS_ENABLE_PUSH:
+                    if (value > 1) {
+                        throw new Http2Exception(PROTOCOL_ERROR, "Invalid SETTINGS_ENABLE_PUSH: " + value);
+                    }
+                    break;
+                case SETTINGS_INITIAL_WINDOW_SIZE:
+                    if (value > MAX_WINDOW) {
+                        throw new Http2Exception(FLOW_CONTROL_ERROR, "Invalid SETTINGS_INITIAL_WINDOW_SIZE: " + value);
+                    }
+                    synchronized (this) {
+                        long delta = value - initialWindow;
+                        initialWindow = value;
+                        for (Stream stream : streams.values()) {
+                            stream.window += delta;
+                        }
+                        notifyAll();
+                    }
+                    break;
+                case SETTINGS_MAX_FRAME_SIZE:
+                    if (value < DEFAULT_FRAME_SIZE || value > MAX_FRAME_SIZE) {
+                        throw new Http2Exception(PROTOCOL_ERROR, "Invalid SETTINGS_MAX_FRAME_SIZE: " + value);
+                    }
+                    maxFrameSize = (int) value;
+                    break;
+                default:
+                    break;  // Limits on what the server sends that it stays within anyway
+            }
+        }
+    }
+
+    private void onPing(int streamId, int flags, byte[] payload) throws IOException {
+        if (payload.length != 8) {
+            throw new Http2Exception(FRAME_SIZE_ERROR, "PING frame of " + payload.length + " bytes");
+        }
+        if (streamId != 0) {
+            throw new Http2Exception(PROTOCOL_ERROR, "PING frame on stream " + streamId);
+        }
+        if ((flags & FLAG_ACK) == 0) {
+            writeFrame(PING, FLAG_ACK, 0, payload, 0, payload.length);
+        }
+    }
+
+    private void onWindowUpdate(int streamId, byte[] payload) throws IOException {
+        if (payload.length != 4) {
+            throw new Http2Exception(FRAME_SIZE_ERROR, "WINDOW_UPDATE frame of " + payload.length + " bytes");
+        }
+        int increment = readInt(payload, 0) & 0x7FFFFFFF;
+        if (streamId == 0) {
+            synchronized (this) {
+                connectionWindow += increment;
+                if (increment == 0 || connectionWindow > MAX_WINDOW) {
+                    throw new Http2Exception(increment == 0 ? PROTOCOL_ERROR : FLOW_CONTROL_ERROR,
+                            "Invalid connection WINDOW_UPDATE");
+                }
+                notifyAll();
+            }
+            return;
+        }
+        Stream stream = streams.get(streamId);
+        if (stream == null) {
+            return;  // Already answered
+        }
+        boolean valid;
+        synchronized (this) {
+            stream.window += increment;
+            valid = increment != 0 && stream.window <= MAX_WINDOW;
+            notifyAll();
+        }
+        if (!valid) {
+            streams.remove(streamId);
+            stream.cancel();
+            writeFrame(RST_STREAM, 0, streamId, errorPayload(increment == 0 ? PROTOCOL_ERROR : FLOW_CONTROL_ERROR),
+                    0, 4);
+        }
+    }
+
+    /**
+     * Hands a complete request to the executor.
+     */
+    private void dispatch(Stream stream) {
+        stream.dispatchedAt = System.nanoTime();
+        try {
+            executor.execute(() -> respond(stream));
+        } catch (RejectedExecutionException e) {
+            metrics.recordRejectedQueueFull();
+            HttpResponse response = SimpleWebServer.serviceUnavailable(config);
+            metrics.recordResponse(response.getStatus());
+            send(stream, response);
+        }
+    }
+
+    /**
+     * Produces the response of a stream and sends it, once it is ready.
+     */
+    private void respond(Stream stream) {
+        HttpResponse response = stream.error;
+        if (response == null && limiter != null) {
+            HttpResponse limited = dispatcher.rateLimit(stream.request);  // Before a permit is taken
+            if (limited != null) {
+                send(stream, limited);
+                return;
+            }
+            if (!limiter.tryAcquire()) {
+                metrics.recordRejectedConcurrency();
+                response = SimpleWebServer.serviceUnavailable(config);
+            }
+        }
+        if (response != null) {
+            metrics.recordResponse(response.getStatus());
+            send(stream, response);
+            return;
+        }
+        long start = System.nanoTime();
+        CompletableFuture<HttpResponse> pending;
+        try {
+            pending = limiter == null ? dispatcher.dispatchAsync(stream.request)
+                    : dispatcher.dispatchAdmittedAsync(stream.request);
+        } catch (IOException e) {
+            pending = CompletableFuture.completedFuture(new HttpResponse("500 Internal Server Error"));
+            metrics.recordResponse("500 Internal Server Error");
+        }
+        stream.pending = pending;
+        if (stream.reset) {
+            pending.cancel(true);  // Reset while the request was being dispatched
+        }
+        Thread dispatching = Thread.currentThread();
+        pending.whenComplete((completed, error) -> {
+            if (limiter != null) {
+                if (completed != null) {
+                    limiter.release(System.nanoTime() - start);
+                } else {
+                    limiter.releaseWithoutSample();
+                }
+            }
+            if (completed == null) {
+                finish(stream);  // Cancelled
+            } else if (Thread.currentThread() == dispatching) {
+                send(stream, completed);
+            } else {
+                // Completed by the thread of an asynchronous controller, which is not ours to block
+                try {
+                    executor.execute(() -> send(stream, completed));
+                } catch (RejectedExecutionException e) {
+                    send(stream, completed);
+                }
+            }
+        });
+    }
+
+    /**
+     * Sends the response of a stream: its header block and then its body.
+     */
+    private void send(Stream stream, HttpResponse response) {
+        ChunkedBody chunks = response.getBodyStream();
+        FileRegion file = response.getBodyFile();
+        try {
+            if (stream.reset || closed) {
+                return;
+            }
+            boolean hasBody = chunks != null || file != null || response.getContentLength() > 0;
+            stream.sent += writeHeaders(stream.id, responseHeaders(response), !hasBody);
+            if (hasBody) {
+                writeBody(stream, response);
+            }
+        } catch (IOException e) {
+            // The client reset the stream or went away
+        } finally {
+            try {
+                if (chunks != null) {
+                    chunks.close();
+                }
+                if (file != null) {
+                    file.close();
+                }
+            } catch (IOException e) {
+                // Nothing left to release
+            }
+            if (accessLog != null) {
+                accessLog.log(stream.request.getMethod(), stream.request.getTarget(), socket.getInetAddress(),
+                        response.getStatus(), stream.sent, System.nanoTime() - stream.dispatchedAt);
+            }
+            finish(stream);
+        }
+    }
+
+    /**
+     * @return the header fields of a response: the status first, then the headers in lower
+     *         case, without those that only make sense on an HTTP/1.1 connection.
+     */
+    private static List<String> responseHeaders(HttpResponse response) {
+        List<String> headers = new ArrayList<>(16);
+        headers.add(":status");
+        headers.add(response.getStatus().substring(0, 3));
+        if (response.getContentType() != null) {
+            headers.add("content-type");
+            headers.add(response.getContentType());
+        }
+        if (response.getBodyStream() == null && !response.getStatus().startsWith("304")) {
+            headers.add("content-length");
+            headers.add(String.valueOf(response.getContentLength()));
+        }
+        List<String> added = response.getHeaders();
+        for (int i = 0; i < added.size(); i += 2) {
+            String name = added.get(i).toLowerCase(Locale.ROOT);
+            switch (name) {
+                case "connection":
+                case "keep-alive":
+                case "proxy-connection":
+                case "transfer-encoding":
+                case "upgrade":
+                    break;
+                default:
+                    headers.add(name);
+                    headers.add(added.get(i + 1));
+            }
+        }
+        return headers;
+    }
+
+    /**
+     * Sends the body of a response in `DATA` frames, as the flow-control windows allow.
+     */
+    private void writeBody(Stream stream, HttpResponse response) throws IOException {
+        ChunkedBody chunks = response.getBodyStream();
+        FileRegion file = response.getBodyFile();
+        ByteBuffer bytes = response.getBodyBuffer() != null
+                ? response.getBodyBuffer().duplicate()
+                : ByteBuffer.wrap(response.getBody());
+        byte[] frame = new byte[FRAME_HEADER_LENGTH + DEFAULT_FRAME_SIZE];
+        ByteBuffer payload = ByteBuffer.wrap(frame);
+        boolean end = false;
+        while (!end) {
+            payload.clear();
+            payload.position(FRAME_HEADER_LENGTH);
+            int n;
+            if (chunks != null) {
+                n = chunks.read(payload);
+                if (n == 0) {
+                    chunks.awaitReadable();
+                    continue;
+                }
+                end = n < 0;
+            } else if (file != null) {
+                n = file.read(payload);
+                end = file.remaining() == 0;
+            } else {
+                n = Math.min(bytes.remaining(), payload.remaining());
+                ByteBuffer part = bytes.duplicate();
+                part.limit(part.position() + n);
+                payload.put(part);
+                bytes.position(bytes.position() + n);
+                end = !bytes.hasRemaining();
+            }
+            writeData(stream, frame, Math.max(n, 0), end);
+        }
+    }
+
+    /**
+     * Sends bytes of a body as one `DATA` frame, or several if the windows are smaller.
+     *
+     * @param frame the bytes, starting at `FRAME_HEADER_LENGTH`.
+     * @param length the number of bytes.
+     * @param end whether they end the body.
+     */
+    private void writeData(Stream stream, byte[] frame, int length, boolean end) throws IOException {
+        int sent = 0;
+        do {
+            int allowed = length == 0 ? 0 : acquireWindow(stream, length - sent);
+            boolean last = end && sent + allowed == length;
+            writeFrame(DATA, last ? FLAG_END_STREAM : 0, stream.id, frame, FRAME_HEADER_LENGTH + sent, allowed);
+            sent += allowed;
+            stream.sent += FRAME_HEADER_LENGTH + allowed;
+        } while (sent < length);
+    }
+
+    /**
+     * Takes as much of the windows of the stream and of the connection as is available, up
+     * to what is wanted, waiting while either is exhausted.
+     *
+     * @return the number of bytes that may be sent.
+     * @throws IOException if the stream is reset or the connection closed while waiting.
+     */
+    private synchronized int acquireWindow(Stream stream, int wanted) throws IOException {
+        while (!stream.reset && !closed && (connectionWindow <= 0 || stream.window <= 0)) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the flow-control window");
+            }
+        }
+        if (stream.reset || closed) {
+            throw new IOException("Stream " + stream.id + " closed");
+        }
+        int allowed = (int) Math.min(wanted, Math.min(connectionWindow, stream.window));
+        connectionWindow -= allowed;
+        stream.window -= allowed;
+        return allowed;
+    }
+
+    /**
+     * Encodes and sends a header block, split into `CONTINUATION` frames if it is larger
+     * than a frame. Blocks are encoded and sent in the same order, as HPACK requires.
+     *
+     * @return the number of bytes sent, frame headers included.
+     */
+    private int writeHeaders(int streamId, List<String> headers, boolean endStream) throws IOException {
+        synchronized (writeLock) {
+            byte[] block = hpackEncoder.encode(headers);
+            int type = HEADERS;
+            int offset = 0;
+            int sent = 0;
+            do {
+                int length = Math.min(maxFrameSize, block.length - offset);
+                int flags = offset + length == block.length ? FLAG_END_HEADERS : 0;
+                if (type == HEADERS && endStream) {
+                    flags |= FLAG_END_STREAM;
+                }
+                writeFrame(type, flags, streamId, block, offset, length);
+                type = CONTINUATION;
+                offset += length;
+                sent += FRAME_HEADER_LENGTH + length;
+            } while (offset < block.length);
+            return sent;
+        }
+    }
+
+    private void writeSettings() throws IOException {
+        byte[] settings = new byte[12];
+        putSetting(settings, 0, SETTINGS_MAX_CONCURRENT_STREAMS, config.getHttp2MaxConcurrentStreams());
+        putSetting(settings, 6, SETTINGS_MAX_HEADER_LIST_SIZE, config.getMaxHeaderSize());
+        writeFrame(SETTINGS, 0, 0, settings, 0, settings.length);
+    }
+
+    private void writeWindowUpdate(int streamId, int increment) throws IOException {
+        byte[] payload = new byte[4];
+        putInt(payload, 0, increment);
+        writeFrame(WINDOW_UPDATE, 0, streamId, payload, 0, 4);
+    }
+
+    private void goAway(int errorCode) {
+        byte[] payload = new byte[8];
+        putInt(payload, 0, lastStreamId);
+        putInt(payload, 4, errorCode);
+        try {
+            writeFrame(GOAWAY, 0, 0, payload, 0, payload.length);
+        } catch (IOException e) {
+            // The client is gone already
+        }
+    }
+
+    /**
+     * Writes a frame and flushes it.
+     */
+    private void writeFrame(int type, int flags, int streamId, byte[] payload, int offset, int length)
+            throws IOException {
+        synchronized (writeLock) {
+            if (closed) {
+                throw new IOException("Connection closed");
+            }
+            frameHeader[0] = (byte) (length >>> 16);
+            frameHeader[1] = (byte) (length >>> 8);
+            frameHeader[2] = (byte) length;
+            frameHeader[3] = (byte) type;
+            frameHeader[4] = (byte) flags;
+            putInt(frameHeader, 5, streamId);
+            out.write(frameHeader, 0, FRAME_HEADER_LENGTH);
+            out.write(payload, offset, length);
+            out.flush();
+        }
+        metrics.recordBytesSent(FRAME_HEADER_LENGTH + length);
+    }
+
+    /**
+     * Forgets a stream that has been answered or cancelled, and ends the input once the
+     * last stream of a connection shutting down is done.
+     */
+    private void finish(Stream stream) {
+        streams.remove(stream.id, stream);
+        synchronized (this) {
+            notifyAll();
+        }
+        if (goingAway && streams.isEmpty()) {
+            shutdownInput();
+        }
+    }
+
+    /**
+     * Waits until every stream has been answered, or the connection is closed.
+     */
+    private synchronized void awaitStreams() {
+        while (!streams.isEmpty() && !closed) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Shuts the connection down gracefully: `GOAWAY` tells the client to open no more
+     * streams, the streams in flight are answered, and then the connection ends.
+     */
+    void shutdown() {
+        synchronized (writeLock) {
+            if (goingAway) {
+                return;
+            }
+            goingAway = true;
+            if (!started) {
+                return;  // serve() sends GOAWAY once SETTINGS is out
+            }
+            goAway(NO_ERROR);
+        }
+        if (streams.isEmpty()) {
+            shutdownInput();
+        }
+    }
+
+    private void shutdownInput() {
+        try {
+            socket.shutdownInput();
+        } catch (IOException e) {
+            // Already closed
+        }
+    }
+
+    /**
+     * Stops the connection at once: the streams still waiting for their response or for
+     * their window are cancelled.
+     */
+    void close() {
+        synchronized (writeLock) {
+            closed = true;
+        }
+        for (Stream stream : streams.values()) {
+            stream.cancel();
+        }
+        synchronized (this) {
+            notifyAll();
+        }
+    }
+
+    private static byte[] errorPayload(int errorCode) {
+        byte[] payload = new byte[4];
+        putInt(payload, 0, errorCode);
+        return payload;
+    }
+
+    private static void putSetting(byte[] target, int offset, int id, int value) {
+        target[offset] = (byte) (id >>> 8);
+        target[offset + 1] = (byte) id;
+        putInt(target, offset + 2, value);
+    }
+
+    private static void putInt(byte[] target, int offset, int value) {
+        target[offset] = (byte) (value >>> 24);
+        target[offset + 1] = (byte) (value >>> 16);
+        target[offset + 2] = (byte) (value >>> 8);
+        target[offset + 3] = (byte) value;
+    }
+
+    private static int readInt(byte[] source, int offset) {
+        return (source[offset] & 0xFF) << 24 | (source[offset + 1] & 0xFF) << 16
+                | (source[offset + 2] & 0xFF) << 8 | source[offset + 3] & 0xFF;
+    }
+
+    /**
+     * A request and its response on the connection.
+     */
+    private static final class Stream {
+        final int id;
+        long window;  // Guarded by the connection
+        HttpRequest request;
+        ByteArrayOutputStream body = new ByteArrayOutputStream(0);
+        HttpResponse error;
+        boolean remoteClosed;
+        volatile boolean reset;
+        volatile CompletableFuture<HttpResponse> pending;
+        long dispatchedAt;
+        long sent;  // Bytes of the response, only touched by the thread that sends it
+
+        Stream(int id, long window) {
+            this.id = id;
+            this.window = window;
+        }
+
+        /**
+         * Stops the stream: its pending response is cancelled, which cancels the work of
+         * an asynchronous controller, and it sends nothing more.
+         */
+        void cancel() {
+            reset = true;
+            CompletableFuture<HttpResponse> response = pending;
+            if (response != null) {
+                response.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * An error that ends the whole connection with `GOAWAY`.
+     */
+    private static final class Http2Exception extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        final int errorCode;
+
+        Http2Exception(int errorCode, String message) {
+            super(message);
+            this.errorCode = errorCode;
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package edu.escuelaing.arep;
+
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The `HttpRequest` class represents a parsed HTTP request line together with its headers
+ * and body. It is independent of the way the connection is handled, so every server engine
+ * produces the same object and hands it to the `RequestDispatcher`.
+ *
+ * Requests decoded from the network keep their header block as the raw bytes received,
+ * plus the offsets of every header name and value. A header value becomes a `String` only
+ * when somebody asks for it, so the headers nobody reads cost no allocation.
+ */
+public class HttpRequest {
+    private static final byte[] EMPTY_BODY = new byte[0];
+
+    private final String method;
+    private final String target;
+    private final String version;
+    private final byte[] head;
+    private final int[] fields;
+    private Map<String, String> headers;
+    private byte[] body = EMPTY_BODY;
+    private InetAddress remoteAddress;
+
+    /**
+     * Creates a new request.
+     *
+     * @param method the HTTP method, e.g. "GET".
+     * @param target the request target, path plus optional query string.
+     * @param version the HTTP version, e.g. "HTTP/1.1".
+     * @param headers the request headers, keyed by their lower-case name.
+     */
+    public HttpRequest(String method, String target, String version, Map<String, String> headers) {
+        this(method, target, version, null, null);
+        this.headers = headers;
+    }
+
+    /**
+     * Creates a request over the raw header block it was decoded from.
+     *
+     * @param method the HTTP method, e.g. "GET".
+     * @param target the request target, path plus optional query string.
+     * @param version the HTTP version, e.g. "HTTP/1.1".
+     * @param head the bytes of the request line and headers.
+     * @param fields name start, name end, value start and value end in `head` of every header.
+     */
+    HttpRequest(String method, String target, String version, byte[] head, int[] fields) {
+        this.method = method;
+        this.target = target;
+        this.version = version;
+        this.head = head;
+        this.fields = fields;
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    public String getTarget() {
+        return target;
+    }
+
+    public String getVersion() {
+        return version;
+    }
+
+    /**
+     * Returns the value of a request header. When a header is repeated, the first value is returned.
+     *
+     * @param name the header name, case insensitive.
+     * @return the header value, or null if the header was not sent.
+     */
+    public String getHeader(String name) {
+        if (head == null) {
+            return headers.get(name.toLowerCase(Locale.ROOT));
+        }
+        for (int i = 0; i < fields.length; i += 4) {
+            if (nameEquals(fields[i], fields[i + 1], name)) {
+                return new String(head, fields[i + 2], fields[i + 3] - fields[i + 2], StandardCharsets.ISO_8859_1);
+            }
+        }
+        return null;
+    }
+
+    private boolean nameEquals(int start, int end, String name) {
+        if (end - start != name.length()) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            if (toLowerCase(head[start + i]) != toLowerCase((byte) name.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static byte toLowerCase(byte b) {
+        return b >= 'A' && b <= 'Z' ? (byte) (b + ('a' - 'A')) : b;
+    }
+
+    /**
+     * Returns all the request headers. The map is built on the first call.
+     *
+     * @return the headers keyed by their lower-case name, in the order they were received.
+     */
+    public Map<String, String> getHeaders() {
+        if (headers == null) {
+            Map<String, String> all = new LinkedHashMap<>();
+            for (int i = 0; i < fields.length; i += 4) {
+                String name = new String(head, fields[i], fields[i + 1] - fields[i], StandardCharsets.ISO_8859_1);
+                all.putIfAbsent(name.toLowerCase(Locale.ROOT),
+                        new String(head, fields[i + 2], fields[i + 3] - fields[i + 2], StandardCharsets.ISO_8859_1));
+            }
+            headers = Collections.unmodifiableMap(all);
+        }
+        return headers;
+    }
+
+    /**
+     * @return the request body, with any chunked transfer coding removed; empty if there is none.
+     */
+    public byte[] getBody() {
+        return body;
+    }
+
+    void setBody(byte[] body) {
+        this.body = body;
+    }
+
+    /**
+     * @return the address of the client that sent the request, or null if it is not known.
+     */
+    public InetAddress getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    void setRemoteAddress(InetAddress remoteAddress) {
+        this.remoteAddress = remoteAddress;
+    }
+
+    /**
+     * Decides whether the connection can be reused after answering this request.
+     * HTTP/1.1 connections are persistent unless the client sends `Connection: close`,
+     * HTTP/1.0 connections only when the client sends `Connection: keep-alive`.
+     *
+     * @return true if the connection should be kept open.
+     */
+    public boolean isKeepAlive() {
+        String connection = getHeader("connection");
+        if ("HTTP/1.1".equals(version)) {
+            return connection == null || !connection.equalsIgnoreCase("close");
+        }
+        return connection != null && connection.equalsIgnoreCase("keep-alive");
+    }
+
+    /**
+     * Tells whether the response can be sent with `Transfer-Encoding: chunked`, which
+     * HTTP/1.0 clients do not understand.
+     *
+     * @return true for HTTP/1.1 requests.
+     */
+    public boolean acceptsChunked() {
+        return "HTTP/1.1".equals(version);
+    }
+}
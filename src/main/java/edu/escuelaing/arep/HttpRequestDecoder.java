@@ -0,0 +1,504 @@
+package edu.escuelaing.arep;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * The `HttpRequestDecoder` class parses HTTP/1.1 requests incrementally from a
+ * `ByteBuffer`. Both server engines use it: the NIO engine feeds it the buffers filled
+ * by a non-blocking channel, the blocking engine the buffer it reads the socket into.
+ * Bytes may arrive in arbitrary fragments: the decoder returns a request only once its
+ * header block and its body have been completely received, so pipelined requests can
+ * follow on the same connection.
+ *
+ * The header block is scanned for its terminating empty line and then parsed in a single
+ * pass over its bytes. The only objects created per request are the copy of the header
+ * block, the table of header offsets, the target string and the body; method and version
+ * are shared constants for the common values. Bodies framed by `Content-Length` or by the
+ * chunked transfer coding are both supported.
+ *
+ * One decoder is used per connection and is not thread safe.
+ */
+class HttpRequestDecoder {
+    private static final String[] METHODS = {"GET", "POST", "PUT", "HEAD", "DELETE", "OPTIONS", "PATCH"};
+    private static final String[] VERSIONS = {"HTTP/1.1", "HTTP/1.0"};
+    private static final int MAX_CHUNK_LINE = 1024;
+
+    private enum State { HEAD, BODY, CHUNK_SIZE, CHUNK_DATA, CHUNK_END, TRAILER }
+
+    private final int maxHeaderSize;
+    private final int maxHeaderCount;
+    private final int maxBodySize;
+    private State state = State.HEAD;
+    private int scanned;
+    private int[] fields = new int[64];
+    private HttpRequest request;
+    private byte[] body;
+    private int bodyLength;
+    private long chunkRemaining;
+    private int lineLength;
+    private boolean chunkDigits;
+    private boolean chunkExtension;
+
+    /**
+     * Creates a decoder with the default limits on header count and body size.
+     *
+     * @param maxHeaderSize the maximum size in bytes of a request line plus its headers.
+     */
+    HttpRequestDecoder(int maxHeaderSize) {
+        this(maxHeaderSize, 100, 1024 * 1024);
+    }
+
+    /**
+     * Creates a decoder.
+     *
+     * @param maxHeaderSize the maximum size in bytes of a request line plus its headers.
+     * @param maxHeaderCount the maximum number of headers of a request.
+     * @param maxBodySize the maximum size in bytes of a request body.
+     */
+    HttpRequestDecoder(int maxHeaderSize, int maxHeaderCount, int maxBodySize) {
+        this.maxHeaderSize = maxHeaderSize;
+        this.maxHeaderCount = maxHeaderCount;
+        this.maxBodySize = maxBodySize;
+    }
+
+    /**
+     * Creates a decoder with the limits of a server configuration.
+     *
+     * @param config the server configuration.
+     */
+    HttpRequestDecoder(ServerConfig config) {
+        this(config.getMaxHeaderSize(), config.getMaxHeaderCount(), config.getMaxBodySize());
+    }
+
+    /**
+     * Returns the capacity a read buffer needs so that a header block of the maximum size
+     * always fits in it, whatever bytes of the previous request it still holds.
+     *
+     * @param maxHeaderSize the maximum size in bytes of a request line plus its headers.
+     * @return the buffer capacity in bytes.
+     */
+    static int bufferSize(int maxHeaderSize) {
+        return Math.max(16 * 1024, maxHeaderSize + 4096);
+    }
+
+    /**
+     * Tries to decode the next request from the buffer.
+     *
+     * @param buffer a buffer in read mode; consumed bytes are removed by advancing its position.
+     * @return the decoded request, or null if more bytes are needed.
+     * @throws BadRequestException if the bytes are not a valid request or exceed a limit.
+     */
+    HttpRequest decode(ByteBuffer buffer) throws BadRequestException {
+        while (true) {
+            switch (state) {
+                case HEAD:
+                    if (!decodeHead(buffer)) {
+                        return null;
+                    }
+                    break;
+                case BODY:
+                    readBody(buffer, request.getBody().length - bodyLength);
+                    if (bodyLength < request.getBody().length) {
+                        return null;
+                    }
+                    return complete(request.getBody());
+                case CHUNK_SIZE:
+                    if (!readChunkSize(buffer)) {
+                        return null;
+                    }
+                    break;
+                case CHUNK_DATA:
+                    int before = bodyLength;
+                    readBody(buffer, (int) chunkRemaining);
+                    chunkRemaining -= bodyLength - before;
+                    if (chunkRemaining > 0) {
+                        return null;
+                    }
+                    state = State.CHUNK_END;
+                    break;
+                case CHUNK_END:
+                    if (!readLineBreak(buffer)) {
+                        return null;
+                    }
+                    state = State.CHUNK_SIZE;
+                    break;
+                case TRAILER:
+                    if (!skipTrailers(buffer)) {
+                        return null;
+                    }
+                    return complete(Arrays.copyOf(body, bodyLength));
+                default:
+                    throw new IllegalStateException(state.name());
+            }
+        }
+    }
+
+    /**
+     * @return true if no request is partially decoded, so the connection can be closed cleanly.
+     */
+    boolean isIdle() {
+        return state == State.HEAD && scanned == 0;
+    }
+
+    private HttpRequest complete(byte[] content) {
+        HttpRequest decoded = request;
+        decoded.setBody(content);
+        request = null;
+        body = null;
+        scanned = 0;
+        state = State.HEAD;
+        return decoded;
+    }
+
+    /**
+     * Parses the header block once it is complete and prepares to receive the body.
+     *
+     * @return false if more bytes are needed.
+     */
+    private boolean decodeHead(ByteBuffer buffer) throws BadRequestException {
+        if (scanned == 0) {
+            // Stray line breaks between pipelined requests are ignored
+            while (buffer.hasRemaining() && (buffer.get(buffer.position()) == '\r'
+                    || buffer.get(buffer.position()) == '\n')) {
+                buffer.get();
+            }
+        }
+        int start = buffer.position();
+        int end = findHeaderEnd(buffer, start);
+        if (end < 0) {
+            if (buffer.remaining() > maxHeaderSize) {
+                throw headersTooLarge();
+            }
+            return false;
+        }
+        scanned = 0;
+        if (end - start > maxHeaderSize) {
+            throw headersTooLarge();
+        }
+
+        byte[] head = new byte[end - start];
+        buffer.get(head);
+        skipLineBreaks(buffer);
+        parseHead(head);
+        return true;
+    }
+
+    private BadRequestException headersTooLarge() {
+        return new BadRequestException("431 Request Header Fields Too Large",
+                "Request headers exceed " + maxHeaderSize + " bytes");
+    }
+
+    /**
+     * Looks for the empty line that ends the header block, resuming where the previous call stopped.
+     *
+     * @param buffer the buffer to scan.
+     * @param start the position of the first byte of the request.
+     * @return the position of the first line break of the terminating empty line, or -1 if not found.
+     */
+    private int findHeaderEnd(ByteBuffer buffer, int start) {
+        int limit = buffer.limit();
+        for (int i = Math.max(start, start + scanned - 3); i < limit; i++) {
+            if (buffer.get(i) != '\n') {
+                continue;
+            }
+            if (i + 1 < limit && buffer.get(i + 1) == '\n') {
+                return i;
+            }
+            if (i + 2 < limit && buffer.get(i + 1) == '\r' && buffer.get(i + 2) == '\n') {
+                return i;
+            }
+        }
+        scanned = limit - start;
+        return -1;
+    }
+
+    /**
+     * Consumes the line breaks that terminate the header block.
+     *
+     * @param buffer the buffer positioned on the terminating line breaks.
+     */
+    private void skipLineBreaks(ByteBuffer buffer) {
+        int breaks = 0;
+        while (buffer.hasRemaining() && breaks < 2) {
+            byte b = buffer.get();
+            if (b == '\n') {
+                breaks++;
+            } else if (b != '\r') {
+                buffer.position(buffer.position() - 1);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Parses the request line and records the offsets of the headers, then decides how
+     * the body is framed.
+     *
+     * @param head the header block without its terminating empty line.
+     * @throws BadRequestException if the block is malformed or holds too many headers.
+     */
+    private void parseHead(byte[] head) throws BadRequestException {
+        int lineEnd = indexOf(head, 0, head.length, (byte) '\n');
+        int requestLineEnd = trimCarriageReturn(head, 0, lineEnd < 0 ? head.length : lineEnd);
+        int firstSpace = indexOf(head, 0, requestLineEnd, (byte) ' ');
+        int secondSpace = firstSpace < 0 ? -1 : indexOf(head, firstSpace + 1, requestLineEnd, (byte) ' ');
+        if (firstSpace <= 0 || secondSpace <= firstSpace + 1 || secondSpace + 1 >= requestLineEnd
+                || indexOf(head, secondSpace + 1, requestLineEnd, (byte) ' ') >= 0) {
+            throw new BadRequestException("Malformed request line: "
+                    + new String(head, 0, requestLineEnd, StandardCharsets.ISO_8859_1));
+        }
+        String method = constant(METHODS, head, 0, firstSpace);
+        String target = new String(head, firstSpace + 1, secondSpace - firstSpace - 1, StandardCharsets.ISO_8859_1);
+        String version = constant(VERSIONS, head, secondSpace + 1, requestLineEnd);
+        if (!version.startsWith("HTTP/")) {
+            throw new BadRequestException("Unsupported protocol: " + version);
+        }
+
+        int count = 0;
+        long contentLength = -1;
+        boolean chunked = false;
+        int pos = lineEnd < 0 ? head.length : lineEnd + 1;
+        while (pos < head.length) {
+            int next = indexOf(head, pos, head.length, (byte) '\n');
+            int end = trimCarriageReturn(head, pos, next < 0 ? head.length : next);
+            int colon = indexOf(head, pos, end, (byte) ':');
+            if (colon <= pos || isWhitespace(head[pos]) || isWhitespace(head[colon - 1])) {
+                // No name, obsolete line folding or whitespace before the colon (RFC 9112, 5.1)
+                throw new BadRequestException("Malformed header line");
+            }
+            if (++count > maxHeaderCount) {
+                throw new BadRequestException("431 Request Header Fields Too Large",
+                        "More than " + maxHeaderCount + " request headers");
+            }
+            int valueStart = colon + 1;
+            int valueEnd = end;
+            while (valueStart < valueEnd && isWhitespace(head[valueStart])) {
+                valueStart++;
+            }
+            while (valueEnd > valueStart && isWhitespace(head[valueEnd - 1])) {
+                valueEnd--;
+            }
+            if (fields.length < count * 4) {
+                fields = Arrays.copyOf(fields, fields.length * 2);
+            }
+            int field = (count - 1) * 4;
+            fields[field] = pos;
+            fields[field + 1] = colon;
+            fields[field + 2] = valueStart;
+            fields[field + 3] = valueEnd;
+
+            if (nameIs(head, pos, colon, "content-length")) {
+                long length = parseLength(head, valueStart, valueEnd);
+                if (contentLength >= 0 && contentLength != length) {
+                    throw new BadRequestException("Conflicting Content-Length headers");
+                }
+                contentLength = length;
+            } else if (nameIs(head, pos, colon, "transfer-encoding")) {
+                chunked = endsWithChunked(head, valueStart, valueEnd);
+                if (!chunked) {
+                    throw new BadRequestException("Unsupported Transfer-Encoding");
+                }
+            }
+            pos = next < 0 ? head.length : next + 1;
+        }
+        if (chunked && contentLength >= 0) {
+            // A request with both framings could be read differently by a proxy in front of us
+            throw new BadRequestException("Both Content-Length and Transfer-Encoding are present");
+        }
+        if (contentLength > maxBodySize) {
+            throw new BadRequestException("413 Payload Too Large", "Request body exceeds " + maxBodySize + " bytes");
+        }
+
+        request = new HttpRequest(method, target, version, head, Arrays.copyOf(fields, count * 4));
+        bodyLength = 0;
+        if (chunked) {
+            body = new byte[Math.min(maxBodySize, 1024)];
+            startChunkLine();
+        } else if (contentLength > 0) {
+            request.setBody(new byte[(int) contentLength]);
+            state = State.BODY;
+        } else {
+            state = State.BODY;  // Completed on the next turn of the decode loop
+        }
+    }
+
+    /**
+     * Copies up to `wanted` bytes of body from the buffer. Fixed-length bodies are copied
+     * straight into the request, chunked ones into a growing buffer.
+     */
+    private void readBody(ByteBuffer buffer, int wanted) throws BadRequestException {
+        int n = Math.min(wanted, buffer.remaining());
+        if (state == State.BODY) {
+            buffer.get(request.getBody(), bodyLength, n);
+        } else {
+            if (bodyLength + n > maxBodySize) {
+                throw new BadRequestException("413 Payload Too Large",
+                        "Request body exceeds " + maxBodySize + " bytes");
+            }
+            if (bodyLength + n > body.length) {
+                body = Arrays.copyOf(body, Math.min(maxBodySize, Math.max(body.length * 2, bodyLength + n)));
+            }
+            buffer.get(body, bodyLength, n);
+        }
+        bodyLength += n;
+    }
+
+    private void startChunkLine() {
+        state = State.CHUNK_SIZE;
+        chunkRemaining = 0;
+        lineLength = 0;
+        chunkDigits = false;
+        chunkExtension = false;
+    }
+
+    /**
+     * Reads a chunk size line: hexadecimal digits, optionally followed by extensions, which are ignored.
+     *
+     * @return false if more bytes are needed.
+     */
+    private boolean readChunkSize(ByteBuffer buffer) throws BadRequestException {
+        while (buffer.hasRemaining()) {
+            byte b = buffer.get();
+            if (++lineLength > MAX_CHUNK_LINE) {
+                throw new BadRequestException("Chunk size line too long");
+            }
+            if (b == '\n') {
+                if (!chunkDigits) {
+                    throw new BadRequestException("Missing chunk size");
+                }
+                if (bodyLength + chunkRemaining > maxBodySize) {
+                    throw new BadRequestException("413 Payload Too Large",
+                            "Request body exceeds " + maxBodySize + " bytes");
+                }
+                if (chunkRemaining == 0) {
+                    state = State.TRAILER;
+                    lineLength = 0;
+                } else {
+                    state = State.CHUNK_DATA;
+                }
+                return true;
+            }
+            if (chunkExtension || b == '\r') {
+                continue;
+            }
+            if (b == ';' || b == ' ' || b == '\t') {
+                chunkExtension = true;
+                continue;
+            }
+            int digit = Character.digit(b, 16);
+            if (digit < 0 || chunkRemaining > maxBodySize) {
+                throw new BadRequestException("Invalid chunk size");
+            }
+            chunkRemaining = chunkRemaining * 16 + digit;
+            chunkDigits = true;
+        }
+        return false;
+    }
+
+    /**
+     * Consumes the line break that follows the data of a chunk.
+     *
+     * @return false if more bytes are needed.
+     */
+    private boolean readLineBreak(ByteBuffer buffer) throws BadRequestException {
+        while (buffer.hasRemaining()) {
+            byte b = buffer.get();
+            if (b == '\n') {
+                startChunkLine();
+                return true;
+            }
+            if (b != '\r') {
+                throw new BadRequestException("Missing line break after chunk data");
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Skips the trailer fields that may follow the last chunk, up to the empty line that ends the request.
+     *
+     * @return false if more bytes are needed.
+     */
+    private boolean skipTrailers(ByteBuffer buffer) throws BadRequestException {
+        while (buffer.hasRemaining()) {
+            byte b = buffer.get();
+            if (b == '\n') {
+                if (lineLength == 0) {
+                    return true;
+                }
+                lineLength = 0;
+            } else if (b != '\r') {
+                lineLength++;
+                if (++scanned > maxHeaderSize) {
+                    throw headersTooLarge();
+                }
+            }
+        }
+        return false;
+    }
+
+    private static int indexOf(byte[] bytes, int from, int to, byte value) {
+        for (int i = from; i < to; i++) {
+            if (bytes[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int trimCarriageReturn(byte[] bytes, int start, int end) {
+        return end > start && bytes[end - 1] == '\r' ? end - 1 : end;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t';
+    }
+
+    /**
+     * Returns the shared constant spelled by a range of bytes, or a new string if there is none.
+     */
+    private static String constant(String[] constants, byte[] bytes, int start, int end) {
+        for (String constant : constants) {
+            if (constant.length() == end - start && nameIs(bytes, start, end, constant)) {
+                return constant;
+            }
+        }
+        return new String(bytes, start, end - start, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Compares a range of bytes with a string, ignoring the case of the bytes when the string is lower case.
+     */
+    private static boolean nameIs(byte[] bytes, int start, int end, String name) {
+        if (end - start != name.length()) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            byte b = bytes[start + i];
+            if (b != name.charAt(i) && HttpRequest.toLowerCase(b) != name.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long parseLength(byte[] bytes, int start, int end) throws BadRequestException {
+        if (start == end || end - start > 18) {
+            throw new BadRequestException("Invalid Content-Length");
+        }
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            if (bytes[i] < '0' || bytes[i] > '9') {
+                throw new BadRequestException("Invalid Content-Length");
+            }
+            value = value * 10 + (bytes[i] - '0');
+        }
+        return value;
+    }
+
+    private static boolean endsWithChunked(byte[] bytes, int start, int end) {
+        return end - start >= 7 && nameIs(bytes, end - 7, end, "chunked");
+    }
+}
@@ -0,0 +1,416 @@
+package edu.escuelaing.arep;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The `HttpResponse` class holds the status, content type and body of a response
+ * produced by the `RequestDispatcher`. It knows how to encode itself with an exact
+ * `Content-length`, so that the client can reuse the connection for its next request.
+ *
+ * The body is one of four kinds: a byte array, a `ByteBuffer` (for instance a slice of a
+ * memory-mapped file), a `FileRegion` that is sent from disk with zero-copy transfer, or a
+ * `ChunkedBody` of unknown length, sent with `Transfer-Encoding: chunked` as it is produced.
+ *
+ * A response can be built once and sent many times, as the static file cache does:
+ * `prepare()` encodes its header block up front, after which the response is never
+ * modified and can be shared between connections. Responses with a `FileRegion` body
+ * cannot be shared.
+ *
+ * The `ResponseWriter` encodes the header block straight into its write buffer with
+ * `writeHeader`, from pre-encoded status lines, content types and connection lines, so
+ * a response built for a single request never goes through a `String`.
+ */
+public class HttpResponse {
+    private static final byte[] EMPTY_BODY = new byte[0];
+    private static final int MAX_ENCODED_CONSTANTS = 64;
+    private static final Map<String, byte[]> STATUS_LINES = new ConcurrentHashMap<>();
+    private static final Map<String, byte[]> CONTENT_TYPES = new ConcurrentHashMap<>();
+    private static final byte[] CONTENT_LENGTH = ascii("Content-length: ");
+    private static final byte[] CHUNKED = ascii("Transfer-Encoding: chunked\r\n");
+    private static final byte[] HEADER_SEPARATOR = ascii(": ");
+    private static final byte[] CRLF = ascii("\r\n");
+    private static final byte[] KEEP_ALIVE_END = ascii("Connection: keep-alive\r\n\r\n");
+    private static final byte[] CLOSE_END = ascii("Connection: close\r\n\r\n");
+
+    private final String status;
+    private final String contentType;
+    private final byte[] body;
+    private final ByteBuffer bodyBuffer;
+    private final FileRegion bodyFile;
+    private final ChunkedBody bodyStream;
+    private final long contentLength;
+    private final List<String> headers = new ArrayList<>(4);
+    private byte[] keepAliveHeader;
+    private byte[] closeHeader;
+
+    /**
+     * Creates a response without body.
+     *
+     * @param status the status code and reason phrase, e.g. "404 Not Found".
+     */
+    public HttpResponse(String status) {
+        this(status, null, EMPTY_BODY);
+    }
+
+    /**
+     * Creates a response with a body.
+     *
+     * @param status the status code and reason phrase, e.g. "200 OK".
+     * @param contentType the MIME type of the body, or null if there is none.
+     * @param body the response body.
+     */
+    public HttpResponse(String status, String contentType, byte[] body) {
+        this(status, contentType, body, null, null, null, body.length);
+    }
+
+    /**
+     * Creates a response whose body is the remaining content of a buffer. The buffer
+     * itself is never consumed, so the response can be sent many times.
+     *
+     * @param status the status code and reason phrase, e.g. "200 OK".
+     * @param contentType the MIME type of the body, or null if there is none.
+     * @param body the response body.
+     */
+    public HttpResponse(String status, String contentType, ByteBuffer body) {
+        this(status, contentType, null, body, null, null, body.remaining());
+    }
+
+    /**
+     * Creates a response whose body is sent from a file.
+     *
+     * @param status the status code and reason phrase, e.g. "206 Partial Content".
+     * @param contentType the MIME type of the body, or null if there is none.
+     * @param body the region of the file to send.
+     */
+    public HttpResponse(String status, String contentType, FileRegion body) {
+        this(status, contentType, null, null, body, null, body.remaining());
+    }
+
+    /**
+     * Creates a response whose body is produced while it is sent. Such a response is sent
+     * only once and never cached.
+     *
+     * @param status the status code and reason phrase, e.g. "200 OK".
+     * @param contentType the MIME type of the body, or null if there is none.
+     * @param body the body, read as the client accepts it.
+     */
+    public HttpResponse(String status, String contentType, ChunkedBody body) {
+        this(status, contentType, null, null, null, body, -1);
+    }
+
+    private HttpResponse(String status, String contentType, byte[] body, ByteBuffer bodyBuffer,
+                         FileRegion bodyFile, ChunkedBody bodyStream, long contentLength) {
+        this.status = status;
+        this.contentType = contentType;
+        this.body = body;
+        this.bodyBuffer = bodyBuffer;
+        this.bodyFile = bodyFile;
+        this.bodyStream = bodyStream;
+        this.contentLength = contentLength;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    /**
+     * @return the body when it is held in a byte array, otherwise null.
+     */
+    public byte[] getBody() {
+        return body;
+    }
+
+    /**
+     * @return a private view of the body when it is held in a buffer, otherwise null.
+     */
+    public ByteBuffer getBodyBuffer() {
+        return bodyBuffer == null ? null : bodyBuffer.duplicate();
+    }
+
+    /**
+     * @return the body when it is sent from a file, otherwise null.
+     */
+    public FileRegion getBodyFile() {
+        return bodyFile;
+    }
+
+    /**
+     * @return the body when it is produced while it is sent, otherwise null.
+     */
+    public ChunkedBody getBodyStream() {
+        return bodyStream;
+    }
+
+    /**
+     * @return the length of the body in bytes, or -1 when it is produced while it is sent.
+     */
+    public long getContentLength() {
+        return contentLength;
+    }
+
+    /**
+     * @param keepAlive whether the connection stays open after this response.
+     * @return the number of bytes this response takes on the wire, header included; for a
+     *         body produced while it is sent, only the header is counted.
+     */
+    public long length(boolean keepAlive) {
+        return encodeHeader(keepAlive).length + Math.max(contentLength, 0);
+    }
+
+    /**
+     * Adds a header to the response.
+     *
+     * @param name the header name.
+     * @param value the header value.
+     * @return this response.
+     */
+    public HttpResponse withHeader(String name, String value) {
+        headers.add(name);
+        headers.add(value);
+        keepAliveHeader = null;
+        closeHeader = null;
+        return this;
+    }
+
+    /**
+     * Returns the value of a header added with `withHeader`.
+     *
+     * @param name the header name, case insensitive.
+     * @return the header value, or null if the header is not set.
+     */
+    public String getHeader(String name) {
+        for (int i = 0; i < headers.size(); i += 2) {
+            if (headers.get(i).equalsIgnoreCase(name)) {
+                return headers.get(i + 1);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the names and values of the headers added with `withHeader`, alternating.
+     */
+    List<String> getHeaders() {
+        return Collections.unmodifiableList(headers);
+    }
+
+    /**
+     * Encodes both variants of the header block, so that a response built once can be
+     * shared between connections without being encoded again.
+     *
+     * @return this response.
+     */
+    public HttpResponse prepare() {
+        encodeHeader(true);
+        encodeHeader(false);
+        return this;
+    }
+
+    /**
+     * Encodes the status line and headers of the response. A body produced while it is
+     * sent is announced as chunked.
+     *
+     * @param keepAlive whether the connection stays open after this response.
+     * @return the header block, terminated by an empty line.
+     */
+    public byte[] encodeHeader(boolean keepAlive) {
+        byte[] encoded = keepAlive ? keepAliveHeader : closeHeader;
+        if (encoded == null) {
+            encoded = buildHeader(keepAlive, true);
+            if (keepAlive) {
+                keepAliveHeader = encoded;
+            } else {
+                closeHeader = encoded;
+            }
+        }
+        return encoded;
+    }
+
+    /**
+     * Encodes the status line and headers of the response.
+     *
+     * @param keepAlive whether the connection stays open after this response.
+     * @param chunked whether a body produced while it is sent is announced as chunked; an
+     *                HTTP/1.0 client does not know the chunked coding, and reads such a body
+     *                up to the end of the connection instead.
+     * @return the header block, terminated by an empty line.
+     */
+    public byte[] buildHeader(boolean keepAlive, boolean chunked) {
+        StringBuilder header = new StringBuilder(128);
+        header.append("HTTP/1.1 ").append(status).append("\r\n");
+        if (contentType != null) {
+            header.append("Content-type: ").append(contentType).append("\r\n");
+        }
+        if (bodyStream != null) {
+            if (chunked) {
+                header.append("Transfer-Encoding: chunked\r\n");
+            }
+        } else if (!status.startsWith("304")) {
+            header.append("Content-length: ").append(contentLength).append("\r\n");
+        }
+        for (int i = 0; i < headers.size(); i += 2) {
+            header.append(headers.get(i)).append(": ").append(headers.get(i + 1)).append("\r\n");
+        }
+        header.append("Connection: ").append(keepAlive ? "keep-alive" : "close").append("\r\n");
+        header.append("\r\n");
+        return header.toString().getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Encodes the status line and headers of the response at the position of a buffer. The
+     * header block prepared by `prepare()` is copied as it is; otherwise it is assembled
+     * from pre-encoded constants, without building it as a `String` first.
+     *
+     * @param buffer the buffer to write into, in write mode.
+     * @param keepAlive whether the connection stays open after this response.
+     * @return the length of the header block, or -1 if it does not fit in the remaining
+     *         space, in which case the buffer is left as it was.
+     */
+    public int writeHeader(ByteBuffer buffer, boolean keepAlive) {
+        return writeHeader(buffer, keepAlive, true);
+    }
+
+    /**
+     * Encodes the status line and headers of the response at the position of a buffer.
+     *
+     * @param buffer the buffer to write into, in write mode.
+     * @param keepAlive whether the connection stays open after this response.
+     * @param chunked whether a body produced while it is sent is announced as chunked.
+     * @return the length of the header block, or -1 if it does not fit in the remaining
+     *         space, in which case the buffer is left as it was.
+     */
+    public int writeHeader(ByteBuffer buffer, boolean keepAlive, boolean chunked) {
+        byte[] encoded = keepAlive ? keepAliveHeader : closeHeader;
+        if (encoded != null && (chunked || bodyStream == null)) {
+            if (encoded.length > buffer.remaining()) {
+                return -1;
+            }
+            buffer.put(encoded);
+            return encoded.length;
+        }
+        int start = buffer.position();
+        try {
+            buffer.put(encoded(STATUS_LINES, status, "HTTP/1.1 "));
+            if (contentType != null) {
+                buffer.put(encoded(CONTENT_TYPES, contentType, "Content-type: "));
+            }
+            if (bodyStream != null) {
+                if (chunked) {
+                    buffer.put(CHUNKED);
+                }
+            } else if (!status.startsWith("304")) {
+                buffer.put(CONTENT_LENGTH);
+                putDecimal(buffer, contentLength);
+                buffer.put(CRLF);
+            }
+            for (int i = 0; i < headers.size(); i += 2) {
+                putLatin1(buffer, headers.get(i));
+                buffer.put(HEADER_SEPARATOR);
+                putLatin1(buffer, headers.get(i + 1));
+                buffer.put(CRLF);
+            }
+            buffer.put(keepAlive ? KEEP_ALIVE_END : CLOSE_END);
+            return buffer.position() - start;
+        } catch (BufferOverflowException e) {
+            buffer.position(start);
+            return -1;
+        }
+    }
+
+    /**
+     * Returns a header line from a cache of encoded lines. Status lines and content types
+     * come from a handful of constants; past the size limit, values are encoded every time.
+     */
+    private static byte[] encoded(Map<String, byte[]> cache, String value, String prefix) {
+        byte[] line = cache.get(value);
+        if (line == null) {
+            line = ascii(prefix + value + "\r\n");
+            if (cache.size() < MAX_ENCODED_CONSTANTS) {
+                cache.put(value, line);
+            }
+        }
+        return line;
+    }
+
+    private static byte[] ascii(String value) {
+        return value.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private static void putLatin1(ByteBuffer buffer, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            buffer.put(c <= 0xFF ? (byte) c : (byte) '?');  // As String.getBytes(ISO_8859_1) does
+        }
+    }
+
+    private static void putDecimal(ByteBuffer buffer, long value) {
+        if (value == 0) {
+            buffer.put((byte) '0');
+            return;
+        }
+        long divisor = 1;
+        while (value / divisor >= 10) {
+            divisor *= 10;
+        }
+        for (; divisor > 0; divisor /= 10) {
+            buffer.put((byte) ('0' + value / divisor % 10));
+        }
+    }
+
+    /**
+     * Writes the complete response to a stream. Not valid for bodies produced while they
+     * are sent, which only a `ResponseWriter` sends.
+     *
+     * @param out the output stream of the connection.
+     * @param keepAlive whether the connection stays open after this response.
+     */
+    public void writeTo(OutputStream out, boolean keepAlive) throws IOException {
+        writeTo(out, null, keepAlive);
+    }
+
+    /**
+     * Writes the complete response. Buffer and file bodies go straight to the channel of the
+     * socket when there is one, so files are sent with zero-copy transfer.
+     *
+     * @param out the buffered output stream of the connection.
+     * @param channel the blocking channel under `out`, or null to copy everything through `out`.
+     * @param keepAlive whether the connection stays open after this response.
+     */
+    public void writeTo(OutputStream out, WritableByteChannel channel, boolean keepAlive) throws IOException {
+        out.write(encodeHeader(keepAlive));
+        if (body != null) {
+            out.write(body);
+            return;
+        }
+
+        out.flush();
+        WritableByteChannel target = channel != null ? channel : Channels.newChannel(out);
+        if (bodyBuffer != null) {
+            ByteBuffer buffer = bodyBuffer.duplicate();
+            while (buffer.hasRemaining()) {
+                target.write(buffer);
+            }
+        } else {
+            try {
+                bodyFile.transferTo(target);
+            } finally {
+                bodyFile.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,260 @@
+package edu.escuelaing.arep;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * The `JsonOutput` class is the buffer the `JsonSerializer` writes a document into. Strings
+ * are escaped and encoded to UTF-8 and numbers are formatted straight into its bytes, so
+ * serializing a value builds no intermediate `String` or `StringBuilder`.
+ *
+ * Each thread reuses one buffer: it grows to the largest document the thread has written,
+ * and `toByteArray()` makes the only copy of each document.
+ */
+public final class JsonOutput {
+    private static final byte[] HEX = {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9',
+                                      'a', 'b', 'c', 'd', 'e', 'f'};
+    private static final byte[] NULL = {'n', 'u', 'l', 'l'};
+    private static final byte[] TRUE = {'t', 'r', 'u', 'e'};
+    private static final byte[] FALSE = {'f', 'a', 'l', 's', 'e'};
+    private static final byte[] POINT_ZERO = {'.', '0'};
+    private static final byte[] MIN_LONG = "-9223372036854775808".getBytes(StandardCharsets.US_ASCII);
+    private static final int MAX_RETAINED = 256 * 1024;
+
+    private byte[] bytes;
+    private int size;
+    private int depth;
+
+    /**
+     * Creates an empty buffer.
+     *
+     * @param capacity the initial capacity in bytes.
+     */
+    public JsonOutput(int capacity) {
+        this.bytes = new byte[Math.max(capacity, 16)];
+    }
+
+    /**
+     * Empties the buffer, dropping its array if a large document made it grow past 256 KB.
+     *
+     * @return this buffer.
+     */
+    public JsonOutput reset() {
+        if (bytes.length > MAX_RETAINED) {
+            bytes = new byte[MAX_RETAINED];
+        }
+        size = 0;
+        depth = 0;
+        return this;
+    }
+
+    /**
+     * @return the number of bytes written.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return a copy of the bytes written.
+     */
+    public byte[] toByteArray() {
+        return Arrays.copyOf(bytes, size);
+    }
+
+    private void ensure(int length) {
+        if (size + length > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + length));
+        }
+    }
+
+    /**
+     * Writes one ASCII character, such as a bracket or a comma.
+     *
+     * @param c the character.
+     */
+    public void writeByte(char c) {
+        ensure(1);
+        bytes[size++] = (byte) c;
+    }
+
+    /**
+     * Writes bytes that are already encoded, such as a property name with its quotes and colon.
+     *
+     * @param encoded the bytes.
+     */
+    public void writeRaw(byte[] encoded) {
+        ensure(encoded.length);
+        System.arraycopy(encoded, 0, bytes, size, encoded.length);
+        size += encoded.length;
+    }
+
+    /**
+     * Writes `null`.
+     */
+    public void writeNull() {
+        writeRaw(NULL);
+    }
+
+    /**
+     * Writes `true` or `false`.
+     *
+     * @param value the value.
+     */
+    public void writeBoolean(boolean value) {
+        writeRaw(value ? TRUE : FALSE);
+    }
+
+    /**
+     * Writes an integral number.
+     *
+     * @param value the value.
+     */
+    public void writeLong(long value) {
+        if (value == Long.MIN_VALUE) {
+            writeRaw(MIN_LONG);
+            return;
+        }
+        ensure(20);
+        if (value < 0) {
+            bytes[size++] = '-';
+            value = -value;
+        }
+        int digits = 1;
+        for (long rest = value / 10; rest > 0; rest /= 10) {
+            digits++;
+        }
+        for (int i = size + digits - 1; i >= size; i--) {
+            bytes[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        size += digits;
+    }
+
+    /**
+     * Writes a floating-point number as `Double.toString` formats it. JSON has no NaN or
+     * infinity, which are written as `null`.
+     *
+     * @param value the value.
+     */
+    public void writeDouble(double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            writeNull();
+        } else if (value == (long) value && Math.abs(value) < 1e7 && (value != 0 || 1 / value > 0)) {
+            // Whole numbers, the most common case, are formatted without going through a String
+            writeLong((long) value);
+            writeRaw(POINT_ZERO);
+        } else {
+            writeAscii(Double.toString(value));
+        }
+    }
+
+    /**
+     * Writes a floating-point number as `Float.toString` formats it, or `null` for NaN and infinity.
+     *
+     * @param value the value.
+     */
+    public void writeFloat(float value) {
+        if (Float.isNaN(value) || Float.isInfinite(value)) {
+            writeNull();
+        } else {
+            writeAscii(Float.toString(value));
+        }
+    }
+
+    /**
+     * Writes characters known to be ASCII and not to need escaping, such as a formatted number.
+     *
+     * @param value the characters.
+     */
+    public void writeAscii(String value) {
+        ensure(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            bytes[size++] = (byte) value.charAt(i);
+        }
+    }
+
+    /**
+     * Writes a string in quotes, escaping quotes, backslashes and control characters and
+     * encoding the rest to UTF-8. An unpaired surrogate is written as `?`, as
+     * `String.getBytes(UTF_8)` does.
+     *
+     * @param value the string.
+     */
+    public void writeString(CharSequence value) {
+        int length = value.length();
+        ensure(length + 2);
+        bytes[size++] = '"';
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                if (c >= 0x20 && c != '"' && c != '\\') {
+                    ensure(2);  // Room for this character and the closing quote
+                    bytes[size++] = (byte) c;
+                } else {
+                    writeEscaped(c);
+                }
+            } else if (c < 0x800) {
+                ensure(3);
+                bytes[size++] = (byte) (0xC0 | c >> 6);
+                bytes[size++] = (byte) (0x80 | c & 0x3F);
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                ensure(5);
+                bytes[size++] = (byte) (0xF0 | codePoint >> 18);
+                bytes[size++] = (byte) (0x80 | codePoint >> 12 & 0x3F);
+                bytes[size++] = (byte) (0x80 | codePoint >> 6 & 0x3F);
+                bytes[size++] = (byte) (0x80 | codePoint & 0x3F);
+            } else if (Character.isSurrogate(c)) {
+                ensure(2);
+                bytes[size++] = '?';
+            } else {
+                ensure(4);
+                bytes[size++] = (byte) (0xE0 | c >> 12);
+                bytes[size++] = (byte) (0x80 | c >> 6 & 0x3F);
+                bytes[size++] = (byte) (0x80 | c & 0x3F);
+            }
+        }
+        ensure(1);
+        bytes[size++] = '"';
+    }
+
+    private void writeEscaped(char c) {
+        ensure(7);
+        bytes[size++] = '\\';
+        switch (c) {
+            case '"': bytes[size++] = '"'; return;
+            case '\\': bytes[size++] = '\\'; return;
+            case '\n': bytes[size++] = 'n'; return;
+            case '\r': bytes[size++] = 'r'; return;
+            case '\t': bytes[size++] = 't'; return;
+            case '\b': bytes[size++] = 'b'; return;
+            case '\f': bytes[size++] = 'f'; return;
+            default:
+                bytes[size++] = 'u';
+                bytes[size++] = '0';
+                bytes[size++] = '0';
+                bytes[size++] = HEX[c >> 4];
+                bytes[size++] = HEX[c & 0xF];
+        }
+    }
+
+    /**
+     * Enters an object or an array, failing past a fixed depth so that a cycle of
+     * references ends in an error rather than a `StackOverflowError`.
+     *
+     * @throws IllegalStateException if values are nested more than 64 levels deep.
+     */
+    void enter() {
+        if (++depth > 64) {
+            throw new IllegalStateException("JSON values nested more than 64 levels deep; is there a cycle?");
+        }
+    }
+
+    /**
+     * Leaves an object or an array.
+     */
+    void leave() {
+        depth--;
+    }
+}
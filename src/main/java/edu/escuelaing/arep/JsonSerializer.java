@@ -0,0 +1,526 @@
+package edu.escuelaing.arep;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.GenericArrayType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The `JsonSerializer` class writes the results of controller methods as JSON. The writer of
+ * each class is generated once, when a route returning it is registered or the first time an
+ * instance of it is written: its properties are found by reflection then, and read through
+ * `MethodHandle`s afterwards, so writing a value never looks anything up by reflection.
+ * Property names are encoded once with the writer, and values are written straight into a
+ * per-thread `JsonOutput`.
+ *
+ * Supported values:
+ * <ul>
+ *   <li>`null`, strings, characters, numbers and booleans; enums are written by name, and
+ *       `Optional` as its value or `null`;</li>
+ *   <li>arrays, `Iterable`s and `Map`s, whose keys are written with `String.valueOf`;</li>
+ *   <li>other classes of the JDK, such as `java.time` values or `UUID`, as the string of their
+ *       `toString()`;</li>
+ *   <li>any other class as an object of its properties: the public getters (`getName()`,
+ *       `isActive()`) and public fields, or the components of a record, in declaration order.</li>
+ * </ul>
+ *
+ * Values nested more than 64 levels deep, such as a cycle of references, fail with an
+ * `IllegalStateException`.
+ */
+public final class JsonSerializer {
+    private static final Map<Class<?>, ValueWriter> WRITERS = new ConcurrentHashMap<>();
+    // Writers being generated, only visible to the generating thread until they are all complete
+    private static final Map<Class<?>, ValueWriter> GENERATING = new HashMap<>();
+    private static final ThreadLocal<JsonOutput> OUTPUT = ThreadLocal.withInitial(() -> new JsonOutput(1024));
+
+    private JsonSerializer() {
+    }
+
+    /**
+     * Writes a value of some class into a `JsonOutput`.
+     */
+    @FunctionalInterface
+    interface ValueWriter {
+        void write(Object value, JsonOutput out) throws Throwable;
+    }
+
+    /**
+     * Tells whether a result is sent as text rather than serialized: strings, characters,
+     * numbers, booleans and `null` keep their `String.valueOf` form, as before JSON support.
+     *
+     * @param value the result of a controller method.
+     * @return true if the value is sent as `text/plain`.
+     */
+    public static boolean isScalar(Object value) {
+        return value == null || isScalarType(value.getClass());
+    }
+
+    /**
+     * Tells whether a declared type only holds values that `isScalar` accepts.
+     *
+     * @param type a class.
+     * @return true for strings, characters, numbers, booleans and their primitives.
+     */
+    public static boolean isScalarType(Class<?> type) {
+        return type.isPrimitive() || CharSequence.class.isAssignableFrom(type) || Number.class.isAssignableFrom(type)
+                || type == Boolean.class || type == Character.class;
+    }
+
+    /**
+     * Generates the writers of a type and of the types it is made of, so that the first
+     * request does not pay for it. Type variables and wildcards are skipped; their values get
+     * a writer the first time they are written.
+     *
+     * @param type the declared type of a result, generic arguments included.
+     */
+    public static void prepare(Type type) {
+        if (type instanceof Class) {
+            Class<?> raw = (Class<?>) type;
+            if (raw.isArray()) {
+                prepare(raw.getComponentType());
+            } else if (!raw.isPrimitive() && raw != Object.class && !raw.isInterface()) {
+                writerFor(raw);
+            }
+        } else if (type instanceof ParameterizedType) {
+            prepare(((ParameterizedType) type).getRawType());
+            for (Type argument : ((ParameterizedType) type).getActualTypeArguments()) {
+                prepare(argument);
+            }
+        } else if (type instanceof GenericArrayType) {
+            prepare(((GenericArrayType) type).getGenericComponentType());
+        }
+    }
+
+    /**
+     * Serializes a value.
+     *
+     * @param value the value.
+     * @return the JSON document, encoded in UTF-8.
+     * @throws IllegalStateException if the value is nested too deeply or a getter fails.
+     */
+    public static byte[] toJson(Object value) {
+        JsonOutput out = OUTPUT.get().reset();
+        write(value, out);
+        return out.toByteArray();
+    }
+
+    /**
+     * Serializes a value at the end of a `JsonOutput`.
+     *
+     * @param value the value.
+     * @param out the output.
+     * @throws IllegalStateException if the value is nested too deeply or a getter fails.
+     */
+    public static void write(Object value, JsonOutput out) {
+        try {
+            writeValue(value, out);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new IllegalStateException("Cannot serialize " + value.getClass().getName(), t);
+        }
+    }
+
+    private static void writeValue(Object value, JsonOutput out) throws Throwable {
+        if (value == null) {
+            out.writeNull();
+        } else if (value instanceof String) {
+            out.writeString((String) value);  // Most values, checked before the lookup
+        } else {
+            writerFor(value.getClass()).write(value, out);
+        }
+    }
+
+    /**
+     * Returns the writer of a class, generating it on first use.
+     */
+    static ValueWriter writerFor(Class<?> type) {
+        ValueWriter writer = WRITERS.get(type);
+        if (writer != null) {
+            return writer;
+        }
+        synchronized (GENERATING) {
+            writer = WRITERS.get(type);
+            if (writer == null) {
+                writer = GENERATING.get(type);  // A class that refers back to itself
+            }
+            if (writer == null) {
+                boolean outermost = GENERATING.isEmpty();
+                try {
+                    writer = createWriter(type);
+                    if (outermost) {
+                        WRITERS.putAll(GENERATING);
+                    }
+                } finally {
+                    if (outermost) {
+                        GENERATING.clear();
+                    }
+                }
+            }
+        }
+        return writer;
+    }
+
+    private static ValueWriter createWriter(Class<?> type) {
+        if (CharSequence.class.isAssignableFrom(type) || type == Character.class) {
+            return register(type, (value, out) -> out.writeString(value.toString()));
+        } else if (type == Integer.class || type == Long.class || type == Short.class || type == Byte.class) {
+            return register(type, (value, out) -> out.writeLong(((Number) value).longValue()));
+        } else if (type == Double.class) {
+            return register(type, (value, out) -> out.writeDouble((Double) value));
+        } else if (type == Float.class) {
+            return register(type, (value, out) -> out.writeFloat((Float) value));
+        } else if (type == BigDecimal.class || type == BigInteger.class) {
+            return register(type, (value, out) -> out.writeAscii(value.toString()));
+        } else if (Number.class.isAssignableFrom(type) && isJdkType(type)) {
+            return register(type, (value, out) -> out.writeAscii(value.toString()));  // AtomicLong, LongAdder...
+        } else if (Number.class.isAssignableFrom(type)) {
+            return register(type, (value, out) -> out.writeDouble(((Number) value).doubleValue()));
+        } else if (type == Boolean.class) {
+            return register(type, (value, out) -> out.writeBoolean((Boolean) value));
+        } else if (type.isEnum() || (type.getSuperclass() != null && type.getSuperclass().isEnum())) {
+            return register(type, (value, out) -> out.writeString(((Enum<?>) value).name()));
+        } else if (type == Optional.class) {
+            return register(type, (value, out) -> writeValue(((Optional<?>) value).orElse(null), out));
+        } else if (type.isArray()) {
+            return register(type, arrayWriter(type.getComponentType()));
+        } else if (Map.class.isAssignableFrom(type)) {
+            return register(type, JsonSerializer::writeMap);
+        } else if (Iterable.class.isAssignableFrom(type)) {
+            return register(type, JsonSerializer::writeIterable);
+        } else if (isJdkType(type)) {
+            return register(type, (value, out) -> out.writeString(value.toString()));
+        }
+        BeanWriter bean = new BeanWriter();
+        register(type, bean);  // Before its properties, which may refer back to it
+        try {
+            bean.properties = properties(type);
+        } catch (IllegalAccessException | RuntimeException e) {
+            throw new IllegalArgumentException("Cannot serialize " + type.getName() + " to JSON", e);
+        }
+        return bean;
+    }
+
+    private static ValueWriter register(Class<?> type, ValueWriter writer) {
+        GENERATING.put(type, writer);
+        return writer;
+    }
+
+    private static boolean isJdkType(Class<?> type) {
+        String name = type.getName();
+        return name.startsWith("java.") || name.startsWith("javax.") || name.startsWith("jdk.")
+                || name.startsWith("sun.") || name.startsWith("com.sun.");
+    }
+
+    private static void writeMap(Object value, JsonOutput out) throws Throwable {
+        out.enter();
+        out.writeByte('{');
+        boolean first = true;
+        for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+            if (!first) {
+                out.writeByte(',');
+            }
+            first = false;
+            out.writeString(String.valueOf(entry.getKey()));
+            out.writeByte(':');
+            writeValue(entry.getValue(), out);
+        }
+        out.writeByte('}');
+        out.leave();
+    }
+
+    private static void writeIterable(Object value, JsonOutput out) throws Throwable {
+        out.enter();
+        out.writeByte('[');
+        boolean first = true;
+        for (Object element : (Iterable<?>) value) {
+            if (!first) {
+                out.writeByte(',');
+            }
+            first = false;
+            writeValue(element, out);
+        }
+        out.writeByte(']');
+        out.leave();
+    }
+
+    /**
+     * Returns the writer of an array type. Primitive arrays are written without boxing.
+     */
+    private static ValueWriter arrayWriter(Class<?> component) {
+        if (component == int.class) {
+            return (value, out) -> {
+                int[] array = (int[]) value;
+                out.writeByte('[');
+                for (int i = 0; i < array.length; i++) {
+                    if (i > 0) {
+                        out.writeByte(',');
+                    }
+                    out.writeLong(array[i]);
+                }
+                out.writeByte(']');
+            };
+        } else if (component == long.class) {
+            return (value, out) -> {
+                long[] array = (long[]) value;
+                out.writeByte('[');
+                for (int i = 0; i < array.length; i++) {
+                    if (i > 0) {
+                        out.writeByte(',');
+                    }
+                    out.writeLong(array[i]);
+                }
+                out.writeByte(']');
+            };
+        } else if (component == double.class) {
+            return (value, out) -> {
+                double[] array = (double[]) value;
+                out.writeByte('[');
+                for (int i = 0; i < array.length; i++) {
+                    if (i > 0) {
+                        out.writeByte(',');
+                    }
+                    out.writeDouble(array[i]);
+                }
+                out.writeByte(']');
+            };
+        } else if (component == char.class) {
+            return (value, out) -> out.writeString(new String((char[]) value));
+        } else if (component.isPrimitive()) {
+            // byte, short, float and boolean arrays are rare enough to go through their boxes
+            return (value, out) -> {
+                int length = Array.getLength(value);
+                List<Object> boxed = new ArrayList<>(length);
+                for (int i = 0; i < length; i++) {
+                    boxed.add(Array.get(value, i));
+                }
+                writeIterable(boxed, out);
+            };
+        }
+        return (value, out) -> {
+            Object[] array = (Object[]) value;
+            out.enter();
+            out.writeByte('[');
+            for (int i = 0; i < array.length; i++) {
+                if (i > 0) {
+                    out.writeByte(',');
+                }
+                writeValue(array[i], out);
+            }
+            out.writeByte(']');
+            out.leave();
+        };
+    }
+
+    /**
+     * Finds the properties of a class: the components of a record, or else its public
+     * getters and public fields. Properties are in declaration order, superclass first;
+     * getters without a matching field come last, by name.
+     */
+    private static Property[] properties(Class<?> type) throws IllegalAccessException {
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        List<Field> fields = new ArrayList<>();
+        for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+            List<Field> declared = new ArrayList<>();
+            for (Field field : c.getDeclaredFields()) {
+                if (!Modifier.isStatic(field.getModifiers()) && !field.isSynthetic()) {
+                    declared.add(field);
+                }
+            }
+            fields.addAll(0, declared);
+        }
+
+        Map<String, Property> found = new LinkedHashMap<>();
+        if (type.getSuperclass() != null && type.getSuperclass().getName().equals("java.lang.Record")) {
+            for (Field field : fields) {
+                Method accessor = findAccessor(type, field.getName());
+                if (accessor != null) {
+                    found.put(field.getName(), Property.of(field.getName(), unreflect(lookup, accessor),
+                            accessor.getReturnType(), accessor.getGenericReturnType()));
+                }
+            }
+            return found.values().toArray(new Property[0]);
+        }
+
+        Map<String, Method> getters = new TreeMap<>();
+        for (Method method : type.getMethods()) {
+            String name = propertyName(method);
+            if (name != null) {
+                getters.putIfAbsent(name, method);
+            }
+        }
+        for (Field field : fields) {
+            Method getter = getters.remove(field.getName());
+            if (getter != null) {
+                found.put(field.getName(), Property.of(field.getName(), unreflect(lookup, getter),
+                        getter.getReturnType(), getter.getGenericReturnType()));
+            } else if (Modifier.isPublic(field.getModifiers()) && !Modifier.isTransient(field.getModifiers())) {
+                field.setAccessible(true);
+                found.put(field.getName(), Property.of(field.getName(), lookup.unreflectGetter(field),
+                        field.getType(), field.getGenericType()));
+            }
+        }
+        for (Map.Entry<String, Method> getter : getters.entrySet()) {
+            Method method = getter.getValue();
+            found.put(getter.getKey(), Property.of(getter.getKey(), unreflect(lookup, method),
+                    method.getReturnType(), method.getGenericReturnType()));
+        }
+        return found.values().toArray(new Property[0]);
+    }
+
+    private static Method findAccessor(Class<?> type, String name) {
+        try {
+            return type.getDeclaredMethod(name);
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    private static MethodHandle unreflect(MethodHandles.Lookup lookup, Method method) throws IllegalAccessException {
+        method.setAccessible(true);  // Public getters of a class that is not public
+        return lookup.unreflect(method);
+    }
+
+    /**
+     * @return the property a public getter reads, or null if the method is not a getter.
+     */
+    private static String propertyName(Method method) {
+        if (Modifier.isStatic(method.getModifiers()) || method.getParameterCount() != 0
+                || method.getReturnType() == void.class || method.getDeclaringClass() == Object.class
+                || method.isBridge()) {
+            return null;
+        }
+        String name = method.getName();
+        int prefix;
+        if (name.startsWith("get") && name.length() > 3) {
+            prefix = 3;
+        } else if (name.startsWith("is") && name.length() > 2
+                && (method.getReturnType() == boolean.class || method.getReturnType() == Boolean.class)) {
+            prefix = 2;
+        } else {
+            return null;
+        }
+        if (name.length() > prefix + 1 && Character.isUpperCase(name.charAt(prefix + 1))) {
+            return name.substring(prefix);  // getURL is "URL", as java.beans names it
+        }
+        return Character.toLowerCase(name.charAt(prefix)) + name.substring(prefix + 1);
+    }
+
+    /**
+     * The writer of a class serialized as an object of its properties.
+     */
+    private static final class BeanWriter implements ValueWriter {
+        Property[] properties;
+
+        @Override
+        public void write(Object value, JsonOutput out) throws Throwable {
+            Property[] properties = this.properties;
+            out.enter();
+            out.writeByte('{');
+            for (int i = 0; i < properties.length; i++) {
+                Property property = properties[i];
+                out.writeRaw(i == 0 ? property.name : property.separatedName);
+                property.write(value, out);
+            }
+            out.writeByte('}');
+            out.leave();
+        }
+    }
+
+    /**
+     * One property of a class, with its name already encoded and a reader that matches its
+     * type: primitives are read without boxing, and values of a class that has no subclasses
+     * go straight to the writer of that class.
+     */
+    private abstract static class Property {
+        final byte[] name;
+        final byte[] separatedName;
+
+        Property(String name) {
+            JsonOutput encoded = new JsonOutput(name.length() + 4);
+            encoded.writeByte(',');
+            encoded.writeString(name);
+            encoded.writeByte(':');
+            this.separatedName = encoded.toByteArray();
+            this.name = Arrays.copyOfRange(separatedName, 1, separatedName.length);
+        }
+
+        abstract void write(Object bean, JsonOutput out) throws Throwable;
+
+        static Property of(String name, MethodHandle getter, Class<?> type, Type genericType) {
+            if (type == int.class || type == long.class || type == short.class || type == byte.class) {
+                MethodHandle handle = getter.asType(MethodType.methodType(long.class, Object.class));
+                return new Property(name) {
+                    @Override
+                    void write(Object bean, JsonOutput out) throws Throwable {
+                        out.writeLong((long) handle.invokeExact(bean));
+                    }
+                };
+            } else if (type == double.class) {
+                MethodHandle handle = getter.asType(MethodType.methodType(double.class, Object.class));
+                return new Property(name) {
+                    @Override
+                    void write(Object bean, JsonOutput out) throws Throwable {
+                        out.writeDouble((double) handle.invokeExact(bean));
+                    }
+                };
+            } else if (type == float.class) {
+                MethodHandle handle = getter.asType(MethodType.methodType(float.class, Object.class));
+                return new Property(name) {
+                    @Override
+                    void write(Object bean, JsonOutput out) throws Throwable {
+                        out.writeFloat((float) handle.invokeExact(bean));
+                    }
+                };
+            } else if (type == boolean.class) {
+                MethodHandle handle = getter.asType(MethodType.methodType(boolean.class, Object.class));
+                return new Property(name) {
+                    @Override
+                    void write(Object bean, JsonOutput out) throws Throwable {
+                        out.writeBoolean((boolean) handle.invokeExact(bean));
+                    }
+                };
+            }
+
+            MethodHandle handle = getter.asType(MethodType.methodType(Object.class, Object.class));
+            prepare(genericType);
+            ValueWriter writer = Modifier.isFinal(type.getModifiers()) && !type.isArray() ? writerFor(type) : null;
+            if (writer != null) {
+                return new Property(name) {
+                    @Override
+                    void write(Object bean, JsonOutput out) throws Throwable {
+                        Object value = (Object) handle.invokeExact(bean);
+                        if (value == null) {
+                            out.writeNull();
+                        } else {
+                            writer.write(value, out);
+                        }
+                    }
+                };
+            }
+            return new Property(name) {
+                @Override
+                void write(Object bean, JsonOutput out) throws Throwable {
+                    writeValue((Object) handle.invokeExact(bean), out);
+                }
+            };
+        }
+    }
+}
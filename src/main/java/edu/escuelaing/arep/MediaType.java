@@ -0,0 +1,88 @@
+package edu.escuelaing.arep;
+
+/**
+ * The `MediaType` enum lists the representations the server can produce for the result of
+ * a controller method and implements their negotiation against the `Accept` header of a
+ * request. Objects are sent as JSON, or as the text of their `toString()` to clients that
+ * prefer `text/plain`.
+ */
+public enum MediaType {
+    JSON("application/json"),
+    TEXT("text/plain; charset=UTF-8");
+
+    private final String contentType;
+
+    MediaType(String contentType) {
+        this.contentType = contentType;
+    }
+
+    /**
+     * @return the value of the `Content-type` header of this representation.
+     */
+    public String contentType() {
+        return contentType;
+    }
+
+    /**
+     * Chooses the representation of an object. The representation with the highest quality
+     * value wins, JSON on a tie. The most specific range that matches a representation gives
+     * its quality: `application/json`, then `application/*`, then the wildcard for any type.
+     * A representation with `q=0` is never chosen.
+     *
+     * @param accept the `Accept` header, or null if the client did not send one.
+     * @return the chosen representation, or null if the client accepts neither.
+     */
+    public static MediaType negotiate(String accept) {
+        if (accept == null || accept.isEmpty()) {
+            return JSON;
+        }
+        float[] json = {-1, -1, -1};  // Quality of the exact type, of type/* and of */*
+        float[] text = {-1, -1, -1};
+        for (String element : accept.split(",")) {
+            int semicolon = element.indexOf(';');
+            String range = (semicolon < 0 ? element : element.substring(0, semicolon)).trim().toLowerCase();
+            float quality = semicolon < 0 ? 1 : quality(element.substring(semicolon + 1));
+            if (range.equals("application/json")) {
+                json[0] = quality;
+            } else if (range.equals("application/*")) {
+                json[1] = quality;
+            } else if (range.equals("text/plain")) {
+                text[0] = quality;
+            } else if (range.equals("text/*")) {
+                text[1] = quality;
+            } else if (range.equals("*/*")) {
+                json[2] = quality;
+                text[2] = quality;
+            }
+        }
+        float jsonQuality = mostSpecific(json);
+        float textQuality = mostSpecific(text);
+        if (jsonQuality > 0 && jsonQuality >= textQuality) {
+            return JSON;
+        }
+        return textQuality > 0 ? TEXT : null;
+    }
+
+    private static float mostSpecific(float[] qualities) {
+        for (float quality : qualities) {
+            if (quality >= 0) {
+                return quality;
+            }
+        }
+        return 0;
+    }
+
+    private static float quality(String parameters) {
+        for (String parameter : parameters.split(";")) {
+            String trimmed = parameter.trim();
+            if (trimmed.startsWith("q=") || trimmed.startsWith("Q=")) {
+                try {
+                    return Float.parseFloat(trimmed.substring(2));
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+            }
+        }
+        return 1;
+    }
+}
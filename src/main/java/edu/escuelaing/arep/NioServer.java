@@ -0,0 +1,802 @@
+package edu.escuelaing.arep;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The `NioServer` class is a non-blocking alternative to the thread-per-connection engine.
+ * An acceptor thread accepts connections from a `ServerSocketChannel` and hands them out
+ * round-robin to a fixed number of event loops. Each event loop multiplexes many connections
+ * over its own `Selector`, decodes requests incrementally with an `HttpRequestDecoder` and
+ * dispatches them through the shared `RequestDispatcher`, so a slow client never holds a thread.
+ *
+ * Neither does a slow controller: when a controller returns a `CompletionStage` the connection
+ * waits for it without blocking its event loop, and the response is written by the loop once
+ * the stage completes. Requests pipelined behind it stay buffered until then, and a client
+ * that closes the connection in the meantime cancels the pending response. The loop only
+ * answers by itself the requests that cannot block: static files held in memory and
+ * asynchronous controllers. Synchronous controllers and files that must be read from disk
+ * run on one of `workerThreads` worker threads and their response comes back the same way,
+ * so a slow controller or a slow disk does not hold up the other connections of the loop.
+ * Up to `workerQueueSize` such requests wait for a worker; further ones get `503`. Like the
+ * other engines, the loops answer with `503` the requests above the limit of the adaptive
+ * `ConcurrencyLimiter`, once the rate limits have let them through.
+ *
+ * Streamed bodies are pulled by the loop one buffer at a time, when the socket accepts more
+ * output. A `Stream`, an `Iterator` or a `StreamingBody` is produced on a thread of its own
+ * into a bounded buffer, so a slow producer does not block the loop and a slow client makes
+ * the producer wait.
+ *
+ * A connection that switches to HTTP/2, with the preface or with `Upgrade: h2c`, leaves its
+ * event loop: its channel goes back to blocking mode and an `Http2Connection` serves it on a
+ * thread of the stream executor, the streams being dispatched on threads of their own.
+ *
+ * `shutdown(timeout)` stops the engine gracefully: the listening sockets are closed, idle
+ * connections are closed, connections with a request in flight are closed once its
+ * response has been sent and, past the timeout, the event loops close whatever is left.
+ *
+ * Usage example:
+ *
+ * <pre>
+ * {@code
+ * java -jar SpringECI.jar --engine=nio --ioThreads=4
+ * }
+ * </pre>
+ */
+public class NioServer {
+    private static final int SELECT_TIMEOUT = 1000;
+
+    private final ServerConfig config;
+    private final RequestDispatcher dispatcher = new RequestDispatcher();
+    private final ServerMetrics metrics = SimpleWebServer.getMetrics();
+    private final AccessLog accessLog = SimpleWebServer.getAccessLog();
+    private final BufferPool bufferPool = SimpleWebServer.getBufferPool();
+    private final ThreadPoolExecutor workers;
+    private final ConcurrencyLimiter limiter;
+    private final EventLoop[] eventLoops;
+    private final Thread[] loopThreads;
+    private final Set<Http2Connection> http2Connections = ConcurrentHashMap.newKeySet();
+    private volatile boolean running = true;
+    private volatile long drainDeadline;  // Zero until the engine shuts down
+    private ServerSocketChannel[] listeners;
+
+    /**
+     * Creates the engine and opens the selectors of its event loops.
+     *
+     * @param config the server configuration.
+     */
+    public NioServer(ServerConfig config) throws IOException {
+        this(config, SimpleWebServer.getConcurrencyLimiter());
+    }
+
+    /**
+     * Creates the engine with its own concurrency limiter.
+     *
+     * @param config the server configuration.
+     * @param limiter the adaptive concurrency limiter, or null if requests are not limited.
+     */
+    NioServer(ServerConfig config, ConcurrencyLimiter limiter) throws IOException {
+        this.config = config;
+        this.limiter = limiter;
+        AtomicInteger count = new AtomicInteger();
+        this.workers = new ThreadPoolExecutor(config.getWorkerThreads(), config.getWorkerThreads(),
+                0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(Math.max(1, config.getWorkerQueueSize())),
+                task -> {
+                    Thread thread = new Thread(task, "nio-worker-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        this.eventLoops = new EventLoop[config.getIoThreads()];
+        this.loopThreads = new Thread[eventLoops.length];
+        for (int i = 0; i < eventLoops.length; i++) {
+            eventLoops[i] = new EventLoop();
+            loopThreads[i] = new Thread(eventLoops[i], "nio-event-loop-" + i);
+        }
+    }
+
+    /**
+     * Binds the listening sockets, starts the event loops and accepts connections until the
+     * engine is shut down. The first socket is served by the calling thread and every other
+     * one by a thread of its own.
+     */
+    public void serve() throws IOException {
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+            listeners = SimpleWebServer.openListeners(config);
+            for (Thread thread : loopThreads) {
+                thread.start();
+            }
+        }
+        for (int i = 1; i < listeners.length; i++) {
+            ServerSocketChannel listener = listeners[i];
+            int first = i;
+            Thread acceptor = new Thread(() -> accept(listener, first), "nio-acceptor-" + i);
+            acceptor.start();
+        }
+        accept(listeners[0], 0);
+    }
+
+    /**
+     * Accepts connections from one listening socket until it is closed, handing them out
+     * round-robin to the event loops.
+     *
+     * @param listener the listening socket.
+     * @param next the event loop that gets the first connection.
+     */
+    private void accept(ServerSocketChannel listener, int next) {
+        try {
+            while (running) {
+                SocketChannel channel = listener.accept();  // Accept new client connection
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                eventLoops[next % eventLoops.length].register(channel);  // Hand it to an event loop
+                next = (next + 1) % eventLoops.length;
+            }
+        } catch (ClosedChannelException e) {
+            // shutdown() closed the listening socket
+        } catch (IOException e) {
+            e.printStackTrace();
+            stop();
+        }
+    }
+
+    /**
+     * Shuts the engine down gracefully. New connections are refused at once, idle connections
+     * are closed, and the connections with a request in flight are closed after its response.
+     * The event loops close the connections still open when the timeout expires.
+     *
+     * @param timeout the time in milliseconds to wait for the requests in flight.
+     * @return whether every request in flight completed within the timeout.
+     */
+    public boolean shutdown(long timeout) {
+        long deadline = System.currentTimeMillis() + Math.max(timeout, 0);
+        synchronized (this) {
+            running = false;
+            SimpleWebServer.closeListeners(listeners);
+        }
+        drainDeadline = Math.max(deadline, 1);
+        boolean drained = true;
+        for (EventLoop eventLoop : eventLoops) {
+            eventLoop.selector.wakeup();
+        }
+        for (Http2Connection connection : http2Connections) {
+            connection.shutdown();
+        }
+        for (int i = 0; i < eventLoops.length; i++) {
+            try {
+                if (loopThreads[i].isAlive()) {
+                    // The loop closes its connections at the deadline; allow it a moment to do so
+                    loopThreads[i].join(Math.max(1, deadline - System.currentTimeMillis() + SELECT_TIMEOUT));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            drained &= eventLoops[i].drained;
+        }
+        workers.shutdown();  // Requests still queued belong to connections that are closed by now
+        return awaitHttp2Connections(deadline) && drained;
+    }
+
+    /**
+     * @return the number of requests waiting for a worker thread.
+     */
+    int getQueueDepth() {
+        return workers.getQueue().size();
+    }
+
+    /**
+     * Waits for the HTTP/2 connections to answer their streams in flight and closes those
+     * still open at the deadline.
+     *
+     * @param deadline the time at which every connection is closed.
+     * @return whether every connection ended before the deadline.
+     */
+    private boolean awaitHttp2Connections(long deadline) {
+        synchronized (http2Connections) {
+            long remaining;
+            while (!http2Connections.isEmpty() && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                try {
+                    http2Connections.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+        boolean drained = http2Connections.isEmpty();
+        for (Http2Connection connection : http2Connections) {
+            connection.close();
+        }
+        return drained;
+    }
+
+    /**
+     * Dispatches a request that may block on a worker thread, so that the event loop goes on
+     * with its other connections. Cancelling the response cancels the dispatch, or the
+     * asynchronous controller it started. Whatever the dispatch throws or fails with becomes
+     * a `500`, so that the connection never waits for a response that does not come.
+     *
+     * @param request the request.
+     * @param admitted whether the rate limits of the request have been checked already.
+     * @return the pending response; `503` if every worker thread is busy and the queue is full.
+     */
+    private CompletableFuture<HttpResponse> dispatchOnWorker(HttpRequest request, boolean admitted) {
+        CompletableFuture<HttpResponse> response = new CompletableFuture<>();
+        try {
+            workers.execute(() -> {
+                if (response.isDone()) {
+                    return;  // Cancelled while waiting for the worker
+                }
+                CompletableFuture<HttpResponse> dispatched;
+                try {
+                    dispatched = admitted ? dispatcher.dispatchAdmittedAsync(request)
+                            : dispatcher.dispatchAsync(request);
+                } catch (Throwable e) {
+                    response.complete(internalError(e));
+                    return;
+                }
+                response.whenComplete((completed, error) -> {
+                    if (response.isCancelled()) {
+                        dispatched.cancel(true);
+                    }
+                });
+                dispatched.whenComplete((completed, error) -> {
+                    if (completed != null) {
+                        response.complete(completed);
+                    } else if (!response.isDone()) {
+                        response.complete(internalError(error));  // Not cancelled by us: it failed
+                    }
+                });
+            });
+        } catch (RejectedExecutionException e) {
+            metrics.recordRejectedQueueFull();
+            HttpResponse rejected = SimpleWebServer.serviceUnavailable(config);
+            metrics.recordResponse(rejected.getStatus());
+            response.complete(rejected);
+        }
+        return response;
+    }
+
+    /**
+     * Dispatches a request on the loop thread, or on a worker thread if it may block, within
+     * the concurrency limit. Rate limits are checked first, so that a `429` never takes a
+     * permit; the permit is given back before the response is sent, and cancelling the
+     * response cancels the dispatch.
+     *
+     * @param request the request.
+     * @return the pending response; `503` if the concurrency limit is reached.
+     */
+    private CompletableFuture<HttpResponse> dispatch(HttpRequest request) throws IOException {
+        if (limiter == null) {
+            return dispatcher.isNonBlocking(request) ? dispatcher.dispatchAsync(request)
+                    : dispatchOnWorker(request, false);
+        }
+        HttpResponse limited = dispatcher.rateLimit(request);
+        if (limited != null) {
+            return CompletableFuture.completedFuture(limited);
+        }
+        if (!limiter.tryAcquire()) {
+            metrics.recordRejectedConcurrency();
+            HttpResponse rejected = SimpleWebServer.serviceUnavailable(config);
+            metrics.recordResponse(rejected.getStatus());
+            return CompletableFuture.completedFuture(rejected);
+        }
+        long start = System.nanoTime();
+        CompletableFuture<HttpResponse> response;
+        try {
+            response = dispatcher.isNonBlocking(request) ? dispatcher.dispatchAdmittedAsync(request)
+                    : dispatchOnWorker(request, true);
+        } catch (IOException | RuntimeException e) {
+            limiter.releaseWithoutSample();
+            throw e;
+        }
+        // Completes only after the release, so that the permit is free by the time the response is sent
+        CompletableFuture<HttpResponse> released = new CompletableFuture<>();
+        released.whenComplete((completed, error) -> {
+            if (released.isCancelled()) {
+                response.cancel(true);
+            }
+        });
+        response.whenComplete((completed, error) -> {
+            if (completed != null) {
+                limiter.release(System.nanoTime() - start);
+                released.complete(completed);
+            } else {
+                limiter.releaseWithoutSample();  // Cancelled
+                released.completeExceptionally(error);
+            }
+        });
+        return released;
+    }
+
+    /**
+     * Builds the response to a dispatch that failed instead of producing a response.
+     *
+     * @param error what the dispatch threw or failed with.
+     * @return a `500 Internal Server Error` response, already counted in the metrics.
+     */
+    private HttpResponse internalError(Throwable error) {
+        error.printStackTrace();
+        metrics.recordResponse("500 Internal Server Error");
+        return new HttpResponse("500 Internal Server Error");
+    }
+
+    /**
+     * Returns the response a completed dispatch produced, or a `500` if it failed.
+     */
+    private HttpResponse responseOf(CompletableFuture<HttpResponse> response) {
+        return response.handle((completed, error) -> completed != null ? completed : internalError(error)).join();
+    }
+
+    /**
+     * Stops accepting connections and shuts the event loops down at once.
+     */
+    public void stop() {
+        shutdown(0);
+    }
+
+    /**
+     * An event loop owns a selector and every connection registered with it.
+     * All the state of those connections is only touched by the loop thread.
+     */
+    private class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<SocketChannel> pending = new ConcurrentLinkedQueue<>();
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private int connections;
+        private volatile boolean drained = true;
+
+        EventLoop() throws IOException {
+            this.selector = Selector.open();
+        }
+
+        /**
+         * Queues a newly accepted channel; the loop thread registers it on its next iteration.
+         *
+         * @param channel the accepted channel, already in non-blocking mode.
+         */
+        void register(SocketChannel channel) {
+            pending.add(channel);
+            selector.wakeup();
+        }
+
+        /**
+         * Runs a task on the loop thread, on its next iteration.
+         *
+         * @param task the task, which may touch the state of the connections of this loop.
+         */
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    long deadline = drainDeadline;
+                    if (deadline == 0) {
+                        selector.select(SELECT_TIMEOUT);
+                    } else if (closeDrainedConnections(deadline)) {
+                        break;
+                    } else {
+                        selector.select(Math.max(1, Math.min(SELECT_TIMEOUT, deadline - System.currentTimeMillis())));
+                    }
+                    registerPending();
+                    runTasks();
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            if (key.isReadable()) {
+                                connection.read();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                connection.flush();
+                            }
+                        } catch (IOException | CancelledKeyException e) {
+                            connection.close();
+                        }
+                    }
+                    closeIdleConnections();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                registerPending();
+                drained = connections == 0;
+                for (SelectionKey key : selector.keys()) {
+                    ((Connection) key.attachment()).close();
+                }
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        /**
+         * Closes the connections that have no request in flight while the engine shuts down.
+         * Connections that have not sent their first request yet are given until the deadline.
+         *
+         * @param deadline the time at which every connection is closed.
+         * @return whether the loop is done: it has no connections left or the deadline has passed.
+         */
+        private boolean closeDrainedConnections(long deadline) {
+            registerPending();
+            runTasks();
+            for (SelectionKey key : selector.keys()) {
+                Connection connection = (Connection) key.attachment();
+                if (connection != null && connection.isIdle()) {
+                    connection.close();
+                }
+            }
+            return connections == 0 || System.currentTimeMillis() >= deadline;
+        }
+
+        /**
+         * Registers the channels accepted since the last iteration.
+         */
+        private void registerPending() {
+            SocketChannel channel;
+            while ((channel = pending.poll()) != null) {
+                try {
+                    SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                    key.attach(new Connection(channel, key, this));
+                } catch (IOException e) {
+                    try {
+                        channel.close();
+                    } catch (IOException ignored) {
+                        // Nothing left to release
+                    }
+                }
+            }
+        }
+
+        /**
+         * Runs the tasks handed over by other threads since the last iteration.
+         */
+        private void runTasks() {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                task.run();
+            }
+        }
+
+        /**
+         * Closes the connections that stayed idle longer than the keep-alive timeout. A
+         * connection waiting for an asynchronous response or a streamed body is not idle.
+         */
+        private void closeIdleConnections() {
+            long deadline = System.currentTimeMillis() - config.getKeepAliveTimeout();
+            for (SelectionKey key : selector.keys()) {
+                Connection connection = (Connection) key.attachment();
+                if (connection != null && connection.awaiting == null && !connection.output.isWaitingForBody()
+                        && connection.lastActivity < deadline) {
+                    connection.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * The state of a single client connection: its partially received bytes,
+     * the responses waiting to be written and the keep-alive bookkeeping. Pending output
+     * is kept by a `ResponseWriter`, which encodes the responses to a batch of pipelined
+     * requests into one pooled direct buffer and sends file bodies straight from the page
+     * cache with `transferTo`.
+     */
+    private class Connection {
+        private final SocketChannel channel;
+        private final InetAddress remoteAddress;
+        private final SelectionKey key;
+        private final ByteBuffer readBuffer =
+                ByteBuffer.allocate(HttpRequestDecoder.bufferSize(config.getMaxHeaderSize()));
+        private final HttpRequestDecoder decoder = new HttpRequestDecoder(config);
+        private final EventLoop loop;
+        private final ResponseWriter output;
+        private CompletableFuture<HttpResponse> awaiting;
+        private HttpRequest awaitingRequest;
+        private long awaitingSince;
+        private boolean awaitingKeepAlive;
+        private boolean awaitingChunked;
+        private boolean unprocessed;
+        private int requestCount;
+        private long lastActivity = System.currentTimeMillis();
+        private boolean closeAfterWrite;
+        private boolean closed;
+
+        Connection(SocketChannel channel, SelectionKey key, EventLoop loop) {
+            this.channel = channel;
+            this.remoteAddress = channel.socket().getInetAddress();
+            this.key = key;
+            this.loop = loop;
+            this.output = new ResponseWriter(channel, bufferPool, metrics);
+            this.output.onBodyReady(() -> loop.execute(this::bodyReady));
+            loop.connections++;
+            metrics.connectionOpened();
+        }
+
+        /**
+         * @return whether the connection is waiting for its next request, with nothing of it
+         *         received and no response left to send.
+         */
+        boolean isIdle() {
+            return requestCount > 0 && awaiting == null && !output.hasPending() && !unprocessed
+                    && readBuffer.position() == 0;
+        }
+
+        /**
+         * Reads the available bytes and answers every request they complete. While a response
+         * is pending or a body is being streamed the bytes are only buffered, and reading stops
+         * once the buffer is full.
+         */
+        void read() throws IOException {
+            int n = channel.read(readBuffer);
+            if (n == -1) {
+                close();  // Cancels the pending response, if any
+                return;
+            }
+            metrics.recordBytesReceived(n);
+            lastActivity = System.currentTimeMillis();
+            if (awaiting != null || output.hasPending()) {
+                unprocessed = true;
+                key.interestOps(readInterest());
+                return;
+            }
+            process();
+        }
+
+        /**
+         * Answers the buffered requests in order, until one of them has to wait for an
+         * asynchronous controller.
+         */
+        private void process() throws IOException {
+            unprocessed = false;
+            readBuffer.flip();
+            try {
+                HttpRequest request;
+                while (!closeAfterWrite && awaiting == null && (request = decoder.decode(readBuffer)) != null) {
+                    long start = System.nanoTime();
+                    request.setRemoteAddress(remoteAddress);
+                    if (config.isHttp2() && !output.hasPending() && (requestCount == 0
+                            && Http2Connection.isPreface(request) || Http2Connection.isUpgrade(request))) {
+                        switchToHttp2(Http2Connection.isPreface(request) ? null : request);
+                        return;
+                    }
+                    requestCount++;
+                    boolean keepAlive = request.isKeepAlive() && requestCount < config.getMaxKeepAliveRequests()
+                            && drainDeadline == 0;
+                    CompletableFuture<HttpResponse> response;
+                    try {
+                        response = dispatch(request);
+                    } catch (RuntimeException e) {
+                        response = CompletableFuture.completedFuture(internalError(e));
+                    }
+                    if (response.isDone()) {
+                        closeAfterWrite = !queue(request, start, responseOf(response), keepAlive,
+                                request.acceptsChunked());
+                    } else {
+                        awaiting = response;
+                        awaitingRequest = request;
+                        awaitingSince = start;
+                        awaitingKeepAlive = keepAlive;
+                        awaitingChunked = request.acceptsChunked();
+                        response.whenComplete((completed, error) -> loop.execute(this::resume));
+                    }
+                }
+            } catch (BadRequestException e) {
+                metrics.recordResponse(e.getStatus());
+                queue(null, System.nanoTime(), new HttpResponse(e.getStatus()), false, true);
+                closeAfterWrite = true;
+            } finally {
+                readBuffer.compact();
+            }
+            flush();
+        }
+
+        /**
+         * Hands the connection over to an `Http2Connection`. The channel is in blocking mode
+         * from then on, which it can only be put in once the selector has let go of it, after
+         * its next selection; an upgrade request pipelined behind responses not sent yet is
+         * answered over HTTP/1.1 instead.
+         *
+         * @param upgrade the request that asked for `Upgrade: h2c`, or null if the client
+         *                sent the preface.
+         */
+        private void switchToHttp2(HttpRequest upgrade) {
+            ByteBuffer received = ByteBuffer.allocate(readBuffer.remaining());
+            received.put(readBuffer);
+            received.flip();
+            closed = true;  // The loop lets go of the connection without closing it
+            loop.connections--;
+            key.cancel();
+            loop.execute(() -> {
+                try {
+                    SimpleWebServer.getStreamExecutor().execute(() -> serveHttp2(upgrade, received));
+                } catch (RuntimeException e) {
+                    closeHttp2();
+                }
+            });
+        }
+
+        /**
+         * Serves the connection over HTTP/2 until it ends. Runs on a thread of the stream executor.
+         */
+        private void serveHttp2(HttpRequest upgrade, ByteBuffer received) {
+            Http2Connection connection = null;
+            try {
+                channel.configureBlocking(true);
+                channel.socket().setSoTimeout(config.getKeepAliveTimeout());
+                if (upgrade != null) {
+                    channel.socket().getOutputStream().write(Http2Connection.SWITCHING_PROTOCOLS);
+                    metrics.recordBytesSent(Http2Connection.SWITCHING_PROTOCOLS.length);
+                }
+                connection = new Http2Connection(channel.socket(), channel.socket().getInputStream(), received,
+                        config, dispatcher, limiter, SimpleWebServer.getStreamExecutor(), metrics, accessLog);
+                http2Connections.add(connection);
+                if (drainDeadline != 0) {
+                    connection.shutdown();  // The engine started shutting down while the connection switched
+                }
+                connection.serve(upgrade);
+            } catch (IOException e) {
+                // The client went away
+            } finally {
+                if (connection != null) {
+                    synchronized (http2Connections) {
+                        http2Connections.remove(connection);
+                        http2Connections.notifyAll();
+                    }
+                }
+                closeHttp2();
+            }
+        }
+
+        /**
+         * Closes a connection that was handed over to HTTP/2.
+         */
+        private void closeHttp2() {
+            metrics.connectionClosed();
+            try {
+                output.close();
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        /**
+         * Sends the asynchronous response the connection was waiting for and goes on with the
+         * requests buffered behind it. Runs on the loop thread.
+         */
+        private void resume() {
+            if (closed || awaiting == null) {
+                return;
+            }
+            HttpResponse response = responseOf(awaiting);  // A batch may fail rather than answer
+            HttpRequest request = awaitingRequest;
+            awaiting = null;
+            awaitingRequest = null;
+            lastActivity = System.currentTimeMillis();
+            try {
+                closeAfterWrite = !queue(request, awaitingSince, response, awaitingKeepAlive && drainDeadline == 0,
+                        awaitingChunked);
+                process();
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        /**
+         * Goes on writing a streamed body that has bytes ready again. Runs on the loop thread.
+         */
+        private void bodyReady() {
+            if (closed) {
+                return;
+            }
+            try {
+                flush();
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        /**
+         * @return the operations to select when no output can be written: reading, unless a
+         *         response is pending or being streamed and the read buffer is full. Reading
+         *         while a body is streamed is how a client that goes away is noticed.
+         */
+        private int readInterest() {
+            return (awaiting != null || output.hasPending()) && !readBuffer.hasRemaining() ? 0 : SelectionKey.OP_READ;
+        }
+
+        /**
+         * Adds a response to the pending output and records it in the access log.
+         *
+         * @param request the request answered, or null if it could not be read.
+         * @param start the `System.nanoTime()` at which the request was read.
+         * @param response the response to send.
+         * @param keepAlive whether the connection stays open after this response.
+         * @param chunked whether the client understands the chunked coding.
+         * @return whether the connection stays open after this response: a streamed body that
+         *         cannot be sent chunked ends with the connection.
+         */
+        private boolean queue(HttpRequest request, long start, HttpResponse response, boolean keepAlive,
+                              boolean chunked) throws IOException {
+            keepAlive &= chunked || response.getBodyStream() == null;
+            long bytes = output.write(response, keepAlive, chunked);
+            metrics.recordBytesSent(bytes);
+            if (accessLog != null && request != null) {
+                accessLog.log(request.getMethod(), request.getTarget(), remoteAddress, response.getStatus(), bytes,
+                        System.nanoTime() - start);
+            } else if (accessLog != null) {
+                accessLog.log(null, null, remoteAddress, response.getStatus(), bytes, System.nanoTime() - start);
+            }
+            return keepAlive;
+        }
+
+        /**
+         * Writes as much pending output as the socket accepts. While output is pending the
+         * connection does not answer requests, so a client that does not read its responses
+         * cannot make the server buffer an unbounded number of them. While a streamed body has
+         * no bytes ready the connection waits for it to call back, reading only to notice a
+         * client that goes away; the requests read meanwhile are answered once it has ended.
+         */
+        void flush() throws IOException {
+            lastActivity = System.currentTimeMillis();  // A long response is not idle while it is being sent
+            if (!output.drain()) {
+                key.interestOps(output.isWaitingForBody() ? readInterest() : SelectionKey.OP_WRITE);
+                return;
+            }
+            if (closeAfterWrite) {
+                close();
+            } else if (unprocessed) {
+                process();
+            } else {
+                key.interestOps(readInterest());
+            }
+        }
+
+        /**
+         * Closes the channel and cancels its registration.
+         */
+        void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            loop.connections--;
+            metrics.connectionClosed();
+            if (awaiting != null) {
+                awaiting.cancel(true);
+            }
+            key.cancel();
+            try {
+                output.close();
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
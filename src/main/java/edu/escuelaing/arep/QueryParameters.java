@@ -0,0 +1,401 @@
+package edu.escuelaing.arep;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * The `QueryParameters` class gives access to the parameters of a query string without
+ * splitting it: parsing only records where each name and value starts and ends, and every
+ * lookup works on the characters of the request target. A value becomes a `String` only
+ * when a `String` is asked for; numbers and booleans are parsed straight from the target.
+ *
+ * Names and values are percent-decoded as UTF-8 and '+' stands for a space, as in HTML
+ * forms. Names and plain numbers are compared and parsed in place; only values holding
+ * escapes are decoded into a scratch buffer first.
+ *
+ * An instance is meant to be reused by one thread for request after request, as the
+ * `RequestDispatcher` does, so that reading the parameters of a typical request allocates
+ * nothing beyond the strings handed to the controller.
+ */
+public class QueryParameters {
+    private static final double[] POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    private CharSequence source = "";
+    private int[] fields = new int[32];  // nameStart, nameEnd, valueStart, valueEnd for each parameter
+    private int count;
+    private byte[] scratch = new byte[64];
+
+    /**
+     * Creates an empty set of parameters.
+     */
+    public QueryParameters() {
+    }
+
+    /**
+     * Creates the parameters of a query string.
+     *
+     * @param query the query string, without the leading '?'.
+     */
+    public QueryParameters(CharSequence query) {
+        reset(query, 0, query.length());
+    }
+
+    /**
+     * Builds parameters that hold the entries of a map, for callers that already parsed the
+     * query string themselves.
+     *
+     * @param parameters the decoded values by name.
+     * @return the parameters.
+     */
+    public static QueryParameters of(Map<String, String> parameters) {
+        StringBuilder query = new StringBuilder();
+        try {
+            for (Map.Entry<String, String> parameter : parameters.entrySet()) {
+                if (query.length() > 0) {
+                    query.append('&');
+                }
+                query.append(URLEncoder.encode(parameter.getKey(), "UTF-8")).append('=')
+                        .append(URLEncoder.encode(parameter.getValue(), "UTF-8"));
+            }
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);  // UTF-8 is always supported
+        }
+        return new QueryParameters(query);
+    }
+
+    /**
+     * Parses the query string found between two offsets of a request target, forgetting
+     * the previous one. Empty parameters (`a=1&&b=2`) are skipped and a parameter without
+     * '=' has an empty value.
+     *
+     * @param target the request target, or the query string alone.
+     * @param start the offset of the first character after '?'.
+     * @param end the offset after the last character of the query string.
+     * @return this instance.
+     */
+    public QueryParameters reset(CharSequence target, int start, int end) {
+        source = target;
+        count = 0;
+        int pairStart = start;
+        for (int i = start; i <= end; i++) {
+            if (i == end || target.charAt(i) == '&') {
+                if (i > pairStart) {
+                    add(pairStart, i);
+                }
+                pairStart = i + 1;
+            }
+        }
+        return this;
+    }
+
+    private void add(int start, int end) {
+        int equals = start;
+        while (equals < end && source.charAt(equals) != '=') {
+            equals++;
+        }
+        if (count * 4 == fields.length) {
+            fields = Arrays.copyOf(fields, fields.length * 2);
+        }
+        int offset = count * 4;
+        fields[offset] = start;
+        fields[offset + 1] = equals;
+        fields[offset + 2] = equals < end ? equals + 1 : end;
+        fields[offset + 3] = end;
+        count++;
+    }
+
+    /**
+     * @return the number of parameters, repeated names included.
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * @param index the position of a parameter.
+     * @return the decoded name of the parameter.
+     */
+    public String name(int index) {
+        return decode(fields[index * 4], fields[index * 4 + 1]);
+    }
+
+    /**
+     * Finds a parameter by name.
+     *
+     * @param name the decoded name.
+     * @param from the position to start searching from.
+     * @return the position of the first parameter at or after `from` with that name, or -1.
+     */
+    public int indexOf(String name, int from) {
+        for (int i = from; i < count; i++) {
+            if (nameEquals(fields[i * 4], fields[i * 4 + 1], name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param name the decoded name.
+     * @return the position of the first parameter with that name, or -1.
+     */
+    public int indexOf(String name) {
+        return indexOf(name, 0);
+    }
+
+    /**
+     * Returns the first value of a parameter.
+     *
+     * @param name the decoded name.
+     * @return the decoded value, or null if the parameter is missing.
+     */
+    public String get(String name) {
+        int index = indexOf(name);
+        return index < 0 ? null : value(index);
+    }
+
+    /**
+     * @param index the position of a parameter.
+     * @return the decoded value of the parameter.
+     */
+    public String value(int index) {
+        return decode(fields[index * 4 + 2], fields[index * 4 + 3]);
+    }
+
+    /**
+     * Compares the value of a parameter with a string, without decoding it into a new one.
+     *
+     * @param index the position of a parameter.
+     * @param expected the decoded value to compare with.
+     * @return true if the value is exactly `expected`.
+     */
+    public boolean valueEquals(int index, String expected) {
+        return nameEquals(fields[index * 4 + 2], fields[index * 4 + 3], expected);
+    }
+
+    /**
+     * Parses the value of a parameter as an `int`, like `Integer.parseInt`.
+     *
+     * @param index the position of a parameter.
+     * @return the value.
+     * @throws NumberFormatException if the value is not a decimal integer in range.
+     */
+    public int intValue(int index) {
+        long value = longValue(index);
+        if (value != (int) value) {
+            throw new NumberFormatException("Value out of range: " + value(index));
+        }
+        return (int) value;
+    }
+
+    /**
+     * Parses the value of a parameter as a `long`, like `Long.parseLong`.
+     *
+     * @param index the position of a parameter.
+     * @return the value.
+     * @throws NumberFormatException if the value is not a decimal integer in range.
+     */
+    public long longValue(int index) {
+        int start = fields[index * 4 + 2];
+        int end = fields[index * 4 + 3];
+        int i = start;
+        boolean negative = i < end && source.charAt(i) == '-';
+        if (negative) {
+            i++;
+        }
+        if (i == end || end - i > 18) {
+            return Long.parseLong(value(index));  // Empty, escaped or possibly out of range
+        }
+        long result = 0;
+        for (; i < end; i++) {
+            int digit = source.charAt(i) - '0';
+            if (digit < 0 || digit > 9) {
+                return Long.parseLong(value(index));  // Decodes escapes, or reports the error as Long does
+            }
+            result = result * 10 + digit;
+        }
+        return negative ? -result : result;
+    }
+
+    /**
+     * Parses the value of a parameter as a `double`, like `Double.parseDouble`. Plain
+     * decimals with up to 15 significant digits are converted in place, exactly; anything
+     * else, such as exponents, `NaN` or longer mantissas, goes through `Double.parseDouble`.
+     *
+     * @param index the position of a parameter.
+     * @return the value.
+     * @throws NumberFormatException if the value is not a number.
+     */
+    public double doubleValue(int index) {
+        int start = fields[index * 4 + 2];
+        int end = fields[index * 4 + 3];
+        int i = start;
+        boolean negative = i < end && source.charAt(i) == '-';
+        if (negative) {
+            i++;
+        }
+        long mantissa = 0;
+        int significantDigits = 0;
+        int scale = -1;
+        boolean digits = false;
+        for (; i < end; i++) {
+            char c = source.charAt(i);
+            if (c == '.' && scale < 0) {
+                scale = 0;
+            } else if (c >= '0' && c <= '9' && significantDigits < 15 && scale < POWERS_OF_TEN.length - 1) {
+                digits = true;
+                mantissa = mantissa * 10 + (c - '0');
+                if (mantissa != 0) {
+                    significantDigits++;
+                }
+                if (scale >= 0) {
+                    scale++;
+                }
+            } else {
+                return Double.parseDouble(value(index));  // Exponents, escapes, long mantissas, errors
+            }
+        }
+        if (!digits) {
+            return Double.parseDouble(value(index));
+        }
+        // Both operands are exact doubles, so the division is correctly rounded
+        double value = mantissa / POWERS_OF_TEN[Math.max(scale, 0)];
+        return negative ? -value : value;
+    }
+
+    /**
+     * Parses the value of a parameter as a `float`, like `Float.parseFloat`.
+     *
+     * @param index the position of a parameter.
+     * @return the value.
+     * @throws NumberFormatException if the value is not a number.
+     */
+    public float floatValue(int index) {
+        // Rounding to a double and then to a float can differ from Float.parseFloat, so the
+        // shortcut is only taken when the float holds the value exactly
+        double value = doubleValue(index);
+        if ((float) value == value) {
+            return (float) value;
+        }
+        return Float.parseFloat(value(index));
+    }
+
+    /**
+     * Parses the value of a parameter as a `boolean`, like `Boolean.parseBoolean`: only
+     * "true", in any case, is true.
+     *
+     * @param index the position of a parameter.
+     * @return the value.
+     */
+    public boolean booleanValue(int index) {
+        int start = fields[index * 4 + 2];
+        int end = fields[index * 4 + 3];
+        if (needsDecoding(start, end)) {
+            return Boolean.parseBoolean(value(index));
+        }
+        if (end - start != 4) {
+            return false;
+        }
+        for (int i = 0; i < 4; i++) {
+            if (Character.toLowerCase(source.charAt(start + i)) != "true".charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean needsDecoding(int start, int end) {
+        for (int i = start; i < end; i++) {
+            char c = source.charAt(i);
+            if (c == '%' || c == '+') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Compares a raw region of the source with a decoded string. Regions without escapes
+     * are compared character by character; the others are decoded first.
+     */
+    private boolean nameEquals(int start, int end, String expected) {
+        if (needsDecoding(start, end)) {
+            return decode(start, end).equals(expected);
+        }
+        if (end - start != expected.length()) {
+            return false;
+        }
+        for (int i = start; i < end; i++) {
+            if (source.charAt(i) != expected.charAt(i - start)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Decodes a region of the source: '+' becomes a space and "%XX" escapes are collected
+     * as bytes and read as UTF-8. A '%' that is not followed by two hexadecimal digits is
+     * kept as it is.
+     */
+    private String decode(int start, int end) {
+        if (!needsDecoding(start, end)) {
+            return source.subSequence(start, end).toString();
+        }
+        if (scratch.length < end - start) {
+            scratch = new byte[Math.max(end - start, scratch.length * 2)];
+        }
+        int length = 0;
+        boolean ascii = true;
+        for (int i = start; i < end; i++) {
+            char c = source.charAt(i);
+            if (c == '+') {
+                scratch[length++] = ' ';
+            } else if (c == '%' && hex(i + 1, end) >= 0 && hex(i + 2, end) >= 0) {
+                byte b = (byte) (hex(i + 1, end) << 4 | hex(i + 2, end));
+                ascii &= b >= 0;
+                scratch[length++] = b;
+                i += 2;
+            } else if (c < 0x80) {
+                scratch[length++] = (byte) c;
+            } else {
+                // Raw non-ASCII characters in the target are already decoded
+                return decodeMixed(start, end);
+            }
+        }
+        return new String(scratch, 0, length, ascii ? StandardCharsets.ISO_8859_1 : StandardCharsets.UTF_8);
+    }
+
+    private String decodeMixed(int start, int end) {
+        StringBuilder decoded = new StringBuilder(end - start);
+        int i = start;
+        while (i < end) {
+            char c = source.charAt(i);
+            if (c == '%' && hex(i + 1, end) >= 0 && hex(i + 2, end) >= 0) {
+                int length = 0;
+                while (i < end && source.charAt(i) == '%' && hex(i + 1, end) >= 0 && hex(i + 2, end) >= 0) {
+                    scratch[length++] = (byte) (hex(i + 1, end) << 4 | hex(i + 2, end));
+                    i += 3;
+                }
+                decoded.append(new String(scratch, 0, length, StandardCharsets.UTF_8));
+            } else {
+                decoded.append(c == '+' ? ' ' : c);
+                i++;
+            }
+        }
+        return decoded.toString();
+    }
+
+    private int hex(int index, int end) {
+        if (index >= end) {
+            return -1;
+        }
+        return Character.digit(source.charAt(index), 16);
+    }
+}
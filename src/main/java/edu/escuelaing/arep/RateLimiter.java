@@ -0,0 +1,219 @@
+package edu.escuelaing.arep;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The `RateLimiter` class holds a token bucket per client and tells whether a request of
+ * that client may be served now. A client may send `burst` requests at once and then
+ * `perSecond` requests per second; requests beyond that are answered with `429 Too Many
+ * Requests` without doing any work for them.
+ *
+ * A bucket is a single `long`: the theoretical arrival time of the next request of the
+ * client (the "generic cell rate algorithm", equivalent to a token bucket), packed in 40
+ * bits of microseconds together with a 24-bit fingerprint of the client. The buckets live
+ * in an `AtomicLongArray` cut in stripes of eight slots, one cache line; a client always
+ * maps to the same stripe, so a request reads one cache line and takes its token with a
+ * single compare-and-set, without any lock. A rejected request writes nothing at all.
+ *
+ * The table never grows. A bucket whose arrival time is in the past is full, so it holds
+ * no information and its slot can go to any other client; when a new client finds its
+ * stripe taken, it replaces the client that has been idle the longest. Memory is therefore
+ * bounded by the capacity, and the busiest clients, the ones being limited, are the last
+ * to be evicted. Two clients whose fingerprints collide in the same stripe share a bucket.
+ *
+ * IPv4 clients are limited per address and IPv6 clients per /64 prefix, the block a
+ * single host usually gets.
+ */
+public class RateLimiter {
+    private static final int SLOTS = 8;  // One cache line of longs per stripe
+    private static final int TIME_BITS = 40;
+    private static final long TIME_MASK = (1L << TIME_BITS) - 1;
+    private static final long STALE = -(1L << TIME_BITS);
+    private static final long IPV4 = 0xFFFFL << 48;  // The ffff::/16 prefix is reserved, so no IPv6 client has it
+
+    private final int perSecond;
+    private final int burst;
+    private final boolean perClient;
+    private final long interval;   // Microseconds between two requests at the sustained rate
+    private final long tolerance;  // How far ahead of now the arrival time may run, in microseconds
+    private final int stripeMask;
+    private final AtomicLongArray slots;
+
+    /**
+     * Creates a limiter with one bucket per client.
+     *
+     * @param perSecond the requests per second a client may sustain.
+     * @param burst the requests a client may send at once; zero or less allows one second's worth.
+     * @param clients the number of clients tracked at once, rounded up to a power of two.
+     * @throws IllegalArgumentException if the rate is not positive or the burst lasts more than a few days.
+     */
+    public RateLimiter(int perSecond, int burst, int clients) {
+        this(perSecond, burst, clients, true);
+    }
+
+    /**
+     * Creates a limiter with a single bucket shared by every client.
+     *
+     * @param perSecond the requests per second allowed in total.
+     * @param burst the requests allowed at once; zero or less allows one second's worth.
+     * @throws IllegalArgumentException if the rate is not positive or the burst lasts more than a few days.
+     */
+    public RateLimiter(int perSecond, int burst) {
+        this(perSecond, burst, SLOTS, false);
+    }
+
+    private RateLimiter(int perSecond, int burst, int clients, boolean perClient) {
+        if (perSecond <= 0 || perSecond > 1_000_000) {
+            throw new IllegalArgumentException("Rate must be between 1 and 1000000 per second: " + perSecond);
+        }
+        this.perSecond = perSecond;
+        this.burst = burst > 0 ? burst : perSecond;
+        this.perClient = perClient;
+        this.interval = 1_000_000L / perSecond;
+        this.tolerance = interval * this.burst;
+        if (tolerance >= 1L << (TIME_BITS - 1)) {
+            throw new IllegalArgumentException("Burst too large for the rate: " + burst);
+        }
+        int capacity = Integer.highestOneBit(Math.max(SLOTS, Math.min(clients, 1 << 30)) - 1) << 1;
+        this.stripeMask = capacity / SLOTS - 1;
+        this.slots = new AtomicLongArray(capacity);
+    }
+
+    /**
+     * Takes a token for a request.
+     *
+     * @param client the address of the client, or null if unknown, in which case a limiter
+     *               with a bucket per client lets the request through.
+     * @return 0 if the request may be served, otherwise the microseconds until the client
+     *         gets its next token.
+     */
+    public long acquire(InetAddress client) {
+        if (!perClient) {
+            return acquire(0, now());
+        }
+        return client == null ? 0 : acquire(keyOf(client), now());
+    }
+
+    /**
+     * Takes a token from the bucket of a client.
+     *
+     * @param key the client, as returned by `keyOf`.
+     * @param now the current time in microseconds, from any fixed origin.
+     * @return 0 if the request may be served, otherwise the microseconds until the client
+     *         gets its next token.
+     */
+    long acquire(long key, long now) {
+        long hash = key * 0x9E3779B97F4A7C15L;
+        long fingerprint = Math.max(hash >>> TIME_BITS, 1);
+        int base = ((int) (hash >>> 16) & stripeMask) * SLOTS;
+        while (true) {
+            int victim = base;
+            long victimValue = 0;
+            long victimAhead = Long.MAX_VALUE;
+            boolean found = false;
+            for (int i = base; i < base + SLOTS && !found; i++) {
+                long value = slots.get(i);
+                if (value >>> TIME_BITS == fingerprint) {
+                    long wait = take(i, value, fingerprint, now);
+                    if (wait >= 0) {
+                        return wait;
+                    }
+                    found = true;  // The slot changed hands under us; look again
+                } else {
+                    long ahead = value == 0 ? Long.MIN_VALUE : ahead(value, now);
+                    if (ahead < victimAhead) {
+                        victim = i;
+                        victimValue = value;
+                        victimAhead = ahead;
+                    }
+                }
+            }
+            // A new client takes an empty slot, or the one of the client idle the longest
+            if (!found && slots.compareAndSet(victim, victimValue, pack(fingerprint, now + interval))) {
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * Takes a token from the bucket in a slot, as long as the slot belongs to the client.
+     *
+     * @return 0 if a token was taken, the microseconds until the next token if the bucket
+     *         is empty, or -1 if the slot was given to another client meanwhile.
+     */
+    private long take(int slot, long value, long fingerprint, long now) {
+        while (true) {
+            long next = now + Math.max(ahead(value, now), 0) + interval;
+            if (next - now > tolerance) {
+                return next - now - tolerance;
+            }
+            if (slots.compareAndSet(slot, value, pack(fingerprint, next))) {
+                return 0;
+            }
+            value = slots.get(slot);
+            if (value >>> TIME_BITS != fingerprint) {
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * @return how far the arrival time held in a slot is ahead of now, in microseconds;
+     *         negative when the bucket is full. Arrival times too far ahead to be real were
+     *         written so long ago that the clock wrapped around, and count as full.
+     */
+    private long ahead(long value, long now) {
+        long ahead = ((value - now) << (64 - TIME_BITS)) >> (64 - TIME_BITS);
+        return ahead > tolerance ? STALE : ahead;
+    }
+
+    private static long pack(long fingerprint, long time) {
+        return fingerprint << TIME_BITS | time & TIME_MASK;
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1000;
+    }
+
+    /**
+     * Returns the key under which a client is limited: its address for IPv4 and its /64
+     * prefix for IPv6.
+     *
+     * @param client the address of the client.
+     * @return the key of the client.
+     */
+    static long keyOf(InetAddress client) {
+        if (client instanceof Inet4Address) {
+            return IPV4 | client.hashCode() & 0xFFFFFFFFL;  // The hash code is the address, with no copy
+        }
+        byte[] address = client.getAddress();
+        long prefix = 0;
+        for (int i = 0; i < 8; i++) {
+            prefix = prefix << 8 | address[i] & 0xFF;
+        }
+        return prefix;
+    }
+
+    /**
+     * @return the requests per second a client may sustain.
+     */
+    public int getPerSecond() {
+        return perSecond;
+    }
+
+    /**
+     * @return the requests a client may send at once.
+     */
+    public int getBurst() {
+        return burst;
+    }
+
+    /**
+     * @return the number of clients tracked at once.
+     */
+    public int getCapacity() {
+        return slots.length();
+    }
+}
@@ -0,0 +1,566 @@
+package edu.escuelaing.arep;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The `RequestDispatcher` class turns a parsed `HttpRequest` into an `HttpResponse`,
+ * either by serving a static file from the web root or by invoking the controller
+ * method registered for the requested path. It knows nothing about sockets, so the
+ * blocking `ClientHandler` and the `NioServer` engine share the same dispatching logic.
+ *
+ * Controller methods that return a `CompletionStage` are answered asynchronously:
+ * `dispatchAsync` hands back a pending response that completes with the result of the
+ * stage, with `504 Gateway Timeout` when the timeout of the route expires first, and that
+ * cancels the stage when it is cancelled itself, for instance because the client went away.
+ *
+ * Rate limits are checked first: a client over the `RateLimiter` of the server, or over the
+ * one of the `@RateLimit` route it asks for, gets `429 Too Many Requests` with a
+ * `Retry-After` header before any file is read or any controller runs.
+ *
+ * `POST /app/_batch` carries many controller calls at once; the `BatchHandler` dispatches
+ * each of them back through this dispatcher, rate limits included.
+ */
+public class RequestDispatcher {
+    private static final ThreadLocal<RouteMatch<RouteInvoker>> ROUTE_MATCH = ThreadLocal.withInitial(RouteMatch::new);
+    private static final ThreadLocal<QueryParameters> QUERY = ThreadLocal.withInitial(QueryParameters::new);
+    private static final ScheduledThreadPoolExecutor TIMEOUTS = new ScheduledThreadPoolExecutor(1, task -> {
+        Thread thread = new Thread(task, "async-timeouts");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        TIMEOUTS.setRemoveOnCancelPolicy(true);  // Most timers are cancelled long before they expire
+    }
+
+    private final StaticFileCache staticFiles;
+    private final int compressionMinSize;
+    private final ServerMetrics metrics;
+    private final long asyncTimeout;
+    private final RateLimiter rateLimiter;
+
+    /**
+     * Creates a dispatcher that serves static files through the server-wide cache.
+     */
+    public RequestDispatcher() {
+        this(SimpleWebServer.getStaticFiles(), SimpleWebServer.getConfig().getCompressionMinSize());
+    }
+
+    /**
+     * Creates a dispatcher that serves static files through the given cache and never
+     * compresses controller responses.
+     *
+     * @param staticFiles the cache of the web root.
+     */
+    public RequestDispatcher(StaticFileCache staticFiles) {
+        this(staticFiles, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Creates a dispatcher that serves static files through the given cache.
+     *
+     * @param staticFiles the cache of the web root.
+     * @param compressionMinSize the body size from which textual controller responses are
+     *                           compressed for clients that accept it.
+     */
+    public RequestDispatcher(StaticFileCache staticFiles, int compressionMinSize) {
+        this(staticFiles, compressionMinSize, SimpleWebServer.getMetrics());
+    }
+
+    /**
+     * Creates a dispatcher that serves static files through the given cache and records
+     * what it does in the given metrics.
+     *
+     * @param staticFiles the cache of the web root.
+     * @param compressionMinSize the body size from which textual controller responses are
+     *                           compressed for clients that accept it.
+     * @param metrics the metrics of the server.
+     */
+    public RequestDispatcher(StaticFileCache staticFiles, int compressionMinSize, ServerMetrics metrics) {
+        this(staticFiles, compressionMinSize, metrics, SimpleWebServer.getConfig().getAsyncTimeout());
+    }
+
+    /**
+     * Creates a dispatcher that serves static files through the given cache, records what it
+     * does in the given metrics and waits at most `asyncTimeout` for asynchronous controllers.
+     *
+     * @param staticFiles the cache of the web root.
+     * @param compressionMinSize the body size from which textual controller responses are
+     *                           compressed for clients that accept it.
+     * @param metrics the metrics of the server.
+     * @param asyncTimeout the timeout in milliseconds of asynchronous routes without `@Timeout`;
+     *                     zero or less waits without limit.
+     */
+    public RequestDispatcher(StaticFileCache staticFiles, int compressionMinSize, ServerMetrics metrics,
+                             long asyncTimeout) {
+        this(staticFiles, compressionMinSize, metrics, asyncTimeout, SimpleWebServer.getRateLimiter());
+    }
+
+    /**
+     * Creates a dispatcher that also limits the requests of every client address.
+     *
+     * @param staticFiles the cache of the web root.
+     * @param compressionMinSize the body size from which textual controller responses are
+     *                           compressed for clients that accept it.
+     * @param metrics the metrics of the server.
+     * @param asyncTimeout the timeout in milliseconds of asynchronous routes without `@Timeout`;
+     *                     zero or less waits without limit.
+     * @param rateLimiter the limiter applied to every request, or null to only apply `@RateLimit`.
+     */
+    public RequestDispatcher(StaticFileCache staticFiles, int compressionMinSize, ServerMetrics metrics,
+                             long asyncTimeout, RateLimiter rateLimiter) {
+        this.staticFiles = staticFiles;
+        this.compressionMinSize = compressionMinSize;
+        this.metrics = metrics;
+        this.asyncTimeout = asyncTimeout;
+        this.rateLimiter = rateLimiter;
+    }
+
+    /**
+     * Produces the response for a request, waiting for it if the controller is asynchronous.
+     *
+     * @param request the parsed request.
+     * @return the response to send back to the client.
+     */
+    public HttpResponse dispatch(HttpRequest request) throws IOException {
+        return dispatchAsync(request).join();
+    }
+
+    /**
+     * Produces the response for a request without waiting for asynchronous controllers.
+     * The future is already complete unless the request went to a controller method that
+     * returns a `CompletionStage`; it never completes exceptionally, errors and timeouts
+     * become `500` and `504` responses. Cancelling it cancels the stage of the controller.
+     *
+     * @param request the parsed request.
+     * @return the response to send back to the client, possibly still pending.
+     */
+    public CompletableFuture<HttpResponse> dispatchAsync(HttpRequest request) throws IOException {
+        HttpResponse limited = rateLimit(request);
+        if (limited != null) {
+            return CompletableFuture.completedFuture(limited);
+        }
+        return dispatchAdmittedAsync(request);
+    }
+
+    /**
+     * Checks a request against the rate limit of its client and the `@RateLimit` of its
+     * route. Engines that also limit concurrency call it before taking a permit, so that
+     * requests answered with `429` neither hold a permit nor skew the latency samples.
+     *
+     * @param request the parsed request.
+     * @return the `429 Too Many Requests` response to send, already counted in the metrics,
+     *         or null if the request may go on.
+     */
+    HttpResponse rateLimit(HttpRequest request) {
+        HttpResponse limited = null;
+        if (rateLimiter != null) {
+            long wait = rateLimiter.acquire(request.getRemoteAddress());
+            if (wait > 0) {
+                metrics.recordRateLimitedClient();
+                limited = tooManyRequests(wait);
+            }
+        }
+        String path = request.getTarget();
+        if (limited == null && path.startsWith("/app") && "GET".equalsIgnoreCase(request.getMethod())) {
+            int queryStart = path.indexOf('?');
+            RouteMatch<RouteInvoker> match = ROUTE_MATCH.get();
+            if (SimpleWebServer.getRegistry().match(path, 0, queryStart < 0 ? path.length() : queryStart, match)
+                    && match.getHandler().getRateLimiter() != null) {
+                long wait = match.getHandler().getRateLimiter().acquire(request.getRemoteAddress());
+                if (wait > 0) {
+                    metrics.recordRateLimitedRoute();
+                    limited = tooManyRequests(wait);
+                }
+            }
+        }
+        if (limited != null) {
+            metrics.recordResponse(limited.getStatus());
+        }
+        return limited;
+    }
+
+    /**
+     * Produces the response for a request that `rateLimit` has let through, without
+     * checking the rate limits again.
+     *
+     * @param request the parsed request.
+     * @return the response to send back to the client, possibly still pending.
+     */
+    CompletableFuture<HttpResponse> dispatchAdmittedAsync(HttpRequest request) throws IOException {
+        CompletableFuture<HttpResponse> response = route(request);
+        if (response.isDone()) {
+            metrics.recordResponse(response.join().getStatus());
+        } else {
+            response.thenAccept(completed -> metrics.recordResponse(completed.getStatus()));
+        }
+        return response;
+    }
+
+    /**
+     * Tells whether a request can be answered without blocking the calling thread: a static
+     * file held in memory, a controller method that returns a `CompletionStage`, the metrics,
+     * a batch (whose calls run on the pool of the `BatchHandler`) or an error found without
+     * doing any work. Everything else may read from disk or run a controller that blocks, so
+     * an event loop hands it to a worker thread. Rate limits are not consumed.
+     *
+     * @param request the parsed request.
+     * @return true if `dispatchAsync` returns at once for this request.
+     */
+    boolean isNonBlocking(HttpRequest request) {
+        String method = request.getMethod();
+        String path = request.getTarget();
+        if (!path.startsWith("/app")) {
+            return !method.equals("GET") || staticFiles.isCached(path);
+        }
+        if (!"GET".equalsIgnoreCase(method)) {
+            return true;
+        }
+        int queryStart = path.indexOf('?');
+        int pathEnd = queryStart < 0 ? path.length() : queryStart;
+        if (pathEnd == ServerMetrics.ENDPOINT.length() && path.startsWith(ServerMetrics.ENDPOINT)) {
+            return true;
+        }
+        RouteMatch<RouteInvoker> match = ROUTE_MATCH.get();
+        return !SimpleWebServer.getRegistry().match(path, 0, pathEnd, match) || match.getHandler().isAsync();
+    }
+
+    /**
+     * Chooses between a controller and a static file for a request whose rate limits have
+     * been checked.
+     */
+    private CompletableFuture<HttpResponse> route(HttpRequest request) throws IOException {
+        String method = request.getMethod();
+        String fileRequested = request.getTarget();
+
+        if (fileRequested.startsWith("/app")) {
+            return handleAppRequestAsync(method, fileRequested, request, false);  // Handle dynamic requests
+        } else if (method.equals("GET")) {
+            return CompletableFuture.completedFuture(handleGetRequest(fileRequested, request));  // Static files
+        }
+        return CompletableFuture.completedFuture(new HttpResponse("405 Method Not Allowed"));
+    }
+
+    /**
+     * Handles GET requests for static files located in the web root directory.
+     *
+     * @param fileRequested the requested file path.
+     * @return the response holding the file, or a 404 response if it does not exist.
+     */
+    public HttpResponse handleGetRequest(String fileRequested) throws IOException {
+        return handleGetRequest(fileRequested, null);
+    }
+
+    /**
+     * Handles GET requests for static files located in the web root directory, answering
+     * `304 Not Modified` when the conditional headers show that the client's copy is current
+     * and `206 Partial Content` when the client asks for a byte range. The file is sent
+     * compressed when the client's `Accept-Encoding` allows it.
+     *
+     * @param fileRequested the requested file path.
+     * @param request the request carrying the conditional, range and encoding headers, or null for a plain GET.
+     * @return the response holding the file or a part of it, a 304 or 416 response, or a 404
+     *         response if the file does not exist.
+     */
+    public HttpResponse handleGetRequest(String fileRequested, HttpRequest request) throws IOException {
+        StaticFileCache.StaticFile file = staticFiles.get(fileRequested);
+        if (file == null) {
+            return new HttpResponse("404 Not Found");
+        }
+        if (request != null && file.isNotModified(request)) {
+            return file.notModified(request);
+        }
+        return file.respond(request);
+    }
+
+    /**
+     * Handles dynamic GET requests mapped to controller methods.
+     *
+     * @param method the HTTP method (GET).
+     * @param path the requested URI path.
+     * @return the response produced by the controller.
+     */
+    protected HttpResponse handleAppRequest(String method, String path) {
+        return handleAppRequest(method, path, null);
+    }
+
+    /**
+     * Handles dynamic GET requests mapped to controller methods, waiting for the result of
+     * asynchronous ones.
+     *
+     * @param method the HTTP method (GET).
+     * @param path the requested URI path.
+     * @param request the request, whose headers and body are available to the controller, or null.
+     * @return the response produced by the controller or taken from the cache.
+     */
+    protected HttpResponse handleAppRequest(String method, String path, HttpRequest request) {
+        return handleAppRequestAsync(method, path, request).join();
+    }
+
+    /**
+     * Handles dynamic GET requests mapped to controller methods. The response is compressed
+     * when the client's `Accept-Encoding` allows it. Requests over the `@RateLimit` of their
+     * route get `429 Too Many Requests`. Responses of `@Cacheable` methods are
+     * looked up in the cache of the route first, and stored there after a successful call.
+     * The time spent, until an asynchronous result completes, is recorded in the latency
+     * histogram of the route; `/app/_metrics` is reserved for the metrics of the server.
+     *
+     * @param method the HTTP method (GET).
+     * @param path the requested URI path.
+     * @param request the request, whose headers and body are available to the controller, or null.
+     * @return the response produced by the controller or taken from the cache, possibly still pending.
+     */
+    protected CompletableFuture<HttpResponse> handleAppRequestAsync(String method, String path,
+                                                                    HttpRequest request) {
+        return handleAppRequestAsync(method, path, request, true);
+    }
+
+    /**
+     * Handles dynamic requests, checking the `@RateLimit` of the route unless it has been
+     * checked already.
+     */
+    private CompletableFuture<HttpResponse> handleAppRequestAsync(String method, String path, HttpRequest request,
+                                                                  boolean checkRouteLimit) {
+        int queryStart = path.indexOf('?');
+        int pathEnd = queryStart < 0 ? path.length() : queryStart;
+        if (pathEnd == BatchHandler.ENDPOINT.length() && path.startsWith(BatchHandler.ENDPOINT)) {
+            if (!"POST".equalsIgnoreCase(method) || request == null) {
+                return CompletableFuture.completedFuture(new HttpResponse("405 Method Not Allowed"));
+            }
+            return SimpleWebServer.getBatchHandler().handle(request, this, compressionMinSize);
+        }
+        if (!"GET".equalsIgnoreCase(method)) {
+            return CompletableFuture.completedFuture(new HttpResponse("405 Method Not Allowed"));
+        }
+
+        if (pathEnd == ServerMetrics.ENDPOINT.length() && path.startsWith(ServerMetrics.ENDPOINT)) {
+            return CompletableFuture.completedFuture(metrics.scrape(SimpleWebServer.getRegistry().routes()));
+        }
+        RouteMatch<RouteInvoker> match = ROUTE_MATCH.get();
+        if (!SimpleWebServer.getRegistry().match(path, 0, pathEnd, match)) {
+            return CompletableFuture.completedFuture(new HttpResponse("404 Not Found"));
+        }
+        RouteInvoker invoker = match.getHandler();
+        RateLimiter routeLimiter = invoker.getRateLimiter();
+        if (routeLimiter != null && checkRouteLimit) {
+            long wait = routeLimiter.acquire(request == null ? null : request.getRemoteAddress());
+            if (wait > 0) {
+                metrics.recordRateLimitedRoute();
+                return CompletableFuture.completedFuture(tooManyRequests(wait));
+            }
+        }
+        long start = System.nanoTime();
+        CompletableFuture<HttpResponse> response = invoke(invoker, match, path, queryStart, request);
+        if (response.isDone()) {
+            invoker.getLatency().record(System.nanoTime() - start);
+        } else {
+            response.whenComplete((completed, error) -> invoker.getLatency().record(System.nanoTime() - start));
+        }
+        return response;
+    }
+
+    /**
+     * Produces the response to one request of a batch. Like a request of its own, it counts
+     * against the rate limit of its client.
+     *
+     * @param item the sub-request, a GET for a controller.
+     * @return the response produced by the controller, possibly still pending.
+     */
+    CompletableFuture<HttpResponse> dispatchBatchItem(HttpRequest item) {
+        if (rateLimiter != null) {
+            long wait = rateLimiter.acquire(item.getRemoteAddress());
+            if (wait > 0) {
+                metrics.recordRateLimitedClient();
+                return CompletableFuture.completedFuture(tooManyRequests(wait));
+            }
+        }
+        return handleAppRequestAsync(item.getMethod(), item.getTarget(), item);
+    }
+
+    /**
+     * Binds the parameters of a matched route and produces its response, from the cache
+     * of the route when it has one.
+     */
+    private CompletableFuture<HttpResponse> invoke(RouteInvoker invoker, RouteMatch<RouteInvoker> match,
+                                                   String path, int queryStart, HttpRequest request) {
+        QueryParameters query = QUERY.get().reset(path, queryStart < 0 ? path.length() : queryStart + 1, path.length());
+        String acceptEncoding = request == null ? null : request.getHeader("accept-encoding");
+        String accept = request == null ? null : request.getHeader("accept");
+
+        try {
+            Object[] args = invoker.bind(request, query, match);
+            ResponseCache cache = invoker.getCache();
+            List<Object> key = null;
+            if (cache != null) {
+                if (invoker.isNegotiated()) {
+                    // Each representation is cached on its own
+                    MediaType type = MediaType.negotiate(accept);
+                    if (type == null) {
+                        return CompletableFuture.completedFuture(notAcceptable());
+                    }
+                    key = ResponseCache.keyOf(args, type);
+                } else {
+                    key = ResponseCache.keyOf(args);
+                }
+                ResponseCache.Entry cached = cache.get(key);
+                if (cached != null) {
+                    return CompletableFuture.completedFuture(cached.select(acceptEncoding));
+                }
+            }
+
+            Object result = invoker.invokeWith(args);
+            if (invoker.isAsync()) {
+                return await(invoker, (CompletionStage<?>) result, key, accept, acceptEncoding);
+            }
+            return CompletableFuture.completedFuture(respond(result, cache, key, accept, acceptEncoding));
+        } catch (Exception e) {
+            return CompletableFuture.completedFuture(handlerError(e));
+        }
+    }
+
+    /**
+     * Turns the stage returned by an asynchronous controller method into a pending response.
+     * The response completes with whatever happens first: the stage completes, the timeout
+     * of the route expires, or the response is cancelled. In the last two cases the stage is
+     * cancelled, so that work depending on it is skipped.
+     */
+    private CompletableFuture<HttpResponse> await(RouteInvoker invoker, CompletionStage<?> stage, List<Object> key,
+                                                  String accept, String acceptEncoding) {
+        if (stage == null) {
+            return CompletableFuture.completedFuture(handlerError(
+                    new NullPointerException("Asynchronous controller returned null: " + invoker.getMethod())));
+        }
+        CompletableFuture<HttpResponse> response = new CompletableFuture<>();
+        AtomicBoolean settled = new AtomicBoolean();  // Set by whichever of the stage and the timer comes first
+        metrics.asyncStarted();
+        stage.whenComplete((value, error) -> {
+            if (response.isDone() || !settled.compareAndSet(false, true)) {
+                return;  // Timed out or cancelled already
+            }
+            HttpResponse result;
+            try {
+                result = error == null ? respond(value, invoker.getCache(), key, accept, acceptEncoding)
+                        : handlerError(unwrap(error));
+            } catch (RuntimeException e) {
+                result = handlerError(e);
+            }
+            response.complete(result);
+        });
+
+        long timeout = invoker.getTimeout() >= 0 ? invoker.getTimeout() : asyncTimeout;
+        ScheduledFuture<?> timer = null;
+        if (timeout > 0 && !response.isDone()) {
+            timer = TIMEOUTS.schedule(() -> {
+                if (settled.compareAndSet(false, true)) {
+                    metrics.recordAsyncTimeout();
+                    cancel(stage);
+                    response.complete(new HttpResponse("504 Gateway Timeout"));
+                }
+            }, timeout, TimeUnit.MILLISECONDS);
+        }
+        ScheduledFuture<?> pendingTimer = timer;
+        response.whenComplete((completed, error) -> {
+            metrics.asyncCompleted();
+            if (pendingTimer != null) {
+                pendingTimer.cancel(false);
+            }
+            if (response.isCancelled()) {
+                metrics.recordAsyncCancelled();
+                cancel(stage);
+            }
+        });
+        return response;
+    }
+
+    private static void cancel(CompletionStage<?> stage) {
+        try {
+            stage.toCompletableFuture().cancel(true);
+        } catch (UnsupportedOperationException e) {
+            // A stage that cannot be cancelled simply completes unobserved
+        }
+    }
+
+    private static Throwable unwrap(Throwable error) {
+        if ((error instanceof CompletionException || error instanceof ExecutionException) && error.getCause() != null) {
+            return error.getCause();
+        }
+        return error;
+    }
+
+    /**
+     * Encodes the result of a controller method, storing it in the cache of the route when it has one.
+     * A `Stream`, an `Iterator` or a `StreamingBody` is sent chunked as it is produced, and
+     * neither cached nor compressed. Strings, numbers and booleans are sent as text; other
+     * objects as JSON or as the text of their `toString()`, as the `Accept` header prefers.
+     */
+    private HttpResponse respond(Object result, ResponseCache cache, List<Object> key, String accept,
+                                 String acceptEncoding) {
+        ChunkedBody stream = ChunkedBody.of(result);
+        if (stream != null) {
+            return new HttpResponse("200 OK", "text/plain; charset=UTF-8", stream);
+        }
+        HttpResponse response;
+        if (JsonSerializer.isScalar(result)) {
+            byte[] body = String.valueOf(result).getBytes(StandardCharsets.UTF_8);
+            response = new HttpResponse("200 OK", "text/plain; charset=UTF-8", body);
+        } else {
+            MediaType type = MediaType.negotiate(accept);
+            if (type == null) {
+                return notAcceptable();
+            }
+            byte[] body = type == MediaType.JSON ? JsonSerializer.toJson(result)
+                    : result.toString().getBytes(StandardCharsets.UTF_8);
+            response = new HttpResponse("200 OK", type.contentType(), body).withHeader("Vary", "Accept");
+        }
+        if (cache != null) {
+            return cache.put(key, response, compressionMinSize).select(acceptEncoding);
+        }
+        return ContentEncoding.encode(response, acceptEncoding, compressionMinSize);
+    }
+
+    private HttpResponse notAcceptable() {
+        return new HttpResponse("406 Not Acceptable", "text/plain; charset=UTF-8",
+                "Available representations: application/json, text/plain".getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @param wait the microseconds until the client gets its next token.
+     * @return a `429 Too Many Requests` response telling the client when to come back.
+     */
+    private static HttpResponse tooManyRequests(long wait) {
+        return new HttpResponse("429 Too Many Requests")
+                .withHeader("Retry-After", String.valueOf((wait + 999_999) / 1_000_000));
+    }
+
+    private HttpResponse handlerError(Throwable e) {
+        metrics.recordHandlerError();
+        e.printStackTrace();
+        return new HttpResponse("500 Internal Server Error");
+    }
+
+    /**
+     * Determines the content type of the requested file based on its extension.
+     *
+     * @param fileRequested the requested file path.
+     * @return the MIME type of the file.
+     */
+    static String getContentType(String fileRequested) {
+        if (fileRequested.endsWith(".html"))
+            return "text/html";
+        else if (fileRequested.endsWith(".css"))
+            return "text/css";
+        else if (fileRequested.endsWith(".js"))
+            return "application/javascript";
+        return "text/plain";
+    }
+}
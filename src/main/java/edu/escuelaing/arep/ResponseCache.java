@@ -0,0 +1,240 @@
+package edu.escuelaing.arep;
+
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.Deflater;
+
+/**
+ * The `ResponseCache` class keeps the responses of one `@Cacheable` route, keyed on the
+ * values bound to the parameters of its method. Keying on the bound values rather than on
+ * the query string normalizes requests for free: parameter order, unknown parameters and
+ * omitted parameters that fall back to their default do not create new entries.
+ *
+ * Entries hold responses whose header blocks are already encoded, so a hit writes bytes
+ * without calling the controller, converting its result or compressing it again: the
+ * `gzip` and `deflate` versions are built on first use and kept with the entry.
+ *
+ * Lookups never lock. Entries are evicted in insertion order once there are more than
+ * `maxEntries`, and expired entries are dropped when they are looked up. Two requests that
+ * miss the same key at once both call the controller and the last one is kept.
+ */
+public class ResponseCache {
+    private final long ttlNanos;
+    private final int maxEntries;
+    private final ConcurrentHashMap<List<Object>, Entry> entries = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<Entry> insertionOrder = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * Creates an empty cache.
+     *
+     * @param ttlMillis how long a response is served, in milliseconds; zero or less for no expiry.
+     * @param maxEntries the number of responses kept.
+     */
+    public ResponseCache(long ttlMillis, int maxEntries) {
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("maxEntries must be positive: " + maxEntries);
+        }
+        this.ttlNanos = ttlMillis > 0 ? ttlMillis * 1_000_000L : 0;
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Builds the key of the arguments of a call. Array arguments, such as the values of a
+     * repeated query parameter, are compared by content.
+     *
+     * @param args the values bound to the parameters of the method.
+     * @return the key.
+     */
+    public static List<Object> keyOf(Object[] args) {
+        for (int i = 0; i < args.length; i++) {
+            if (args[i] != null && args[i].getClass().isArray()) {
+                Object[] key = args.clone();
+                for (int j = i; j < key.length; j++) {
+                    if (key[j] != null && key[j].getClass().isArray()) {
+                        key[j] = Collections.unmodifiableList(asList(key[j]));
+                    }
+                }
+                return Arrays.asList(key);
+            }
+        }
+        return Arrays.asList(args);
+    }
+
+    /**
+     * Builds the key of the arguments of a call whose response also depends on a property of
+     * the request, such as the representation negotiated from its `Accept` header.
+     *
+     * @param args the values bound to the parameters of the method.
+     * @param variant the property of the request.
+     * @return the key.
+     */
+    public static List<Object> keyOf(Object[] args, Object variant) {
+        Object[] key = Arrays.copyOf(args, args.length + 1);
+        key[args.length] = variant;
+        return keyOf(key);
+    }
+
+    private static List<Object> asList(Object array) {
+        List<Object> list = new ArrayList<>(Array.getLength(array));
+        for (int i = 0; i < Array.getLength(array); i++) {
+            list.add(Array.get(array, i));
+        }
+        return list;
+    }
+
+    /**
+     * Looks up the response for a combination of parameter values.
+     *
+     * @param key the values bound to the parameters of the method.
+     * @return the cached entry, or null if there is none or it has expired.
+     */
+    public Entry get(List<Object> key) {
+        Entry entry = entries.get(key);
+        if (entry != null && entry.isExpired(System.nanoTime())) {
+            if (entries.remove(key, entry)) {
+                evictions.increment();
+            }
+            entry = null;
+        }
+        if (entry == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return entry;
+    }
+
+    /**
+     * Stores the response for a combination of parameter values, evicting the oldest entries
+     * if the cache is full.
+     *
+     * @param key the values bound to the parameters of the method; must not be modified afterwards.
+     * @param response the uncompressed response of the controller, with a byte array body.
+     * @param compressionMinSize the body size from which textual responses are compressed
+     *                           for clients that accept it.
+     * @return the new entry.
+     */
+    public Entry put(List<Object> key, HttpResponse response, int compressionMinSize) {
+        Entry entry = new Entry(key, response, compressionMinSize,
+                ttlNanos == 0 ? 0 : System.nanoTime() + ttlNanos);
+        entries.put(key, entry);
+        insertionOrder.add(entry);
+
+        // The queue may hold entries that were already replaced or expired; dropping them
+        // counts towards the bound but only live entries are counted as evictions.
+        queued.incrementAndGet();
+        while (queued.get() > maxEntries) {
+            Entry oldest = insertionOrder.poll();
+            if (oldest == null) {
+                break;
+            }
+            queued.decrementAndGet();
+            if (entries.remove(oldest.key, oldest)) {
+                evictions.increment();
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * Drops every entry, for instance after the data behind the route has changed.
+     */
+    public void clear() {
+        entries.clear();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return the entries removed because the cache was full or they had expired.
+     */
+    public long evictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * @return a one-line summary of the cache counters.
+     */
+    public String stats() {
+        return "entries=" + entries.size() + " hits=" + hits.sum() + " misses=" + misses.sum()
+                + " evictions=" + evictions.sum();
+    }
+
+    /**
+     * A cached response together with its compressed versions.
+     */
+    public static final class Entry {
+        private final List<Object> key;
+        private final HttpResponse identity;
+        private final boolean compressible;
+        private final String vary;
+        private final long expiresAt;
+        private volatile HttpResponse gzip;
+        private volatile HttpResponse deflate;
+
+        Entry(List<Object> key, HttpResponse response, int compressionMinSize, long expiresAt) {
+            this.key = key;
+            this.expiresAt = expiresAt;
+            this.compressible = response.getBody().length >= compressionMinSize
+                    && ContentEncoding.isCompressible(response.getContentType());
+            this.vary = ContentEncoding.vary(response);
+            this.identity = (compressible ? response.withHeader("Vary", "Accept-Encoding") : response).prepare();
+        }
+
+        boolean isExpired(long now) {
+            return expiresAt != 0 && now - expiresAt >= 0;
+        }
+
+        /**
+         * Returns the version of the response that suits the client.
+         *
+         * @param acceptEncoding the `Accept-Encoding` header of the request, or null.
+         * @return a prepared response that can be shared between connections.
+         */
+        public HttpResponse select(String acceptEncoding) {
+            if (!compressible) {
+                return identity;
+            }
+            ContentEncoding encoding = ContentEncoding.negotiate(acceptEncoding, true, true);
+            if (encoding == null) {
+                return identity;
+            }
+            HttpResponse encoded = encoding == ContentEncoding.GZIP ? gzip : deflate;
+            if (encoded == null) {
+                // Built at most a few times under contention; any of them is correct
+                encoded = new HttpResponse(identity.getStatus(), identity.getContentType(),
+                        encoding.encode(identity.getBody(), Deflater.DEFAULT_COMPRESSION))
+                        .withHeader("Content-Encoding", encoding.token())
+                        .withHeader("Vary", vary)
+                        .prepare();
+                if (encoding == ContentEncoding.GZIP) {
+                    gzip = encoded;
+                } else {
+                    deflate = encoded;
+                }
+            }
+            return encoded;
+        }
+    }
+}
@@ -0,0 +1,373 @@
+package edu.escuelaing.arep;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * The `ResponseWriter` class sends the responses of one connection with as few system calls
+ * and allocations as possible. The header block of each response is encoded straight into a
+ * direct buffer taken from a `BufferPool`, and small bodies are copied right behind it, so
+ * the responses to a batch of pipelined requests usually leave in a single write.
+ *
+ * Bodies that do not fit in the buffer are not copied: they are queued after it as they
+ * are, a wrapped byte array, a slice of a cached file or a `FileRegion`, and the buffers are
+ * sent together with one gathering write. Files are sent with zero-copy transfer.
+ *
+ * A `ChunkedBody` is pulled one buffer at a time, and only once everything before it has
+ * been written: each buffer is framed as a chunk and written before the next one is read.
+ * However large the body, the writer never holds more than a buffer of it, and a slow
+ * client slows the production of the body down. On a non-blocking channel a body that has
+ * no bytes ready yet is not waited for: `isWaitingForBody()` tells it, and the listener set
+ * with `onBodyReady` is called when the body can be read again.
+ *
+ * On a blocking channel, output is written when `flush()` is called, or at once when a
+ * response has a large or streamed body. On a non-blocking channel, `drain()` writes what the socket
+ * accepts and tells whether output is still pending. The buffer goes back to the pool as
+ * soon as its content has been written.
+ *
+ * A writer is used by one thread at a time.
+ */
+public class ResponseWriter implements Flushable, Closeable {
+    private static final int MAX_GATHER = 16;
+    private static final int CHUNK_SIZE_LINE = 10;  // Up to 8 hex digits and CRLF
+    private static final byte[] LAST_CHUNK = {'0', '\r', '\n', '\r', '\n'};
+    private static final byte[] HEX_DIGITS = {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9',
+                                             'a', 'b', 'c', 'd', 'e', 'f'};
+
+    private final WritableByteChannel channel;
+    private final BufferPool pool;
+    private final ServerMetrics metrics;
+    private final boolean blocking;
+    private final ArrayDeque<Object> output = new ArrayDeque<>();
+    private final ArrayDeque<ByteBuffer> pooled = new ArrayDeque<>();
+    private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+    private ByteBuffer current;
+    private Runnable bodyReady;
+    private boolean waitingForBody;
+
+    /**
+     * Creates a writer.
+     *
+     * @param channel the channel of the connection, blocking or not.
+     * @param pool the pool the write buffers are taken from.
+     */
+    public ResponseWriter(WritableByteChannel channel, BufferPool pool) {
+        this(channel, pool, null);
+    }
+
+    /**
+     * Creates a writer that counts the bytes of streamed bodies as they are sent; `write`
+     * only returns the length of their header.
+     *
+     * @param channel the channel of the connection, blocking or not.
+     * @param pool the pool the write buffers are taken from.
+     * @param metrics the metrics the bytes are added to, or null.
+     */
+    public ResponseWriter(WritableByteChannel channel, BufferPool pool, ServerMetrics metrics) {
+        this.channel = channel;
+        this.pool = pool;
+        this.metrics = metrics;
+        this.blocking = !(channel instanceof SelectableChannel) || ((SelectableChannel) channel).isBlocking();
+    }
+
+    /**
+     * Adds a response to the pending output.
+     *
+     * @param response the response to send.
+     * @param keepAlive whether the connection stays open after this response.
+     * @return the number of bytes the response takes on the wire.
+     */
+    public long write(HttpResponse response, boolean keepAlive) throws IOException {
+        return write(response, keepAlive, true);
+    }
+
+    /**
+     * Adds a response to the pending output.
+     *
+     * @param response the response to send.
+     * @param keepAlive whether the connection stays open after this response.
+     * @param chunked whether a streamed body can be sent with the chunked coding; if not, it
+     *                is sent as it is, and the connection must be closed after it.
+     * @return the number of bytes the response takes on the wire, or only its header for a
+     *         streamed body.
+     */
+    public long write(HttpResponse response, boolean keepAlive, boolean chunked) throws IOException {
+        int headerLength = response.writeHeader(buffer(), keepAlive, chunked);
+        if (headerLength < 0) {
+            seal();
+            headerLength = response.writeHeader(buffer(), keepAlive, chunked);
+            if (headerLength < 0) {
+                // A header block larger than a whole buffer
+                byte[] header = response.buildHeader(keepAlive, chunked);
+                seal();
+                output.add(ByteBuffer.wrap(header));
+                headerLength = header.length;
+            }
+        }
+
+        ChunkedBody stream = response.getBodyStream();
+        if (stream != null) {
+            seal();
+            output.add(new StreamedBody(blocking ? stream : stream.nonBlocking(), chunked));
+            if (blocking) {
+                flush();
+            }
+            return headerLength;
+        }
+
+        byte[] body = response.getBody();
+        ByteBuffer bodyBuffer = body != null ? null : response.getBodyBuffer();
+        if (body != null && body.length <= buffer().remaining()) {
+            current.put(body);
+        } else if (bodyBuffer != null && bodyBuffer.remaining() <= buffer().remaining()) {
+            current.put(bodyBuffer);
+        } else {
+            seal();
+            if (body != null) {
+                output.add(ByteBuffer.wrap(body));
+            } else if (bodyBuffer != null) {
+                output.add(bodyBuffer);
+            } else {
+                output.add(response.getBodyFile());
+            }
+            if (blocking) {
+                flush();
+            }
+        }
+        return headerLength + response.getContentLength();
+    }
+
+    /**
+     * @return the buffer being filled, taken from the pool if there is none.
+     */
+    private ByteBuffer buffer() {
+        if (current == null) {
+            current = pool.acquire();
+        }
+        return current;
+    }
+
+    /**
+     * Moves the buffer being filled to the pending output, unless it is empty.
+     */
+    private void seal() {
+        if (current != null && current.position() > 0) {
+            current.flip();
+            output.add(current);
+            pooled.add(current);
+            current = null;
+        }
+    }
+
+    /**
+     * Writes the pending output as far as the channel accepts it. Consecutive buffers are
+     * written together with one gathering write.
+     *
+     * @return true if everything was written, false if a non-blocking channel is full or a
+     *         streamed body has no bytes ready.
+     */
+    public boolean drain() throws IOException {
+        seal();
+        waitingForBody = false;
+        while (!output.isEmpty()) {
+            Object pending = output.peek();
+            if (pending instanceof StreamedBody) {
+                if (!nextChunk((StreamedBody) pending)) {
+                    return false;
+                }
+                continue;
+            }
+            if (pending instanceof FileRegion) {
+                FileRegion region = (FileRegion) pending;
+                region.transferTo(channel);
+                if (region.remaining() > 0) {
+                    return false;
+                }
+                output.poll();
+                continue;
+            }
+
+            int count = 0;
+            for (Object next : output) {
+                if (!(next instanceof ByteBuffer) || count == gather.length) {
+                    break;
+                }
+                gather[count++] = (ByteBuffer) next;
+            }
+            write(count);
+            boolean done = true;
+            for (int i = 0; i < count && done; i++) {
+                done = !gather[i].hasRemaining();
+                if (done) {
+                    output.poll();
+                    if (gather[i] == pooled.peek()) {
+                        pool.release(pooled.poll());
+                    }
+                }
+            }
+            Arrays.fill(gather, 0, count, null);
+            if (!done) {
+                return false;
+            }
+        }
+        if (current != null) {
+            // Left empty by a header that did not fit; an idle connection holds no buffer
+            pool.release(current);
+            current = null;
+        }
+        return true;
+    }
+
+    /**
+     * Reads the next chunk of a streamed body into a buffer from the pool and puts it in
+     * front of the pending output, or removes the body once it has ended.
+     *
+     * @return false if a non-blocking writer has to wait for the body.
+     */
+    private boolean nextChunk(StreamedBody pending) throws IOException {
+        ByteBuffer chunk = pool.acquire();
+        int start = pending.chunked ? CHUNK_SIZE_LINE : 0;
+        chunk.position(start).limit(chunk.capacity() - (pending.chunked ? 2 : 0));
+        int n;
+        try {
+            n = pending.body.read(chunk);
+        } catch (IOException | RuntimeException e) {
+            pool.release(chunk);
+            throw e instanceof IOException ? (IOException) e : new IOException("Streamed body failed", e);
+        }
+
+        if (n == 0) {
+            pool.release(chunk);
+            if (blocking) {
+                pending.body.awaitReadable();
+            } else {
+                waitingForBody = true;
+                if (bodyReady != null) {
+                    pending.body.onReadable(bodyReady);
+                }
+            }
+            return blocking;
+        }
+        if (n < 0) {
+            output.poll();
+            if (!pending.chunked) {
+                pool.release(chunk);
+                return true;
+            }
+            chunk.clear();
+            chunk.put(LAST_CHUNK).flip();
+        } else if (pending.chunked) {
+            // The size line is written right before the data, at the end of the reserved space
+            int end = chunk.position();
+            chunk.limit(end + 2);
+            chunk.put(end, (byte) '\r').put(end + 1, (byte) '\n');
+            chunk.put(--start, (byte) '\n').put(--start, (byte) '\r');
+            for (int size = n; size > 0; size >>>= 4) {
+                chunk.put(--start, HEX_DIGITS[size & 0xF]);
+            }
+            chunk.position(start);
+        } else {
+            chunk.flip();
+        }
+        if (metrics != null) {
+            metrics.recordBytesSent(chunk.remaining());
+        }
+        output.addFirst(chunk);
+        pooled.addFirst(chunk);
+        return true;
+    }
+
+    private void write(int count) throws IOException {
+        if (channel instanceof GatheringByteChannel) {
+            do {
+                ((GatheringByteChannel) channel).write(gather, 0, count);
+            } while (blocking && gather[count - 1].hasRemaining());
+        } else {
+            for (int i = 0; i < count; i++) {
+                while (gather[i].hasRemaining()) {
+                    channel.write(gather[i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes all the pending output. On a non-blocking channel this only writes what the
+     * socket accepts; use `drain()` to know whether anything is left.
+     */
+    @Override
+    public void flush() throws IOException {
+        drain();
+    }
+
+    /**
+     * Sets the listener called when a streamed body the writer waits for has bytes ready. It
+     * may be called on any thread.
+     *
+     * @param listener the listener.
+     */
+    public void onBodyReady(Runnable listener) {
+        this.bodyReady = listener;
+    }
+
+    /**
+     * @return true if the last `drain()` stopped on a streamed body with no bytes ready.
+     */
+    public boolean isWaitingForBody() {
+        return waitingForBody;
+    }
+
+    /**
+     * @return true if output is waiting to be written.
+     */
+    public boolean hasPending() {
+        return !output.isEmpty() || (current != null && current.position() > 0);
+    }
+
+    /**
+     * Drops the pending output without writing it, closes the files and streamed bodies it
+     * holds and gives the buffers back to the pool. It does not close the channel.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            for (Object pending : output) {
+                if (pending instanceof FileRegion) {
+                    ((FileRegion) pending).close();
+                } else if (pending instanceof StreamedBody) {
+                    ((StreamedBody) pending).body.close();
+                }
+            }
+        } finally {
+            output.clear();
+            ByteBuffer buffer;
+            while ((buffer = pooled.poll()) != null) {
+                pool.release(buffer);
+            }
+            if (current != null) {
+                pool.release(current);
+                current = null;
+            }
+        }
+    }
+
+    /**
+     * A streamed body in the pending output.
+     */
+    private static final class StreamedBody {
+        final ChunkedBody body;
+        final boolean chunked;
+
+        StreamedBody(ChunkedBody body, boolean chunked) {
+            this.body = body;
+            this.chunked = chunked;
+        }
+    }
+}
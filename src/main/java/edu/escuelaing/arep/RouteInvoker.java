@@ -0,0 +1,499 @@
+package edu.escuelaing.arep;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Parameter;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionStage;
+import java.util.function.Function;
+import edu.escuelaing.arep.annotations.Cacheable;
+import edu.escuelaing.arep.annotations.PathVariable;
+import edu.escuelaing.arep.annotations.RequestHeader;
+import edu.escuelaing.arep.annotations.RequestParam;
+import edu.escuelaing.arep.annotations.RateLimit;
+import edu.escuelaing.arep.annotations.Timeout;
+
+/**
+ * The `RouteInvoker` class calls the controller method of a route. Everything that only
+ * depends on the method is resolved once, when the controller is registered: the method
+ * is turned into a `MethodHandle` bound to the controller instance, and every parameter
+ * gets a binder that already knows its annotation, its name, its default value and the
+ * converter for its type. Parameters can come from the query string (`@RequestParam`), the
+ * path (`@PathVariable`) or the headers (`@RequestHeader`); a parameter of type
+ * `HttpRequest` receives the whole request. Serving a request therefore involves no reflection and no
+ * annotation lookup, only running the binders and invoking the handle.
+ *
+ * Query parameters are read from `QueryParameters`, which parses numbers and matches enum
+ * constants straight from the request target, so binding a number never creates the
+ * intermediate `String`. Besides `String`, parameters can be `int`, `long`, `float`,
+ * `double`, `boolean`, their wrappers and enums; a `@RequestParam` can also be an array or
+ * a `List` of those to receive every value of a repeated parameter.
+ *
+ * Methods annotated with `@Cacheable` also get a `ResponseCache`, keyed on the values the
+ * binders produce, and methods annotated with `@RateLimit` a `RateLimiter`. Every invoker
+ * keeps the `LatencyHistogram` of its route.
+ *
+ * A method that returns a `CompletionStage`, such as a `CompletableFuture`, is asynchronous:
+ * the dispatcher writes its response when the stage completes, within the `@Timeout` of
+ * the method. A method that returns a `Stream`, an `Iterator` or a `StreamingBody` has its
+ * response sent chunked, as it is produced (see `ChunkedBody`). Any other object is sent
+ * as JSON or as text, as the client prefers; the JSON writer of the declared result type is
+ * generated when the invoker is created.
+ */
+public class RouteInvoker {
+    private static final Object UNCONVERTIBLE = new Object();
+
+    private final Method method;
+    private final MethodHandle handle;
+    private final ParameterBinder[] binders;
+    private final ResponseCache cache;
+    private final RateLimiter rateLimiter;
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final boolean async;
+    private final long timeout;
+    private final boolean negotiated;
+
+    private RouteInvoker(Method method, MethodHandle handle, ParameterBinder[] binders, ResponseCache cache,
+                         RateLimiter rateLimiter, long timeout) {
+        this.method = method;
+        this.handle = handle;
+        this.binders = binders;
+        this.cache = cache;
+        this.rateLimiter = rateLimiter;
+        this.async = CompletionStage.class.isAssignableFrom(method.getReturnType());
+        this.timeout = timeout;
+        Type result = resultType(method);
+        Class<?> resultClass = result instanceof ParameterizedType
+                ? (Class<?>) ((ParameterizedType) result).getRawType()
+                : result instanceof Class ? (Class<?>) result : Object.class;
+        this.negotiated = resultClass != void.class && resultClass != Void.class
+                && !JsonSerializer.isScalarType(resultClass) && !ChunkedBody.isStreamed(resultClass);
+        if (negotiated) {
+            JsonSerializer.prepare(result);
+        }
+    }
+
+    /**
+     * @return the declared type of the value a method produces: the type argument of a
+     *         `CompletionStage`, or else its return type.
+     */
+    private static Type resultType(Method method) {
+        Type type = method.getGenericReturnType();
+        if (CompletionStage.class.isAssignableFrom(method.getReturnType())) {
+            if (type instanceof ParameterizedType) {
+                return ((ParameterizedType) type).getActualTypeArguments()[0];
+            }
+            return Object.class;
+        }
+        return type;
+    }
+
+    /**
+     * Builds the invoker of a controller method.
+     *
+     * @param controller the controller instance, ignored for static methods.
+     * @param method the method annotated with `@GetMapping`.
+     * @return the invoker for the method.
+     * @throws IllegalAccessException if the method cannot be accessed.
+     * @throws IllegalArgumentException if the method is `@Cacheable` but takes the whole `HttpRequest`
+     *                                  or returns a streamed body, or has a `@Timeout` but does not
+     *                                  return a `CompletionStage`, or has a `@RateLimit` that is not
+     *                                  positive.
+     */
+    public static RouteInvoker create(Object controller, Method method) throws IllegalAccessException {
+        method.setAccessible(true);
+        MethodHandle handle = MethodHandles.lookup().unreflect(method);
+        if (!Modifier.isStatic(method.getModifiers())) {
+            handle = handle.bindTo(controller);
+        }
+
+        Parameter[] parameters = method.getParameters();
+        handle = handle.asSpreader(Object[].class, parameters.length)
+                .asType(MethodType.methodType(Object.class, Object[].class));
+
+        ParameterBinder[] binders = new ParameterBinder[parameters.length];
+        for (int i = 0; i < parameters.length; i++) {
+            binders[i] = createBinder(parameters[i]);
+        }
+
+        ResponseCache cache = null;
+        Cacheable cacheable = method.getAnnotation(Cacheable.class);
+        if (cacheable != null) {
+            if (ChunkedBody.isStreamed(method.getReturnType())) {
+                throw new IllegalArgumentException("@Cacheable method cannot return a streamed body: " + method);
+            }
+            for (Parameter parameter : parameters) {
+                if (parameter.getType() == HttpRequest.class) {
+                    throw new IllegalArgumentException("@Cacheable method cannot take the whole request: " + method);
+                }
+            }
+            cache = new ResponseCache(cacheable.ttl(), cacheable.maxEntries());
+        }
+
+        long timeout = -1;
+        Timeout timeoutAnnotation = method.getAnnotation(Timeout.class);
+        if (timeoutAnnotation != null) {
+            if (!CompletionStage.class.isAssignableFrom(method.getReturnType())) {
+                throw new IllegalArgumentException("@Timeout method must return a CompletionStage: " + method);
+            }
+            timeout = Math.max(timeoutAnnotation.value(), 0);
+        }
+
+        RateLimiter rateLimiter = null;
+        RateLimit rateLimit = method.getAnnotation(RateLimit.class);
+        if (rateLimit != null) {
+            if (rateLimit.value() <= 0) {
+                throw new IllegalArgumentException("@RateLimit must allow at least one request per second: " + method);
+            }
+            rateLimiter = rateLimit.perClient()
+                    ? new RateLimiter(rateLimit.value(), rateLimit.burst(),
+                            SimpleWebServer.getConfig().getRateLimitClients())
+                    : new RateLimiter(rateLimit.value(), rateLimit.burst());
+        }
+        return new RouteInvoker(method, handle, binders, cache, rateLimiter, timeout);
+    }
+
+    /**
+     * Resolves how a parameter gets its value from a request.
+     *
+     * @param parameter the method parameter.
+     * @return the binder of the parameter.
+     */
+    private static ParameterBinder createBinder(Parameter parameter) {
+        Function<String, Object> converter = converterFor(parameter.getType());
+
+        RequestParam requestParam = parameter.getAnnotation(RequestParam.class);
+        if (requestParam != null) {
+            if (parameter.getType().isArray() || parameter.getType() == List.class) {
+                return createMultiValueBinder(parameter, requestParam);
+            }
+            String name = requestParam.value();
+            String defaultValue = requestParam.defaultValue();
+            QueryConverter queryConverter = queryConverterFor(parameter.getType());
+            Object convertedDefault = convertDefault(converter, defaultValue);
+            return (request, query, match) -> {
+                int index = query.indexOf(name);
+                if (index >= 0) {
+                    return queryConverter.convert(query, index);
+                }
+                return convertedDefault != UNCONVERTIBLE ? convertedDefault : converter.apply(defaultValue);
+            };
+        }
+
+        PathVariable pathVariable = parameter.getAnnotation(PathVariable.class);
+        if (pathVariable != null) {
+            String name = pathVariable.value();
+            return (request, query, match) -> converter.apply(match.getVariable(name));
+        }
+
+        RequestHeader requestHeader = parameter.getAnnotation(RequestHeader.class);
+        if (requestHeader != null) {
+            String name = requestHeader.value();
+            String defaultValue = requestHeader.defaultValue();
+            Object convertedDefault = convertDefault(converter, defaultValue);
+            return (request, query, match) -> {
+                String value = request == null ? null : request.getHeader(name);
+                if (value != null) {
+                    return converter.apply(value);
+                }
+                return convertedDefault != UNCONVERTIBLE ? convertedDefault : converter.apply(defaultValue);
+            };
+        }
+
+        if (parameter.getType() == HttpRequest.class) {
+            return (request, query, match) -> request;
+        }
+        return (request, query, match) -> null;
+    }
+
+    /**
+     * Resolves the binder of a `@RequestParam` array or `List`, which receives every value of
+     * the parameter in the order of the query string. Without values it receives the default
+     * value split on ',', or nothing if the default is empty.
+     */
+    private static ParameterBinder createMultiValueBinder(Parameter parameter, RequestParam requestParam) {
+        boolean array = parameter.getType().isArray();
+        Class<?> elementType = array ? parameter.getType().getComponentType() : listElementType(parameter);
+        QueryConverter queryConverter = queryConverterFor(elementType);
+        Function<String, Object> converter = converterFor(elementType);
+        String name = requestParam.value();
+        String[] defaultValues = requestParam.defaultValue().isEmpty()
+                ? new String[0] : requestParam.defaultValue().split(",");
+
+        return (request, query, match) -> {
+            List<Object> values = new ArrayList<>();
+            for (int index = query.indexOf(name); index >= 0; index = query.indexOf(name, index + 1)) {
+                values.add(queryConverter.convert(query, index));
+            }
+            if (values.isEmpty()) {
+                for (String defaultValue : defaultValues) {
+                    values.add(converter.apply(defaultValue));
+                }
+            }
+            if (!array) {
+                return values;
+            }
+            Object result = Array.newInstance(elementType, values.size());
+            for (int i = 0; i < values.size(); i++) {
+                Array.set(result, i, values.get(i));
+            }
+            return result;
+        };
+    }
+
+    private static Class<?> listElementType(Parameter parameter) {
+        Type type = parameter.getParameterizedType();
+        if (type instanceof ParameterizedType) {
+            Type argument = ((ParameterizedType) type).getActualTypeArguments()[0];
+            if (argument instanceof Class) {
+                return (Class<?>) argument;
+            }
+        }
+        return String.class;
+    }
+
+    /**
+     * Converts a default value once, so that requests without the parameter skip the conversion.
+     * A default that cannot be converted is converted again on each request, which reports the error
+     * exactly as a bad request value would.
+     */
+    private static Object convertDefault(Function<String, Object> converter, String defaultValue) {
+        try {
+            return converter.apply(defaultValue);
+        } catch (RuntimeException e) {
+            return UNCONVERTIBLE;
+        }
+    }
+
+    /**
+     * Returns the converter from a request value to the type of a parameter.
+     *
+     * @param paramType the type of the method parameter.
+     * @return the converter for the type; strings are passed through.
+     */
+    static Function<String, Object> converterFor(Class<?> paramType) {
+        if (paramType == int.class || paramType == Integer.class) {
+            return Integer::valueOf;
+        } else if (paramType == long.class || paramType == Long.class) {
+            return Long::valueOf;
+        } else if (paramType == double.class || paramType == Double.class) {
+            return Double::valueOf;
+        } else if (paramType == float.class || paramType == Float.class) {
+            return Float::valueOf;
+        } else if (paramType == boolean.class || paramType == Boolean.class) {
+            return Boolean::valueOf;
+        } else if (paramType.isEnum()) {
+            Object[] constants = paramType.getEnumConstants();
+            return value -> {
+                for (Object constant : constants) {
+                    if (((Enum<?>) constant).name().equals(value)) {
+                        return constant;
+                    }
+                }
+                throw noEnumConstant(paramType, value);
+            };
+        } else {
+            return value -> value;
+        }
+    }
+
+    /**
+     * Returns the converter from a query parameter to the type of a parameter. Numbers,
+     * booleans and enum constants are read from the query string in place.
+     *
+     * @param paramType the type of the method parameter.
+     * @return the converter for the type; strings are decoded.
+     */
+    static QueryConverter queryConverterFor(Class<?> paramType) {
+        if (paramType == int.class || paramType == Integer.class) {
+            return (query, index) -> query.intValue(index);
+        } else if (paramType == long.class || paramType == Long.class) {
+            return (query, index) -> query.longValue(index);
+        } else if (paramType == double.class || paramType == Double.class) {
+            return (query, index) -> query.doubleValue(index);
+        } else if (paramType == float.class || paramType == Float.class) {
+            return (query, index) -> query.floatValue(index);
+        } else if (paramType == boolean.class || paramType == Boolean.class) {
+            return (query, index) -> query.booleanValue(index);
+        } else if (paramType.isEnum()) {
+            Object[] constants = paramType.getEnumConstants();
+            return (query, index) -> {
+                for (Object constant : constants) {
+                    if (query.valueEquals(index, ((Enum<?>) constant).name())) {
+                        return constant;
+                    }
+                }
+                throw noEnumConstant(paramType, query.value(index));
+            };
+        } else {
+            return QueryParameters::value;
+        }
+    }
+
+    /**
+     * Builds the error `Enum.valueOf` reports for an unknown constant.
+     */
+    private static IllegalArgumentException noEnumConstant(Class<?> enumType, String value) {
+        return new IllegalArgumentException("No enum constant " + enumType.getCanonicalName() + "." + value);
+    }
+
+    /**
+     * Converts a query parameter value to the required type for method invocation.
+     *
+     * @param paramType the type of the method parameter.
+     * @param paramValue the query parameter value as a string.
+     * @return the converted value of the required type.
+     */
+    public static Object convertToRequiredType(Class<?> paramType, String paramValue) {
+        return converterFor(paramType).apply(paramValue);
+    }
+
+    /**
+     * Invokes the controller method without a request, as if the request had no headers.
+     *
+     * @param queryParams the query parameters of the request.
+     * @param match the route match holding the path variables of the request.
+     * @return the response object returned by the controller method.
+     * @throws Exception if a parameter cannot be converted or the controller method fails.
+     */
+    public Object invoke(Map<String, String> queryParams, RouteMatch<?> match) throws Exception {
+        return invoke(null, QueryParameters.of(queryParams), match);
+    }
+
+    /**
+     * Invokes the controller method for a request.
+     *
+     * @param request the request, which provides headers and body, or null.
+     * @param queryParams the query parameters of the request.
+     * @param match the route match holding the path variables of the request.
+     * @return the response object returned by the controller method.
+     * @throws Exception if a parameter cannot be converted or the controller method fails.
+     */
+    public Object invoke(HttpRequest request, Map<String, String> queryParams, RouteMatch<?> match)
+            throws Exception {
+        return invoke(request, QueryParameters.of(queryParams), match);
+    }
+
+    /**
+     * Invokes the controller method for a request.
+     *
+     * @param request the request, which provides headers and body, or null.
+     * @param query the query parameters of the request.
+     * @param match the route match holding the path variables of the request.
+     * @return the response object returned by the controller method.
+     * @throws Exception if a parameter cannot be converted or the controller method fails.
+     */
+    public Object invoke(HttpRequest request, QueryParameters query, RouteMatch<?> match) throws Exception {
+        return invokeWith(bind(request, query, match));
+    }
+
+    /**
+     * Produces the arguments of the controller method for a request.
+     *
+     * @param request the request, which provides headers and body, or null.
+     * @param query the query parameters of the request.
+     * @param match the route match holding the path variables of the request.
+     * @return a new array with the converted value of each parameter.
+     * @throws RuntimeException if a value cannot be converted to the type of its parameter.
+     */
+    public Object[] bind(HttpRequest request, QueryParameters query, RouteMatch<?> match) {
+        Object[] args = new Object[binders.length];
+        for (int i = 0; i < binders.length; i++) {
+            args[i] = binders[i].bind(request, query, match);
+        }
+        return args;
+    }
+
+    /**
+     * Invokes the controller method with arguments produced by `bind`.
+     *
+     * @param args the arguments of the method.
+     * @return the response object returned by the controller method.
+     * @throws Exception if the controller method fails.
+     */
+    public Object invokeWith(Object[] args) throws Exception {
+        try {
+            return (Object) handle.invokeExact(args);
+        } catch (Exception | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new UndeclaredThrowableException(t);
+        }
+    }
+
+    /**
+     * @return the controller method called by this invoker.
+     */
+    public Method getMethod() {
+        return method;
+    }
+
+    /**
+     * @return the response cache of a `@Cacheable` method, otherwise null.
+     */
+    public ResponseCache getCache() {
+        return cache;
+    }
+
+    /**
+     * @return the rate limiter of a `@RateLimit` method, otherwise null.
+     */
+    public RateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    /**
+     * @return true if the controller method returns a `CompletionStage`.
+     */
+    public boolean isAsync() {
+        return async;
+    }
+
+    /**
+     * @return true if the result of the method may be sent as JSON, so that its representation
+     *         depends on the `Accept` header of the request.
+     */
+    public boolean isNegotiated() {
+        return negotiated;
+    }
+
+    /**
+     * @return the `@Timeout` of the method in milliseconds, 0 for none, or -1 if the method
+     *         has no `@Timeout` and the timeout of the server applies.
+     */
+    public long getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * @return the time spent answering the requests of this route.
+     */
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    /**
+     * Produces the value of one method parameter from a request.
+     */
+    @FunctionalInterface
+    interface ParameterBinder {
+        Object bind(HttpRequest request, QueryParameters query, RouteMatch<?> match);
+    }
+
+    /**
+     * Converts the value of one query parameter to the type of a method parameter.
+     */
+    @FunctionalInterface
+    interface QueryConverter {
+        Object convert(QueryParameters query, int index);
+    }
+}
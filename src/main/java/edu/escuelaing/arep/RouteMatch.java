@@ -0,0 +1,126 @@
+package edu.escuelaing.arep;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * The `RouteMatch` class receives the result of `Router.match`: the matched handler and
+ * the position of every path variable inside the request target. It is meant to be reused
+ * from one request to the next, so matching allocates nothing; the value of a variable
+ * is only turned into a `String` when a controller asks for it.
+ *
+ * Values are percent-decoded as UTF-8, like those of `QueryParameters`, except that a '+'
+ * in a path is kept as it is.
+ *
+ * @param <T> the type of the handlers.
+ */
+public class RouteMatch<T> {
+    private static final int INITIAL_CAPACITY = 4;
+
+    private CharSequence source;
+    private Router.Route<T> route;
+    private int[] starts = new int[INITIAL_CAPACITY];
+    private int[] ends = new int[INITIAL_CAPACITY];
+    int count;
+    private int restStart;
+    private int restEnd;
+    private byte[] scratch = new byte[64];
+
+    void reset(CharSequence source) {
+        this.source = source;
+        this.route = null;
+        this.count = 0;
+    }
+
+    void push(int start, int end) {
+        if (count == starts.length) {
+            starts = Arrays.copyOf(starts, count * 2);
+            ends = Arrays.copyOf(ends, count * 2);
+        }
+        starts[count] = start;
+        ends[count] = end;
+        count++;
+    }
+
+    void route(Router.Route<T> route, int restStart, int restEnd) {
+        this.route = route;
+        this.restStart = restStart;
+        this.restEnd = restEnd;
+    }
+
+    /**
+     * @return the matched handler, or null if nothing matched.
+     */
+    public T getHandler() {
+        return route == null ? null : route.handler;
+    }
+
+    /**
+     * Returns the value of a path variable.
+     *
+     * @param name the name of the variable in the route pattern, e.g. "id" for `/app/user/{id}`.
+     * @return the decoded value of the variable, or null if the route has no such variable.
+     */
+    public String getVariable(String name) {
+        if (route == null) {
+            return null;
+        }
+        String[] names = route.variableNames;
+        for (int i = 0; i < names.length; i++) {
+            if (names[i].equals(name)) {
+                return decode(starts[i], ends[i]);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the part of the path matched by a trailing `**`, or null if the route has none.
+     */
+    public String getRemainingPath() {
+        if (route == null || !route.catchAll) {
+            return null;
+        }
+        return source.subSequence(restStart, restEnd).toString();
+    }
+
+    /**
+     * Decodes a region of the source: "%XX" escapes are collected as bytes and read as
+     * UTF-8. A '%' that is not followed by two hexadecimal digits is kept as it is.
+     */
+    private String decode(int start, int end) {
+        int escape = start;
+        while (escape < end && source.charAt(escape) != '%') {
+            escape++;
+        }
+        if (escape == end) {
+            return source.subSequence(start, end).toString();
+        }
+        StringBuilder decoded = new StringBuilder(end - start);
+        decoded.append(source, start, escape);
+        int i = escape;
+        while (i < end) {
+            if (source.charAt(i) == '%' && hex(i + 1, end) >= 0 && hex(i + 2, end) >= 0) {
+                int length = 0;
+                while (i < end && source.charAt(i) == '%' && hex(i + 1, end) >= 0 && hex(i + 2, end) >= 0) {
+                    if (length == scratch.length) {
+                        scratch = Arrays.copyOf(scratch, length * 2);
+                    }
+                    scratch[length++] = (byte) (hex(i + 1, end) << 4 | hex(i + 2, end));
+                    i += 3;
+                }
+                decoded.append(new String(scratch, 0, length, StandardCharsets.UTF_8));
+            } else {
+                decoded.append(source.charAt(i++));
+            }
+        }
+        return decoded.toString();
+    }
+
+    private int hex(int index, int end) {
+        if (index >= end) {
+            return -1;
+        }
+        return Character.digit(source.charAt(index), 16);
+    }
+}
@@ -0,0 +1,272 @@
+package edu.escuelaing.arep;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The `Router` class maps request paths to handlers through a trie with one level per
+ * path segment. The `ControllerRegistry` builds a new one whenever the controllers change
+ * and never modifies it once published; it is then matched for every request without
+ * creating any object: static segments are found by binary search over the sorted labels
+ * of a node, compared character by character against the request target, and path
+ * variables are recorded as offsets in a reusable `RouteMatch`.
+ * Lookup cost depends on the depth of the path, not on the number of registered routes.
+ *
+ * Patterns support three kinds of segments, tried in this order:
+ * <ul>
+ *   <li>static segments, e.g. `/app/hello`;</li>
+ *   <li>path variables, e.g. `/app/user/{id}`, matching exactly one segment;</li>
+ *   <li>wildcards: `*` matches one segment and `**`, only allowed at the end, matches the rest of the path.</li>
+ * </ul>
+ *
+ * @param <T> the type of the handlers.
+ */
+public class Router<T> {
+    private final Node<T> root = new Node<>();
+    private final Map<String, T> routes = new LinkedHashMap<>();
+
+    /**
+     * Registers a handler for a path pattern.
+     *
+     * @param pattern the path pattern, starting with '/'.
+     * @param handler the handler to return when the pattern matches.
+     * @throws IllegalArgumentException if the pattern is malformed or already registered.
+     */
+    public void add(String pattern, T handler) {
+        if (!pattern.startsWith("/")) {
+            throw new IllegalArgumentException("Route must start with '/': " + pattern);
+        }
+        if (routes.containsKey(pattern)) {
+            throw new IllegalArgumentException("Duplicate route: " + pattern);
+        }
+
+        String[] segments = pattern.substring(1).split("/", -1);
+        List<String> variables = new ArrayList<>();
+        Node<T> node = root;
+        for (int i = 0; i < segments.length; i++) {
+            String segment = segments[i];
+            if (segment.equals("**")) {
+                if (i != segments.length - 1) {
+                    throw new IllegalArgumentException("'**' must be the last segment: " + pattern);
+                }
+                if (node.catchAll != null) {
+                    throw new IllegalArgumentException("Conflicting route: " + pattern);
+                }
+                node.catchAll = new Route<>(handler, variables.toArray(new String[0]), true);
+                routes.put(pattern, handler);
+                return;
+            } else if (segment.equals("*")) {
+                if (node.wildcard == null) {
+                    node.wildcard = new Node<>();
+                }
+                node = node.wildcard;
+            } else if (segment.startsWith("{") && segment.endsWith("}")) {
+                variables.add(segment.substring(1, segment.length() - 1));
+                if (node.variable == null) {
+                    node.variable = new Node<>();
+                }
+                node = node.variable;
+            } else {
+                node = node.staticChild(segment);
+            }
+        }
+        if (node.route != null) {
+            throw new IllegalArgumentException("Conflicting route: " + pattern);
+        }
+        node.route = new Route<>(handler, variables.toArray(new String[0]), false);
+        routes.put(pattern, handler);
+    }
+
+    /**
+     * Returns the handler registered for exactly this pattern.
+     *
+     * @param pattern the pattern used at registration.
+     * @return the handler, or null if none is registered.
+     */
+    public T get(String pattern) {
+        return routes.get(pattern);
+    }
+
+    /**
+     * @return the registered patterns and their handlers, in registration order, read-only.
+     */
+    public Map<String, T> routes() {
+        return Collections.unmodifiableMap(routes);
+    }
+
+    /**
+     * Matches a whole path.
+     *
+     * @param path the request path, without query string.
+     * @param match the object that receives the handler and the path variables.
+     * @return true if a route matched.
+     */
+    public boolean match(CharSequence path, RouteMatch<T> match) {
+        return match(path, 0, path.length(), match);
+    }
+
+    /**
+     * Matches the path held in a region of a character sequence, such as the request
+     * target of a request line, without copying it.
+     *
+     * @param source the characters holding the path.
+     * @param start the index of the leading '/'.
+     * @param end the index just past the last character of the path.
+     * @param match the object that receives the handler and the path variables.
+     * @return true if a route matched.
+     */
+    public boolean match(CharSequence source, int start, int end, RouteMatch<T> match) {
+        match.reset(source);
+        if (start >= end || source.charAt(start) != '/') {
+            return false;
+        }
+        return match(root, source, start + 1, end, match);
+    }
+
+    /**
+     * Matches the segment starting at `pos` against the children of `node`, backtracking
+     * to the less specific alternatives when a more specific branch fails deeper down.
+     */
+    private boolean match(Node<T> node, CharSequence source, int pos, int end, RouteMatch<T> match) {
+        int segmentEnd = pos;
+        while (segmentEnd < end && source.charAt(segmentEnd) != '/') {
+            segmentEnd++;
+        }
+        boolean last = segmentEnd == end;
+        int depth = match.count;
+
+        Node<T> child = node.findStatic(source, pos, segmentEnd);
+        if (child != null && matchNext(child, source, segmentEnd, end, last, match)) {
+            return true;
+        }
+        match.count = depth;
+        boolean empty = segmentEnd == pos;
+        if (node.variable != null && !empty) {
+            match.push(pos, segmentEnd);
+            if (matchNext(node.variable, source, segmentEnd, end, last, match)) {
+                return true;
+            }
+            match.count = depth;
+        }
+        if (node.wildcard != null && !empty && matchNext(node.wildcard, source, segmentEnd, end, last, match)) {
+            return true;
+        }
+        match.count = depth;
+        if (node.catchAll != null) {
+            match.route(node.catchAll, pos, end);
+            return true;
+        }
+        return false;
+    }
+
+    private boolean matchNext(Node<T> child, CharSequence source, int segmentEnd, int end, boolean last,
+                              RouteMatch<T> match) {
+        if (last) {
+            if (child.route != null) {
+                match.route(child.route, -1, -1);
+                return true;
+            }
+            return false;
+        }
+        return match(child, source, segmentEnd + 1, end, match);
+    }
+
+    /**
+     * A registered handler together with the names of the path variables of its pattern.
+     */
+    static final class Route<T> {
+        final T handler;
+        final String[] variableNames;
+        final boolean catchAll;
+
+        Route(T handler, String[] variableNames, boolean catchAll) {
+            this.handler = handler;
+            this.variableNames = variableNames;
+            this.catchAll = catchAll;
+        }
+    }
+
+    /**
+     * A node of the trie. Static children are kept sorted by label so they can be binary searched.
+     */
+    private static final class Node<T> {
+        private char[][] labels = new char[0][];
+        private Node<T>[] children = newArray(0);
+        private Node<T> variable;
+        private Node<T> wildcard;
+        private Route<T> catchAll;
+        private Route<T> route;
+
+        @SuppressWarnings("unchecked")
+        private static <T> Node<T>[] newArray(int length) {
+            return (Node<T>[]) new Node<?>[length];
+        }
+
+        Node<T> staticChild(String segment) {
+            char[] label = segment.toCharArray();
+            int index = Arrays.binarySearch(labels, label, Node::compare);
+            if (index >= 0) {
+                return children[index];
+            }
+            int insert = -index - 1;
+            Node<T> child = new Node<>();
+            labels = insert(labels, insert, label);
+            Node<T>[] grown = newArray(children.length + 1);
+            System.arraycopy(children, 0, grown, 0, insert);
+            grown[insert] = child;
+            System.arraycopy(children, insert, grown, insert + 1, children.length - insert);
+            children = grown;
+            return child;
+        }
+
+        Node<T> findStatic(CharSequence source, int start, int end) {
+            int low = 0;
+            int high = labels.length - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int cmp = compare(labels[mid], source, start, end);
+                if (cmp < 0) {
+                    low = mid + 1;
+                } else if (cmp > 0) {
+                    high = mid - 1;
+                } else {
+                    return children[mid];
+                }
+            }
+            return null;
+        }
+
+        private static char[][] insert(char[][] array, int index, char[] value) {
+            char[][] grown = new char[array.length + 1][];
+            System.arraycopy(array, 0, grown, 0, index);
+            grown[index] = value;
+            System.arraycopy(array, index, grown, index + 1, array.length - index);
+            return grown;
+        }
+
+        private static int compare(char[] a, char[] b) {
+            int length = Math.min(a.length, b.length);
+            for (int i = 0; i < length; i++) {
+                if (a[i] != b[i]) {
+                    return a[i] - b[i];
+                }
+            }
+            return a.length - b.length;
+        }
+
+        private static int compare(char[] label, CharSequence source, int start, int end) {
+            int length = Math.min(label.length, end - start);
+            for (int i = 0; i < length; i++) {
+                char c = source.charAt(start + i);
+                if (label[i] != c) {
+                    return label[i] - c;
+                }
+            }
+            return label.length - (end - start);
+        }
+    }
+}
@@ -0,0 +1,504 @@
+package edu.escuelaing.arep;
+
+/**
+ * The `ServerConfig` class holds the startup options of the `SimpleWebServer`.
+ * Every option has a sensible default and can be overridden either with a
+ * command line argument of the form `--name=value` or with a system property
+ * of the form `-Dspringeci.name=value`. Command line arguments take precedence.
+ *
+ * Usage example:
+ *
+ * <pre>
+ * {@code
+ * java -jar SpringECI.jar --engine=nio --keepAliveTimeout=10000 --maxKeepAliveRequests=500
+ * }
+ * </pre>
+ */
+public class ServerConfig {
+    private static final String PROPERTY_PREFIX = "springeci.";
+
+    private String host = "0.0.0.0";
+    private int port = 8081;
+    private int acceptors = 1;
+    private boolean reusePort = false;
+    private long shutdownTimeout = 30000;
+    private String engine = "blocking";
+    private int ioThreads = Runtime.getRuntime().availableProcessors();
+    private int workerThreads = 10;
+    private int maxConnections = 10000;
+    private int workerQueueSize = 100;
+    private int queueTimeout = 2000;
+    private int retryAfter = 1;
+    private int rateLimit = 0;
+    private int rateLimitBurst = 0;
+    private int rateLimitClients = 65536;
+    private boolean adaptiveConcurrency = true;
+    private int minConcurrency = 4;
+    private int maxConcurrency = 1000;
+    private int keepAliveTimeout = 5000;
+    private int maxKeepAliveRequests = 100;
+    private boolean http2 = true;
+    private int http2MaxConcurrentStreams = 100;
+    private int maxHeaderSize = 8192;
+    private int maxHeaderCount = 100;
+    private int maxBodySize = 1024 * 1024;
+    private int batchMaxSize = 100;
+    private int batchParallelism = Runtime.getRuntime().availableProcessors();
+    private int fileCacheEntries = 1000;
+    private long fileCacheBytes = 64L * 1024 * 1024;
+    private long fileCacheMaxFileSize = 1024 * 1024;
+    private long fileCacheMappedBytes = 256L * 1024 * 1024;
+    private long fileCacheMaxMappedFileSize = 64L * 1024 * 1024;
+    private int compressionMinSize = 1024;
+    private long asyncTimeout = 30000;
+    private int writeBufferSize = 16 * 1024;
+    private int writeBufferPoolSize = 256;
+    private String accessLog = "";
+    private int accessLogBufferSize = 8192;
+    private long accessLogMaxFileSize = 10L * 1024 * 1024;
+    private int accessLogMaxFiles = 5;
+    private String scanPackages = "";
+
+    /**
+     * Builds a configuration from the command line arguments, falling back to
+     * system properties and then to the defaults.
+     *
+     * @param args the command line arguments, may be null.
+     * @return the resulting configuration.
+     */
+    public static ServerConfig fromArgs(String[] args) {
+        ServerConfig config = new ServerConfig();
+        config.host = config.option(args, "host", config.host);
+        config.port = config.intOption(args, "port", config.port);
+        config.acceptors = config.intOption(args, "acceptors", config.acceptors);
+        config.reusePort = config.booleanOption(args, "reusePort", config.reusePort);
+        config.shutdownTimeout = config.longOption(args, "shutdownTimeout", config.shutdownTimeout);
+        config.engine = config.option(args, "engine", config.engine);
+        config.ioThreads = config.intOption(args, "ioThreads", config.ioThreads);
+        config.workerThreads = config.intOption(args, "workerThreads", config.workerThreads);
+        config.maxConnections = config.intOption(args, "maxConnections", config.maxConnections);
+        config.workerQueueSize = config.intOption(args, "workerQueueSize", config.workerQueueSize);
+        config.queueTimeout = config.intOption(args, "queueTimeout", config.queueTimeout);
+        config.retryAfter = config.intOption(args, "retryAfter", config.retryAfter);
+        config.rateLimit = config.intOption(args, "rateLimit", config.rateLimit);
+        config.rateLimitBurst = config.intOption(args, "rateLimitBurst", config.rateLimitBurst);
+        config.rateLimitClients = config.intOption(args, "rateLimitClients", config.rateLimitClients);
+        config.adaptiveConcurrency = config.booleanOption(args, "adaptiveConcurrency", config.adaptiveConcurrency);
+        config.minConcurrency = config.intOption(args, "minConcurrency", config.minConcurrency);
+        config.maxConcurrency = config.intOption(args, "maxConcurrency", config.maxConcurrency);
+        config.keepAliveTimeout = config.intOption(args, "keepAliveTimeout", config.keepAliveTimeout);
+        config.maxKeepAliveRequests = config.intOption(args, "maxKeepAliveRequests", config.maxKeepAliveRequests);
+        config.http2 = config.booleanOption(args, "http2", config.http2);
+        config.http2MaxConcurrentStreams = config.intOption(args, "http2MaxConcurrentStreams",
+                config.http2MaxConcurrentStreams);
+        config.maxHeaderSize = config.intOption(args, "maxHeaderSize", config.maxHeaderSize);
+        config.maxHeaderCount = config.intOption(args, "maxHeaderCount", config.maxHeaderCount);
+        config.maxBodySize = config.intOption(args, "maxBodySize", config.maxBodySize);
+        config.batchMaxSize = config.intOption(args, "batchMaxSize", config.batchMaxSize);
+        config.batchParallelism = config.intOption(args, "batchParallelism", config.batchParallelism);
+        config.fileCacheEntries = config.intOption(args, "fileCacheEntries", config.fileCacheEntries);
+        config.fileCacheBytes = config.longOption(args, "fileCacheBytes", config.fileCacheBytes);
+        config.fileCacheMaxFileSize = config.longOption(args, "fileCacheMaxFileSize", config.fileCacheMaxFileSize);
+        config.fileCacheMappedBytes = config.longOption(args, "fileCacheMappedBytes", config.fileCacheMappedBytes);
+        config.fileCacheMaxMappedFileSize = config.longOption(args, "fileCacheMaxMappedFileSize",
+                config.fileCacheMaxMappedFileSize);
+        config.compressionMinSize = config.intOption(args, "compressionMinSize", config.compressionMinSize);
+        config.asyncTimeout = config.longOption(args, "asyncTimeout", config.asyncTimeout);
+        config.writeBufferSize = config.intOption(args, "writeBufferSize", config.writeBufferSize);
+        config.writeBufferPoolSize = config.intOption(args, "writeBufferPoolSize", config.writeBufferPoolSize);
+        config.accessLog = config.option(args, "accessLog", config.accessLog);
+        config.accessLogBufferSize = config.intOption(args, "accessLogBufferSize", config.accessLogBufferSize);
+        config.accessLogMaxFileSize = config.longOption(args, "accessLogMaxFileSize", config.accessLogMaxFileSize);
+        config.accessLogMaxFiles = config.intOption(args, "accessLogMaxFiles", config.accessLogMaxFiles);
+        config.scanPackages = config.option(args, "scanPackages", config.scanPackages);
+        return config;
+    }
+
+    /**
+     * Looks up a string option, first in the arguments and then in the system properties.
+     *
+     * @param args the command line arguments, may be null.
+     * @param name the option name.
+     * @param defaultValue the value to use when the option is not present.
+     * @return the option value.
+     */
+    String option(String[] args, String name, String defaultValue) {
+        if (args != null) {
+            String prefix = "--" + name + "=";
+            for (String arg : args) {
+                if (arg != null && arg.startsWith(prefix)) {
+                    return arg.substring(prefix.length());
+                }
+            }
+        }
+        return System.getProperty(PROPERTY_PREFIX + name, defaultValue);
+    }
+
+    /**
+     * Looks up an integer option.
+     *
+     * @param args the command line arguments, may be null.
+     * @param name the option name.
+     * @param defaultValue the value to use when the option is not present.
+     * @return the option value.
+     * @throws IllegalArgumentException if the value is not a valid integer.
+     */
+    int intOption(String[] args, String name, int defaultValue) {
+        String value = option(args, name, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid value for " + name + ": " + value, e);
+        }
+    }
+
+    /**
+     * Looks up a long option.
+     *
+     * @param args the command line arguments, may be null.
+     * @param name the option name.
+     * @param defaultValue the value to use when the option is not present.
+     * @return the option value.
+     * @throws IllegalArgumentException if the value is not a valid number.
+     */
+    long longOption(String[] args, String name, long defaultValue) {
+        String value = option(args, name, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid value for " + name + ": " + value, e);
+        }
+    }
+
+    /**
+     * Looks up a boolean option.
+     *
+     * @param args the command line arguments, may be null.
+     * @param name the option name.
+     * @param defaultValue the value to use when the option is not present.
+     * @return the option value.
+     * @throws IllegalArgumentException if the value is neither "true" nor "false".
+     */
+    boolean booleanOption(String[] args, String name, boolean defaultValue) {
+        String value = option(args, name, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        if (value.trim().equalsIgnoreCase("true")) {
+            return true;
+        } else if (value.trim().equalsIgnoreCase("false")) {
+            return false;
+        }
+        throw new IllegalArgumentException("Invalid value for " + name + ": " + value);
+    }
+
+    /**
+     * @return the address the server listens on; "0.0.0.0" listens on every interface.
+     */
+    public String getHost() {
+        return host;
+    }
+
+    /**
+     * @return the port the server listens on.
+     */
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * @return the number of listening sockets, each with its own accepting thread. More
+     *         than one needs `SO_REUSEPORT`, so that the kernel spreads the incoming
+     *         connections across them.
+     */
+    public int getAcceptors() {
+        return acceptors;
+    }
+
+    /**
+     * @return whether the listening sockets are bound with `SO_REUSEPORT`, which lets
+     *         several acceptors, or several server processes, listen on the same port.
+     */
+    public boolean isReusePort() {
+        return reusePort || acceptors > 1;
+    }
+
+    /**
+     * @return the time in milliseconds a graceful shutdown waits for the requests in
+     *         flight to complete before it closes their connections.
+     */
+    public long getShutdownTimeout() {
+        return shutdownTimeout;
+    }
+
+    /**
+     * @return the connection engine: "blocking" for a fixed pool of threads, "virtual"
+     *         for a virtual thread per connection or "nio" for the non-blocking selector engine.
+     */
+    public String getEngine() {
+        return engine;
+    }
+
+    /**
+     * @return the number of event-loop threads used by the "nio" engine.
+     */
+    public int getIoThreads() {
+        return ioThreads;
+    }
+
+    /**
+     * @return the number of pool threads used by the "blocking" engine, and by the "nio"
+     *         engine for the requests that may block.
+     */
+    public int getWorkerThreads() {
+        return workerThreads;
+    }
+
+    /**
+     * @return the maximum number of connections the "blocking" and "virtual" engines
+     *         handle at once; further clients wait in the accept backlog.
+     */
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * @return the number of accepted connections the "blocking" engine, or of requests that
+     *         may block the "nio" engine, queued while all worker threads are busy; further
+     *         ones are answered with `503 Service Unavailable`.
+     */
+    public int getWorkerQueueSize() {
+        return workerQueueSize;
+    }
+
+    /**
+     * @return the time in milliseconds a connection may wait for a worker thread; connections
+     *         that waited longer are answered with `503 Service Unavailable`. Zero waits forever.
+     */
+    public int getQueueTimeout() {
+        return queueTimeout;
+    }
+
+    /**
+     * @return the seconds sent in the `Retry-After` header of `503` responses.
+     */
+    public int getRetryAfter() {
+        return retryAfter;
+    }
+
+    /**
+     * @return the requests per second each client address may sustain; zero or less does
+     *         not limit clients.
+     */
+    public int getRateLimit() {
+        return rateLimit;
+    }
+
+    /**
+     * @return the requests each client address may send at once; zero or less allows one
+     *         second's worth.
+     */
+    public int getRateLimitBurst() {
+        return rateLimitBurst;
+    }
+
+    /**
+     * @return the number of clients each rate limiter tracks at once; beyond that the
+     *         clients idle the longest are forgotten.
+     */
+    public int getRateLimitClients() {
+        return rateLimitClients;
+    }
+
+    /**
+     * @return whether the engines limit the requests served at once to a limit adapted to
+     *         the observed latency.
+     */
+    public boolean isAdaptiveConcurrency() {
+        return adaptiveConcurrency;
+    }
+
+    /**
+     * @return the lowest value of the adaptive concurrency limit.
+     */
+    public int getMinConcurrency() {
+        return minConcurrency;
+    }
+
+    /**
+     * @return the highest value of the adaptive concurrency limit.
+     */
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    /**
+     * @return the time in milliseconds an idle persistent connection is kept open
+     *         while waiting for the next request.
+     */
+    public int getKeepAliveTimeout() {
+        return keepAliveTimeout;
+    }
+
+    /**
+     * @return the maximum number of requests served on a single persistent connection.
+     */
+    public int getMaxKeepAliveRequests() {
+        return maxKeepAliveRequests;
+    }
+
+    /**
+     * @return whether connections may switch to cleartext HTTP/2, with the preface or with `Upgrade: h2c`.
+     */
+    public boolean isHttp2() {
+        return http2;
+    }
+
+    /**
+     * @return the maximum number of streams a client may have open at once on an HTTP/2 connection.
+     */
+    public int getHttp2MaxConcurrentStreams() {
+        return http2MaxConcurrentStreams;
+    }
+
+    /**
+     * @return the maximum size in bytes of a request line plus its headers.
+     */
+    public int getMaxHeaderSize() {
+        return maxHeaderSize;
+    }
+
+    /**
+     * @return the maximum number of headers of a request.
+     */
+    public int getMaxHeaderCount() {
+        return maxHeaderCount;
+    }
+
+    /**
+     * @return the maximum size in bytes of a request body.
+     */
+    public int getMaxBodySize() {
+        return maxBodySize;
+    }
+
+    /**
+     * @return the largest number of requests in one call to `/app/_batch`; larger batches get `413`.
+     */
+    public int getBatchMaxSize() {
+        return batchMaxSize;
+    }
+
+    /**
+     * @return the number of threads the requests of batches are dispatched on.
+     */
+    public int getBatchParallelism() {
+        return batchParallelism;
+    }
+
+    /**
+     * @return the maximum number of static files kept in memory.
+     */
+    public int getFileCacheEntries() {
+        return fileCacheEntries;
+    }
+
+    /**
+     * @return the maximum total size in bytes of the static files kept in memory.
+     */
+    public long getFileCacheBytes() {
+        return fileCacheBytes;
+    }
+
+    /**
+     * @return the size in bytes above which a static file is memory-mapped instead of copied to the heap.
+     */
+    public long getFileCacheMaxFileSize() {
+        return fileCacheMaxFileSize;
+    }
+
+    /**
+     * @return the maximum total size in bytes of the memory-mapped static files.
+     */
+    public long getFileCacheMappedBytes() {
+        return fileCacheMappedBytes;
+    }
+
+    /**
+     * @return the size in bytes above which a static file is not cached but streamed from disk.
+     */
+    public long getFileCacheMaxMappedFileSize() {
+        return fileCacheMaxMappedFileSize;
+    }
+
+    /**
+     * @return the body size in bytes below which textual responses are sent uncompressed.
+     */
+    public int getCompressionMinSize() {
+        return compressionMinSize;
+    }
+
+    /**
+     * @return how long the server waits for the result of an asynchronous controller method
+     *         without a `@Timeout`, in milliseconds; zero or less waits without limit.
+     */
+    public long getAsyncTimeout() {
+        return asyncTimeout;
+    }
+
+    /**
+     * @return the size in bytes of the direct buffers responses are encoded into.
+     */
+    public int getWriteBufferSize() {
+        return writeBufferSize;
+    }
+
+    /**
+     * @return the number of idle write buffers kept for reuse.
+     */
+    public int getWriteBufferPoolSize() {
+        return writeBufferPoolSize;
+    }
+
+    /**
+     * @return the file the access log is written to; empty if requests are not logged.
+     */
+    public String getAccessLog() {
+        return accessLog;
+    }
+
+    /**
+     * @return the number of access log records buffered for the writer thread; more are dropped.
+     */
+    public int getAccessLogBufferSize() {
+        return accessLogBufferSize;
+    }
+
+    /**
+     * @return the size in bytes past which the access log file is rotated.
+     */
+    public long getAccessLogMaxFileSize() {
+        return accessLogMaxFileSize;
+    }
+
+    /**
+     * @return the number of rotated access log files kept.
+     */
+    public int getAccessLogMaxFiles() {
+        return accessLogMaxFiles;
+    }
+
+    /**
+     * @return the comma-separated package prefixes searched for controllers when the classpath
+     *         has no controller index; empty to search the whole classpath.
+     */
+    public String getScanPackages() {
+        return scanPackages;
+    }
+}
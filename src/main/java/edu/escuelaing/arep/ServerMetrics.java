@@ -0,0 +1,304 @@
+package edu.escuelaing.arep;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+import java.util.function.ToLongFunction;
+
+/**
+ * The `ServerMetrics` class counts what the server does: requests and their status codes,
+ * bytes received and sent, connections and controller failures. Together with the latency
+ * histogram and response cache of every route it is rendered in the Prometheus text format
+ * by the reserved `/app/_metrics` endpoint.
+ *
+ * Counters are `LongAdder`s or atomic arrays, so recording never locks and threads
+ * counting at the same time do not contend on one memory location. Rendering reads them
+ * without stopping the server.
+ */
+public class ServerMetrics {
+    public static final String ENDPOINT = "/app/_metrics";
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=UTF-8";
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private final LongAdder requests = new LongAdder();
+    private final AtomicLongArray statuses = new AtomicLongArray(600);
+    private final LongAdder bytesReceived = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder connections = new LongAdder();
+    private final LongAdder activeConnections = new LongAdder();
+    private final LongAdder handlerErrors = new LongAdder();
+    private final LongAdder asyncPending = new LongAdder();
+    private final LongAdder asyncTimeouts = new LongAdder();
+    private final LongAdder asyncCancelled = new LongAdder();
+    private final LongAdder rejectedQueueFull = new LongAdder();
+    private final LongAdder rejectedDeadline = new LongAdder();
+    private final LongAdder rejectedConcurrency = new LongAdder();
+    private final LongAdder rateLimitedClients = new LongAdder();
+    private final LongAdder rateLimitedRoutes = new LongAdder();
+    private final LongAdder accessLogDropped = new LongAdder();
+    private volatile IntSupplier queueDepth = () -> 0;
+    private volatile ConcurrencyLimiter limiter;
+
+    /**
+     * Counts a response sent for a request, including the ones rejected before dispatching.
+     *
+     * @param status the status code and reason phrase, e.g. "200 OK".
+     */
+    public void recordResponse(String status) {
+        requests.increment();
+        int code = (status.charAt(0) - '0') * 100 + (status.charAt(1) - '0') * 10 + (status.charAt(2) - '0');
+        if (code >= 100 && code < 600) {
+            statuses.incrementAndGet(code);
+        }
+    }
+
+    public void recordBytesReceived(long bytes) {
+        bytesReceived.add(bytes);
+    }
+
+    public void recordBytesSent(long bytes) {
+        bytesSent.add(bytes);
+    }
+
+    /**
+     * Counts a connection accepted by an engine; it stays active until `connectionClosed`.
+     */
+    public void connectionOpened() {
+        connections.increment();
+        activeConnections.increment();
+    }
+
+    public void connectionClosed() {
+        activeConnections.decrement();
+    }
+
+    /**
+     * Counts a controller call that threw instead of returning a response.
+     */
+    public void recordHandlerError() {
+        handlerErrors.increment();
+    }
+
+    /**
+     * Counts an asynchronous controller call whose result is pending; it stays pending
+     * until `asyncCompleted`.
+     */
+    public void asyncStarted() {
+        asyncPending.increment();
+    }
+
+    public void asyncCompleted() {
+        asyncPending.decrement();
+    }
+
+    /**
+     * Counts an asynchronous controller call answered with `504` because it took too long.
+     */
+    public void recordAsyncTimeout() {
+        asyncTimeouts.increment();
+    }
+
+    /**
+     * Counts an asynchronous controller call cancelled because its client went away.
+     */
+    public void recordAsyncCancelled() {
+        asyncCancelled.increment();
+    }
+
+    /**
+     * Counts a connection answered with `503` because the worker queue was full.
+     */
+    public void recordRejectedQueueFull() {
+        rejectedQueueFull.increment();
+    }
+
+    /**
+     * Counts a connection answered with `503` because it waited too long for a worker thread.
+     */
+    public void recordRejectedDeadline() {
+        rejectedDeadline.increment();
+    }
+
+    /**
+     * Counts a request answered with `503` because the concurrency limit was reached.
+     */
+    public void recordRejectedConcurrency() {
+        rejectedConcurrency.increment();
+    }
+
+    /**
+     * Counts a request answered with `429` because its client was over the rate limit of the server.
+     */
+    public void recordRateLimitedClient() {
+        rateLimitedClients.increment();
+    }
+
+    /**
+     * Counts a request answered with `429` because it was over the `@RateLimit` of its route.
+     */
+    public void recordRateLimitedRoute() {
+        rateLimitedRoutes.increment();
+    }
+
+    /**
+     * Counts an access log record dropped because the ring buffer of the `AccessLog` was full.
+     */
+    public void recordAccessLogDropped() {
+        accessLogDropped.increment();
+    }
+
+    /**
+     * Sets the limiter whose limit and requests in flight are reported.
+     *
+     * @param limiter the concurrency limiter of the engine, or null.
+     */
+    public void setConcurrencyLimiter(ConcurrencyLimiter limiter) {
+        this.limiter = limiter;
+    }
+
+    /**
+     * Sets where the number of connections waiting for a worker thread comes from.
+     *
+     * @param queueDepth the gauge of the executor of the engine.
+     */
+    public void setQueueDepth(IntSupplier queueDepth) {
+        this.queueDepth = queueDepth;
+    }
+
+    public long requests() {
+        return requests.sum();
+    }
+
+    /**
+     * @param code a status code, e.g. 404.
+     * @return the responses sent with that status code.
+     */
+    public long responses(int code) {
+        return statuses.get(code);
+    }
+
+    public long activeConnections() {
+        return activeConnections.sum();
+    }
+
+    /**
+     * @return the access log records dropped so far.
+     */
+    public long accessLogDropped() {
+        return accessLogDropped.sum();
+    }
+
+    /**
+     * Renders the counters of the server and of each route in the Prometheus text format.
+     *
+     * @param routes the registered routes by pattern.
+     * @return the response of the metrics endpoint.
+     */
+    public HttpResponse scrape(Map<String, RouteInvoker> routes) {
+        StringBuilder out = new StringBuilder(4096);
+        counter(out, "springeci_requests_total", "Requests answered.", requests.sum());
+        header(out, "springeci_responses_total", "Responses by status code.", "counter");
+        for (int code = 100; code < 600; code++) {
+            long count = statuses.get(code);
+            if (count > 0) {
+                out.append("springeci_responses_total{code=\"").append(code).append("\"} ").append(count).append('\n');
+            }
+        }
+        counter(out, "springeci_received_bytes_total", "Bytes read from clients.", bytesReceived.sum());
+        counter(out, "springeci_sent_bytes_total", "Bytes of responses written to clients.", bytesSent.sum());
+        counter(out, "springeci_connections_total", "Connections accepted.", connections.sum());
+        gauge(out, "springeci_active_connections", "Connections currently open.", activeConnections.sum());
+        gauge(out, "springeci_worker_queue_depth", "Connections waiting for a worker thread.",
+                queueDepth.getAsInt());
+        counter(out, "springeci_handler_errors_total", "Controller calls that threw.", handlerErrors.sum());
+        gauge(out, "springeci_async_pending", "Asynchronous controller calls waiting for their result.",
+                asyncPending.sum());
+        counter(out, "springeci_async_timeouts_total", "Asynchronous controller calls that timed out.",
+                asyncTimeouts.sum());
+        counter(out, "springeci_async_cancelled_total", "Asynchronous controller calls cancelled on disconnect.",
+                asyncCancelled.sum());
+        header(out, "springeci_rejected_total", "Requests answered with 503 to shed load, by reason.", "counter");
+        out.append("springeci_rejected_total{reason=\"queue_full\"} ").append(rejectedQueueFull.sum()).append('\n');
+        out.append("springeci_rejected_total{reason=\"deadline\"} ").append(rejectedDeadline.sum()).append('\n');
+        out.append("springeci_rejected_total{reason=\"concurrency\"} ").append(rejectedConcurrency.sum())
+                .append('\n');
+        header(out, "springeci_rate_limited_total", "Requests answered with 429, by the limit they exceeded.",
+                "counter");
+        out.append("springeci_rate_limited_total{scope=\"client\"} ").append(rateLimitedClients.sum()).append('\n');
+        out.append("springeci_rate_limited_total{scope=\"route\"} ").append(rateLimitedRoutes.sum()).append('\n');
+        counter(out, "springeci_access_log_dropped_total", "Access log records dropped because the buffer was full.",
+                accessLogDropped.sum());
+        ConcurrencyLimiter currentLimiter = limiter;
+        if (currentLimiter != null) {
+            gauge(out, "springeci_concurrency_limit", "Requests allowed in flight at once.",
+                    currentLimiter.getLimit());
+            gauge(out, "springeci_inflight_requests", "Requests being served.", currentLimiter.getInFlight());
+        }
+
+        header(out, "springeci_request_duration_seconds", "Time spent in controller routes.", "summary");
+        for (Map.Entry<String, RouteInvoker> route : routes.entrySet()) {
+            LatencyHistogram latency = route.getValue().getLatency();
+            String label = "route=\"" + escape(route.getKey()) + "\"";
+            for (double quantile : QUANTILES) {
+                out.append("springeci_request_duration_seconds{").append(label).append(",quantile=\"")
+                        .append(quantile).append("\"} ").append(seconds(latency.valueAtQuantile(quantile)))
+                        .append('\n');
+            }
+            out.append("springeci_request_duration_seconds_sum{").append(label).append("} ")
+                    .append(seconds(latency.sum())).append('\n');
+            out.append("springeci_request_duration_seconds_count{").append(label).append("} ")
+                    .append(latency.count()).append('\n');
+        }
+
+        cacheCounter(out, "springeci_response_cache_hits_total", "Responses served from the cache of a route.",
+                routes, ResponseCache::hits);
+        cacheCounter(out, "springeci_response_cache_misses_total", "Lookups that called the controller.",
+                routes, ResponseCache::misses);
+        cacheCounter(out, "springeci_response_cache_evictions_total", "Cached responses evicted or expired.",
+                routes, ResponseCache::evictions);
+        return new HttpResponse("200 OK", CONTENT_TYPE, out.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void header(StringBuilder out, String name, String help, String type) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void counter(StringBuilder out, String name, String help, long value) {
+        header(out, name, help, "counter");
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void gauge(StringBuilder out, String name, String help, long value) {
+        header(out, name, help, "gauge");
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    /**
+     * Writes one counter of the response caches, with a sample for each `@Cacheable` route.
+     */
+    private static void cacheCounter(StringBuilder out, String name, String help, Map<String, RouteInvoker> routes,
+                                     ToLongFunction<ResponseCache> value) {
+        header(out, name, help, "counter");
+        for (Map.Entry<String, RouteInvoker> route : routes.entrySet()) {
+            ResponseCache cache = route.getValue().getCache();
+            if (cache != null) {
+                out.append(name).append("{route=\"").append(escape(route.getKey())).append("\"} ")
+                        .append(value.applyAsLong(cache)).append('\n');
+            }
+        }
+    }
+
+    private static double seconds(long nanos) {
+        return nanos / 1e9;
+    }
+
+    /**
+     * Escapes a label value as the text format requires.
+     */
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
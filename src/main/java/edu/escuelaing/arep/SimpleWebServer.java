@@ -2,290 +2,378 @@ package edu.escuelaing.arep;
 
 import java.io.*;
 import java.net.*;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Paths;
 import java.util.*;
 import java.util.concurrent.*;
-import java.lang.annotation.Annotation;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.lang.reflect.Method;
-import java.lang.reflect.Parameter;
-import edu.escuelaing.arep.annotations.GetMapping;
-import edu.escuelaing.arep.annotations.RequestParam;
-import edu.escuelaing.arep.annotations.RestController;
 
 /**
  * The `SimpleWebServer` class implements a basic multithreaded HTTP server
  * capable of serving static files and handling dynamic GET requests using
  * custom controller classes annotated with `@RestController`.
+ *
+ * The server shuts down gracefully when the JVM does, on `SIGTERM` for instance: it stops
+ * accepting, lets the requests in flight complete for up to `shutdownTimeout` and then
+ * closes. With `reusePort` a new instance can listen on the same port meanwhile, so the
+ * server can be restarted without refusing a single connection.
  */
 public class SimpleWebServer {
-    private static final int PORT = 8081;
     public static final String WEB_ROOT = "src/main/java/edu/escuelaing/arep/resourse/webroot";
-    public static final Map<String, Method> getMappings = new HashMap<>();
-    public static final Map<String, Object> controllers = new HashMap<>();
-    private static boolean isRun = true;
+    private static final ControllerRegistry registry = new ControllerRegistry();
+    private static ServerConfig config = new ServerConfig();
+    private static volatile boolean isRun = true;
+    private static volatile NioServer nioServer;
+    private static volatile BlockingServer blockingServer;
+    private static StaticFileCache staticFiles;
+    private static final ServerMetrics metrics = new ServerMetrics();
+    private static ConcurrencyLimiter concurrencyLimiter;
+    private static RateLimiter rateLimiter;
+    private static BufferPool bufferPool;
+    private static ExecutorService streamExecutor;
+    private static BatchHandler batchHandler;
+    private static AccessLog accessLog;
 
     /**
      * Main method that starts the web server, initializes the controllers, and
-     * listens for incoming connections.
+     * listens for incoming connections with the engine selected in the configuration.
      */
     public static void main(String[] args) throws IOException, ReflectiveOperationException {
-        ExecutorService threadPool = Executors.newFixedThreadPool(10);
-        ServerSocket serverSocket = new ServerSocket(PORT);
+        config = ServerConfig.fromArgs(args);
+        if (config.getRateLimit() > 0) {
+            rateLimiter = new RateLimiter(config.getRateLimit(), config.getRateLimitBurst(),
+                    config.getRateLimitClients());
+        }
+        if (!config.getAccessLog().isEmpty()) {
+            accessLog = new AccessLog(Paths.get(config.getAccessLog()), config.getAccessLogBufferSize(),
+                    config.getAccessLogMaxFileSize(), config.getAccessLogMaxFiles(), metrics);
+            accessLog.start();
+        }
         initializeControllers();  // Load all controllers
-        while (isRun) {
-            Socket clientSocket = serverSocket.accept();  // Accept new client connection
-            threadPool.submit(new ClientHandler(clientSocket));  // Handle the request in a new thread
+        if (config.isAdaptiveConcurrency()) {
+            concurrencyLimiter = new ConcurrencyLimiter(config.getWorkerThreads() * 2,
+                    config.getMinConcurrency(), config.getMaxConcurrency());
+            metrics.setConcurrencyLimiter(concurrencyLimiter);
+        }
+
+        Runtime.getRuntime().addShutdownHook(new Thread(SimpleWebServer::stop, "graceful-shutdown"));
+
+        switch (config.getEngine()) {
+            case "nio":
+                nioServer = new NioServer(config);
+                metrics.setQueueDepth(nioServer::getQueueDepth);
+                break;
+            case "blocking":
+                // A bounded queue: when it is full new connections are answered with 503 at once
+                ThreadPoolExecutor workers = new ThreadPoolExecutor(config.getWorkerThreads(),
+                        config.getWorkerThreads(), 0L, TimeUnit.MILLISECONDS,
+                        new ArrayBlockingQueue<>(Math.max(1, config.getWorkerQueueSize())));
+                metrics.setQueueDepth(() -> workers.getQueue().size());
+                blockingServer = new BlockingServer(config, workers);
+                break;
+            case "virtual":
+                blockingServer = new BlockingServer(config, newVirtualThreadExecutor());
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown engine: " + config.getEngine());
+        }
+        if (!isRun) {
+            return;  // stop() was called while starting
+        }
+        if (nioServer != null) {
+            nioServer.serve();
+        } else {
+            blockingServer.serve();
         }
-        serverSocket.close();
-        threadPool.shutdown();
     }
 
     /**
-     * Registers controllers (annotated with @RestController) and their methods
-     * (annotated with @GetMapping) to handle specific GET requests.
+     * Opens and binds the listening sockets of the server: one, or `acceptors` sockets bound
+     * to the same address with `SO_REUSEPORT`, among which the kernel spreads the incoming
+     * connections. Sockets are opened as channels, so that static files can be sent with
+     * zero-copy transfer. `SO_REUSEPORT` is looked up reflectively because it needs Java 9;
+     * where it is not available the server listens on a single socket.
+     *
+     * @param config the configuration holding the address, the port and the acceptors.
+     * @return the bound sockets, at least one.
      */
-    public static void initializeControllers() throws ReflectiveOperationException {
-        registerController(HelloService.class);  // Register HelloService
-        registerController(SqrtService.class);   // Register SqrtService
+    static ServerSocketChannel[] openListeners(ServerConfig config) throws IOException {
+        InetSocketAddress address = new InetSocketAddress(config.getHost(), config.getPort());
+        SocketOption<Boolean> reusePort = config.isReusePort() ? reusePortOption() : null;
+        List<ServerSocketChannel> listeners = new ArrayList<>();
+        try {
+            do {
+                ServerSocketChannel listener = ServerSocketChannel.open();
+                listeners.add(listener);
+                if (reusePort != null && listener.supportedOptions().contains(reusePort)) {
+                    listener.setOption(reusePort, true);
+                } else if (config.isReusePort()) {
+                    System.err.println("SO_REUSEPORT is not available, listening on a single socket");
+                    listener.bind(address);
+                    break;
+                }
+                listener.bind(address);
+            } while (listeners.size() < config.getAcceptors());
+        } catch (IOException e) {
+            closeListeners(listeners.toArray(new ServerSocketChannel[0]));
+            throw e;
+        }
+        return listeners.toArray(new ServerSocketChannel[0]);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static SocketOption<Boolean> reusePortOption() {
+        try {
+            return (SocketOption<Boolean>) StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
     }
 
     /**
-     * Registers a controller class and maps its methods annotated with @GetMapping.
+     * Closes listening sockets, which makes the threads blocked accepting on them return.
      *
-     * @param controllerClass the class of the controller to register.
+     * @param listeners the sockets to close, may be null.
      */
-    private static void registerController(Class<?> controllerClass) throws ReflectiveOperationException {
-        Object controllerInstance = controllerClass.getDeclaredConstructor().newInstance();
-        controllers.put(controllerClass.getName(), controllerInstance);
-
-        // Map methods annotated with @GetMapping
-        for (Method method : controllerClass.getDeclaredMethods()) {
-            if (method.isAnnotationPresent(GetMapping.class)) {
-                GetMapping getMapping = method.getAnnotation(GetMapping.class);
-                getMappings.put(getMapping.value(), method);
+    static void closeListeners(ServerSocketChannel[] listeners) {
+        if (listeners == null) {
+            return;
+        }
+        for (ServerSocketChannel listener : listeners) {
+            try {
+                listener.close();
+            } catch (IOException e) {
+                e.printStackTrace();
             }
         }
     }
 
     /**
-     * Stops the server by setting the running flag to false.
+     * Builds the response sent when the server sheds load.
+     *
+     * @param config the configuration holding the `Retry-After` delay.
+     * @return a `503 Service Unavailable` response.
      */
-    public static void stop() {
-        isRun = false;
+    static HttpResponse serviceUnavailable(ServerConfig config) {
+        return new HttpResponse("503 Service Unavailable")
+                .withHeader("Retry-After", String.valueOf(config.getRetryAfter()));
     }
-}
-
-/**
- * The `ClientHandler` class implements Runnable and handles individual client connections.
- * It processes HTTP requests and responds accordingly, either by serving static files or 
- * invoking controller methods for dynamic content.
- */
-class ClientHandler implements Runnable {
-    private Socket clientSocket;
 
-    public ClientHandler(Socket socket) {
-        this.clientSocket = socket;
+    /**
+     * Creates an executor that starts a new virtual thread for each task. Virtual threads
+     * are looked up reflectively because they need Java 21; on older runtimes the server
+     * falls back to a cached pool of platform threads, still bounded by `maxConnections`.
+     *
+     * @return the executor for the "virtual" engine.
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+            System.err.println("Virtual threads are not available on Java "
+                    + System.getProperty("java.version") + ", using platform threads instead");
+            return Executors.newCachedThreadPool();
+        }
     }
 
-    @Override
-    public void run() {
-        try (BufferedReader in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-             PrintWriter out = new PrintWriter(clientSocket.getOutputStream(), true);
-             BufferedOutputStream dataOut = new BufferedOutputStream(clientSocket.getOutputStream())) {
-
-            String requestLine = in.readLine();
-            if (requestLine == null) return;
-
-            String[] tokens = requestLine.split(" ");
-            String method = tokens[0];
-            String fileRequested = tokens[1];
-
-            printRequestHeader(requestLine, in);
-
-            if (fileRequested.startsWith("/app")) {
-                handleAppRequest(method, fileRequested, out);  // Handle dynamic requests
-            } else if (method.equals("GET")) {
-                handleGetRequest(fileRequested, out, dataOut);  // Handle static file requests
-            } else {
-                out.println("HTTP/1.1 405 Method Not Allowed");
-                out.println();
-                out.flush();
+    /**
+     * Registers controllers (annotated with @RestController) and their methods
+     * (annotated with @GetMapping) to handle specific GET requests. The controllers are
+     * taken from the `ControllerIndex` written at build time; only when the classpath
+     * carries no index are they searched with the `ClasspathScanner`. All of them are
+     * published to the registry with a single change of its route table.
+     */
+    public static void initializeControllers() throws ReflectiveOperationException, IOException {
+        ClassLoader loader = SimpleWebServer.class.getClassLoader();
+        List<ControllerRegistry.Registration> found = new ArrayList<>();
+        ControllerIndex index = ControllerIndex.load(loader);
+        if (index != null) {
+            for (String controller : index.controllers()) {
+                found.add(indexedController(Class.forName(controller, true, loader), index.routes(controller)));
             }
-
-        } catch (IOException e) {
-            e.printStackTrace();
-        } finally {
-            try {
-                clientSocket.close();
-            } catch (IOException e) {
-                e.printStackTrace();
+        } else {
+            String[] packages = config.getScanPackages().isEmpty() ? new String[0] : config.getScanPackages().split(",");
+            for (Class<?> controller : new ClasspathScanner(loader, packages).findControllers()) {
+                found.add(ControllerRegistry.scan(ControllerRegistry.newController(controller)));
             }
         }
+        registry.registerAll(found);
     }
 
     /**
-     * Prints the request headers to the console.
+     * Creates a controller whose routes come from the index, looking up each handler
+     * method by its signature instead of scanning the methods of the class.
      *
-     * @param requestLine the initial request line of the HTTP request.
-     * @param in the BufferedReader to read additional headers.
+     * @param controllerClass the class of the controller to register.
+     * @param routes the indexed routes of the controller.
+     * @return the controller with the invokers of its routes.
      */
-    private void printRequestHeader(String requestLine, BufferedReader in) throws IOException {
-        String inputLine;
-        while ((inputLine = in.readLine()) != null) {
-            if (!in.ready()) {
-                break;
-            }
+    private static ControllerRegistry.Registration indexedController(Class<?> controllerClass,
+            List<ControllerIndex.Route> routes) throws ReflectiveOperationException {
+        Object controllerInstance = ControllerRegistry.newController(controllerClass);
+        Map<String, RouteInvoker> invokers = new LinkedHashMap<>();
+        for (ControllerIndex.Route route : routes) {
+            Method method = controllerClass.getDeclaredMethod(route.getMethodName(),
+                    route.parameterClasses(controllerClass.getClassLoader()));
+            invokers.put(route.getPattern(), RouteInvoker.create(controllerInstance, method));
         }
+        return new ControllerRegistry.Registration(controllerClass.getName(), controllerInstance, invokers);
     }
 
     /**
-     * Handles GET requests for static files located in the web root directory.
+     * Returns the registry of the controllers and their routes, which can be changed while
+     * the server runs.
      *
-     * @param fileRequested the requested file path.
-     * @param out the PrintWriter to write HTTP headers.
-     * @param dataOut the BufferedOutputStream to send the file data.
+     * @return the registry shared by all engines and dispatchers.
      */
-    public void handleGetRequest(String fileRequested, PrintWriter out, BufferedOutputStream dataOut)
-            throws IOException {
-        File file = new File(SimpleWebServer.WEB_ROOT, fileRequested);
-        int fileLength = (int) file.length();
-        String content = getContentType(fileRequested);
+    public static ControllerRegistry getRegistry() {
+        return registry;
+    }
 
-        if (file.exists()) {
-            byte[] fileData = readFileData(file, fileLength);
-            out.println("HTTP/1.1 200 OK");
-            out.println("Content-type: " + content);
-            out.println("Content-length: " + fileLength);
-            out.println();
-            out.flush();
-            dataOut.write(fileData, 0, fileLength);
-            dataOut.flush();
-        } else {
-            out.println("HTTP/1.1 404 Not Found");
-            out.println();
-            out.flush();
-        }
+    /**
+     * Returns the configuration the server was started with.
+     *
+     * @return the current server configuration.
+     */
+    public static ServerConfig getConfig() {
+        return config;
     }
 
     /**
-     * Handles dynamic GET requests mapped to controller methods.
+     * Returns the cache of the web root, creating it on first use.
      *
-     * @param method the HTTP method (GET).
-     * @param path the requested URI path.
-     * @param out the PrintWriter to send the HTTP response.
+     * @return the static file cache shared by all connections.
      */
-    protected void handleAppRequest(String method, String path, PrintWriter out) {
-        if ("GET".equalsIgnoreCase(method)) {
-            String[] pathParts = path.split("\\?");
-            String basePath = pathParts[0];
-            Map<String, String> queryParams = new HashMap<>();
+    public static synchronized StaticFileCache getStaticFiles() {
+        if (staticFiles == null) {
+            staticFiles = new StaticFileCache(Paths.get(WEB_ROOT), config.getFileCacheEntries(),
+                    config.getFileCacheBytes(), config.getFileCacheMaxFileSize(),
+                    config.getFileCacheMappedBytes(), config.getFileCacheMaxMappedFileSize(),
+                    config.getCompressionMinSize());
+        }
+        return staticFiles;
+    }
 
-            if (pathParts.length > 1) {
-                String queryString = pathParts[1];
-                String[] pairs = queryString.split("&");
-                for (String pair : pairs) {
-                    String[] keyValue = pair.split("=");
-                    if (keyValue.length > 1) {
-                        queryParams.put(keyValue[0], keyValue[1]);
-                    } else {
-                        queryParams.put(keyValue[0], "");
-                    }
-                }
-            }
+    /**
+     * Returns the pool of write buffers, creating it on first use.
+     *
+     * @return the pool shared by the `ResponseWriter`s of all connections.
+     */
+    public static synchronized BufferPool getBufferPool() {
+        if (bufferPool == null) {
+            bufferPool = new BufferPool(config.getWriteBufferSize(), config.getWriteBufferPoolSize());
+        }
+        return bufferPool;
+    }
 
-            Method handlerMethod = SimpleWebServer.getMappings.get(basePath);
-            if (handlerMethod != null) {
-                try {
-                    Object controller = SimpleWebServer.controllers.get(handlerMethod.getDeclaringClass().getName());
-                    Object response = invokeControllerMethod(handlerMethod, controller, queryParams);
-                    out.println("HTTP/1.1 200 OK");
-                    out.println("Content-type: text/plain");
-                    out.println();
-                    out.println(response.toString());
-                } catch (Exception e) {
-                    e.printStackTrace();
-                    out.println("HTTP/1.1 500 Internal Server Error");
-                }
+    /**
+     * Returns the executor the streams of HTTP/2 connections are served on, creating it on
+     * first use: virtual threads for the "virtual" engine, otherwise a cached pool of daemon
+     * threads. A stream may wait for the flow-control window of its client, so a fixed pool
+     * could be held by slow clients; the number of streams at once is bounded by the
+     * concurrency limit and by `http2MaxConcurrentStreams` instead.
+     *
+     * @return the executor shared by all HTTP/2 connections.
+     */
+    static synchronized ExecutorService getStreamExecutor() {
+        if (streamExecutor == null) {
+            if (config.getEngine().equals("virtual")) {
+                streamExecutor = newVirtualThreadExecutor();
             } else {
-                out.println("HTTP/1.1 404 Not Found");
+                AtomicInteger count = new AtomicInteger();
+                streamExecutor = Executors.newCachedThreadPool(task -> {
+                    Thread thread = new Thread(task, "h2-stream-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
             }
-        } else {
-            out.println("HTTP/1.1 405 Method Not Allowed");
         }
-        out.flush();
+        return streamExecutor;
     }
 
     /**
-     * Invokes the controller method that handles the current request.
+     * Returns the handler of `/app/_batch`, creating it and its `ForkJoinPool` on first use.
      *
-     * @param handlerMethod the method to invoke.
-     * @param controller the controller instance.
-     * @param queryParams the query parameters of the request.
-     * @return the response object returned by the controller method.
+     * @return the batch handler shared by all dispatchers.
      */
-    private Object invokeControllerMethod(Method handlerMethod, Object controller, Map<String, String> queryParams)
-            throws ReflectiveOperationException {
-        Parameter[] parameters = handlerMethod.getParameters();
-        Object[] args = new Object[parameters.length];
-
-        for (int i = 0; i < parameters.length; i++) {
-            RequestParam requestParam = parameters[i].getAnnotation(RequestParam.class);
-            if (requestParam != null) {
-                String paramName = requestParam.value();
-                String paramValue = queryParams.getOrDefault(paramName, requestParam.defaultValue());
-                args[i] = convertToRequiredType(parameters[i].getType(), paramValue);
-            }
+    static synchronized BatchHandler getBatchHandler() {
+        if (batchHandler == null) {
+            batchHandler = new BatchHandler(new ForkJoinPool(Math.max(1, config.getBatchParallelism())),
+                    config.getBatchMaxSize());
         }
+        return batchHandler;
+    }
 
-        return handlerMethod.invoke(controller, args);
+    /**
+     * Returns the metrics of the server, served at `/app/_metrics`.
+     *
+     * @return the metrics shared by all engines and dispatchers.
+     */
+    public static ServerMetrics getMetrics() {
+        return metrics;
     }
 
     /**
-     * Converts a query parameter value to the required type for method invocation.
+     * Returns the limiter of the requests served at once, shared by the connections of every engine.
      *
-     * @param paramType the type of the method parameter.
-     * @param paramValue the query parameter value as a string.
-     * @return the converted value of the required type.
+     * @return the adaptive concurrency limiter, or null if requests are not limited.
      */
-    private Object convertToRequiredType(Class<?> paramType, String paramValue) {
-        if (paramType == int.class) {
-            return Integer.parseInt(paramValue);
-        } else if (paramType == double.class) {
-            return Double.parseDouble(paramValue);
-        } else if (paramType == boolean.class) {
-            return Boolean.parseBoolean(paramValue);
-        } else {
-            return paramValue;
-        }
+    public static ConcurrencyLimiter getConcurrencyLimiter() {
+        return concurrencyLimiter;
     }
 
     /**
-     * Determines the content type of the requested file based on its extension.
+     * Returns the limiter applied to every request of every client.
      *
-     * @param fileRequested the requested file path.
-     * @return the MIME type of the file.
+     * @return the rate limiter of the server, or null if clients are not limited.
      */
-    private String getContentType(String fileRequested) {
-        if (fileRequested.endsWith(".html"))
-            return "text/html";
-        else if (fileRequested.endsWith(".css"))
-            return "text/css";
-        else if (fileRequested.endsWith(".js"))
-            return "application/javascript";
-        return "text/plain";
+    public static RateLimiter getRateLimiter() {
+        return rateLimiter;
     }
 
     /**
-     * Reads the file data from disk into a byte array.
+     * Returns the access log every engine records its responses in.
      *
-     * @param file the file to read.
-     * @param fileLength the length of the file in bytes.
-     * @return a byte array containing the file data.
+     * @return the access log of the server, or null if requests are not logged.
      */
-    private byte[] readFileData(File file, int fileLength) throws IOException {
-        byte[] fileData = new byte[fileLength];
-        try (FileInputStream fileIn = new FileInputStream(file)) {
-            fileIn.read(fileData);
+    static AccessLog getAccessLog() {
+        return accessLog;
+    }
+
+    /**
+     * Stops the server gracefully, waiting up to `shutdownTimeout` for the requests in flight.
+     */
+    public static void stop() {
+        shutdown(config.getShutdownTimeout());
+    }
+
+    /**
+     * Stops the server gracefully: it stops accepting connections, closes the ones waiting
+     * for their next request and waits for the requests in flight to complete, which close
+     * their connections. Connections still open when the timeout expires are closed.
+     *
+     * @param timeout the time in milliseconds to wait for the requests in flight.
+     * @return whether every request in flight completed within the timeout.
+     */
+    public static synchronized boolean shutdown(long timeout) {
+        if (!isRun) {
+            return true;
+        }
+        isRun = false;
+        boolean drained = true;
+        if (nioServer != null) {
+            drained = nioServer.shutdown(timeout);
+        } else if (blockingServer != null) {
+            drained = blockingServer.shutdown(timeout);
+        }
+        if (!drained) {
+            System.err.println("Closed the connections still busy after " + timeout + " ms");
+        }
+        if (accessLog != null) {
+            accessLog.close();  // Writes the records of the last responses
         }
-        return fileData;
+        return drained;
     }
 }
@@ -1,5 +1,6 @@
 package edu.escuelaing.arep;
 
+import edu.escuelaing.arep.annotations.Cacheable;
 import edu.escuelaing.arep.annotations.GetMapping;
 import edu.escuelaing.arep.annotations.RequestParam;
 import edu.escuelaing.arep.annotations.RestController;
@@ -7,6 +8,7 @@ import edu.escuelaing.arep.annotations.RestController;
 /**
  * The `SqrtService` class provides a RESTful service that calculates the square root of a given number.
  * This service is exposed through the `/app/sqrt` endpoint and handles HTTP GET requests.
+ * Its result only depends on the number, so responses are cached.
  */
 @RestController
 public class SqrtService {
@@ -37,6 +39,7 @@ public class SqrtService {
      * </pre>
      */
     @GetMapping("/app/sqrt")
+    @Cacheable(ttl = 300000, maxEntries = 10000)
     public String calculateSquareRoot(@RequestParam(value = "number", defaultValue = "25") String number) {
         try {
             double num = Double.parseDouble(number);
@@ -48,4 +51,56 @@ public class SqrtService {
             return "Error: Por favor ingrese un número válido.";
         }
     }
+
+    /**
+     * Handles GET requests to the `/app/sqrt/detail` endpoint. The result is an object, so it
+     * is sent as JSON, or as text to clients that only accept `text/plain`.
+     *
+     * @param number the number for which the square root will be calculated. If not provided,
+     *               the default value is 25.
+     * @return the number and its square root; the root of a negative number is null.
+     *
+     * Usage examples:
+     * <pre>
+     * {@code
+     * GET /app/sqrt/detail?number=16
+     * Response: {"number":16.0,"root":4.0}
+     *
+     * GET /app/sqrt/detail?number=16 with Accept: text/plain
+     * Response: "La raíz cuadrada de 16.0 es 4.0"
+     * }
+     * </pre>
+     */
+    @GetMapping("/app/sqrt/detail")
+    @Cacheable(ttl = 300000, maxEntries = 10000)
+    public SquareRoot squareRoot(@RequestParam(value = "number", defaultValue = "25") double number) {
+        return new SquareRoot(number, number < 0 ? null : Math.sqrt(number));
+    }
+
+    /**
+     * The result of `/app/sqrt/detail`.
+     */
+    public static final class SquareRoot {
+        private final double number;
+        private final Double root;
+
+        public SquareRoot(double number, Double root) {
+            this.number = number;
+            this.root = root;
+        }
+
+        public double getNumber() {
+            return number;
+        }
+
+        public Double getRoot() {
+            return root;
+        }
+
+        @Override
+        public String toString() {
+            return root == null ? "Error: El número no puede ser negativo."
+                    : "La raíz cuadrada de " + number + " es " + root;
+        }
+    }
 }
@@ -0,0 +1,644 @@
+package edu.escuelaing.arep;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.Deflater;
+
+/**
+ * The `StaticFileCache` class keeps the files of the web root in memory, together with
+ * their ready-to-send `200` and `304` responses, so that serving a popular file costs
+ * a map lookup instead of a stat and a read on every request.
+ *
+ * The cache is a least-recently-used map bounded by number of entries and by total size.
+ * Small files are copied to the heap. Mid-size files, up to `maxMappedFileSize`, are
+ * memory-mapped instead, so their pages live in the OS page cache rather than in the heap
+ * and are bounded separately by `maxMappedBytes`. Larger files are not cached: they are
+ * streamed from disk with `FileChannel.transferTo` on every request. A daemon
+ * thread watches the web root with a `WatchService` and drops the entry of every file
+ * that is created, modified or deleted, so edits on disk show up on the next request.
+ *
+ * Each file can also be sent compressed. A precompressed `.gz` sibling in the web root is
+ * served to clients that accept gzip; otherwise textual files held on the heap are compressed
+ * once, with both gzip and deflate, and the compressed variants are cached with the file.
+ */
+public class StaticFileCache {
+    static final DateTimeFormatter HTTP_DATE = DateTimeFormatter.RFC_1123_DATE_TIME.withZone(ZoneOffset.UTC);
+
+    private final Path root;
+    private final int maxEntries;
+    private final long maxBytes;
+    private final long maxFileSize;
+    private final long maxMappedBytes;
+    private final long maxMappedFileSize;
+    private final long compressionMinSize;
+    private final LinkedHashMap<String, StaticFile> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private long totalBytes;
+    private long mappedBytes;
+    private long generation;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * Creates a cache over a directory that keeps files on the heap only, and starts watching it.
+     *
+     * @param root the web root.
+     * @param maxEntries the maximum number of cached files.
+     * @param maxBytes the maximum total size of the cached bodies.
+     * @param maxFileSize the size above which files are not cached.
+     */
+    public StaticFileCache(Path root, int maxEntries, long maxBytes, long maxFileSize) {
+        this(root, maxEntries, maxBytes, maxFileSize, 0, 0);
+    }
+
+    /**
+     * Creates a cache over a directory and starts watching it.
+     *
+     * @param root the web root.
+     * @param maxEntries the maximum number of cached files.
+     * @param maxBytes the maximum total size of the bodies copied to the heap.
+     * @param maxFileSize the size above which files are not copied to the heap.
+     * @param maxMappedBytes the maximum total size of the memory-mapped files.
+     * @param maxMappedFileSize the size above which files are not cached at all.
+     */
+    public StaticFileCache(Path root, int maxEntries, long maxBytes, long maxFileSize,
+                           long maxMappedBytes, long maxMappedFileSize) {
+        this(root, maxEntries, maxBytes, maxFileSize, maxMappedBytes, maxMappedFileSize, Long.MAX_VALUE);
+    }
+
+    /**
+     * Creates a cache over a directory that also compresses textual files, and starts watching it.
+     *
+     * @param root the web root.
+     * @param maxEntries the maximum number of cached files.
+     * @param maxBytes the maximum total size of the bodies and compressed variants copied to the heap.
+     * @param maxFileSize the size above which files are not copied to the heap.
+     * @param maxMappedBytes the maximum total size of the memory-mapped files.
+     * @param maxMappedFileSize the size above which files are not cached at all.
+     * @param compressionMinSize the size below which files are not compressed.
+     */
+    public StaticFileCache(Path root, int maxEntries, long maxBytes, long maxFileSize,
+                           long maxMappedBytes, long maxMappedFileSize, long compressionMinSize) {
+        this.root = root.toAbsolutePath().normalize();
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.maxFileSize = maxFileSize;
+        this.maxMappedBytes = maxMappedBytes;
+        this.maxMappedFileSize = Math.min(maxMappedFileSize, Integer.MAX_VALUE);
+        this.compressionMinSize = compressionMinSize;
+        startWatcher();
+    }
+
+    /**
+     * Returns a file of the web root, loading and caching it on a miss. Entries are keyed by
+     * the normalized path, so aliases such as `//x` and `/./x` share the entry of `/x`.
+     *
+     * @param fileRequested the requested file path.
+     * @return the file, or null if it does not exist or lies outside the web root.
+     */
+    public StaticFile get(String fileRequested) throws IOException {
+        Path resolved = resolve(fileRequested);
+        if (resolved == null) {
+            return null;
+        }
+        String key = resolved.toString();
+        long loadGeneration;
+        synchronized (this) {
+            StaticFile cached = entries.get(key);
+            if (cached != null) {
+                hits++;
+                return cached;
+            }
+            misses++;
+            loadGeneration = generation;
+        }
+
+        File file = resolved.toFile();
+        if (!file.isFile()) {
+            return null;
+        }
+        StaticFile loaded = StaticFile.load(file, RequestDispatcher.getContentType(key),
+                maxFileSize, maxMappedFileSize, compressionMinSize);
+        if (loaded.isInMemory()) {
+            put(key, loaded, loadGeneration);
+        }
+        return loaded;
+    }
+
+    /**
+     * Tells whether a file is held in memory, so that serving it reads nothing from disk.
+     * Unlike `get` it neither counts a hit nor refreshes the entry.
+     *
+     * @param fileRequested the requested file path.
+     * @return true if the file is cached.
+     */
+    public boolean isCached(String fileRequested) {
+        Path resolved = resolve(fileRequested);
+        if (resolved == null) {
+            return false;
+        }
+        synchronized (this) {
+            return entries.containsKey(resolved.toString());
+        }
+    }
+
+    /**
+     * Resolves a requested path against the web root.
+     *
+     * @param fileRequested the requested file path.
+     * @return the normalized absolute path, or null if it is not a valid path or `..`
+     *         segments take it outside the web root.
+     */
+    private Path resolve(String fileRequested) {
+        int start = 0;
+        while (start < fileRequested.length() && fileRequested.charAt(start) == '/') {
+            start++;
+        }
+        Path resolved;
+        try {
+            resolved = root.resolve(fileRequested.substring(start)).normalize();
+        } catch (InvalidPathException e) {
+            return null;
+        }
+        return resolved.startsWith(root) ? resolved : null;
+    }
+
+    /**
+     * Stores a freshly loaded file unless the web root changed while it was being read,
+     * in which case the content may already be stale.
+     */
+    private synchronized void put(String key, StaticFile file, long loadGeneration) {
+        if (loadGeneration != generation || entries.containsKey(key)) {
+            return;
+        }
+        entries.put(key, file);
+        account(file, 1);
+
+        Iterator<StaticFile> eldest = entries.values().iterator();
+        while ((entries.size() > maxEntries || totalBytes > maxBytes || mappedBytes > maxMappedBytes)
+                && eldest.hasNext()) {
+            account(eldest.next(), -1);
+            eldest.remove();
+            evictions++;
+        }
+    }
+
+    private void account(StaticFile file, int sign) {
+        totalBytes += sign * file.heapSize();
+        mappedBytes += sign * file.mappedSize();
+    }
+
+    /**
+     * Drops the entries of a changed file, or every entry when the path is null.
+     *
+     * @param changed the absolute path of the changed file, or null if changes were lost.
+     */
+    synchronized void invalidate(Path changed) {
+        generation++;
+        Iterator<Map.Entry<String, StaticFile>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            StaticFile file = it.next().getValue();
+            if (changed == null || file.dependsOn(changed)) {
+                account(file, -1);
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * @return a one-line summary of the cache counters.
+     */
+    public synchronized String stats() {
+        return "entries=" + entries.size() + " bytes=" + totalBytes + " mappedBytes=" + mappedBytes
+                + " hits=" + hits + " misses=" + misses + " evictions=" + evictions;
+    }
+
+    /**
+     * Registers the web root and its subdirectories with a `WatchService` and processes
+     * its events on a daemon thread. If the file system cannot be watched the cache keeps
+     * working, but changed files are only picked up once they are evicted.
+     */
+    private void startWatcher() {
+        WatchService watcher;
+        try {
+            watcher = root.getFileSystem().newWatchService();
+            registerTree(watcher, root);
+        } catch (IOException e) {
+            System.err.println("Static files under " + root + " will not be watched: " + e.getMessage());
+            return;
+        }
+
+        Thread thread = new Thread(() -> watch(watcher), "static-file-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void registerTree(WatchService watcher, Path dir) throws IOException {
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path subdir, BasicFileAttributes attrs) throws IOException {
+                subdir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private void watch(WatchService watcher) {
+        try {
+            while (true) {
+                WatchKey key = watcher.take();
+                Path dir = (Path) key.watchable();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        invalidate(null);
+                        continue;
+                    }
+                    Path changed = dir.resolve((Path) event.context());
+                    invalidate(changed);
+                    if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(changed)) {
+                        registerTree(watcher, changed);
+                    }
+                }
+                key.reset();
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // The watcher is shutting down
+        } catch (IOException e) {
+            e.printStackTrace();
+            invalidate(null);
+        }
+    }
+
+    /**
+     * A file of the web root with its validators, its compressed variants and, when it is
+     * held in memory, its precomputed responses.
+     */
+    public static class StaticFile {
+        private final Path path;
+        private final String contentType;
+        private final String etag;
+        private final long lastModified;
+        private final long length;
+        private final ByteBuffer content;
+        private final boolean mapped;
+        private final Variant gzip;
+        private final Variant deflate;
+        private final HttpResponse response;
+        private final HttpResponse notModified;
+
+        private StaticFile(Path path, String contentType, long lastModified, long length,
+                           ByteBuffer content, boolean mapped, Variant gzip, Variant deflate) {
+            this.path = path;
+            this.contentType = contentType;
+            this.lastModified = lastModified;
+            this.length = length;
+            this.content = content;
+            this.mapped = mapped;
+            this.gzip = gzip;
+            this.deflate = deflate;
+            // Validators in the style of common web servers: modification time and size
+            this.etag = "\"" + Long.toHexString(lastModified) + "-" + Long.toHexString(length) + "\"";
+            this.response = content == null ? null : withValidators(fullResponse(), etag).prepare();
+            this.notModified = withValidators(new HttpResponse("304 Not Modified"), etag).prepare();
+            if (gzip != null) {
+                gzip.attach(this);
+            }
+            if (deflate != null) {
+                deflate.attach(this);
+            }
+        }
+
+        /**
+         * Loads a file: small files are read into the heap, mid-size files are memory-mapped
+         * and larger ones are left on disk. A `.gz` sibling that is at least as recent as the
+         * file is used as its gzip variant; otherwise textual files read into the heap are
+         * compressed here, once, when they reach the compression threshold.
+         *
+         * @param file the file to load.
+         * @param contentType the MIME type of the file.
+         * @param maxHeapSize the size above which the file is not read into the heap.
+         * @param maxMappedSize the size above which the file is not mapped.
+         * @param compressionMinSize the size below which the file is not compressed on the fly.
+         * @return the loaded file.
+         */
+        static StaticFile load(File file, String contentType, long maxHeapSize, long maxMappedSize,
+                               long compressionMinSize) throws IOException {
+            long lastModified = file.lastModified();
+            Path path = file.toPath().toAbsolutePath().normalize();
+            Variant gzip = Variant.precompressed(new File(file.getPath() + ".gz"), lastModified, maxHeapSize);
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                long length = channel.size();
+                if (length <= maxHeapSize) {
+                    byte[] data = Files.readAllBytes(path);
+                    Variant deflate = null;
+                    if (data.length >= compressionMinSize && ContentEncoding.isCompressible(contentType)) {
+                        gzip = gzip != null ? gzip : Variant.compress(ContentEncoding.GZIP, data);
+                        deflate = Variant.compress(ContentEncoding.DEFLATE, data);
+                    }
+                    return new StaticFile(path, contentType, lastModified, data.length, ByteBuffer.wrap(data), false,
+                            gzip, deflate);
+                }
+                if (length <= maxMappedSize) {
+                    ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+                    return new StaticFile(path, contentType, lastModified, length, mapped, true, gzip, null);
+                }
+                return new StaticFile(path, contentType, lastModified, length, null, false, gzip, null);
+            }
+        }
+
+        private HttpResponse fullResponse() {
+            if (content == null) {
+                return new HttpResponse("200 OK", contentType, new FileRegion(path, 0, length));
+            }
+            if (!mapped) {
+                return new HttpResponse("200 OK", contentType, content.array());
+            }
+            return new HttpResponse("200 OK", contentType, content.duplicate());
+        }
+
+        private HttpResponse withValidators(HttpResponse response, String tag) {
+            response.withHeader("ETag", tag)
+                    .withHeader("Last-Modified", HTTP_DATE.format(Instant.ofEpochMilli(lastModified)));
+            if (tag == etag) {
+                response.withHeader("Accept-Ranges", "bytes");  // Ranges apply to the unencoded file only
+            }
+            if (gzip != null || deflate != null) {
+                response.withHeader("Vary", "Accept-Encoding");
+            }
+            return response;
+        }
+
+        /**
+         * Evaluates the conditional headers of a request. `If-None-Match` takes precedence
+         * over `If-Modified-Since`, as required by RFC 9110.
+         *
+         * @param request the request.
+         * @return true if the client already holds the current version of the file.
+         */
+        public boolean isNotModified(HttpRequest request) {
+            String ifNoneMatch = request.getHeader("if-none-match");
+            if (ifNoneMatch != null) {
+                for (String candidate : ifNoneMatch.split(",")) {
+                    String tag = candidate.trim();
+                    if (tag.startsWith("W/")) {
+                        tag = tag.substring(2);
+                    }
+                    if (tag.equals("*") || tag.equals(etag)
+                            || (gzip != null && tag.equals(gzip.etag))
+                            || (deflate != null && tag.equals(deflate.etag))) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+
+            String ifModifiedSince = request.getHeader("if-modified-since");
+            return ifModifiedSince != null && notModifiedSince(ifModifiedSince);
+        }
+
+        private boolean notModifiedSince(String httpDate) {
+            try {
+                long since = ZonedDateTime.parse(httpDate, HTTP_DATE).toInstant().toEpochMilli();
+                return lastModified / 1000 <= since / 1000;
+            } catch (DateTimeParseException e) {
+                return false;
+            }
+        }
+
+        /**
+         * Chooses the variant of the file to send from the `Accept-Encoding` header of a request.
+         *
+         * @return the compressed variant, or null to send the file unencoded.
+         */
+        private Variant select(HttpRequest request) {
+            if (request == null) {
+                return null;
+            }
+            ContentEncoding encoding = ContentEncoding.negotiate(request.getHeader("accept-encoding"),
+                    gzip != null, deflate != null);
+            if (encoding == ContentEncoding.GZIP) {
+                return gzip;
+            }
+            return encoding == ContentEncoding.DEFLATE ? deflate : null;
+        }
+
+        /**
+         * Answers a request. A `Range` header that asks for a single byte range is served from
+         * the unencoded file; otherwise the whole file is sent in the encoding the client prefers.
+         * Requests for several ranges, or whose `If-Range` does not match the current version
+         * of the file, get the whole file.
+         *
+         * @param request the request, or null for an unconditional GET.
+         * @return a 200, 206 or 416 response.
+         */
+        public HttpResponse respond(HttpRequest request) {
+            String range = request == null ? null : request.getHeader("range");
+            if (range != null) {
+                HttpResponse partial = respondRange(request, range);
+                if (partial != null) {
+                    return partial;
+                }
+            }
+            Variant variant = select(request);
+            return variant != null ? variant.response() : response();
+        }
+
+        /**
+         * Answers a `Range` request.
+         *
+         * @return a 206 or 416 response, or null if the range must be ignored.
+         */
+        private HttpResponse respondRange(HttpRequest request, String range) {
+            if (!range.startsWith("bytes=") || range.indexOf(',') >= 0) {
+                return null;
+            }
+            String ifRange = request.getHeader("if-range");
+            if (ifRange != null && !ifRange.equals(etag) && !(ifRange.indexOf('"') < 0 && notModifiedSince(ifRange))) {
+                return null;
+            }
+
+            long start;
+            long end;
+            try {
+                String spec = range.substring("bytes=".length()).trim();
+                int dash = spec.indexOf('-');
+                if (dash < 0) {
+                    return null;
+                }
+                String first = spec.substring(0, dash).trim();
+                String last = spec.substring(dash + 1).trim();
+                if (first.isEmpty()) {
+                    long suffix = Long.parseLong(last);  // "bytes=-500" is the last 500 bytes
+                    start = Math.max(length - suffix, 0);
+                    end = length - 1;
+                    if (suffix == 0) {
+                        start = length;
+                    }
+                } else {
+                    start = Long.parseLong(first);
+                    end = last.isEmpty() ? length - 1 : Math.min(Long.parseLong(last), length - 1);
+                    if (end < start && start < length) {
+                        return null;  // A malformed range is ignored
+                    }
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+
+            if (start >= length) {
+                return new HttpResponse("416 Range Not Satisfiable")
+                        .withHeader("Content-Range", "bytes */" + length);
+            }
+            long count = end - start + 1;
+            HttpResponse partial;
+            if (content == null) {
+                partial = new HttpResponse("206 Partial Content", contentType, new FileRegion(path, start, count));
+            } else {
+                ByteBuffer slice = content.duplicate();
+                slice.position((int) start).limit((int) (start + count));
+                partial = new HttpResponse("206 Partial Content", contentType, slice.slice());
+            }
+            return withValidators(partial, etag)
+                    .withHeader("Content-Range", "bytes " + start + "-" + end + "/" + length);
+        }
+
+        /**
+         * @return the response holding the whole, unencoded file.
+         */
+        public HttpResponse response() {
+            return response != null ? response : withValidators(fullResponse(), etag);
+        }
+
+        /**
+         * Returns the `304 Not Modified` response carrying the validators of the variant the
+         * request would have received.
+         *
+         * @param request the conditional request.
+         * @return the shared 304 response.
+         */
+        public HttpResponse notModified(HttpRequest request) {
+            Variant variant = select(request);
+            return variant != null ? variant.notModified : notModified;
+        }
+
+        boolean isInMemory() {
+            return content != null;
+        }
+
+        /**
+         * Tells whether a change on disk affects this entry: the file itself, a directory
+         * above it or its precompressed `.gz` sibling.
+         *
+         * @param changed the absolute path of the changed file.
+         * @return true if the entry must be dropped.
+         */
+        boolean dependsOn(Path changed) {
+            return path.startsWith(changed) || changed.toString().equals(path + ".gz");
+        }
+
+        /**
+         * @return the bytes this entry holds on the heap, compressed variants included.
+         */
+        long heapSize() {
+            long size = content != null && !mapped ? length : 0;
+            if (gzip != null && gzip.body != null) {
+                size += gzip.body.length;
+            }
+            if (deflate != null && deflate.body != null) {
+                size += deflate.body.length;
+            }
+            return size;
+        }
+
+        /**
+         * @return the bytes this entry keeps memory-mapped.
+         */
+        long mappedSize() {
+            return mapped ? length : 0;
+        }
+    }
+
+    /**
+     * A compressed variant of a static file, either held on the heap or, for a large
+     * precompressed sibling, sent from disk.
+     */
+    private static final class Variant {
+        private final ContentEncoding encoding;
+        private final byte[] body;
+        private final Path file;
+        private final long length;
+        private String etag;
+        private StaticFile source;
+        private HttpResponse response;
+        private HttpResponse notModified;
+
+        private Variant(ContentEncoding encoding, byte[] body, Path file, long length) {
+            this.encoding = encoding;
+            this.body = body;
+            this.file = file;
+            this.length = length;
+        }
+
+        /**
+         * Loads a precompressed `.gz` sibling, unless it is missing or older than the file.
+         */
+        static Variant precompressed(File gzFile, long lastModified, long maxHeapSize) throws IOException {
+            if (!gzFile.isFile() || gzFile.lastModified() < lastModified) {
+                return null;
+            }
+            Path gzPath = gzFile.toPath().toAbsolutePath().normalize();
+            long gzLength = gzFile.length();
+            if (gzLength <= maxHeapSize) {
+                byte[] data = Files.readAllBytes(gzPath);
+                return new Variant(ContentEncoding.GZIP, data, null, data.length);
+            }
+            return new Variant(ContentEncoding.GZIP, null, gzPath, gzLength);
+        }
+
+        /**
+         * Compresses a file held on the heap, keeping the result only if it is smaller.
+         */
+        static Variant compress(ContentEncoding encoding, byte[] data) {
+            byte[] compressed = encoding.encode(data, Deflater.BEST_COMPRESSION);
+            return compressed.length < data.length
+                    ? new Variant(encoding, compressed, null, compressed.length)
+                    : null;
+        }
+
+        /**
+         * Derives the validators and the shared responses of the variant from its file.
+         */
+        void attach(StaticFile source) {
+            this.source = source;
+            this.etag = source.etag.substring(0, source.etag.length() - 1) + "-" + encoding.token() + "\"";
+            if (body != null) {
+                response = encoded(new HttpResponse("200 OK", source.contentType, body)).prepare();
+            }
+            notModified = encoded(new HttpResponse("304 Not Modified")).prepare();
+        }
+
+        private HttpResponse encoded(HttpResponse response) {
+            return source.withValidators(response.withHeader("Content-Encoding", encoding.token()), etag);
+        }
+
+        HttpResponse response() {
+            if (response != null) {
+                return response;
+            }
+            return encoded(new HttpResponse("200 OK", source.contentType, new FileRegion(file, 0, length)));
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package edu.escuelaing.arep;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * The `StreamingBody` interface is the callback a controller method returns to write a
+ * response body of any size itself. The server sends what it writes with
+ * `Transfer-Encoding: chunked` as it is written, and runs the callback on a thread of its
+ * own: writes block while the client is slower than the callback, so memory stays bounded.
+ * When the client goes away, writes fail with an `IOException`.
+ *
+ * Usage example:
+ *
+ * <pre>
+ * {@code
+ * @GetMapping("/app/export")
+ * public StreamingBody export() {
+ *     return out -> {
+ *         for (Row row : database.scan()) {
+ *             out.write(row.toCsv().getBytes(StandardCharsets.UTF_8));
+ *         }
+ *     };
+ * }
+ * }
+ * </pre>
+ */
+@FunctionalInterface
+public interface StreamingBody {
+
+    /**
+     * Writes the response body.
+     *
+     * @param out the body of the response; closing it is optional.
+     * @throws IOException if the client went away, or to abort the response.
+     */
+    void writeTo(OutputStream out) throws IOException;
+}
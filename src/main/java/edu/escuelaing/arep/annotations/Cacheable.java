@@ -0,0 +1,50 @@
+package edu.escuelaing.arep.annotations;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Annotation used to cache the responses of a `@GetMapping` method whose result only depends
+ * on its parameters. The server keeps the encoded response of each distinct combination of
+ * parameter values and answers later requests with the same values without calling the method.
+ * 
+ * Usage example:
+ * 
+ * <pre>
+ * {@code
+ * @GetMapping("/app/sqrt")
+ * @Cacheable(ttl = 60000, maxEntries = 1000)
+ * public String sqrt(@RequestParam(value = "number", defaultValue = "25") String number) {
+ *     return String.valueOf(Math.sqrt(Double.parseDouble(number)));
+ * }
+ * }
+ * </pre>
+ * 
+ * In the example above, "/app/sqrt?number=16" is computed once and served from memory for
+ * the next minute. Requests that bind the same values share an entry, so "/app/sqrt" and
+ * "/app/sqrt?number=25" are the same entry. Methods taking the whole `HttpRequest` cannot be cached.
+ * 
+ * @Target(ElementType.METHOD) indicates that this annotation is applicable to methods.
+ * @Retention(RetentionPolicy.RUNTIME) ensures that the annotation is available at runtime for reflection.
+ */
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface Cacheable {
+
+    /**
+     * How long a response is served from the cache, in milliseconds. Zero or less keeps it
+     * until it is evicted.
+     * 
+     * @return the time to live of a cached response.
+     */
+    long ttl() default 60000;
+
+    /**
+     * The number of responses kept for the method; when it is exceeded the oldest ones are evicted.
+     * 
+     * @return the maximum number of cached responses.
+     */
+    int maxEntries() default 1000;
+}
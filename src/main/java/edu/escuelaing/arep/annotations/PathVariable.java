@@ -0,0 +1,38 @@
+package edu.escuelaing.arep.annotations;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Annotation used to bind a variable segment of the request path to a method parameter
+ * in a REST controller. The variable is declared in the `@GetMapping` pattern between braces.
+ * 
+ * Usage example:
+ * 
+ * <pre>
+ * {@code
+ * @GetMapping("/app/user/{id}")
+ * public String user(@PathVariable("id") int id) {
+ *     return "User " + id;
+ * }
+ * }
+ * </pre>
+ * 
+ * In the example above, a request to "/app/user/42" invokes the method with `id` set to 42.
+ * 
+ * @Target(ElementType.PARAMETER) indicates that this annotation is applicable to method parameters.
+ * @Retention(RetentionPolicy.RUNTIME) ensures that the annotation is available at runtime for reflection.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.PARAMETER)
+public @interface PathVariable {
+
+    /**
+     * The name of the path variable, as written between braces in the route pattern.
+     * 
+     * @return the name of the path variable.
+     */
+    String value();
+}
@@ -0,0 +1,56 @@
+package edu.escuelaing.arep.annotations;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Annotation used to limit how often a `@GetMapping` method is called, for routes that are
+ * more expensive than the rest of the server. Requests over the limit get `429 Too Many
+ * Requests` with a `Retry-After` header, and the method is not called. The limit applies on
+ * top of the `rateLimit` of the server.
+ *
+ * Usage example:
+ *
+ * <pre>
+ * {@code
+ * @GetMapping("/app/report")
+ * @RateLimit(value = 2, burst = 5)
+ * public String report(@RequestParam(value = "year", defaultValue = "2024") String year) {
+ *     return reports.build(year);
+ * }
+ * }
+ * </pre>
+ *
+ * In the example above each client may ask for five reports at once and then two per second.
+ * With `perClient = false` the limit is shared by all clients instead.
+ *
+ * @Target(ElementType.METHOD) indicates that this annotation is applicable to methods.
+ * @Retention(RetentionPolicy.RUNTIME) ensures that the annotation is available at runtime for reflection.
+ */
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface RateLimit {
+
+    /**
+     * The requests per second allowed, once the burst is used up.
+     *
+     * @return the sustained rate of the route.
+     */
+    int value();
+
+    /**
+     * The requests allowed at once. Zero allows one second's worth.
+     *
+     * @return the burst of the route.
+     */
+    int burst() default 0;
+
+    /**
+     * Whether each client has its own limit, or all clients share one.
+     *
+     * @return true to limit each client address separately.
+     */
+    boolean perClient() default true;
+}
@@ -0,0 +1,46 @@
+package edu.escuelaing.arep.annotations;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Annotation used to bind an HTTP request header to a method parameter in a REST controller.
+ * Header names are case insensitive.
+ * 
+ * Usage example:
+ * 
+ * <pre>
+ * {@code
+ * @GetMapping("/app/agent")
+ * public String agent(@RequestHeader(value = "User-Agent", defaultValue = "unknown") String agent) {
+ *     return "You are using " + agent;
+ * }
+ * }
+ * </pre>
+ * 
+ * In the example above, the 'User-Agent' header of the request is bound to the method's
+ * 'agent' parameter. If the header is missing, "unknown" will be used as the default value.
+ * 
+ * @Target(ElementType.PARAMETER) indicates that this annotation is applicable to method parameters.
+ * @Retention(RetentionPolicy.RUNTIME) ensures that the annotation is available at runtime for reflection.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.PARAMETER)
+public @interface RequestHeader {
+
+    /**
+     * The name of the HTTP request header to bind to the method parameter.
+     * 
+     * @return the name of the HTTP request header.
+     */
+    String value();
+
+    /**
+     * The default value to use if the header is not present in the request.
+     * 
+     * @return the default value if the header is not present in the request.
+     */
+    String defaultValue() default "";
+}
@@ -0,0 +1,39 @@
+package edu.escuelaing.arep.annotations;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Annotation used to limit how long the server waits for the result of an asynchronous
+ * `@GetMapping` method, one that returns a `CompletionStage` such as a `CompletableFuture`.
+ * When the time is up the client gets `504 Gateway Timeout` and the future is cancelled.
+ * Without this annotation the `asyncTimeout` of the server applies.
+ * 
+ * Usage example:
+ * 
+ * <pre>
+ * {@code
+ * @GetMapping("/app/quote")
+ * @Timeout(2000)
+ * public CompletableFuture<String> quote(@RequestParam(value = "symbol", defaultValue = "ECI") String symbol) {
+ *     return quoteClient.fetch(symbol);
+ * }
+ * }
+ * </pre>
+ * 
+ * @Target(ElementType.METHOD) indicates that this annotation is applicable to methods.
+ * @Retention(RetentionPolicy.RUNTIME) ensures that the annotation is available at runtime for reflection.
+ */
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface Timeout {
+
+    /**
+     * How long the result may take, in milliseconds. Zero or less waits without limit.
+     * 
+     * @return the timeout of the route.
+     */
+    long value();
+}
@@ -0,0 +1,162 @@
+package edu.escuelaing.arep.processor;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.StandardLocation;
+import edu.escuelaing.arep.ControllerIndex;
+import edu.escuelaing.arep.annotations.GetMapping;
+import edu.escuelaing.arep.annotations.RestController;
+
+/**
+ * The `ControllerIndexProcessor` class is an annotation processor that runs inside `javac`
+ * and writes the `ControllerIndex` of the classes it compiles: every `@RestController`
+ * class and every `@GetMapping` method, with its pattern and parameter types. The index
+ * ends up in the jar next to the classes, so the server finds its controllers at startup
+ * without scanning the classpath.
+ *
+ * It also reports at compile time the mistakes that would otherwise only show up when the
+ * server starts: controllers that cannot be instantiated and patterns that do not start with '/'.
+ *
+ * It is registered as a service of `javax.annotation.processing.Processor`, so compiling
+ * against the SpringECI jar is enough to run it.
+ */
+@SupportedAnnotationTypes("edu.escuelaing.arep.annotations.RestController")
+public class ControllerIndexProcessor extends AbstractProcessor {
+    private final Map<String, List<String>> entries = new TreeMap<>();
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        for (Element element : roundEnv.getElementsAnnotatedWith(RestController.class)) {
+            if (element.getKind() != ElementKind.CLASS) {
+                error(element, "@RestController is only allowed on classes");
+            } else {
+                indexController((TypeElement) element);
+            }
+        }
+        if (roundEnv.processingOver() && !entries.isEmpty()) {
+            writeIndex();
+        }
+        return false;
+    }
+
+    private void indexController(TypeElement controller) {
+        if (controller.getModifiers().contains(Modifier.ABSTRACT) || !hasNoArgConstructor(controller)) {
+            error(controller, "A @RestController needs to be a concrete class with a no-argument constructor");
+            return;
+        }
+        String className = processingEnv.getElementUtils().getBinaryName(controller).toString();
+        List<String> lines = new ArrayList<>();
+        lines.add(ControllerIndex.controllerEntry(className));
+
+        for (Element member : controller.getEnclosedElements()) {
+            GetMapping mapping = member.getAnnotation(GetMapping.class);
+            if (mapping == null || member.getKind() != ElementKind.METHOD) {
+                continue;
+            }
+            if (!mapping.value().startsWith("/")) {
+                error(member, "Route must start with '/': " + mapping.value());
+                continue;
+            }
+            ExecutableElement method = (ExecutableElement) member;
+            List<String> parameterTypes = new ArrayList<>();
+            for (VariableElement parameter : method.getParameters()) {
+                parameterTypes.add(binaryName(parameter.asType()));
+            }
+            lines.add(ControllerIndex.routeEntry(mapping.value(), className,
+                    method.getSimpleName().toString(), parameterTypes));
+        }
+        entries.put(className, lines);
+    }
+
+    private static boolean hasNoArgConstructor(TypeElement type) {
+        for (Element member : type.getEnclosedElements()) {
+            if (member.getKind() == ElementKind.CONSTRUCTOR
+                    && ((ExecutableElement) member).getParameters().isEmpty()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the name of a type as `Class.forName` expects it, after erasure.
+     */
+    private String binaryName(TypeMirror type) {
+        TypeMirror erased = processingEnv.getTypeUtils().erasure(type);
+        if (erased.getKind().isPrimitive()) {
+            return erased.getKind().name().toLowerCase(Locale.ROOT);
+        }
+        if (erased.getKind() == TypeKind.ARRAY) {
+            return "[" + descriptor(((ArrayType) erased).getComponentType());
+        }
+        TypeElement element = (TypeElement) ((DeclaredType) erased).asElement();
+        return processingEnv.getElementUtils().getBinaryName(element).toString();
+    }
+
+    private String descriptor(TypeMirror type) {
+        switch (type.getKind()) {
+            case BOOLEAN: return "Z";
+            case BYTE: return "B";
+            case CHAR: return "C";
+            case SHORT: return "S";
+            case INT: return "I";
+            case LONG: return "J";
+            case FLOAT: return "F";
+            case DOUBLE: return "D";
+            case ARRAY: return "[" + descriptor(((ArrayType) type).getComponentType());
+            default: return "L" + binaryName(type) + ";";
+        }
+    }
+
+    private void writeIndex() {
+        try {
+            FileObject file = processingEnv.getFiler()
+                    .createResource(StandardLocation.CLASS_OUTPUT, "", ControllerIndex.RESOURCE);
+            try (Writer writer = new OutputStreamWriter(file.openOutputStream(), StandardCharsets.UTF_8)) {
+                writer.write("# Generated by " + getClass().getName() + "\n");
+                for (List<String> lines : entries.values()) {
+                    for (String line : lines) {
+                        writer.write(line);
+                        writer.write('\n');
+                    }
+                }
+            }
+        } catch (IOException e) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                    "Cannot write " + ControllerIndex.RESOURCE + ": " + e.getMessage());
+        }
+    }
+
+    private void error(Element element, String message) {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, element);
+    }
+}
@@ -0,0 +1,125 @@
+package edu.escuelaing.arep;
+
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+import junit.framework.TestCase;
+
+public class AccessLogTest extends TestCase {
+
+    private static final String TIME = "\\{\"time\":\"\\d{4}-\\d\\d-\\d\\dT\\d\\d:\\d\\d:\\d\\d(\\.\\d+)?Z\",";
+
+    private Path root;
+    private Path file;
+    private ServerMetrics metrics;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        root = Files.createTempDirectory("access-log");
+        file = root.resolve("logs").resolve("access.log");
+        metrics = new ServerMetrics();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        try (Stream<Path> files = Files.walk(root)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+        super.tearDown();
+    }
+
+    public void testWritesAJsonLinePerResponse() throws Exception {
+        AccessLog log = new AccessLog(file, 16, 1024 * 1024, 1, metrics);
+        log.start();
+        InetAddress client = InetAddress.getByName("127.0.0.1");
+        assertTrue(log.log("GET", "/app/hello?name=Ana", client, "200 OK", 152, 87_500));
+        assertTrue(log.log(null, null, client, "400 Bad Request", 64, 0));
+        assertTrue(log.log("GET", "/caf\u00e9 \"x\"", null, "404 Not Found", 0, 2_000_000));
+        log.close();
+
+        List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        assertEquals(3, lines.size());
+        assertTrue(lines.get(0), lines.get(0).matches(TIME + "\"client\":\"127.0.0.1\",\"method\":\"GET\","
+                + "\"path\":\"/app/hello\",\"status\":200,\"bytes\":152,\"latencyMicros\":87}"));
+        assertTrue(lines.get(1), lines.get(1).matches(TIME + "\"client\":\"127.0.0.1\",\"method\":null,"
+                + "\"path\":null,\"status\":400,\"bytes\":64,\"latencyMicros\":0}"));
+        assertTrue(lines.get(2), lines.get(2).matches(TIME + "\"client\":null,\"method\":\"GET\","
+                + "\"path\":\"/caf\u00e9 \\\\\"x\\\\\"\",\"status\":404,\"bytes\":0,\"latencyMicros\":2000}"));
+    }
+
+    public void testDropsRecordsWhenTheBufferIsFull() throws Exception {
+        AccessLog log = new AccessLog(file, 4, 1024 * 1024, 1, metrics);
+        for (int i = 0; i < 6; i++) {
+            assertEquals(i < 4, log.log("GET", "/app/test/" + i, null, "200 OK", 10, 1000));
+        }
+        assertEquals(2, metrics.accessLogDropped());
+        String scrape = new String(metrics.scrape(Collections.<String, RouteInvoker>emptyMap()).getBody(),
+                StandardCharsets.UTF_8);
+        assertTrue(scrape.contains("springeci_access_log_dropped_total 2\n"));
+        log.close();  // Writes what the ring held, as the writer was never started
+
+        List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        assertEquals(4, lines.size());
+        assertTrue(lines.get(3), lines.get(3).contains("\"path\":\"/app/test/3\""));
+    }
+
+    public void testRotatesBySize() throws Exception {
+        // Each line is about 140 bytes, so each file holds one
+        AccessLog log = new AccessLog(file, 16, 200, 2, metrics);
+        for (int i = 0; i < 5; i++) {
+            log.log("GET", "/app/test/" + i, null, "200 OK", 10, 1000);
+        }
+        log.close();
+
+        assertLines(file, "/app/test/4");
+        assertLines(root.resolve("logs").resolve("access.log.1"), "/app/test/3");
+        assertLines(root.resolve("logs").resolve("access.log.2"), "/app/test/2");
+        assertFalse(Files.exists(root.resolve("logs").resolve("access.log.3")));
+    }
+
+    public void testConcurrentHandlersLoseNoRecord() throws Exception {
+        int threads = 8;
+        int records = 10_000;
+        AccessLog log = new AccessLog(file, threads * records, 64L * 1024 * 1024, 1, metrics);
+        log.start();
+        Thread[] handlers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            String prefix = "/t" + t + "/";
+            handlers[t] = new Thread(() -> {
+                for (int i = 0; i < records; i++) {
+                    log.log("GET", prefix + i, null, "200 OK", i, i);
+                }
+            });
+            handlers[t].start();
+        }
+        for (Thread handler : handlers) {
+            handler.join();
+        }
+        log.close();
+
+        assertEquals(0, metrics.accessLogDropped());
+        List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        assertEquals(threads * records, lines.size());
+        // The records of each thread are written in the order it logged them
+        int[] next = new int[threads];
+        for (String line : lines) {
+            int start = line.indexOf("\"path\":\"/t") + 10;
+            int slash = line.indexOf('/', start);
+            int thread = Integer.parseInt(line.substring(start, slash));
+            int record = Integer.parseInt(line.substring(slash + 1, line.indexOf('"', slash)));
+            assertEquals(line, next[thread]++, record);
+        }
+    }
+
+    private static void assertLines(Path file, String path) throws Exception {
+        List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        assertEquals(lines.toString(), 1, lines.size());
+        assertTrue(lines.get(0), lines.get(0).contains("\"path\":\"" + path + "\""));
+    }
+}
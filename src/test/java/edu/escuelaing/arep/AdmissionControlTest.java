@@ -0,0 +1,117 @@
+package edu.escuelaing.arep;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import junit.framework.TestCase;
+
+public class AdmissionControlTest extends TestCase {
+
+    public void testRejectsAboveLimit() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(2, 1, 10);
+        assertTrue(limiter.tryAcquire());
+        assertTrue(limiter.tryAcquire());
+        assertFalse(limiter.tryAcquire());
+
+        limiter.releaseWithoutSample();
+        assertEquals(1, limiter.getInFlight());
+        assertTrue(limiter.tryAcquire());
+    }
+
+    public void testLimitFollowsLatency() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(10, 1, 100);
+        for (int i = 0; i < 200; i++) {
+            saturate(limiter, 1_000_000L);  // Steady latency: the limit grows
+        }
+        int grown = limiter.getLimit();
+        assertTrue("limit " + grown, grown > 20);
+
+        for (int i = 0; i < 5; i++) {
+            saturate(limiter, 20_000_000L);  // Requests queue inside the server: the limit shrinks
+        }
+        assertTrue("limit " + limiter.getLimit(), limiter.getLimit() < grown / 2);
+        assertTrue(limiter.getLimit() >= 1);
+    }
+
+    private static void saturate(ConcurrencyLimiter limiter, long latency) {
+        int permits = 0;
+        while (limiter.tryAcquire()) {
+            permits++;
+        }
+        for (int i = 0; i < permits; i++) {
+            limiter.release(latency);
+        }
+    }
+
+    public void testShedsConnectionsThatWaitedTooLong() throws Exception {
+        long acceptedLongAgo = System.nanoTime() - 60_000_000_000L;
+        String response = exchange(acceptedLongAgo, null);
+
+        assertTrue(response, response.startsWith("HTTP/1.1 503 Service Unavailable\r\n"));
+        assertTrue(response, response.contains("Retry-After: 1\r\n"));
+        assertTrue(response, response.contains("Connection: close\r\n"));
+    }
+
+    public void testShedsRequestsAboveConcurrencyLimit() throws Exception {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(1, 1, 1);
+        assertTrue(limiter.tryAcquire());  // Another request holds the only permit
+
+        String response = exchange(System.nanoTime(), limiter);
+        assertTrue(response, response.startsWith("HTTP/1.1 503 Service Unavailable\r\n"));
+        assertEquals(1, limiter.getInFlight());
+    }
+
+    public void testIdleKeepAliveConnectionsYieldToNewClients() throws Exception {
+        int port = TestFixtures.freePort();
+        BlockingServer server = new BlockingServer(
+                TestFixtures.config(port, "--keepAliveTimeout=30000", "--queueTimeout=2000"),
+                Executors.newFixedThreadPool(2));
+        Thread serving = TestFixtures.serve(server::serve);
+        try (Socket first = TestFixtures.connect(port); Socket second = TestFixtures.connect(port);
+             Socket fresh = TestFixtures.connect(port)) {
+            // Both threads of the server hold a keep-alive connection that sends nothing more
+            for (Socket idle : new Socket[] {first, second}) {
+                TestFixtures.send(idle, "/index.html");
+                String response = TestFixtures.readResponse(idle.getInputStream());
+                assertTrue(response, response.startsWith("HTTP/1.1 200 OK\r\n"));
+            }
+
+            long start = System.nanoTime();
+            TestFixtures.send(fresh, "/index.html");
+            String response = TestFixtures.readResponse(fresh.getInputStream());
+            long waited = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            assertTrue(response, response.startsWith("HTTP/1.1 200 OK\r\n"));
+            assertTrue("waited " + waited + " ms", waited < 1000);
+        } finally {
+            assertTrue(server.shutdown(5000));
+            serving.join(5000);
+        }
+    }
+
+    /**
+     * Sends one request through a `ClientHandler` over a loopback connection and returns the raw response.
+     */
+    private static String exchange(long acceptedAt, ConcurrencyLimiter limiter) throws Exception {
+        ServerConfig config = ServerConfig.fromArgs(new String[] {"--queueTimeout=2000", "--retryAfter=1"});
+        try (ServerSocket server = new ServerSocket(0);
+             Socket client = new Socket("localhost", server.getLocalPort())) {
+            Socket accepted = server.accept();
+            client.getOutputStream().write("GET /index.html HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n"
+                    .getBytes(StandardCharsets.ISO_8859_1));
+            new ClientHandler(accepted, config, acceptedAt, limiter).run();
+
+            ByteArrayOutputStream response = new ByteArrayOutputStream();
+            InputStream in = client.getInputStream();
+            byte[] buffer = new byte[1024];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                response.write(buffer, 0, n);
+            }
+            return response.toString("ISO-8859-1");
+        }
+    }
+}
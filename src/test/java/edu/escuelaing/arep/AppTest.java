@@ -123,6 +123,34 @@ public class AppTest extends TestCase {
         }).get();
     }
 
+    public void testConditionalGetReturnsNotModified() throws Exception {
+        executorService.submit(() -> {
+            try {
+                URL url = new URL(SERVER_URL + "style.css");
+                HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+                assertEquals(200, conn.getResponseCode());
+                String etag = conn.getHeaderField("ETag");
+                String lastModified = conn.getHeaderField("Last-Modified");
+                assertNotNull(etag);
+                assertNotNull(lastModified);
+                conn.getInputStream().close();
+
+                HttpURLConnection byEtag = (HttpURLConnection) url.openConnection();
+                byEtag.setRequestProperty("If-None-Match", etag);
+                assertEquals(304, byEtag.getResponseCode());
+                byEtag.disconnect();
+
+                HttpURLConnection byDate = (HttpURLConnection) url.openConnection();
+                byDate.setRequestProperty("If-Modified-Since", lastModified);
+                assertEquals(304, byDate.getResponseCode());
+                byDate.disconnect();
+            } catch (Exception e) {
+                e.printStackTrace();
+                fail("Connection failed: " + e.getMessage());
+            }
+        }).get();
+    }
+
     public void testInvalidMethod() throws Exception {
         executorService.submit(() -> {
             try {
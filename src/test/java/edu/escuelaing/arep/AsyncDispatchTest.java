@@ -0,0 +1,127 @@
+package edu.escuelaing.arep;
+
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import edu.escuelaing.arep.annotations.GetMapping;
+import edu.escuelaing.arep.annotations.RequestParam;
+import edu.escuelaing.arep.annotations.Timeout;
+import junit.framework.TestCase;
+
+public class AsyncDispatchTest extends TestCase {
+
+    public static class AsyncController {
+        volatile CompletableFuture<String> next;
+        volatile CompletableFuture<String> returned;
+
+        @GetMapping("/app/test/async")
+        public CompletableFuture<String> async(@RequestParam(value = "name", defaultValue = "x") String name) {
+            returned = next.thenApply(value -> value + " " + name);
+            return returned;
+        }
+
+        @GetMapping("/app/test/async/timeout")
+        @Timeout(50)
+        public CompletableFuture<String> timeout() {
+            return next;
+        }
+
+        @Timeout(50)
+        public String notAsync() {
+            return "";
+        }
+    }
+
+    // The route table is global and shared with the other tests, so the routes are only added once
+    private static final AsyncController CONTROLLER = new AsyncController();
+
+    private ServerMetrics metrics;
+    private RequestDispatcher dispatcher;
+
+    @Override
+    protected void setUp() throws Exception {
+        TestFixtures.registerRoutes(CONTROLLER, "async", "timeout");
+        metrics = new ServerMetrics();
+        dispatcher = new RequestDispatcher(null, Integer.MAX_VALUE, metrics, 0);
+    }
+
+    private static String body(HttpResponse response) {
+        return new String(response.getBody(), StandardCharsets.UTF_8);
+    }
+
+    public void testRespondsWhenTheStageCompletes() throws Exception {
+        CONTROLLER.next = new CompletableFuture<>();
+        CompletableFuture<HttpResponse> response = dispatcher.handleAppRequestAsync("GET", "/app/test/async?name=Ana",
+                null);
+        assertFalse(response.isDone());
+
+        CONTROLLER.next.complete("Hello");
+        assertEquals("200 OK", response.get(1, TimeUnit.SECONDS).getStatus());
+        assertEquals("Hello Ana", body(response.join()));
+
+        CONTROLLER.next = new CompletableFuture<>();
+        CONTROLLER.next.completeExceptionally(new IllegalStateException("backend down"));
+        assertEquals("500 Internal Server Error", dispatcher.handleAppRequest("GET", "/app/test/async").getStatus());
+    }
+
+    public void testAnswersWithGatewayTimeoutAndCancelsTheStage() throws Exception {
+        CONTROLLER.next = new CompletableFuture<>();
+        long start = System.nanoTime();
+        HttpResponse response = dispatcher.handleAppRequest("GET", "/app/test/async/timeout", null);
+
+        assertEquals("504 Gateway Timeout", response.getStatus());
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+        assertTrue(CONTROLLER.next.isCancelled());
+        String scrape = body(metrics.scrape(SimpleWebServer.getRegistry().routes()));
+        assertTrue(scrape, scrape.contains("springeci_async_timeouts_total 1\n"));
+    }
+
+    public void testCancellingTheResponseCancelsTheStage() {
+        CONTROLLER.next = new CompletableFuture<>();
+        CompletableFuture<String> stage = CONTROLLER.next;
+        CompletableFuture<HttpResponse> response = dispatcher.handleAppRequestAsync("GET", "/app/test/async/timeout",
+                null);
+
+        response.cancel(true);
+        assertTrue(stage.isCancelled());
+        assertTrue(body(metrics.scrape(SimpleWebServer.getRegistry().routes()))
+                .contains("springeci_async_cancelled_total 1\n"));
+    }
+
+    public void testCancelsWhenTheClientDisconnects() throws Exception {
+        CONTROLLER.next = new CompletableFuture<>();
+        ServerConfig config = new ServerConfig();
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress("localhost", 0));
+            Thread handler;
+            try (Socket client = new Socket("localhost", server.socket().getLocalPort())) {
+                Socket accepted = server.accept().socket();
+                handler = new Thread(new ClientHandler(accepted, config, System.nanoTime(), null));
+                handler.start();
+
+                OutputStream out = client.getOutputStream();
+                out.write("GET /app/test/async HTTP/1.1\r\nHost: localhost\r\n\r\n"
+                        .getBytes(StandardCharsets.ISO_8859_1));
+                out.flush();
+                Thread.sleep(200);
+                assertTrue(handler.isAlive());
+            }
+            handler.join(5000);
+            assertFalse(handler.isAlive());
+            assertTrue(CONTROLLER.returned.isCancelled());
+        }
+    }
+
+    public void testTimeoutRequiresAsyncMethod() throws Exception {
+        try {
+            RouteInvoker.create(CONTROLLER, AsyncController.class.getMethod("notAsync"));
+            fail("@Timeout on a synchronous method was accepted");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("notAsync"));
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package edu.escuelaing.arep;
+
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import edu.escuelaing.arep.annotations.GetMapping;
+import edu.escuelaing.arep.annotations.RequestParam;
+import junit.framework.TestCase;
+
+public class BatchHandlerTest extends TestCase {
+
+    public static class BatchController {
+        static volatile CompletableFuture<String> pending;
+
+        @GetMapping("/app/test/batch/echo")
+        public String echo(@RequestParam(value = "text", defaultValue = "none") String text,
+                           @RequestParam(value = "n", defaultValue = "0") int n) {
+            return text + ":" + n;
+        }
+
+        @GetMapping("/app/test/batch/tags")
+        public List<String> tags(@RequestParam(value = "tag") List<String> tags) {
+            return tags;
+        }
+
+        @GetMapping("/app/test/batch/fail")
+        public String fail() {
+            throw new IllegalStateException("backend down");
+        }
+
+        @GetMapping("/app/test/batch/pending")
+        public CompletableFuture<String> pending() {
+            return pending;
+        }
+    }
+
+    private RequestDispatcher dispatcher;
+
+    @Override
+    protected void setUp() throws Exception {
+        TestFixtures.registerRoutes(new BatchController(), "echo", "tags", "fail", "pending");
+        BatchController.pending = new CompletableFuture<>();
+        dispatcher = new RequestDispatcher(null, Integer.MAX_VALUE, new ServerMetrics(), 0, null);
+    }
+
+    public void testAnswersEveryRequestInOrder() throws Exception {
+        StringBuilder batch = new StringBuilder("[");
+        StringBuilder expected = new StringBuilder("[");
+        for (int i = 0; i < 50; i++) {
+            batch.append(i > 0 ? "," : "").append("\"/app/test/batch/echo?text=t&n=").append(i).append('"');
+            expected.append(i > 0 ? "," : "")
+                    .append("{\"status\":200,\"contentType\":\"text/plain; charset=UTF-8\",\"body\":\"t:")
+                    .append(i).append("\"}");
+        }
+        HttpResponse response = dispatcher.dispatch(batch(batch.append(']').toString()));
+        assertEquals("200 OK", response.getStatus());
+        assertEquals("application/json", response.getContentType());
+        assertEquals(expected.append(']').toString(), body(response));
+    }
+
+    public void testBindsTheParamsOfObjects() throws Exception {
+        HttpResponse response = dispatcher.dispatch(batch("[{\"route\": \"/app/test/batch/echo\", "
+                + "\"params\": {\"text\": \"a b&c=\\u00e9\", \"n\": 7}},"
+                + " {\"route\": \"/app/test/batch/tags\", \"params\": {\"tag\": [\"x\", \"y\"]}},"
+                + " {\"route\": \"/app/test/batch/echo\"}]"));
+        assertEquals("[{\"status\":200,\"contentType\":\"text/plain; charset=UTF-8\",\"body\":\"a b&c=\u00e9:7\"},"
+                + "{\"status\":200,\"contentType\":\"application/json\",\"body\":[\"x\",\"y\"]},"
+                + "{\"status\":200,\"contentType\":\"text/plain; charset=UTF-8\",\"body\":\"none:0\"}]", body(response));
+    }
+
+    public void testReportsErrorsPerRequest() throws Exception {
+        HttpResponse response = dispatcher.dispatch(batch("[\"/app/test/batch/fail\", \"/app/test/batch/missing\","
+                + " \"/app/test/batch/echo?n=1\", \"/app/_batch\"]"));
+        assertEquals("200 OK", response.getStatus());
+        assertEquals("[{\"status\":500,\"error\":\"Internal Server Error\"},"
+                + "{\"status\":404,\"error\":\"Not Found\"},"
+                + "{\"status\":200,\"contentType\":\"text/plain; charset=UTF-8\",\"body\":\"none:1\"},"
+                + "{\"status\":405,\"error\":\"Method Not Allowed\"}]", body(response));
+    }
+
+    public void testRejectsOversizedAndMalformedBatches() throws Exception {
+        StringBuilder batch = new StringBuilder("[");
+        for (int i = 0; i <= SimpleWebServer.getConfig().getBatchMaxSize(); i++) {
+            batch.append(i > 0 ? "," : "").append("\"/app/test/batch/echo\"");
+        }
+        assertEquals("413 Payload Too Large", dispatcher.dispatch(batch(batch.append(']').toString())).getStatus());
+        assertEquals("400 Bad Request", dispatcher.dispatch(batch("{\"route\": \"/app/hello\"}")).getStatus());
+        assertEquals("400 Bad Request", dispatcher.dispatch(batch("[\"app/hello\"]")).getStatus());
+        assertEquals("400 Bad Request", dispatcher.dispatch(batch("[{\"params\": {}}]")).getStatus());
+        assertEquals("400 Bad Request", dispatcher.dispatch(batch("[\"/app/hello\"")).getStatus());
+        assertEquals("200 OK", dispatcher.dispatch(batch(" [ ] ")).getStatus());
+        assertEquals("405 Method Not Allowed", dispatcher.dispatch(new HttpRequest("GET", "/app/_batch", "HTTP/1.1",
+                Collections.<String, String>emptyMap())).getStatus());
+    }
+
+    public void testCompletesWithTheLastAsynchronousRequest() throws Exception {
+        CompletableFuture<HttpResponse> response = dispatcher.dispatchAsync(
+                batch("[\"/app/test/batch/pending\", \"/app/test/batch/echo\"]"));
+        Thread.sleep(50);
+        assertFalse(response.isDone());
+        BatchController.pending.complete("late");
+        assertEquals("[{\"status\":200,\"contentType\":\"text/plain; charset=UTF-8\",\"body\":\"late\"},"
+                + "{\"status\":200,\"contentType\":\"text/plain; charset=UTF-8\",\"body\":\"none:0\"}]",
+                body(response.join()));
+    }
+
+    public void testEachRequestCountsAgainstTheRateLimit() throws Exception {
+        RequestDispatcher limited = new RequestDispatcher(null, Integer.MAX_VALUE, new ServerMetrics(), 0,
+                new RateLimiter(1, 3, 64));
+        HttpRequest request = batch("[\"/app/test/batch/echo\", \"/app/test/batch/echo\", \"/app/test/batch/echo\"]");
+        request.setRemoteAddress(InetAddress.getByName("10.2.0.1"));
+        String body = body(limited.dispatch(request));
+        assertTrue(body, body.startsWith("[{\"status\":200,"));
+        assertTrue(body, body.contains("{\"status\":429,\"error\":\"Too Many Requests\"}"));
+    }
+
+    public void testSplitsLargeBatchesAcrossThePool() {
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            BatchHandler handler = new BatchHandler(pool, 1000);
+            StringBuilder batch = new StringBuilder("[");
+            for (int i = 0; i < 1000; i++) {
+                batch.append(i > 0 ? "," : "").append("\"/app/test/batch/echo?n=").append(i).append('"');
+            }
+            String body = body(handler.handle(batch(batch.append(']').toString()), dispatcher, Integer.MAX_VALUE).join());
+            assertTrue(body.endsWith("\"body\":\"none:999\"}]"));
+            assertTrue(pool.getStealCount() > 0);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static HttpRequest batch(String json) {
+        Map<String, String> headers = new LinkedHashMap<>();
+        headers.put("content-type", "application/json");
+        HttpRequest request = new HttpRequest("POST", "/app/_batch", "HTTP/1.1", headers);
+        request.setBody(json.getBytes(StandardCharsets.UTF_8));
+        return request;
+    }
+
+    private static String body(HttpResponse response) {
+        return new String(response.getBody(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,219 @@
+package edu.escuelaing.arep;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Pipe;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import edu.escuelaing.arep.annotations.Cacheable;
+import edu.escuelaing.arep.annotations.GetMapping;
+import edu.escuelaing.arep.annotations.RequestParam;
+import junit.framework.TestCase;
+
+public class ChunkedResponseTest extends TestCase {
+
+    public static class StreamingController {
+        @GetMapping("/app/test/stream")
+        public Stream<Integer> stream(@RequestParam(value = "to", defaultValue = "3") int to) {
+            return IntStream.rangeClosed(1, to).boxed();
+        }
+
+        @Cacheable
+        public Iterator<String> cached() {
+            return null;
+        }
+    }
+
+    private static final StreamingController CONTROLLER = new StreamingController();
+
+    @Override
+    protected void setUp() throws Exception {
+        TestFixtures.registerRoutes(CONTROLLER, "stream");
+    }
+
+    private static HttpResponse streamed(Iterator<?> elements) {
+        return new HttpResponse("200 OK", "text/plain", ChunkedBody.of(elements));
+    }
+
+    /**
+     * Decodes a chunked body, checking its framing.
+     */
+    private static String dechunk(String encoded) {
+        StringBuilder body = new StringBuilder();
+        int position = 0;
+        while (true) {
+            int lineEnd = encoded.indexOf("\r\n", position);
+            int size = Integer.parseInt(encoded.substring(position, lineEnd), 16);
+            position = lineEnd + 2;
+            if (size == 0) {
+                assertEquals("\r\n", encoded.substring(position));
+                return body.toString();
+            }
+            body.append(encoded, position, position + size);
+            assertEquals("\r\n", encoded.substring(position + size, position + size + 2));
+            position += size + 2;
+        }
+    }
+
+    public void testFramesTheBodyAsChunks() throws IOException {
+        ResponseWriterTest.RecordingChannel channel = new ResponseWriterTest.RecordingChannel();
+        HttpResponse response = streamed(Arrays.asList("a", 2, "€").iterator());
+        String header = new String(response.encodeHeader(true), StandardCharsets.ISO_8859_1);
+        assertTrue(header, header.contains("Transfer-Encoding: chunked\r\n"));
+        assertFalse(header, header.contains("Content-length"));
+
+        try (ResponseWriter writer = new ResponseWriter(channel, new BufferPool(4096, 4))) {
+            writer.write(response, true);
+            writer.write(new HttpResponse("204 No Content"), true);
+            writer.flush();
+            assertFalse(writer.hasPending());
+        }
+        String expected = header + "8\r\na\n2\nâ\u0082¬\n\r\n0\r\n\r\n"
+                + new String(new HttpResponse("204 No Content").encodeHeader(true), StandardCharsets.ISO_8859_1);
+        assertEquals(expected, channel.text());
+    }
+
+    public void testSplitsLargeBodiesIntoBufferSizedChunks() throws IOException {
+        ResponseWriterTest.RecordingChannel channel = new ResponseWriterTest.RecordingChannel();
+        BufferPool pool = new BufferPool(256, 4);
+        HttpResponse response = streamed(IntStream.range(0, 10000).iterator());
+
+        try (ResponseWriter writer = new ResponseWriter(channel, pool)) {
+            int headerLength = response.encodeHeader(false).length;
+            assertEquals(headerLength, writer.write(response, false));
+            String text = channel.text();
+            StringBuilder expected = new StringBuilder();
+            IntStream.range(0, 10000).forEach(i -> expected.append(i).append('\n'));
+            assertEquals(expected.toString(), dechunk(text.substring(headerLength)));
+        }
+        assertTrue(channel.writes > 100);
+        assertEquals(1, pool.getAllocated());
+    }
+
+    public void testSendsUnframedBodiesToHttp10Clients() throws IOException {
+        ResponseWriterTest.RecordingChannel channel = new ResponseWriterTest.RecordingChannel();
+        HttpResponse response = streamed(Arrays.asList("one", "two").iterator());
+
+        try (ResponseWriter writer = new ResponseWriter(channel, new BufferPool(4096, 4))) {
+            writer.write(response, false, false);
+        }
+        assertEquals(new String(response.buildHeader(false, false), StandardCharsets.ISO_8859_1) + "one\ntwo\n",
+                channel.text());
+        assertFalse(channel.text().contains("Transfer-Encoding"));
+    }
+
+    public void testSlowClientBoundsWhatIsProduced() throws Exception {
+        AtomicLong produced = new AtomicLong();
+        AtomicBoolean streamClosed = new AtomicBoolean();
+        Stream<String> endless = Stream.generate(() -> {
+            produced.incrementAndGet();
+            return "0123456789012345678901234567890123456789012345678901234567890123456789";
+        }).onClose(() -> streamClosed.set(true));
+        HttpResponse response = new HttpResponse("200 OK", "text/plain", ChunkedBody.of(endless));
+
+        Pipe pipe = Pipe.open();
+        pipe.sink().configureBlocking(false);
+        pipe.source().configureBlocking(false);
+        CountDownLatch ready = new CountDownLatch(1);
+        try (ResponseWriter writer = new ResponseWriter(pipe.sink(), new BufferPool(4096, 4))) {
+            writer.onBodyReady(ready::countDown);
+            writer.write(response, true);
+            if (!writer.drain() && writer.isWaitingForBody()) {
+                assertTrue(ready.await(5, TimeUnit.SECONDS));
+            }
+
+            // Nobody reads the pipe: the producer stops once the pipe and the body buffer are full
+            long before;
+            do {
+                before = produced.get();
+                writer.drain();
+                Thread.sleep(100);
+            } while (produced.get() != before);
+            assertFalse(writer.isWaitingForBody());
+            assertTrue(writer.hasPending());
+            assertTrue("produced " + before + " lines", before * 71 < 2 * 1024 * 1024);
+
+            ByteBuffer received = ByteBuffer.allocate(1024 * 1024);
+            long deadline = System.currentTimeMillis() + 10000;
+            while (received.hasRemaining() && System.currentTimeMillis() < deadline) {
+                pipe.source().read(received);
+                writer.drain();
+            }
+            assertFalse(received.hasRemaining());
+            assertTrue(produced.get() > before);
+        } finally {
+            pipe.sink().close();
+            pipe.source().close();
+        }
+        // Closing the writer made the producer fail on its next write, which closed the stream
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!streamClosed.get() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(streamClosed.get());
+    }
+
+    public void testStreamingBodyFailureAbortsTheResponse() {
+        ResponseWriterTest.RecordingChannel channel = new ResponseWriterTest.RecordingChannel();
+        StreamingBody failing = out -> {
+            out.write("partial".getBytes(StandardCharsets.US_ASCII));
+            throw new IllegalStateException("backend down");
+        };
+        try (ResponseWriter writer = new ResponseWriter(channel, new BufferPool(4096, 4))) {
+            writer.write(new HttpResponse("200 OK", "text/plain", ChunkedBody.of(failing)), true);
+            fail("The failure of the body was not reported");
+        } catch (IOException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        assertFalse(channel.text().endsWith("0\r\n\r\n"));
+    }
+
+    public void testClosingTheBodyFailsTheWritesOfTheProducer() throws Exception {
+        AtomicReference<IOException> error = new AtomicReference<>();
+        CountDownLatch done = new CountDownLatch(1);
+        ChunkedBody body = ChunkedBody.of((StreamingBody) out -> {
+            try {
+                while (true) {
+                    out.write(new byte[1024]);
+                }
+            } catch (IOException e) {
+                error.set(e);
+                throw e;
+            } finally {
+                done.countDown();
+            }
+        });
+
+        body.awaitReadable();
+        assertTrue(body.read(ByteBuffer.allocate(100)) > 0);
+        body.close();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertNotNull(error.get());
+    }
+
+    public void testControllersReturningStreamsAreStreamed() throws Exception {
+        RequestDispatcher dispatcher = new RequestDispatcher(null, 0, new ServerMetrics(), 0);
+        HttpResponse response = dispatcher.handleAppRequest("GET", "/app/test/stream?to=5");
+        assertEquals("200 OK", response.getStatus());
+        assertEquals(-1, response.getContentLength());
+        ByteBuffer body = ByteBuffer.allocate(100);
+        assertEquals(10, response.getBodyStream().read(body));
+        assertEquals("1\n2\n3\n4\n5\n", new String(body.array(), 0, body.position(), StandardCharsets.UTF_8));
+        assertEquals(-1, response.getBodyStream().read(body));
+
+        try {
+            RouteInvoker.create(CONTROLLER, StreamingController.class.getMethod("cached"));
+            fail("@Cacheable on a streamed method was accepted");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("cached"));
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package edu.escuelaing.arep;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+import junit.framework.TestCase;
+
+public class ControllerDiscoveryTest extends TestCase {
+
+    public void testLoadsIndexWrittenAtBuildTime() throws Exception {
+        ControllerIndex index = ControllerIndex.load(getClass().getClassLoader());
+        assertNotNull(index);
+        assertTrue(index.controllers().contains(HelloService.class.getName()));
+        assertTrue(index.controllers().contains(SqrtService.class.getName()));
+
+        ControllerIndex.Route route = index.routes(HelloService.class.getName()).get(0);
+        assertEquals("/app/hello", route.getPattern());
+        assertEquals("hello", route.getMethodName());
+        assertTrue(Arrays.equals(new Class<?>[] {String.class}, route.parameterClasses(getClass().getClassLoader())));
+    }
+
+    public void testScannerFindsAnnotatedClasses() throws Exception {
+        List<Class<?>> controllers = new ClasspathScanner(getClass().getClassLoader(), "edu.escuelaing.arep")
+                .findControllers();
+        assertTrue(controllers.contains(HelloService.class));
+        assertTrue(controllers.contains(SqrtService.class));
+        assertFalse(controllers.contains(RequestDispatcher.class));
+
+        assertTrue(new ClasspathScanner(getClass().getClassLoader(), "org.nothing").findControllers().isEmpty());
+    }
+
+    public void testProcessorWritesIndexAndRejectsBadRoutes() throws Exception {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        if (compiler == null) {
+            return;
+        }
+        Path dir = Files.createTempDirectory("springeci-processor");
+        String source = "package demo;\n"
+                + "import edu.escuelaing.arep.annotations.*;\n"
+                + "@RestController public class Demo {\n"
+                + "  @GetMapping(\"/app/demo\") public String demo(int[] values, java.util.List<String> names) {"
+                + " return \"\"; }\n"
+                + "}\n";
+        assertEquals(0, compile(compiler, dir, "Demo", source));
+        String index = new String(Files.readAllBytes(dir.resolve(ControllerIndex.RESOURCE)), StandardCharsets.UTF_8);
+        assertTrue(index, index.contains(ControllerIndex.routeEntry("/app/demo", "demo.Demo", "demo",
+                Arrays.asList("[I", "java.util.List"))));
+
+        String bad = source.replace("\"/app/demo\"", "\"app/demo\"").replace("Demo", "Bad");
+        assertTrue(compile(compiler, dir, "Bad", bad) != 0);
+    }
+
+    private static int compile(JavaCompiler compiler, Path dir, String name, String source) throws Exception {
+        Path file = dir.resolve(name + ".java");
+        Files.write(file, source.getBytes(StandardCharsets.UTF_8));
+        List<String> args = Arrays.asList("-proc:only",
+                "-processor", "edu.escuelaing.arep.processor.ControllerIndexProcessor",
+                "-cp", System.getProperty("java.class.path"), "-d", dir.toString(), file.toString());
+        return compiler.run(null, null, new ByteArrayOutputStream(), args.toArray(new String[0]));
+    }
+}
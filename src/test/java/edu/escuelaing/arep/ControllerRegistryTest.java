@@ -0,0 +1,167 @@
+package edu.escuelaing.arep;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import edu.escuelaing.arep.annotations.GetMapping;
+import junit.framework.TestCase;
+
+public class ControllerRegistryTest extends TestCase {
+
+    public static class StableController {
+        @GetMapping("/app/test/registry/stable")
+        public String stable() {
+            return "stable";
+        }
+    }
+
+    public static class ReloadableController {
+        @GetMapping("/app/test/registry/version")
+        public String version() {
+            return String.valueOf(System.identityHashCode(getClass()));
+        }
+
+        @GetMapping("/app/test/registry/{name}")
+        public String name() {
+            return "name";
+        }
+    }
+
+    public static class ConflictingController {
+        @GetMapping("/app/test/registry/other")
+        public String other() {
+            return "other";
+        }
+
+        @GetMapping("/app/test/registry/stable")
+        public String stable() {
+            return "conflict";
+        }
+    }
+
+    /**
+     * Loads its own copy of one class and delegates every other class to its parent, as a
+     * class loader over freshly compiled classes would.
+     */
+    private static final class ReloadingClassLoader extends ClassLoader {
+        private final String reloaded;
+
+        ReloadingClassLoader(Class<?> reloaded) {
+            super(reloaded.getClassLoader());
+            this.reloaded = reloaded.getName();
+        }
+
+        @Override
+        protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            if (!name.equals(reloaded)) {
+                return super.loadClass(name, resolve);
+            }
+            synchronized (getClassLoadingLock(name)) {
+                Class<?> loaded = findLoadedClass(name);
+                if (loaded != null) {
+                    return loaded;
+                }
+                try (InputStream in = getParent().getResourceAsStream(name.replace('.', '/') + ".class")) {
+                    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                    byte[] buffer = new byte[4096];
+                    for (int n; (n = in.read(buffer)) != -1; ) {
+                        bytes.write(buffer, 0, n);
+                    }
+                    return defineClass(name, bytes.toByteArray(), 0, bytes.size());
+                } catch (IOException e) {
+                    throw new ClassNotFoundException(name, e);
+                }
+            }
+        }
+    }
+
+    private ControllerRegistry registry;
+    private RouteMatch<RouteInvoker> match;
+
+    @Override
+    protected void setUp() throws Exception {
+        registry = new ControllerRegistry();
+        registry.register(StableController.class);
+        match = new RouteMatch<>();
+    }
+
+    private Object call(String path) throws Exception {
+        assertTrue(path, registry.match(path, 0, path.length(), match));
+        return match.getHandler().invoke(Collections.<String, String>emptyMap(), match);
+    }
+
+    public void testRegistersAndUnregistersControllers() throws Exception {
+        registry.register(ReloadableController.class);
+        assertEquals(3, registry.routes().size());
+        assertEquals(2, registry.controllers().size());
+        assertEquals("name", call("/app/test/registry/anything"));
+
+        assertTrue(registry.unregister(ReloadableController.class.getName()));
+        assertFalse(registry.unregister(ReloadableController.class.getName()));
+        assertFalse(registry.match("/app/test/registry/anything", match));
+        assertEquals("stable", call("/app/test/registry/stable"));
+        assertEquals(Collections.singleton(StableController.class.getName()), registry.controllers().keySet());
+    }
+
+    public void testConflictsLeaveTheTableUnchanged() throws Exception {
+        Map<String, RouteInvoker> before = registry.routes();
+        try {
+            registry.register(ConflictingController.class);
+            fail("A route taken by another controller was registered");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("/app/test/registry/stable"));
+        }
+        assertEquals(before, registry.routes());
+        assertFalse(registry.match("/app/test/registry/other", match));
+        assertFalse(registry.controllers().containsKey(ConflictingController.class.getName()));
+    }
+
+    public void testReloadsAControllerFromANewClassLoader() throws Exception {
+        registry.register(ReloadableController.class);
+        Object first = call("/app/test/registry/version");
+        Map<String, RouteInvoker> published = registry.routes();
+
+        registry.reload(ReloadableController.class.getName(), new ReloadingClassLoader(ReloadableController.class));
+        Object controller = registry.controllers().get(ReloadableController.class.getName());
+        assertNotSame(ReloadableController.class, controller.getClass());
+        assertEquals(ReloadableController.class.getName(), controller.getClass().getName());
+        assertFalse(first.equals(call("/app/test/registry/version")));
+        assertEquals(3, registry.routes().size());
+        assertSame(ReloadableController.class, published.get("/app/test/registry/version").getMethod().getDeclaringClass());
+    }
+
+    public void testReadersNeverSeeAPartialTable() throws Exception {
+        AtomicBoolean done = new AtomicBoolean();
+        AtomicReference<String> failure = new AtomicReference<>();
+        Thread[] readers = new Thread[3];
+        for (int i = 0; i < readers.length; i++) {
+            readers[i] = new Thread(() -> {
+                RouteMatch<RouteInvoker> match = new RouteMatch<>();
+                String path = "/app/test/registry/stable";
+                while (!done.get()) {
+                    if (!registry.match(path, 0, path.length(), match)) {
+                        failure.set("The stable route was missing");
+                    }
+                }
+            });
+            readers[i].start();
+        }
+        try {
+            for (int i = 0; i < 2000; i++) {
+                registry.register(ReloadableController.class);
+                registry.unregister(ReloadableController.class.getName());
+            }
+        } finally {
+            done.set(true);
+            for (Thread reader : readers) {
+                reader.join();
+            }
+        }
+        assertNull(failure.get());
+        assertEquals(1, registry.routes().size());
+    }
+}
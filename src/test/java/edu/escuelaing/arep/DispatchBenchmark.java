@@ -0,0 +1,104 @@
+package edu.escuelaing.arep;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures the steps the `RequestDispatcher` runs for every request: query-string parsing,
+ * into a map as before and in place with `QueryParameters`,
+ * parameter conversion, content-type lookup, complete dynamic requests through
+ * `handleAppRequest`, to the cached `/app/sqrt` and to the uncached `/app/hello`, and a
+ * complete static request through `handleGetRequest`.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DispatchBenchmark {
+    // Inputs live in non-final fields so the JIT cannot fold them as constants
+    private String queryString = "name=JohnDoe&number=16&verbose";
+    private String intValue = "16";
+    private String doubleValue = "16.5";
+    private String cssFile = "/style.css";
+    private String appTarget = "/app/sqrt?number=16";
+    private String uncachedAppTarget = "/app/hello?name=JohnDoe";
+    private RequestDispatcher dispatcher;
+    private QueryParameters query = new QueryParameters();
+
+    @Setup
+    public void setUp() throws Exception {
+        if (SimpleWebServer.getRegistry().routes().isEmpty()) {
+            SimpleWebServer.initializeControllers();
+        }
+        dispatcher = new RequestDispatcher();
+    }
+
+    @Benchmark
+    public Map<String, String> parseQueryString() {
+        return parseQueryString(queryString);
+    }
+
+    @Benchmark
+    public int queryParameters() {
+        QueryParameters parameters = query.reset(queryString, 0, queryString.length());
+        return parameters.intValue(parameters.indexOf("number")) + parameters.indexOf("verbose");
+    }
+
+    @Benchmark
+    public Object convertToRequiredTypeInt() {
+        return RouteInvoker.convertToRequiredType(int.class, intValue);
+    }
+
+    @Benchmark
+    public Object convertToRequiredTypeDouble() {
+        return RouteInvoker.convertToRequiredType(double.class, doubleValue);
+    }
+
+    @Benchmark
+    public String getContentType() {
+        return RequestDispatcher.getContentType(cssFile);
+    }
+
+    @Benchmark
+    public HttpResponse handleAppRequest() {
+        return dispatcher.handleAppRequest("GET", appTarget);
+    }
+
+    @Benchmark
+    public HttpResponse handleAppRequestUncached() {
+        return dispatcher.handleAppRequest("GET", uncachedAppTarget);
+    }
+
+    @Benchmark
+    public HttpResponse handleGetRequestHtml() throws IOException {
+        return dispatcher.handleGetRequest("/index.html");
+    }
+
+    @Benchmark
+    public HttpResponse handleGetRequestImage() throws IOException {
+        return dispatcher.handleGetRequest("/google.jpg");
+    }
+
+    /**
+     * The parser requests went through before `QueryParameters`, kept as the baseline of
+     * `queryParameters`: splits a query string into a map of its parameters.
+     */
+    private static Map<String, String> parseQueryString(String queryString) {
+        Map<String, String> queryParams = new HashMap<>();
+        String[] pairs = queryString.split("&");
+        for (String pair : pairs) {
+            String[] keyValue = pair.split("=");
+            if (keyValue.length > 1) {
+                queryParams.put(keyValue[0], keyValue[1]);
+            } else {
+                queryParams.put(keyValue[0], "");
+            }
+        }
+        return queryParams;
+    }
+}
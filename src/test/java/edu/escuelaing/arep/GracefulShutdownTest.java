@@ -0,0 +1,172 @@
+package edu.escuelaing.arep;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import edu.escuelaing.arep.annotations.GetMapping;
+import junit.framework.TestCase;
+
+public class GracefulShutdownTest extends TestCase {
+
+    public static class ShutdownController {
+        static volatile CompletableFuture<String> pending;
+        static volatile CountDownLatch invoked;
+
+        @GetMapping("/app/test/shutdown/ok")
+        public String ok() {
+            return "ok";
+        }
+
+        @GetMapping("/app/test/shutdown/pending")
+        public CompletableFuture<String> pending() {
+            invoked.countDown();
+            return pending;
+        }
+    }
+
+    /**
+     * The part of an engine the tests drive.
+     */
+    private interface Engine {
+        void serve() throws IOException;
+
+        boolean shutdown(long timeout);
+    }
+
+    private static final ShutdownController CONTROLLER = new ShutdownController();
+
+    private int port;
+
+    @Override
+    protected void setUp() throws Exception {
+        TestFixtures.registerRoutes(CONTROLLER, "ok", "pending");
+        ShutdownController.pending = new CompletableFuture<>();
+        ShutdownController.invoked = new CountDownLatch(1);
+        port = TestFixtures.freePort();
+    }
+
+    private ServerConfig config() {
+        return TestFixtures.config(port, "--acceptors=2", "--ioThreads=2");
+    }
+
+    private Engine nio() throws IOException {
+        NioServer server = new NioServer(config());
+        return new Engine() {
+            public void serve() throws IOException {
+                server.serve();
+            }
+
+            public boolean shutdown(long timeout) {
+                return server.shutdown(timeout);
+            }
+        };
+    }
+
+    private Engine blocking() {
+        BlockingServer server = new BlockingServer(config(), Executors.newFixedThreadPool(4));
+        return new Engine() {
+            public void serve() throws IOException {
+                server.serve();
+            }
+
+            public boolean shutdown(long timeout) {
+                return server.shutdown(timeout);
+            }
+        };
+    }
+
+    public void testNioEngineDrainsRequestsInFlight() throws Exception {
+        assertDrains(nio());
+    }
+
+    public void testBlockingEngineDrainsRequestsInFlight() throws Exception {
+        assertDrains(blocking());
+    }
+
+    public void testNioEngineClosesWhatIsLeftAtTheDeadline() throws Exception {
+        assertClosesAtDeadline(nio());
+    }
+
+    public void testBlockingEngineClosesWhatIsLeftAtTheDeadline() throws Exception {
+        assertClosesAtDeadline(blocking());
+    }
+
+    public void testSeveralAcceptorsShareThePort() throws Exception {
+        ServerConfig config = config();
+        assertTrue(config.isReusePort());
+        ServerSocketChannel[] listeners = SimpleWebServer.openListeners(config);
+        try {
+            assertEquals(2, listeners.length);
+            assertEquals(port, listeners[0].socket().getLocalPort());
+            assertEquals(port, listeners[1].socket().getLocalPort());
+        } finally {
+            SimpleWebServer.closeListeners(listeners);
+        }
+    }
+
+    private void assertDrains(Engine engine) throws Exception {
+        Thread serving = TestFixtures.serve(engine::serve);
+        try (Socket idle = TestFixtures.connect(port); Socket busy = TestFixtures.connect(port)) {
+            TestFixtures.send(idle, "/app/test/shutdown/ok");
+            assertTrue(TestFixtures.readResponse(idle.getInputStream()).contains("Connection: keep-alive"));
+            TestFixtures.send(busy, "/app/test/shutdown/pending");
+            assertTrue(ShutdownController.invoked.await(5, TimeUnit.SECONDS));
+
+            FutureTask<Boolean> shutdown = new FutureTask<>(() -> engine.shutdown(5000));
+            new Thread(shutdown).start();
+
+            // The idle connection is closed and new ones are refused while the busy one is served
+            assertEquals(-1, idle.getInputStream().read());
+            assertRefused();
+            assertFalse(shutdown.isDone());
+
+            ShutdownController.pending.complete("done");
+            String response = TestFixtures.readResponse(busy.getInputStream());
+            assertTrue(response, response.contains("Connection: close"));
+            assertTrue(response, response.endsWith("done"));
+            assertEquals(-1, busy.getInputStream().read());
+            assertTrue(shutdown.get(5, TimeUnit.SECONDS));
+        }
+        serving.join(5000);
+        assertFalse(serving.isAlive());
+    }
+
+    private void assertClosesAtDeadline(Engine engine) throws Exception {
+        Thread serving = TestFixtures.serve(engine::serve);
+        try (Socket busy = TestFixtures.connect(port)) {
+            TestFixtures.send(busy, "/app/test/shutdown/pending");
+            assertTrue(ShutdownController.invoked.await(5, TimeUnit.SECONDS));
+
+            long start = System.nanoTime();
+            assertFalse(engine.shutdown(200));
+            assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(200));
+            try {
+                assertEquals(-1, busy.getInputStream().read());
+            } catch (IOException e) {
+                // Reset: just as closed
+            }
+            assertTrue(ShutdownController.pending.isCancelled());
+        }
+        serving.join(5000);
+        assertFalse(serving.isAlive());
+    }
+
+    private void assertRefused() throws Exception {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (System.currentTimeMillis() < deadline) {
+            try {
+                new Socket("127.0.0.1", port).close();
+            } catch (ConnectException e) {
+                return;
+            }
+            Thread.sleep(20);
+        }
+        fail("Connections were still accepted");
+    }
+}
@@ -0,0 +1,111 @@
+package edu.escuelaing.arep;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import junit.framework.TestCase;
+
+public class HpackTest extends TestCase {
+
+    public void testDecodesTheRequestExamplesOfTheRfc() throws Exception {
+        // RFC 7541, C.4: three requests on one connection, with Huffman coding
+        HpackDecoder decoder = new HpackDecoder(Hpack.DEFAULT_TABLE_SIZE);
+        assertEquals(Arrays.asList(":method", "GET", ":scheme", "http", ":path", "/",
+                        ":authority", "www.example.com"),
+                decode(decoder, "828684418cf1e3c2e5f23a6ba0ab90f4ff"));
+        assertEquals(Arrays.asList(":method", "GET", ":scheme", "http", ":path", "/",
+                        ":authority", "www.example.com", "cache-control", "no-cache"),
+                decode(decoder, "828684be5886a8eb10649cbf"));
+        assertEquals(Arrays.asList(":method", "GET", ":scheme", "https", ":path", "/index.html",
+                        ":authority", "www.example.com", "custom-key", "custom-value"),
+                decode(decoder, "828785bf408825a849e95ba97d7f8925a849e95bb8e8b4bf"));
+    }
+
+    public void testRepeatedHeadersShrinkToIndexes() throws Exception {
+        HpackEncoder encoder = new HpackEncoder();
+        HpackDecoder decoder = new HpackDecoder(Hpack.DEFAULT_TABLE_SIZE);
+        List<String> first = Arrays.asList(":status", "200", "content-type", "text/css",
+                "content-length", "1333", "cache-control", "max-age=3600", "x-custom", "\u00e9t\u00e9");
+        List<String> second = Arrays.asList(":status", "200", "content-type", "text/css",
+                "content-length", "5307", "cache-control", "max-age=3600", "x-custom", "\u00e9t\u00e9");
+        byte[] firstBlock = encoder.encode(first);
+        byte[] secondBlock = encoder.encode(second);
+        assertEquals(first, decoder.decode(firstBlock, 0, firstBlock.length));
+        assertEquals(second, decoder.decode(secondBlock, 0, secondBlock.length));
+        // One byte for each repeated header, and content-length sent as a literal again
+        assertTrue(secondBlock.length + " bytes", secondBlock.length <= 4 + 6);
+    }
+
+    public void testSignalsASmallerTableToTheDecoder() throws Exception {
+        HpackEncoder encoder = new HpackEncoder();
+        HpackDecoder decoder = new HpackDecoder(Hpack.DEFAULT_TABLE_SIZE);
+        encoder.setMaxTableSize(0);
+        List<String> headers = Arrays.asList(":status", "404", "content-type", "text/plain");
+        for (int i = 0; i < 2; i++) {
+            byte[] block = encoder.encode(headers);
+            assertEquals(headers, decoder.decode(block, 0, block.length));
+        }
+    }
+
+    public void testHuffmanCodingRoundTrips() throws Exception {
+        String value = "Mon, 21 Oct 2013 20:13:21 GMT; path=/app?q=~\u00ff";
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Hpack.writeString(out, value);
+        byte[] block = out.toByteArray();
+        assertTrue((block[0] & 0x80) != 0);  // Shorter than the raw string
+        assertEquals(Arrays.asList("x", value), decode(new HpackDecoder(4096),
+                "0001" + "78" + hex(block)));
+    }
+
+    public void testGivesUpOnHeadersLargerThanTheLimit() throws Exception {
+        // A 4 KB cookie added to the dynamic table, then referenced with one byte a thousand times
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(0x40 | 32);
+        char[] cookie = new char[4000];
+        Arrays.fill(cookie, 'a');
+        Hpack.writeString(out, new String(cookie));
+        for (int i = 0; i < 1000; i++) {
+            out.write(0x80 | 62);
+        }
+        byte[] block = out.toByteArray();
+        HpackDecoder decoder = new HpackDecoder(Hpack.DEFAULT_TABLE_SIZE);
+        assertNull(decoder.decode(block, 0, block.length, 8192));
+
+        // The rest of the block was still decoded: the table holds the cookie
+        assertEquals(Arrays.asList("cookie", new String(cookie)), decode(decoder, "be"));
+    }
+
+    public void testRejectsMalformedBlocks() {
+        assertMalformed("be");  // Index past the end of the tables
+        assertMalformed("8220");  // Table size update after a header field
+        assertMalformed("3fe21f");  // Table size update above the limit
+        assertMalformed("0001780385ff");  // String past the end of the block
+        assertMalformed("00017883ffffff");  // Huffman string ending with EOS
+    }
+
+    private static void assertMalformed(String block) {
+        try {
+            decode(new HpackDecoder(Hpack.DEFAULT_TABLE_SIZE), block);
+            fail("Decoded " + block);
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    private static List<String> decode(HpackDecoder decoder, String hex) throws IOException {
+        byte[] block = new byte[hex.length() / 2];
+        for (int i = 0; i < block.length; i++) {
+            block[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return decoder.decode(block, 0, block.length);
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : bytes) {
+            hex.append(String.format("%02x", b & 0xFF));
+        }
+        return hex.toString();
+    }
+}
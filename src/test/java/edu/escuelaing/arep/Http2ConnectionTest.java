@@ -0,0 +1,344 @@
+package edu.escuelaing.arep;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import edu.escuelaing.arep.annotations.GetMapping;
+import junit.framework.TestCase;
+
+public class Http2ConnectionTest extends TestCase {
+
+    public static class StreamController {
+        static volatile CompletableFuture<String> pending;
+        static volatile CountDownLatch invoked;
+
+        @GetMapping("/app/test/h2/hello")
+        public String hello() {
+            return "hello h2";
+        }
+
+        @GetMapping("/app/test/h2/pending")
+        public CompletableFuture<String> pending() {
+            invoked.countDown();
+            return pending;
+        }
+    }
+
+    private static final String WEB_ROOT = SimpleWebServer.WEB_ROOT;
+
+    private int port;
+    private NioServer nioServer;
+    private BlockingServer blockingServer;
+
+    @Override
+    protected void setUp() throws Exception {
+        TestFixtures.registerRoutes(new StreamController(), "hello", "pending");
+        StreamController.pending = new CompletableFuture<>();
+        StreamController.invoked = new CountDownLatch(1);
+        port = TestFixtures.freePort();
+    }
+
+    @Override
+    protected void tearDown() {
+        if (nioServer != null) {
+            nioServer.shutdown(0);
+        }
+        if (blockingServer != null) {
+            blockingServer.shutdown(0);
+        }
+    }
+
+    private ServerConfig config() {
+        return TestFixtures.config(port, "--ioThreads=1");
+    }
+
+    private void startBlocking() {
+        blockingServer = new BlockingServer(config(), Executors.newFixedThreadPool(4));
+        TestFixtures.serve(blockingServer::serve);
+    }
+
+    private void startNio() throws IOException {
+        nioServer = new NioServer(config());
+        TestFixtures.serve(nioServer::serve);
+    }
+
+    public void testMultiplexesStaticFilesAndRoutesOnOneConnection() throws Exception {
+        startBlocking();
+        try (Client client = new Client(TestFixtures.connect(port))) {
+            client.preface();
+            client.request(1, "/app/test/h2/pending");
+            assertTrue(StreamController.invoked.await(5, TimeUnit.SECONDS));
+            client.request(3, "/index.html");
+            client.request(5, "/style.css");
+            client.request(7, "/app/test/h2/hello");
+
+            // The responses behind the pending one are not held up by it
+            Map<Integer, Response> responses = client.readResponses(3);
+            assertEquals(Arrays.asList(3, 5, 7), sorted(responses.keySet()));
+            assertEquals("200", responses.get(3).headers.get(":status"));
+            assertEquals("text/html", responses.get(3).headers.get("content-type"));
+            assertTrue(Arrays.equals(Files.readAllBytes(Paths.get(WEB_ROOT, "index.html")), responses.get(3).body()));
+            assertTrue(Arrays.equals(Files.readAllBytes(Paths.get(WEB_ROOT, "style.css")), responses.get(5).body()));
+            assertEquals("hello h2", new String(responses.get(7).body(), StandardCharsets.UTF_8));
+
+            StreamController.pending.complete("done");
+            responses = client.readResponses(1);
+            assertEquals("done", new String(responses.get(1).body(), StandardCharsets.UTF_8));
+
+            // Headers repeated on the connection come from the dynamic table of the client
+            client.request(9, "/style.css");
+            assertEquals("text/css", client.readResponses(1).get(9).headers.get("content-type"));
+        }
+    }
+
+    public void testUpgradesAnHttp11Request() throws Exception {
+        startNio();
+        try (Client client = new Client(TestFixtures.connect(port))) {
+            client.out.write(("GET /app/test/h2/hello HTTP/1.1\r\nHost: localhost\r\nConnection: Upgrade, HTTP2-Settings\r\n"
+                    + "Upgrade: h2c\r\nHTTP2-Settings: AAMAAABkAAQAAP__\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            String switching = "HTTP/1.1 101 Switching Protocols\r\nConnection: Upgrade\r\nUpgrade: h2c\r\n\r\n";
+            byte[] head = new byte[switching.length()];
+            client.in.readFully(head);
+            assertEquals(switching, new String(head, StandardCharsets.US_ASCII));
+            client.preface();
+
+            Map<Integer, Response> responses = client.readResponses(1);
+            assertEquals("hello h2", new String(responses.get(1).body(), StandardCharsets.UTF_8));
+            client.request(3, "/index.html");
+            assertEquals("200", client.readResponses(1).get(3).headers.get(":status"));
+        }
+    }
+
+    public void testWaitsForTheWindowOfTheClient() throws Exception {
+        startNio();
+        try (Client client = new Client(TestFixtures.connect(port))) {
+            client.preface(4, 100);  // SETTINGS_INITIAL_WINDOW_SIZE
+            client.request(1, "/resultado.html");
+            byte[] file = Files.readAllBytes(Paths.get(WEB_ROOT, "resultado.html"));
+
+            Frame frame;
+            int received = 0;
+            while (received < 100) {
+                frame = client.readFrame();
+                if (frame.type == 0) {
+                    received += frame.payload.length;
+                }
+            }
+            assertEquals(100, received);
+            client.socket.setSoTimeout(200);
+            try {
+                frame = client.readFrame();
+                fail("Sent a frame of type " + frame.type + " past the window");
+            } catch (IOException e) {
+                // Nothing until the window is opened again
+            }
+            client.socket.setSoTimeout(5000);
+            client.windowUpdate(1, file.length);
+            Response response = client.readResponses(1).get(1);
+            assertEquals(file.length - 100, response.body().length);
+        }
+    }
+
+    public void testShutdownSendsGoAwayAndAnswersTheStreamsInFlight() throws Exception {
+        startBlocking();
+        try (Client client = new Client(TestFixtures.connect(port))) {
+            client.preface();
+            client.request(1, "/app/test/h2/pending");
+            assertTrue(StreamController.invoked.await(5, TimeUnit.SECONDS));
+
+            FutureTask<Boolean> shutdown = new FutureTask<>(() -> blockingServer.shutdown(5000));
+            new Thread(shutdown).start();
+            Frame frame;
+            while ((frame = client.readFrame()).type != 7) {
+                assertFalse(frame.stream == 1);
+            }
+            assertEquals(1, frame.readInt(0));  // The last stream that will be answered
+
+            StreamController.pending.complete("done");
+            assertEquals("done", new String(client.readResponses(1).get(1).body(), StandardCharsets.UTF_8));
+            assertEquals(-1, client.in.read());
+            assertTrue(shutdown.get(5, TimeUnit.SECONDS));
+        }
+    }
+
+    public void testAnswers431BeforeExpandingIndexedHeaders() throws Exception {
+        startNio();
+        try (Client client = new Client(TestFixtures.connect(port))) {
+            client.preface();
+            // A 4 KB cookie added to the dynamic table, then referenced with one byte per crumb:
+            // left unchecked, the crumbs would be joined into tens of megabytes
+            ByteArrayOutputStream block = new ByteArrayOutputStream();
+            block.write(0x82);  // :method GET
+            block.write(0x86);  // :scheme http
+            block.write(0x84);  // :path /
+            block.write(0x40 | 32);
+            char[] cookie = new char[4000];
+            Arrays.fill(cookie, 'a');
+            Hpack.writeString(block, new String(cookie));
+            for (int i = 0; i < 12000; i++) {
+                block.write(0x80 | 62);
+            }
+            client.frame(1, 0x5, 1, block.toByteArray());
+            assertEquals("431", client.readResponses(1).get(1).headers.get(":status"));
+
+            // The connection goes on, its dynamic table in step with the client
+            client.request(3, "/app/test/h2/hello");
+            assertEquals("hello h2", new String(client.readResponses(1).get(3).body(), StandardCharsets.UTF_8));
+        }
+    }
+
+    private static List<Integer> sorted(Iterable<Integer> values) {
+        List<Integer> sorted = new ArrayList<>();
+        for (Integer value : values) {
+            sorted.add(value);
+        }
+        sorted.sort(null);
+        return sorted;
+    }
+
+    private static final class Frame {
+        int type;
+        int flags;
+        int stream;
+        byte[] payload;
+
+        int readInt(int offset) {
+            return (payload[offset] & 0xFF) << 24 | (payload[offset + 1] & 0xFF) << 16
+                    | (payload[offset + 2] & 0xFF) << 8 | payload[offset + 3] & 0xFF;
+        }
+    }
+
+    private static final class Response {
+        final Map<String, String> headers = new LinkedHashMap<>();
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+        byte[] body() {
+            return body.toByteArray();
+        }
+    }
+
+    /**
+     * A minimal HTTP/2 client that sends one frame at a time and reads the frames back.
+     */
+    private static final class Client implements AutoCloseable {
+        final Socket socket;
+        final DataInputStream in;
+        final OutputStream out;
+        final HpackEncoder encoder = new HpackEncoder();
+        final HpackDecoder decoder = new HpackDecoder(Hpack.DEFAULT_TABLE_SIZE);
+        final Map<Integer, Response> streams = new LinkedHashMap<>();
+
+        Client(Socket socket) throws IOException {
+            this.socket = socket;
+            this.in = new DataInputStream(socket.getInputStream());
+            this.out = socket.getOutputStream();
+        }
+
+        void preface(int... settings) throws IOException {
+            out.write(Http2Connection.PREFACE);
+            byte[] payload = new byte[settings.length / 2 * 6];
+            for (int i = 0; i < settings.length; i += 2) {
+                payload[i * 3 + 1] = (byte) settings[i];
+                putInt(payload, i * 3 + 2, settings[i + 1]);
+            }
+            frame(4, 0, 0, payload);
+        }
+
+        void request(int stream, String path) throws IOException {
+            byte[] block = encoder.encode(Arrays.asList(":method", "GET", ":scheme", "http", ":path", path,
+                    ":authority", "localhost", "accept-encoding", "identity"));
+            frame(1, 0x5, stream, block);
+        }
+
+        void windowUpdate(int stream, int increment) throws IOException {
+            byte[] payload = new byte[4];
+            putInt(payload, 0, increment);
+            frame(8, 0, 0, payload);
+            frame(8, 0, stream, payload);
+        }
+
+        void frame(int type, int flags, int stream, byte[] payload) throws IOException {
+            byte[] header = new byte[9];
+            header[0] = (byte) (payload.length >>> 16);
+            header[1] = (byte) (payload.length >>> 8);
+            header[2] = (byte) payload.length;
+            header[3] = (byte) type;
+            header[4] = (byte) flags;
+            putInt(header, 5, stream);
+            out.write(header);
+            out.write(payload);
+            out.flush();
+        }
+
+        Frame readFrame() throws IOException {
+            byte[] header = new byte[9];
+            in.readFully(header);
+            Frame frame = new Frame();
+            frame.type = header[3];
+            frame.flags = header[4];
+            frame.stream = (header[5] & 0x7F) << 24 | (header[6] & 0xFF) << 16 | (header[7] & 0xFF) << 8
+                    | header[8] & 0xFF;
+            frame.payload = new byte[(header[0] & 0xFF) << 16 | (header[1] & 0xFF) << 8 | header[2] & 0xFF];
+            in.readFully(frame.payload);
+            if (frame.type == 4 && (frame.flags & 1) == 0) {
+                frame(4, 1, 0, new byte[0]);  // Acknowledges the SETTINGS of the server
+            }
+            return frame;
+        }
+
+        /**
+         * Reads frames until the given number of streams have ended.
+         *
+         * @return the responses of the streams that ended, by stream.
+         */
+        Map<Integer, Response> readResponses(int count) throws IOException {
+            Map<Integer, Response> ended = new LinkedHashMap<>();
+            while (ended.size() < count) {
+                Frame frame = readFrame();
+                if (frame.type != 0 && frame.type != 1) {
+                    continue;
+                }
+                Response response = streams.computeIfAbsent(frame.stream, stream -> new Response());
+                if (frame.type == 1) {
+                    List<String> headers = decoder.decode(frame.payload, 0, frame.payload.length);
+                    for (int i = 0; i < headers.size(); i += 2) {
+                        response.headers.put(headers.get(i), headers.get(i + 1));
+                    }
+                } else {
+                    response.body.write(frame.payload, 0, frame.payload.length);
+                }
+                if ((frame.flags & 1) != 0) {
+                    ended.put(frame.stream, streams.remove(frame.stream));
+                }
+            }
+            return ended;
+        }
+
+        private static void putInt(byte[] target, int offset, int value) {
+            target[offset] = (byte) (value >>> 24);
+            target[offset + 1] = (byte) (value >>> 16);
+            target[offset + 2] = (byte) (value >>> 8);
+            target[offset + 3] = (byte) value;
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+}
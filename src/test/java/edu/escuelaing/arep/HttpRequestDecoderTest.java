@@ -0,0 +1,102 @@
+package edu.escuelaing.arep;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import junit.framework.TestCase;
+
+public class HttpRequestDecoderTest extends TestCase {
+
+    private static ByteBuffer bytes(String text) {
+        return ByteBuffer.wrap(text.getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    private static String body(HttpRequest request) {
+        return new String(request.getBody(), StandardCharsets.ISO_8859_1);
+    }
+
+    public void testDecodesFragmentedRequest() throws Exception {
+        byte[] raw = "GET /app/hello?name=x HTTP/1.1\r\nHost: localhost\r\nX-Trace:  abc \r\n\r\n"
+                .getBytes(StandardCharsets.ISO_8859_1);
+        HttpRequestDecoder decoder = new HttpRequestDecoder(8192);
+        ByteBuffer buffer = ByteBuffer.allocate(raw.length);
+        buffer.flip();
+
+        HttpRequest request = null;
+        for (int i = 0; i < raw.length; i++) {
+            assertNull(request);
+            buffer.compact();
+            buffer.put(raw[i]);
+            buffer.flip();
+            request = decoder.decode(buffer);
+        }
+        assertNotNull(request);
+        assertSame("GET", request.getMethod());
+        assertEquals("/app/hello?name=x", request.getTarget());
+        assertSame("HTTP/1.1", request.getVersion());
+        assertEquals("localhost", request.getHeader("HOST"));
+        assertEquals("abc", request.getHeader("x-trace"));
+        assertNull(request.getHeader("accept"));
+        assertEquals(2, request.getHeaders().size());
+        assertTrue(decoder.isIdle());
+    }
+
+    public void testDecodesPipelinedRequestsWithBodies() throws Exception {
+        HttpRequestDecoder decoder = new HttpRequestDecoder(8192);
+        ByteBuffer buffer = bytes("POST /a HTTP/1.1\r\nContent-Length: 5\r\n\r\nhello"
+                + "\r\nGET /b HTTP/1.1\r\n\r\n");
+
+        HttpRequest first = decoder.decode(buffer);
+        assertEquals("hello", body(first));
+        HttpRequest second = decoder.decode(buffer);
+        assertEquals("/b", second.getTarget());
+        assertEquals(0, second.getBody().length);
+        assertNull(decoder.decode(buffer));
+    }
+
+    public void testDecodesChunkedBody() throws Exception {
+        HttpRequestDecoder decoder = new HttpRequestDecoder(8192);
+        ByteBuffer buffer = bytes("POST /upload HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n"
+                + "5;name=value\r\nhello\r\n7\r\n, world\r\n0\r\nX-Checksum: 1\r\n\r\n");
+
+        HttpRequest request = decoder.decode(buffer);
+        assertEquals("hello, world", body(request));
+        assertFalse(buffer.hasRemaining());
+    }
+
+    public void testRejectsMalformedRequests() throws Exception {
+        assertStatus("400 Bad Request", "GET /\r\n\r\n");
+        assertStatus("400 Bad Request", "GET / HTTP/1.1\r\nHost : x\r\n\r\n");
+        assertStatus("400 Bad Request", "GET / HTTP/1.1\r\nA: b\r\n folded\r\n\r\n");
+        assertStatus("400 Bad Request", "POST / HTTP/1.1\r\nContent-Length: 1\r\n"
+                + "Transfer-Encoding: chunked\r\n\r\n");
+        assertStatus("400 Bad Request", "POST / HTTP/1.1\r\nContent-Length: -1\r\n\r\n");
+        assertStatus("400 Bad Request", "POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\nzz\r\n");
+    }
+
+    public void testEnforcesLimits() throws Exception {
+        StringBuilder manyHeaders = new StringBuilder("GET / HTTP/1.1\r\n");
+        for (int i = 0; i < 101; i++) {
+            manyHeaders.append("X-").append(i).append(": v\r\n");
+        }
+        assertStatus("431 Request Header Fields Too Large", manyHeaders + "\r\n");
+
+        StringBuilder longHeader = new StringBuilder("GET / HTTP/1.1\r\nX-Long: ");
+        for (int i = 0; i < 9000; i++) {
+            longHeader.append('a');
+        }
+        assertStatus("431 Request Header Fields Too Large", longHeader.toString());
+
+        assertStatus("413 Payload Too Large", "POST / HTTP/1.1\r\nContent-Length: 2000000\r\n\r\n");
+        assertStatus("413 Payload Too Large", "POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n"
+                + "200000\r\n");
+    }
+
+    private void assertStatus(String status, String request) {
+        try {
+            new HttpRequestDecoder(8192).decode(bytes(request));
+            fail("Expected " + status + " for " + request);
+        } catch (BadRequestException e) {
+            assertEquals(status, e.getStatus());
+        }
+    }
+}
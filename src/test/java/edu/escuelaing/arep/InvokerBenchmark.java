@@ -0,0 +1,57 @@
+package edu.escuelaing.arep;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Parameter;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import edu.escuelaing.arep.annotations.RequestParam;
+
+/**
+ * Compares calling `SqrtService.calculateSquareRoot` through the precomputed `RouteInvoker`
+ * with the per-request reflection the dispatcher used before: `getParameters()`,
+ * `getAnnotation(RequestParam.class)` for each parameter and `Method.invoke`.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class InvokerBenchmark {
+    private Object controller;
+    private Method method;
+    private RouteInvoker invoker;
+    private RouteMatch<RouteInvoker> match;
+    private Map<String, String> queryParams;
+
+    @Setup
+    public void setUp() throws Exception {
+        controller = new SqrtService();
+        method = SqrtService.class.getMethod("calculateSquareRoot", String.class);
+        invoker = RouteInvoker.create(controller, method);
+        match = new RouteMatch<>();
+        queryParams = new HashMap<>();
+        queryParams.put("number", "16");
+    }
+
+    @Benchmark
+    public Object reflection() throws Exception {
+        Parameter[] parameters = method.getParameters();
+        Object[] args = new Object[parameters.length];
+        for (int i = 0; i < parameters.length; i++) {
+            RequestParam requestParam = parameters[i].getAnnotation(RequestParam.class);
+            if (requestParam != null) {
+                String paramValue = queryParams.getOrDefault(requestParam.value(), requestParam.defaultValue());
+                args[i] = RouteInvoker.convertToRequiredType(parameters[i].getType(), paramValue);
+            }
+        }
+        return method.invoke(controller, args);
+    }
+
+    @Benchmark
+    public Object routeInvoker() throws Exception {
+        return invoker.invoke(queryParams, match);
+    }
+}
@@ -0,0 +1,132 @@
+package edu.escuelaing.arep;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Compares serializing a small object graph with the `JsonSerializer`, whose writers are
+ * generated once per type, with a naive serializer that on every call uses `getMethods()` to
+ * find the getters, `Method.invoke` to read them, a `StringBuilder` for the document and
+ * `getBytes` to encode it.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class JsonBenchmark {
+
+    public static class Item {
+        private final String name;
+        private final int quantity;
+        private final double price;
+
+        Item(String name, int quantity, double price) {
+            this.name = name;
+            this.quantity = quantity;
+            this.price = price;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getQuantity() {
+            return quantity;
+        }
+
+        public double getPrice() {
+            return price;
+        }
+    }
+
+    public static class Order {
+        private final long id = 1234567L;
+        private final String customer = "Ana María";
+        private final boolean paid = true;
+        private final List<Item> items = Arrays.asList(new Item("Cuaderno", 3, 4.5),
+                new Item("Lápiz", 12, 0.75), new Item("Borrador", 1, 1.0));
+
+        public long getId() {
+            return id;
+        }
+
+        public String getCustomer() {
+            return customer;
+        }
+
+        public boolean isPaid() {
+            return paid;
+        }
+
+        public List<Item> getItems() {
+            return items;
+        }
+    }
+
+    private Order order;
+
+    @Setup
+    public void setUp() {
+        order = new Order();
+        JsonSerializer.prepare(Order.class);
+    }
+
+    @Benchmark
+    public byte[] reflection() throws Exception {
+        StringBuilder json = new StringBuilder();
+        appendReflectively(order, json);
+        return json.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public byte[] jsonSerializer() {
+        return JsonSerializer.toJson(order);
+    }
+
+    private static void appendReflectively(Object value, StringBuilder json) throws Exception {
+        if (value == null) {
+            json.append("null");
+        } else if (value instanceof String) {
+            json.append('"').append(((String) value).replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+        } else if (value instanceof Number || value instanceof Boolean) {
+            json.append(value);
+        } else if (value instanceof Iterable) {
+            json.append('[');
+            String separator = "";
+            for (Object element : (Iterable<?>) value) {
+                json.append(separator);
+                appendReflectively(element, json);
+                separator = ",";
+            }
+            json.append(']');
+        } else {
+            List<Method> getters = new ArrayList<>();
+            for (Method method : value.getClass().getMethods()) {
+                String name = method.getName();
+                if (method.getParameterCount() == 0 && !Modifier.isStatic(method.getModifiers())
+                        && method.getDeclaringClass() != Object.class
+                        && (name.startsWith("get") || name.startsWith("is"))) {
+                    getters.add(method);
+                }
+            }
+            json.append('{');
+            String separator = "";
+            for (Method getter : getters) {
+                String name = getter.getName().substring(getter.getName().startsWith("is") ? 2 : 3);
+                json.append(separator).append('"').append(Character.toLowerCase(name.charAt(0)))
+                        .append(name, 1, name.length()).append("\":");
+                appendReflectively(getter.invoke(value), json);
+                separator = ",";
+            }
+            json.append('}');
+        }
+    }
+}
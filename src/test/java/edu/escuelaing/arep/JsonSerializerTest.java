@@ -0,0 +1,174 @@
+package edu.escuelaing.arep;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import edu.escuelaing.arep.annotations.Cacheable;
+import edu.escuelaing.arep.annotations.GetMapping;
+import junit.framework.TestCase;
+
+public class JsonSerializerTest extends TestCase {
+
+    public enum Status { ACTIVE, BLOCKED }
+
+    public static class Address {
+        public String city = "Bogotá";
+        public transient String ignored = "x";
+    }
+
+    public static class User {
+        private final String name;
+        private final int age;
+        private final boolean admin;
+        private final Address address = new Address();
+        private final Object extra;
+
+        User(String name, int age, boolean admin, Object extra) {
+            this.name = name;
+            this.age = age;
+            this.admin = admin;
+            this.extra = extra;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getAge() {
+            return age;
+        }
+
+        public boolean isAdmin() {
+            return admin;
+        }
+
+        public Address getAddress() {
+            return address;
+        }
+
+        public Object getExtra() {
+            return extra;
+        }
+
+        public Status getStatus() {
+            return Status.ACTIVE;
+        }
+
+        @Override
+        public String toString() {
+            return "User " + name;
+        }
+    }
+
+    public static class Node {
+        public Node next;
+    }
+
+    public static class UserController {
+        @GetMapping("/app/test/json/user")
+        public User user() {
+            return new User("Ana", 30, false, null);
+        }
+
+        @GetMapping("/app/test/json/cached")
+        @Cacheable
+        public User cached() {
+            return new User("Cached", 1, true, null);
+        }
+    }
+
+    private static final UserController CONTROLLER = new UserController();
+
+    @Override
+    protected void setUp() throws Exception {
+        TestFixtures.registerRoutes(CONTROLLER, "user", "cached");
+    }
+
+    private static String json(Object value) {
+        return new String(JsonSerializer.toJson(value), StandardCharsets.UTF_8);
+    }
+
+    public void testWritesPropertiesInDeclarationOrder() {
+        Map<String, Object> extra = new LinkedHashMap<>();
+        extra.put("tags", Arrays.asList("a", null, 3L));
+        extra.put("scores", new int[] {1, -2});
+        extra.put("ratio", new double[] {0.5, 2, Double.NaN});
+        extra.put("since", LocalDate.of(2024, 2, 29));
+        extra.put("nick", Optional.of("an\"a"));
+
+        assertEquals("{\"name\":\"Ana\\n\\u0001\",\"age\":30,\"admin\":true,\"address\":{\"city\":\"Bogotá\"},"
+                + "\"extra\":{\"tags\":[\"a\",null,3],\"scores\":[1,-2],\"ratio\":[0.5,2.0,null],"
+                + "\"since\":\"2024-02-29\",\"nick\":\"an\\\"a\"},\"status\":\"ACTIVE\"}",
+                json(new User("Ana\n\u0001", 30, true, extra)));
+    }
+
+    public void testWritesScalarsLikeTheirStringForm() {
+        assertEquals("null", json(null));
+        assertEquals("\"😀 €\"", json("😀 €"));
+        assertEquals("-9223372036854775808", json(Long.MIN_VALUE));
+        assertEquals("1.0E7", json(1e7));
+        assertEquals("-0.0", json(-0.0));
+        assertEquals("0.1", json(0.1));
+        assertEquals("[]", json(Collections.emptyList()));
+        assertEquals("{}", json(Collections.emptyMap()));
+        assertTrue(JsonSerializer.isScalar("text"));
+        assertTrue(JsonSerializer.isScalar(4.0));
+        assertFalse(JsonSerializer.isScalar(new Address()));
+    }
+
+    public void testRejectsCycles() {
+        Node node = new Node();
+        node.next = node;
+        try {
+            json(node);
+            fail("A cycle was serialized");
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage().contains("64 levels"));
+        }
+        node.next = new Node();
+        assertEquals("{\"next\":{\"next\":null}}", json(node));
+    }
+
+    public void testNegotiatesTheRepresentation() {
+        assertEquals(MediaType.JSON, MediaType.negotiate(null));
+        assertEquals(MediaType.JSON, MediaType.negotiate("text/html,application/xhtml+xml,*/*;q=0.8"));
+        assertEquals(MediaType.TEXT, MediaType.negotiate("text/plain, application/json;q=0.5"));
+        assertEquals(MediaType.TEXT, MediaType.negotiate("text/*"));
+        assertEquals(MediaType.TEXT, MediaType.negotiate("*/*, application/json;q=0"));
+        assertNull(MediaType.negotiate("image/png"));
+
+        RequestDispatcher dispatcher = new RequestDispatcher(null, Integer.MAX_VALUE, new ServerMetrics(), 0);
+        HttpResponse response = dispatcher.handleAppRequest("GET", "/app/test/json/user", null);
+        assertEquals("application/json", response.getContentType());
+        assertEquals("{\"name\":\"Ana\",\"age\":30,\"admin\":false,\"address\":{\"city\":\"Bogotá\"},"
+                + "\"extra\":null,\"status\":\"ACTIVE\"}", new String(response.getBody(), StandardCharsets.UTF_8));
+        assertEquals("Accept", response.getHeader("Vary"));
+
+        response = dispatcher.handleAppRequest("GET", "/app/test/json/user", request("text/plain"));
+        assertEquals("text/plain; charset=UTF-8", response.getContentType());
+        assertEquals("User Ana", new String(response.getBody(), StandardCharsets.UTF_8));
+
+        assertEquals("406 Not Acceptable",
+                dispatcher.handleAppRequest("GET", "/app/test/json/user", request("image/png")).getStatus());
+    }
+
+    public void testCachesEachRepresentation() {
+        RequestDispatcher dispatcher = new RequestDispatcher(null, Integer.MAX_VALUE, new ServerMetrics(), 0);
+        HttpResponse json = dispatcher.handleAppRequest("GET", "/app/test/json/cached", request("application/json"));
+        HttpResponse text = dispatcher.handleAppRequest("GET", "/app/test/json/cached", request("text/plain"));
+        assertEquals("application/json", json.getContentType());
+        assertEquals("User Cached", new String(text.getBody(), StandardCharsets.UTF_8));
+        assertSame(json, dispatcher.handleAppRequest("GET", "/app/test/json/cached", request("*/*")));
+        assertSame(text, dispatcher.handleAppRequest("GET", "/app/test/json/cached", request("text/*")));
+    }
+
+    private static HttpRequest request(String accept) {
+        Map<String, String> headers = new LinkedHashMap<>();
+        headers.put("accept", accept);
+        return new HttpRequest("GET", "/", "HTTP/1.1", headers);
+    }
+}
@@ -0,0 +1,181 @@
+package edu.escuelaing.arep;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Closed-loop load generator used to compare the server engines. Each simulated client
+ * keeps one persistent connection open and sends requests back to back for the given
+ * duration, recording the latency of every response. At the end it prints the throughput
+ * and the latency percentiles.
+ *
+ * It is not a unit test: start the server with the engine to measure and run, e.g.
+ *
+ * <pre>
+ * {@code
+ * java -cp target/classes edu.escuelaing.arep.SimpleWebServer --engine=virtual
+ * java -cp target/classes:target/test-classes edu.escuelaing.arep.LoadGenerator \
+ *      --clients=2000 --seconds=20 --path=/app/sqrt?number=16
+ * }
+ * </pre>
+ */
+public class LoadGenerator {
+
+    public static void main(String[] args) throws Exception {
+        ServerConfig options = new ServerConfig();
+        String host = options.option(args, "host", "localhost");
+        int port = options.intOption(args, "port", 8081);
+        String path = options.option(args, "path", "/app/sqrt?number=16");
+        int clients = options.intOption(args, "clients", 1000);
+        int seconds = options.intOption(args, "seconds", 20);
+
+        byte[] request = ("GET " + path + " HTTP/1.1\r\nHost: " + host + "\r\n\r\n")
+                .getBytes(StandardCharsets.ISO_8859_1);
+        long end = System.nanoTime() + seconds * 1_000_000_000L;
+        List<Client> started = new ArrayList<>();
+        AtomicLong errors = new AtomicLong();
+        CountDownLatch done = new CountDownLatch(clients);
+
+        for (int i = 0; i < clients; i++) {
+            Client client = new Client(host, port, request, end, errors, done);
+            started.add(client);
+            Thread thread = new Thread(client, "load-client-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        done.await();
+
+        long[] all = merge(started);
+        Arrays.sort(all);
+        System.out.printf("clients=%d seconds=%d path=%s%n", clients, seconds, path);
+        System.out.printf("requests=%d errors=%d throughput=%.0f req/s%n",
+                all.length, errors.get(), all.length / (double) seconds);
+        System.out.printf("latency ms: p50=%.2f p90=%.2f p99=%.2f max=%.2f%n",
+                percentile(all, 0.50), percentile(all, 0.90), percentile(all, 0.99), percentile(all, 1.0));
+    }
+
+    private static long[] merge(List<Client> clients) {
+        int total = 0;
+        for (Client client : clients) {
+            total += client.count;
+        }
+        long[] all = new long[total];
+        int offset = 0;
+        for (Client client : clients) {
+            System.arraycopy(client.latencies, 0, all, offset, client.count);
+            offset += client.count;
+        }
+        return all;
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(index, 0)] / 1_000_000.0;
+    }
+
+    /**
+     * A single client that reuses one keep-alive connection, reconnecting when the server closes it.
+     */
+    private static class Client implements Runnable {
+        private final String host;
+        private final int port;
+        private final byte[] request;
+        private final long end;
+        private final AtomicLong errors;
+        private final CountDownLatch done;
+        private long[] latencies = new long[1024];
+        private int count;
+
+        Client(String host, int port, byte[] request, long end, AtomicLong errors, CountDownLatch done) {
+            this.host = host;
+            this.port = port;
+            this.request = request;
+            this.end = end;
+            this.errors = errors;
+            this.done = done;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (System.nanoTime() < end) {
+                    try (Socket socket = new Socket(host, port)) {
+                        socket.setTcpNoDelay(true);
+                        socket.setSoTimeout(10000);
+                        OutputStream out = socket.getOutputStream();
+                        InputStream in = new BufferedInputStream(socket.getInputStream());
+                        boolean open = true;
+                        while (open && System.nanoTime() < end) {
+                            long start = System.nanoTime();
+                            out.write(request);
+                            open = readResponse(in);
+                            record(System.nanoTime() - start);
+                        }
+                    } catch (IOException e) {
+                        errors.incrementAndGet();
+                    }
+                }
+            } finally {
+                done.countDown();
+            }
+        }
+
+        private void record(long latency) {
+            if (count == latencies.length) {
+                latencies = Arrays.copyOf(latencies, count * 2);
+            }
+            latencies[count++] = latency;
+        }
+
+        /**
+         * Reads one response and discards its body.
+         *
+         * @return false if the server announced that it closes the connection.
+         */
+        private boolean readResponse(InputStream in) throws IOException {
+            int contentLength = 0;
+            boolean keepAlive = true;
+            String line;
+            while (!(line = readLine(in)).isEmpty()) {
+                String lower = line.toLowerCase();
+                if (lower.startsWith("content-length:")) {
+                    contentLength = Integer.parseInt(line.substring(15).trim());
+                } else if (lower.startsWith("connection:") && lower.contains("close")) {
+                    keepAlive = false;
+                }
+            }
+            for (int i = 0; i < contentLength; i++) {
+                if (in.read() == -1) {
+                    throw new IOException("Connection closed mid-response");
+                }
+            }
+            return keepAlive;
+        }
+
+        private String readLine(InputStream in) throws IOException {
+            StringBuilder line = new StringBuilder();
+            int b;
+            while ((b = in.read()) != '\n') {
+                if (b == -1) {
+                    throw new IOException("Connection closed");
+                }
+                if (b != '\r') {
+                    line.append((char) b);
+                }
+            }
+            return line.toString();
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package edu.escuelaing.arep;
+
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import edu.escuelaing.arep.annotations.GetMapping;
+import junit.framework.TestCase;
+
+public class NioServerTest extends TestCase {
+
+    public static class BlockingController {
+        static volatile CountDownLatch entered;
+        static volatile CountDownLatch release;
+
+        @GetMapping("/app/test/nio/blocking")
+        public String blocking() throws InterruptedException {
+            entered.countDown();
+            release.await(10, TimeUnit.SECONDS);
+            return "released";
+        }
+
+        @GetMapping("/app/test/nio/broken")
+        public String broken() {
+            throw new AssertionError("Escapes the dispatcher");
+        }
+
+        @GetMapping("/app/test/nio/quick")
+        public String quick() {
+            return "quick";
+        }
+    }
+
+    private int port;
+
+    @Override
+    protected void setUp() throws Exception {
+        TestFixtures.registerRoutes(new BlockingController(), "blocking", "quick", "broken");
+        BlockingController.entered = new CountDownLatch(1);
+        BlockingController.release = new CountDownLatch(1);
+        port = TestFixtures.freePort();
+    }
+
+    public void testBlockingControllerDoesNotHoldTheEventLoop() throws Exception {
+        NioServer server = new NioServer(TestFixtures.config(port, "--ioThreads=1"));
+        Thread serving = TestFixtures.serve(server::serve);
+        try (Socket slow = TestFixtures.connect(port); Socket fast = TestFixtures.connect(port)) {
+            TestFixtures.send(slow, "/app/test/nio/blocking");
+            assertTrue(BlockingController.entered.await(5, TimeUnit.SECONDS));
+
+            // The only event loop still answers the other connection
+            TestFixtures.send(fast, "/app/test/nio/quick");
+            assertTrue(TestFixtures.readResponse(fast.getInputStream()).endsWith("quick"));
+            TestFixtures.send(fast, "/index.html");
+            assertTrue(TestFixtures.readResponse(fast.getInputStream()).startsWith("HTTP/1.1 200"));
+
+            BlockingController.release.countDown();
+            assertTrue(TestFixtures.readResponse(slow.getInputStream()).endsWith("released"));
+        } finally {
+            BlockingController.release.countDown();
+            assertTrue(server.shutdown(5000));
+            serving.join(5000);
+        }
+    }
+
+    public void testRejectsBlockingRequestsBeyondTheWorkerQueue() throws Exception {
+        NioServer server = new NioServer(TestFixtures.config(port, "--ioThreads=1", "--workerThreads=1", "--workerQueueSize=1", "--retryAfter=3"));
+        Thread serving = TestFixtures.serve(server::serve);
+        try (Socket running = TestFixtures.connect(port); Socket queued = TestFixtures.connect(port); Socket rejected = TestFixtures.connect(port)) {
+            TestFixtures.send(running, "/app/test/nio/blocking");
+            assertTrue(BlockingController.entered.await(5, TimeUnit.SECONDS));
+            TestFixtures.send(queued, "/app/test/nio/quick");
+            long deadline = System.currentTimeMillis() + 5000;
+            while (server.getQueueDepth() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(1, server.getQueueDepth());
+
+            TestFixtures.send(rejected, "/app/test/nio/quick");
+            String response = TestFixtures.readResponse(rejected.getInputStream());
+            assertTrue(response, response.startsWith("HTTP/1.1 503 Service Unavailable\r\n"));
+            assertTrue(response, response.contains("Retry-After: 3\r\n"));
+
+            BlockingController.release.countDown();
+            assertTrue(TestFixtures.readResponse(running.getInputStream()).endsWith("released"));
+            assertTrue(TestFixtures.readResponse(queued.getInputStream()).endsWith("quick"));
+        } finally {
+            BlockingController.release.countDown();
+            assertTrue(server.shutdown(5000));
+            serving.join(5000);
+        }
+    }
+
+    public void testShedsRequestsAboveTheConcurrencyLimit() throws Exception {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(1, 1, 1);
+        NioServer server = new NioServer(TestFixtures.config(port, "--ioThreads=1"), limiter);
+        Thread serving = TestFixtures.serve(server::serve);
+        try (Socket slow = TestFixtures.connect(port); Socket fast = TestFixtures.connect(port)) {
+            TestFixtures.send(slow, "/app/test/nio/blocking");
+            assertTrue(BlockingController.entered.await(5, TimeUnit.SECONDS));
+            assertEquals(1, limiter.getInFlight());
+
+            TestFixtures.send(fast, "/index.html");
+            String response = TestFixtures.readResponse(fast.getInputStream());
+            assertTrue(response, response.startsWith("HTTP/1.1 503 Service Unavailable\r\n"));
+
+            BlockingController.release.countDown();
+            assertTrue(TestFixtures.readResponse(slow.getInputStream()).endsWith("released"));
+            TestFixtures.send(fast, "/app/test/nio/quick");
+            assertTrue(TestFixtures.readResponse(fast.getInputStream()).endsWith("quick"));
+            assertEquals(0, limiter.getInFlight());
+        } finally {
+            BlockingController.release.countDown();
+            assertTrue(server.shutdown(5000));
+            serving.join(5000);
+        }
+    }
+
+    public void testFailedDispatchIsAnsweredWith500() throws Exception {
+        NioServer server = new NioServer(TestFixtures.config(port, "--ioThreads=1"));
+        Thread serving = TestFixtures.serve(server::serve);
+        try (Socket socket = TestFixtures.connect(port)) {
+            TestFixtures.send(socket, "/app/test/nio/broken");
+            String response = TestFixtures.readResponse(socket.getInputStream());
+            assertTrue(response, response.startsWith("HTTP/1.1 500 Internal Server Error\r\n"));
+
+            // The connection goes on with its next request
+            TestFixtures.send(socket, "/app/test/nio/quick");
+            assertTrue(TestFixtures.readResponse(socket.getInputStream()).endsWith("quick"));
+        } finally {
+            assertTrue(server.shutdown(5000));
+            serving.join(5000);
+        }
+    }
+}
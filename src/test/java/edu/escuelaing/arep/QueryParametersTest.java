@@ -0,0 +1,95 @@
+package edu.escuelaing.arep;
+
+import java.util.Arrays;
+import java.util.List;
+import edu.escuelaing.arep.annotations.RequestParam;
+import junit.framework.TestCase;
+
+public class QueryParametersTest extends TestCase {
+
+    enum Unit { CELSIUS, FAHRENHEIT }
+
+    public static class TypedController {
+        public String convert(@RequestParam(value = "value", defaultValue = "0") double value,
+                              @RequestParam(value = "unit", defaultValue = "CELSIUS") Unit unit,
+                              @RequestParam(value = "id", defaultValue = "-1") long id,
+                              @RequestParam(value = "ratio", defaultValue = "1") float ratio,
+                              @RequestParam(value = "tag") String[] tags,
+                              @RequestParam(value = "n", defaultValue = "1,2") List<Integer> numbers) {
+            return value + " " + unit + " " + id + " " + ratio + " " + Arrays.toString(tags) + " " + numbers;
+        }
+    }
+
+    public void testDecodesNamesAndValues() {
+        QueryParameters query = new QueryParameters("na%6De=Jo+hn%20Doe&city=Bogot%C3%A1&empty&&flag=&bad=%zz%4");
+
+        assertEquals(5, query.size());
+        assertEquals("name", query.name(0));
+        assertEquals("Jo hn Doe", query.get("name"));
+        assertEquals("Bogotá", query.get("city"));
+        assertEquals("", query.get("empty"));
+        assertEquals("", query.get("flag"));
+        assertEquals("%zz%4", query.get("bad"));
+        assertNull(query.get("missing"));
+        assertTrue(query.valueEquals(1, "Bogotá"));
+    }
+
+    public void testFindsRepeatedParameters() {
+        QueryParameters query = new QueryParameters("a=1&b=2&a=3");
+        int first = query.indexOf("a");
+        int second = query.indexOf("a", first + 1);
+
+        assertEquals("1", query.value(first));
+        assertEquals("3", query.value(second));
+        assertEquals(-1, query.indexOf("a", second + 1));
+    }
+
+    public void testParsesNumbersLikeTheJdk() {
+        String[] values = {"0", "16", "-42", "007", "2147483647", "-2147483648", "9223372036854775807",
+            "-9223372036854775808", "16.5", "-0.0", "0.1", "3.141592653589793", ".5", "1.", "1e3", "NaN",
+            "123456789012345678", "0.30000000000000004", "1.7976931348623157E308", "%31%36"};
+        for (String value : values) {
+            QueryParameters query = new QueryParameters("v=" + value);
+            String decoded = query.value(0);
+            assertEquals(value, parse(() -> Double.parseDouble(decoded)), parse(() -> query.doubleValue(0)));
+            assertEquals(value, parse(() -> Float.parseFloat(decoded)), parse(() -> query.floatValue(0)));
+            assertEquals(value, parse(() -> Long.parseLong(decoded)), parse(() -> query.longValue(0)));
+            assertEquals(value, parse(() -> Integer.parseInt(decoded)), parse(() -> query.intValue(0)));
+        }
+        assertTrue(new QueryParameters("v=TRUE").booleanValue(0));
+        assertFalse(new QueryParameters("v=yes").booleanValue(0));
+    }
+
+    public void testBindsTypedAndRepeatedParameters() throws Exception {
+        RouteInvoker invoker = RouteInvoker.create(new TypedController(), TypedController.class.getMethod("convert",
+                double.class, Unit.class, long.class, float.class, String[].class, List.class));
+        RouteMatch<RouteInvoker> match = new RouteMatch<>();
+
+        assertEquals("36.6 FAHRENHEIT 9000000000 0.5 [a, b c] [3, 4]", invoker.invoke(null,
+                new QueryParameters("value=36.6&unit=FAHRENHEIT&id=9000000000&ratio=0.5&tag=a&tag=b+c&n=3&n=4"),
+                match));
+        assertEquals("0.0 CELSIUS -1 1.0 [] [1, 2]", invoker.invoke(null, new QueryParameters(""), match));
+
+        try {
+            invoker.invoke(null, new QueryParameters("unit=KELVIN"), match);
+            fail("Unknown enum constants must be rejected");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("KELVIN"));
+        }
+    }
+
+    private interface Parse {
+        Object run();
+    }
+
+    /**
+     * Returns the parsed value, or the type of the exception so that errors can be compared too.
+     */
+    private static Object parse(Parse parse) {
+        try {
+            return parse.run();
+        } catch (RuntimeException e) {
+            return e.getClass();
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package edu.escuelaing.arep;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures taking a token under contention, four threads hammering one limiter, with the
+ * striped `RateLimiter` and with a naive limiter: a `HashMap` of token buckets behind one
+ * lock. Each limiter is asked for a single hot client, all threads updating one bucket,
+ * and for clients spread over 10000 addresses. The rate is high enough that every request
+ * is allowed, so the numbers are the overhead added to every request.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class RateLimiterBenchmark {
+    private static final int CLIENTS = 10_000;
+    private static final int RATE = 1_000_000;
+
+    private final RateLimiter striped = new RateLimiter(RATE, RATE, 65536);
+    private final LockedRateLimiter locked = new LockedRateLimiter(RATE, RATE);
+
+    @Benchmark
+    public long stripedOneClient() {
+        return striped.acquire(1, System.nanoTime() / 1000);
+    }
+
+    @Benchmark
+    public long stripedManyClients() {
+        return striped.acquire(ThreadLocalRandom.current().nextInt(CLIENTS), System.nanoTime() / 1000);
+    }
+
+    @Benchmark
+    public boolean lockedOneClient() {
+        return locked.acquire(1);
+    }
+
+    @Benchmark
+    public boolean lockedManyClients() {
+        return locked.acquire(ThreadLocalRandom.current().nextInt(CLIENTS));
+    }
+
+    /**
+     * Token buckets as commonly written: tokens and last refill per client, refilled on
+     * every request, all under the lock of the map.
+     */
+    private static final class LockedRateLimiter {
+        private final double perNano;
+        private final double burst;
+        private final Map<Long, double[]> buckets = new HashMap<>();
+
+        LockedRateLimiter(int perSecond, int burst) {
+            this.perNano = perSecond / 1e9;
+            this.burst = burst;
+        }
+
+        synchronized boolean acquire(long client) {
+            long now = System.nanoTime();
+            double[] bucket = buckets.computeIfAbsent(client, key -> new double[] {burst, now});
+            bucket[0] = Math.min(burst, bucket[0] + (now - (long) bucket[1]) * perNano);
+            bucket[1] = now;
+            if (bucket[0] < 1) {
+                return false;
+            }
+            bucket[0]--;
+            return true;
+        }
+    }
+}
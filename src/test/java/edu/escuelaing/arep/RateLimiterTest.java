@@ -0,0 +1,161 @@
+package edu.escuelaing.arep;
+
+import java.net.InetAddress;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import edu.escuelaing.arep.annotations.GetMapping;
+import edu.escuelaing.arep.annotations.RateLimit;
+import junit.framework.TestCase;
+
+public class RateLimiterTest extends TestCase {
+
+    public static class LimitedController {
+        static final AtomicInteger calls = new AtomicInteger();
+
+        @GetMapping("/app/test/ratelimit/limited")
+        @RateLimit(value = 1, burst = 2)
+        public String limited() {
+            calls.incrementAndGet();
+            return "limited";
+        }
+    }
+
+    private static final long SECOND = 1_000_000;
+
+    public void testAllowsTheBurstThenTheRate() {
+        RateLimiter limiter = new RateLimiter(10, 5, 64);
+        long now = 42 * SECOND;
+        for (int i = 0; i < 5; i++) {
+            assertEquals(0, limiter.acquire(1, now));
+        }
+        assertEquals(SECOND / 10, limiter.acquire(1, now));
+        assertEquals(SECOND / 20, limiter.acquire(1, now + SECOND / 20));
+        assertEquals(0, limiter.acquire(1, now + SECOND / 10));
+        assertTrue(limiter.acquire(1, now + SECOND / 10) > 0);
+        for (int i = 0; i < 5; i++) {
+            assertEquals(0, limiter.acquire(1, now + 2 * SECOND));
+        }
+    }
+
+    public void testClientsHaveTheirOwnBuckets() throws Exception {
+        RateLimiter limiter = new RateLimiter(1, 1, 64);
+        long first = RateLimiter.keyOf(InetAddress.getByName("10.0.0.1"));
+        long second = RateLimiter.keyOf(InetAddress.getByName("10.0.0.2"));
+        assertEquals(0, limiter.acquire(first, SECOND));
+        assertTrue(limiter.acquire(first, SECOND) > 0);
+        assertEquals(0, limiter.acquire(second, SECOND));
+
+        // IPv6 clients are limited by their /64 prefix
+        assertEquals(RateLimiter.keyOf(InetAddress.getByName("2001:db8:0:1::1")),
+                RateLimiter.keyOf(InetAddress.getByName("2001:db8:0:1::2")));
+        assertFalse(RateLimiter.keyOf(InetAddress.getByName("2001:db8:0:1::1"))
+                == RateLimiter.keyOf(InetAddress.getByName("2001:db8:0:2::1")));
+    }
+
+    public void testMemoryStaysBoundedAndBusyClientsAreEvictedLast() {
+        RateLimiter limiter = new RateLimiter(1, 3, 64);
+        assertEquals(64, limiter.getCapacity());
+        long now = SECOND;
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0, limiter.acquire(-1, now));
+        }
+        for (long client = 0; client < 10_000; client++) {
+            assertEquals(0, limiter.acquire(client, now));
+        }
+        assertEquals(64, limiter.getCapacity());
+        assertTrue(limiter.acquire(-1, now) > 0);
+    }
+
+    public void testSurvivesTheClockWrappingAround() {
+        RateLimiter limiter = new RateLimiter(10, 1, 64);
+        long now = (1L << 40) - SECOND / 20;
+        assertEquals(0, limiter.acquire(7, now));
+        assertTrue(limiter.acquire(7, now) > 0);
+        assertEquals(0, limiter.acquire(7, now + SECOND / 10));
+        assertTrue(limiter.acquire(7, now + SECOND / 10) > 0);
+    }
+
+    public void testConcurrentClientsNeverGetMoreThanTheBurst() throws Exception {
+        RateLimiter limiter = new RateLimiter(1, 1000);
+        AtomicInteger allowed = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int n = 0; n < 1000; n++) {
+                    if (limiter.acquire(0, SECOND) == 0) {
+                        allowed.incrementAndGet();
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(1000, allowed.get());
+    }
+
+    public void testRejectsBeforeReadingFilesOrCallingControllers() throws Exception {
+        TestFixtures.registerRoutes(new LimitedController(), "limited");
+        ServerMetrics metrics = new ServerMetrics();
+        RequestDispatcher routeOnly = new RequestDispatcher(null, Integer.MAX_VALUE, metrics, 0, null);
+        int before = LimitedController.calls.get();
+        assertEquals("200 OK", routeOnly.dispatch(request("/app/test/ratelimit/limited", "10.1.0.1")).getStatus());
+        assertEquals("200 OK", routeOnly.dispatch(request("/app/test/ratelimit/limited", "10.1.0.1")).getStatus());
+        HttpResponse limited = routeOnly.dispatch(request("/app/test/ratelimit/limited", "10.1.0.1"));
+        assertEquals("429 Too Many Requests", limited.getStatus());
+        assertEquals("1", limited.getHeader("Retry-After"));
+        assertEquals(before + 2, LimitedController.calls.get());
+        assertEquals("200 OK", routeOnly.dispatch(request("/app/test/ratelimit/limited", "10.1.0.2")).getStatus());
+
+        // No static file cache: reaching it would throw
+        RequestDispatcher perClient = new RequestDispatcher(null, Integer.MAX_VALUE, metrics, 0,
+                new RateLimiter(1, 1, 64));
+        assertEquals("200 OK", perClient.dispatch(request("/app/test/ratelimit/limited", "10.1.0.3")).getStatus());
+        assertEquals("429 Too Many Requests", perClient.dispatch(request("/index.html", "10.1.0.3")).getStatus());
+        assertEquals(before + 4, LimitedController.calls.get());
+
+        String scrape = new String(metrics.scrape(Collections.<String, RouteInvoker>emptyMap()).getBody(), "UTF-8");
+        assertTrue(scrape, scrape.contains("springeci_rate_limited_total{scope=\"client\"} 1"));
+        assertTrue(scrape, scrape.contains("springeci_rate_limited_total{scope=\"route\"} 1"));
+    }
+
+    public void testChecksLimitsBeforeAdmissionAndOnlyOnce() throws Exception {
+        TestFixtures.registerRoutes(new LimitedController(), "limited");
+        ServerMetrics metrics = new ServerMetrics();
+        RequestDispatcher dispatcher = new RequestDispatcher(null, Integer.MAX_VALUE, metrics, 0, null);
+        HttpRequest request = request("/app/test/ratelimit/limited", "10.2.0.1");
+        for (int i = 0; i < 2; i++) {
+            assertNull(dispatcher.rateLimit(request));
+            assertEquals("200 OK", dispatcher.dispatchAdmittedAsync(request).join().getStatus());
+        }
+        HttpResponse limited = dispatcher.rateLimit(request);
+        assertNotNull(limited);
+        assertEquals("429 Too Many Requests", limited.getStatus());
+
+        // A client over its limit is refused before it reaches the per-client bucket of the route
+        RequestDispatcher perClient = new RequestDispatcher(null, Integer.MAX_VALUE, metrics, 0,
+                new RateLimiter(1, 1, 64));
+        assertNull(perClient.rateLimit(request("/app/test/ratelimit/limited", "10.2.0.2")));
+        assertEquals("429 Too Many Requests",
+                perClient.rateLimit(request("/app/test/ratelimit/limited", "10.2.0.2")).getStatus());
+
+        String scrape = new String(metrics.scrape(Collections.<String, RouteInvoker>emptyMap()).getBody(), "UTF-8");
+        assertTrue(scrape, scrape.contains("springeci_rate_limited_total{scope=\"client\"} 1"));
+        assertTrue(scrape, scrape.contains("springeci_rate_limited_total{scope=\"route\"} 1"));
+    }
+
+    private static HttpRequest request(String target, String client) throws Exception {
+        HttpRequest request = new HttpRequest("GET", target, "HTTP/1.1", Collections.<String, String>emptyMap());
+        request.setRemoteAddress(InetAddress.getByName(client));
+        return request;
+    }
+}
@@ -0,0 +1,63 @@
+package edu.escuelaing.arep;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures parsing of a typical browser request: the request line plus the headers,
+ * once through the read loop of the blocking `ClientHandler` and once through the
+ * `HttpRequestDecoder` alone, as the NIO engine uses it. `headerLookup` adds reading
+ * the headers the server itself looks at while answering a static file.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RequestParsingBenchmark {
+    static final byte[] REQUEST = ("GET /app/sqrt?number=16 HTTP/1.1\r\n"
+            + "Host: localhost:8081\r\n"
+            + "User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:128.0) Gecko/20100101 Firefox/128.0\r\n"
+            + "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8\r\n"
+            + "Accept-Language: en-US,en;q=0.5\r\n"
+            + "Accept-Encoding: gzip, deflate, br\r\n"
+            + "Connection: keep-alive\r\n"
+            + "Referer: http://localhost:8081/index.html\r\n"
+            + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+
+    private ByteBuffer buffer;
+    private ByteBuffer readBuffer;
+    private HttpRequestDecoder decoder;
+
+    @Setup
+    public void setUp() {
+        buffer = ByteBuffer.wrap(REQUEST);
+        readBuffer = ByteBuffer.allocate(HttpRequestDecoder.bufferSize(8192));
+        decoder = new HttpRequestDecoder(8192);
+    }
+
+    @Benchmark
+    public HttpRequest blockingReader() throws IOException {
+        readBuffer.clear().flip();
+        return ClientHandler.readRequest(new ByteArrayInputStream(REQUEST), readBuffer, decoder, null);
+    }
+
+    @Benchmark
+    public HttpRequest nioDecoder() throws IOException {
+        buffer.clear();
+        return decoder.decode(buffer);
+    }
+
+    @Benchmark
+    public boolean headerLookup() throws IOException {
+        buffer.clear();
+        HttpRequest request = decoder.decode(buffer);
+        return request.isKeepAlive() && request.getHeader("accept-encoding") != null
+                && request.getHeader("if-none-match") == null && request.getHeader("range") == null;
+    }
+}
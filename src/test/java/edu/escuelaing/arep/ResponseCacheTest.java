@@ -0,0 +1,107 @@
+package edu.escuelaing.arep;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import edu.escuelaing.arep.annotations.Cacheable;
+import edu.escuelaing.arep.annotations.GetMapping;
+import edu.escuelaing.arep.annotations.RequestParam;
+import junit.framework.TestCase;
+
+public class ResponseCacheTest extends TestCase {
+
+    public static class CountingController {
+        int calls;
+
+        @GetMapping("/app/test/cached")
+        @Cacheable(maxEntries = 2)
+        public String cached(@RequestParam(value = "n", defaultValue = "1") int n) {
+            calls++;
+            return "The value of n is " + n;
+        }
+
+        @GetMapping("/app/test/uncacheable")
+        @Cacheable
+        public String uncacheable(HttpRequest request) {
+            return request.getTarget();
+        }
+    }
+
+    // The route table is global and shared with the other tests, so the route is only added once
+    private static final CountingController CONTROLLER = new CountingController();
+
+    private RequestDispatcher dispatcher;
+    private ResponseCache cache;
+
+    @Override
+    protected void setUp() throws Exception {
+        TestFixtures.registerRoutes(CONTROLLER, "cached");
+        cache = SimpleWebServer.getRegistry().get("/app/test/cached").getCache();
+        cache.clear();
+        dispatcher = new RequestDispatcher(null, 10);
+    }
+
+    private String body(HttpResponse response) {
+        return new String(response.getBody(), StandardCharsets.UTF_8);
+    }
+
+    public void testServesEqualParametersFromCache() throws Exception {
+        int calls = CONTROLLER.calls;
+        long hits = cache.hits();
+
+        HttpResponse first = dispatcher.handleAppRequest("GET", "/app/test/cached?n=1");
+        assertEquals("The value of n is 1", body(first));
+        assertSame(first, dispatcher.handleAppRequest("GET", "/app/test/cached?n=1"));
+        assertSame(first, dispatcher.handleAppRequest("GET", "/app/test/cached"));
+        assertSame(first, dispatcher.handleAppRequest("GET", "/app/test/cached?x=y&n=1"));
+
+        assertEquals(calls + 1, CONTROLLER.calls);
+        assertEquals(hits + 3, cache.hits());
+        assertEquals(1, cache.size());
+    }
+
+    public void testEvictsOldestEntries() throws Exception {
+        long evictions = cache.evictions();
+        dispatcher.handleAppRequest("GET", "/app/test/cached?n=1");
+        dispatcher.handleAppRequest("GET", "/app/test/cached?n=2");
+        dispatcher.handleAppRequest("GET", "/app/test/cached?n=3");
+
+        assertEquals(2, cache.size());
+        assertEquals(evictions + 1, cache.evictions());
+        assertNull(cache.get(Arrays.<Object>asList(1)));
+        assertNotNull(cache.get(Arrays.<Object>asList(3)));
+    }
+
+    public void testKeepsCompressedVersions() throws Exception {
+        HttpRequest request = new HttpRequest("GET", "/app/test/cached?n=7", "HTTP/1.1",
+                Collections.singletonMap("accept-encoding", "gzip"));
+        HttpResponse gzip = dispatcher.handleAppRequest("GET", "/app/test/cached?n=7", request);
+        assertEquals("gzip", gzip.getHeader("Content-Encoding"));
+        assertSame(gzip, dispatcher.handleAppRequest("GET", "/app/test/cached?n=7", request));
+
+        HttpResponse identity = dispatcher.handleAppRequest("GET", "/app/test/cached?n=7");
+        assertNull(identity.getHeader("Content-Encoding"));
+        assertEquals("Accept-Encoding", identity.getHeader("Vary"));
+        assertEquals("The value of n is 7", body(identity));
+    }
+
+    public void testExpiresEntries() throws Exception {
+        ResponseCache expiring = new ResponseCache(1, 10);
+        expiring.put(Arrays.<Object>asList("a"), new HttpResponse("200 OK", "text/plain", new byte[1]), 1024);
+        Thread.sleep(5);
+
+        assertNull(expiring.get(Arrays.<Object>asList("a")));
+        assertEquals(1, expiring.evictions());
+        assertEquals(1, expiring.misses());
+        assertEquals(0, expiring.size());
+    }
+
+    public void testRejectsMethodsTakingTheRequest() throws Exception {
+        try {
+            RouteInvoker.create(CONTROLLER, CountingController.class.getMethod("uncacheable", HttpRequest.class));
+            fail("A @Cacheable method taking the request must be rejected");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("@Cacheable"));
+        }
+    }
+}
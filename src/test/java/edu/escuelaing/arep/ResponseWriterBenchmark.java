@@ -0,0 +1,122 @@
+package edu.escuelaing.arep;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures the encoding of a dynamic response, built for a single request as controllers
+ * do, and of a prepared static file response: through a `BufferedOutputStream` with
+ * `HttpResponse.writeTo`, as the blocking engine did, and through a `ResponseWriter`.
+ * Both write to a sink that discards the bytes, so only the encoding and copying are
+ * measured; run with `-prof gc` to compare the bytes allocated per response.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ResponseWriterBenchmark {
+    /**
+     * A channel that accepts and drops everything, counting the write calls.
+     */
+    static class DiscardingChannel extends OutputStream implements GatheringByteChannel {
+        long writes;
+
+        @Override
+        public long write(ByteBuffer[] sources, int offset, int length) {
+            writes++;
+            long total = 0;
+            for (int i = offset; i < offset + length; i++) {
+                total += sources[i].remaining();
+                sources[i].position(sources[i].limit());
+            }
+            return total;
+        }
+
+        @Override
+        public long write(ByteBuffer[] sources) {
+            return write(sources, 0, sources.length);
+        }
+
+        @Override
+        public int write(ByteBuffer source) {
+            writes++;
+            int n = source.remaining();
+            source.position(source.limit());
+            return n;
+        }
+
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            writes++;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+    }
+
+    private final byte[] dynamicBody = "La raíz cuadrada de 16.0 es 4.0".getBytes(StandardCharsets.UTF_8);
+    private HttpResponse staticFile;
+    private DiscardingChannel sink;
+    private BufferedOutputStream stream;
+    private ResponseWriter writer;
+
+    @Setup
+    public void setUp() {
+        staticFile = new HttpResponse("200 OK", "text/html", new byte[1925]).withHeader("ETag", "\"1925-abc\"")
+                .prepare();
+        sink = new DiscardingChannel();
+        stream = new BufferedOutputStream(sink);
+        writer = new ResponseWriter(sink, new BufferPool(16 * 1024, 16));
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        writer.close();
+    }
+
+    private HttpResponse dynamicResponse() {
+        return new HttpResponse("200 OK", "text/plain; charset=UTF-8", dynamicBody);
+    }
+
+    @Benchmark
+    public long bufferedStreamDynamic() throws IOException {
+        dynamicResponse().writeTo(stream, true);
+        stream.flush();
+        return sink.writes;
+    }
+
+    @Benchmark
+    public long responseWriterDynamic() throws IOException {
+        writer.write(dynamicResponse(), true);
+        writer.flush();
+        return sink.writes;
+    }
+
+    @Benchmark
+    public long bufferedStreamStatic() throws IOException {
+        staticFile.writeTo(stream, true);
+        stream.flush();
+        return sink.writes;
+    }
+
+    @Benchmark
+    public long responseWriterStatic() throws IOException {
+        writer.write(staticFile, true);
+        writer.flush();
+        return sink.writes;
+    }
+}
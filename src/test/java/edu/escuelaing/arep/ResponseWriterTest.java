@@ -0,0 +1,166 @@
+package edu.escuelaing.arep;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.Pipe;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import junit.framework.TestCase;
+
+public class ResponseWriterTest extends TestCase {
+
+    /**
+     * A blocking channel that keeps what is written to it and counts the write calls.
+     */
+    static class RecordingChannel implements GatheringByteChannel {
+        final ByteArrayOutputStream written = new ByteArrayOutputStream();
+        int writes;
+
+        @Override
+        public long write(ByteBuffer[] sources, int offset, int length) {
+            writes++;
+            long total = 0;
+            for (int i = offset; i < offset + length; i++) {
+                total += copy(sources[i]);
+            }
+            return total;
+        }
+
+        @Override
+        public long write(ByteBuffer[] sources) {
+            return write(sources, 0, sources.length);
+        }
+
+        @Override
+        public int write(ByteBuffer source) {
+            writes++;
+            return copy(source);
+        }
+
+        private int copy(ByteBuffer source) {
+            int n = source.remaining();
+            while (source.hasRemaining()) {
+                written.write(source.get());
+            }
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        String text() {
+            return new String(written.toByteArray(), StandardCharsets.ISO_8859_1);
+        }
+    }
+
+    private static String expected(HttpResponse response, boolean keepAlive) {
+        byte[] body = response.getBody();
+        return new String(response.encodeHeader(keepAlive), StandardCharsets.ISO_8859_1)
+                + new String(body, StandardCharsets.ISO_8859_1);
+    }
+
+    public void testEncodesHeadersLikeEncodeHeader() {
+        HttpResponse[] responses = {
+            new HttpResponse("200 OK", "text/plain", "hello".getBytes(StandardCharsets.ISO_8859_1)),
+            new HttpResponse("404 Not Found"),
+            new HttpResponse("304 Not Modified").withHeader("ETag", "\"abc\""),
+            new HttpResponse("200 OK", "application/json", new byte[1234567])
+                    .withHeader("Cache-Control", "no-cache").withHeader("X-Name", "café €"),
+        };
+        ByteBuffer buffer = ByteBuffer.allocateDirect(1024);
+        for (HttpResponse response : responses) {
+            for (boolean keepAlive : new boolean[] {true, false}) {
+                buffer.clear();
+                int length = response.writeHeader(buffer, keepAlive);
+                byte[] encoded = new byte[length];
+                buffer.flip();
+                buffer.get(encoded);
+                assertEquals(new String(response.encodeHeader(keepAlive), StandardCharsets.ISO_8859_1),
+                        new String(encoded, StandardCharsets.ISO_8859_1));
+            }
+        }
+
+        ByteBuffer small = ByteBuffer.allocate(10);
+        small.put((byte) 1);
+        assertEquals(-1, responses[0].writeHeader(small, true));
+        assertEquals(1, small.position());
+    }
+
+    public void testSendsPipelinedResponsesInOneWriteAndReusesTheBuffer() throws IOException {
+        BufferPool pool = new BufferPool(4096, 4);
+        RecordingChannel channel = new RecordingChannel();
+        HttpResponse first = new HttpResponse("200 OK", "text/plain", "one".getBytes(StandardCharsets.ISO_8859_1));
+        HttpResponse second = new HttpResponse("200 OK", "text/plain", "two".getBytes(StandardCharsets.ISO_8859_1))
+                .prepare();
+
+        try (ResponseWriter writer = new ResponseWriter(channel, pool)) {
+            for (int round = 0; round < 3; round++) {
+                long length = writer.write(first, true) + writer.write(second, false);
+                assertTrue(writer.hasPending());
+                assertEquals(round, channel.writes);
+
+                writer.flush();
+                assertFalse(writer.hasPending());
+                assertEquals(round + 1, channel.writes);
+                assertEquals(length, channel.written.size() / (round + 1));
+            }
+        }
+        assertEquals(3 * (expected(first, true) + expected(second, false)).length(), channel.written.size());
+        assertTrue(channel.text().startsWith(expected(first, true) + expected(second, false)));
+        assertEquals(1, pool.getAllocated());
+    }
+
+    public void testSendsLargeBodiesWithOneGatheringWrite() throws IOException {
+        BufferPool pool = new BufferPool(1024, 4);
+        RecordingChannel channel = new RecordingChannel();
+        byte[] body = new byte[10000];
+        Arrays.fill(body, (byte) 'x');
+        HttpResponse response = new HttpResponse("200 OK", "text/plain", body);
+
+        try (ResponseWriter writer = new ResponseWriter(channel, pool)) {
+            assertEquals(response.length(true), writer.write(response, true));
+            // Written at once on a blocking channel, header and body together
+            assertEquals(1, channel.writes);
+            assertFalse(writer.hasPending());
+        }
+        assertEquals(expected(response, true), channel.text());
+    }
+
+    public void testDrainsANonBlockingChannelAsItAcceptsData() throws IOException {
+        BufferPool pool = new BufferPool(1024, 4);
+        Pipe pipe = Pipe.open();
+        pipe.sink().configureBlocking(false);
+        byte[] body = new byte[4 * 1024 * 1024];
+        Arrays.fill(body, (byte) 'y');
+        HttpResponse response = new HttpResponse("200 OK", "text/plain", ByteBuffer.wrap(body));
+
+        try (ResponseWriter writer = new ResponseWriter(pipe.sink(), pool)) {
+            long length = writer.write(response, false);
+            assertTrue(writer.hasPending());
+            assertFalse(writer.drain());  // More than the pipe holds
+
+            ByteBuffer received = ByteBuffer.allocate((int) length);
+            while (received.hasRemaining()) {
+                pipe.source().read(received);
+                if (writer.hasPending()) {
+                    writer.drain();
+                }
+            }
+            assertFalse(writer.hasPending());
+            received.flip();
+            assertEquals(expected(new HttpResponse("200 OK", "text/plain", body), false),
+                    StandardCharsets.ISO_8859_1.decode(received).toString());
+        } finally {
+            pipe.sink().close();
+            pipe.source().close();
+        }
+    }
+}
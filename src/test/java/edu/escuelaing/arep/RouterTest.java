@@ -0,0 +1,103 @@
+package edu.escuelaing.arep;
+
+import junit.framework.TestCase;
+
+public class RouterTest extends TestCase {
+
+    private Router<String> router;
+    private RouteMatch<String> match;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        router = new Router<>();
+        router.add("/app/hello", "hello");
+        router.add("/app/sqrt", "sqrt");
+        router.add("/app/user/{id}", "user");
+        router.add("/app/user/me", "me");
+        router.add("/app/user/{id}/orders/{order}", "order");
+        router.add("/app/*/status", "status");
+        router.add("/files/**", "files");
+        match = new RouteMatch<>();
+    }
+
+    public void testStaticRoutes() {
+        assertTrue(router.match("/app/hello", match));
+        assertEquals("hello", match.getHandler());
+        assertTrue(router.match("/app/sqrt", match));
+        assertEquals("sqrt", match.getHandler());
+        assertFalse(router.match("/app/hell", match));
+        assertFalse(router.match("/app/hello/", match));
+        assertFalse(router.match("/app", match));
+    }
+
+    public void testStaticSegmentWinsOverVariable() {
+        assertTrue(router.match("/app/user/me", match));
+        assertEquals("me", match.getHandler());
+    }
+
+    public void testPathVariables() {
+        assertTrue(router.match("/app/user/42", match));
+        assertEquals("user", match.getHandler());
+        assertEquals("42", match.getVariable("id"));
+
+        assertTrue(router.match("/app/user/7/orders/99", match));
+        assertEquals("order", match.getHandler());
+        assertEquals("7", match.getVariable("id"));
+        assertEquals("99", match.getVariable("order"));
+        assertNull(match.getVariable("missing"));
+
+        assertFalse(router.match("/app/user/", match));
+    }
+
+    public void testDecodesPathVariables() {
+        router.add("/app/hello/{name}", "greet");
+        assertTrue(router.match("/app/hello/Jos%C3%A9", match));
+        assertEquals("greet", match.getHandler());
+        assertEquals("Jos\u00e9", match.getVariable("name"));
+
+        assertTrue(router.match("/app/user/a%2Fb+c%20d%zz%4", match));
+        assertEquals("a/b+c d%zz%4", match.getVariable("id"));
+    }
+
+    public void testWildcards() {
+        assertTrue(router.match("/app/anything/status", match));
+        assertEquals("status", match.getHandler());
+
+        assertTrue(router.match("/files/js/app.js", match));
+        assertEquals("files", match.getHandler());
+        assertEquals("js/app.js", match.getRemainingPath());
+    }
+
+    public void testMatchesRegionOfRequestTarget() {
+        String target = "/app/user/5?verbose=true";
+        assertTrue(router.match(target, 0, target.indexOf('?'), match));
+        assertEquals("5", match.getVariable("id"));
+    }
+
+    public void testBacktracksFromStaticToVariable() {
+        router.add("/app/user/me/profile", "profile");
+        assertTrue(router.match("/app/user/me/orders/1", match));
+        assertEquals("order", match.getHandler());
+        assertEquals("me", match.getVariable("id"));
+    }
+
+    public void testDuplicateRouteIsRejected() {
+        try {
+            router.add("/app/hello", "again");
+            fail("Duplicate route accepted");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("/app/hello"));
+        }
+    }
+
+    public void testManyRoutes() {
+        for (int i = 0; i < 500; i++) {
+            router.add("/app/endpoint" + i, "endpoint" + i);
+        }
+        for (int i = 0; i < 500; i++) {
+            assertTrue(router.match("/app/endpoint" + i, match));
+            assertEquals("endpoint" + i, match.getHandler());
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package edu.escuelaing.arep;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import edu.escuelaing.arep.annotations.Cacheable;
+import edu.escuelaing.arep.annotations.GetMapping;
+import edu.escuelaing.arep.annotations.RequestParam;
+import junit.framework.TestCase;
+
+public class ServerMetricsTest extends TestCase {
+
+    public static class TimedController {
+        @GetMapping("/app/test/timed")
+        @Cacheable
+        public String timed(@RequestParam(value = "n", defaultValue = "0") int n) {
+            return "n=" + n;
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        // The route table is global and shared with the other tests, so the route is only added once
+        TestFixtures.registerRoutes(new TimedController(), "timed");
+    }
+
+    public void testHistogramBucketsKeepRelativePrecision() {
+        for (long value : new long[] {0, 1, 7, 8, 9, 15, 16, 1000, 123456789L, 1L << 39}) {
+            int bucket = LatencyHistogram.bucketOf(value);
+            long highest = LatencyHistogram.highestValueOf(bucket);
+            assertTrue(value + " above its bucket", value <= highest);
+            assertTrue(value + " below its bucket", bucket == 0 || LatencyHistogram.highestValueOf(bucket - 1) < value);
+            assertTrue(value + " imprecise", highest - value <= Math.max(value / 8, 0));
+        }
+    }
+
+    public void testHistogramQuantiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000L);  // 1 to 1000 microseconds
+        }
+        assertEquals(1000, histogram.count());
+        assertEquals(1_000_000L, histogram.max());
+        assertEquals(500_500_000L, histogram.sum());
+        assertEquals(500_000, histogram.valueAtQuantile(0.5), 500_000 / 8.0);
+        assertEquals(990_000, histogram.valueAtQuantile(0.99), 990_000 / 8.0);
+        assertEquals(1_000_000L, histogram.valueAtQuantile(1.0));
+        assertEquals(0, new LatencyHistogram().valueAtQuantile(0.5));
+    }
+
+    public void testCountsResponsesAndServesPrometheusText() throws Exception {
+        ServerMetrics metrics = new ServerMetrics();
+        RequestDispatcher dispatcher = new RequestDispatcher(null, Integer.MAX_VALUE, metrics);
+        long calls = SimpleWebServer.getRegistry().get("/app/test/timed").getLatency().count();
+
+        dispatcher.dispatch(request("/app/test/timed?n=4"));
+        dispatcher.dispatch(request("/app/missing"));
+        dispatcher.dispatch(new HttpRequest("POST", "/index.html", "HTTP/1.1", Collections.<String, String>emptyMap()));
+        assertEquals(3, metrics.requests());
+        assertEquals(1, metrics.responses(200));
+        assertEquals(1, metrics.responses(404));
+        assertEquals(1, metrics.responses(405));
+        assertEquals(calls + 1, SimpleWebServer.getRegistry().get("/app/test/timed").getLatency().count());
+
+        HttpResponse scrape = dispatcher.dispatch(request(ServerMetrics.ENDPOINT));
+        String text = new String(scrape.getBody(), StandardCharsets.UTF_8);
+        assertTrue(scrape.getContentType().startsWith("text/plain; version=0.0.4"));
+        assertTrue(text, text.contains("springeci_requests_total 3\n"));
+        assertTrue(text, text.contains("springeci_responses_total{code=\"404\"} 1\n"));
+        assertTrue(text, text.contains("springeci_request_duration_seconds_count{route=\"/app/test/timed\"}"));
+        assertTrue(text, text.contains("springeci_response_cache_hits_total{route=\"/app/test/timed\"}"));
+        assertEquals(4, metrics.requests());
+    }
+
+    private static HttpRequest request(String target) {
+        return new HttpRequest("GET", target, "HTTP/1.1", Collections.<String, String>emptyMap());
+    }
+}
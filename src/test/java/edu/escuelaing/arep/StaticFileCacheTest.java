@@ -0,0 +1,195 @@
+package edu.escuelaing.arep;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+import junit.framework.TestCase;
+
+public class StaticFileCacheTest extends TestCase {
+
+    private Path root;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        root = Files.createTempDirectory("webroot");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        try (Stream<Path> files = Files.walk(root)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+        super.tearDown();
+    }
+
+    private void write(String name, String content) throws IOException {
+        Files.write(root.resolve(name), content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public void testServesCachedFile() throws Exception {
+        write("index.html", "<html></html>");
+        StaticFileCache cache = new StaticFileCache(root, 10, 1024, 1024);
+
+        StaticFileCache.StaticFile first = cache.get("/index.html");
+        assertSame(first, cache.get("/index.html"));
+        assertEquals("text/html", first.response().getContentType());
+        assertNull(cache.get("/missing.html"));
+    }
+
+    public void testStaysInsideTheWebRoot() throws Exception {
+        Path webRoot = Files.createDirectory(root.resolve("webroot"));
+        write("secret.txt", "secret");
+        Files.write(webRoot.resolve("index.html"), "<html></html>".getBytes(StandardCharsets.UTF_8));
+        StaticFileCache cache = new StaticFileCache(webRoot, 10, 1024, 1024);
+
+        assertNull(cache.get("/../secret.txt"));
+        assertNull(cache.get("/../../../../../../../../../../../etc/passwd"));
+        assertNull(cache.get("/x/../../secret.txt"));
+        assertNull(cache.get("/index.html\u0000"));
+        // Aliases of a file share its entry
+        StaticFileCache.StaticFile index = cache.get("/index.html");
+        assertSame(index, cache.get("//index.html"));
+        assertSame(index, cache.get("/./index.html"));
+        assertSame(index, cache.get("/x/../index.html"));
+        assertTrue(cache.stats(), cache.stats().contains("entries=1"));
+    }
+
+    public void testEvictsLeastRecentlyUsed() throws Exception {
+        write("a.txt", "aaaa");
+        write("b.txt", "bbbb");
+        write("c.txt", "cccc");
+        StaticFileCache cache = new StaticFileCache(root, 2, 1024, 1024);
+
+        StaticFileCache.StaticFile a = cache.get("/a.txt");
+        cache.get("/b.txt");
+        cache.get("/a.txt");
+        cache.get("/c.txt");  // Evicts b, the least recently used
+
+        assertSame(a, cache.get("/a.txt"));
+        assertTrue(cache.stats().contains("evictions=1"));
+    }
+
+    public void testDoesNotCacheLargeFiles() throws Exception {
+        write("big.txt", "0123456789");
+        StaticFileCache cache = new StaticFileCache(root, 10, 1024, 5);
+
+        assertNotSame(cache.get("/big.txt"), cache.get("/big.txt"));
+    }
+
+    public void testInvalidatesModifiedFile() throws Exception {
+        write("page.html", "old");
+        StaticFileCache cache = new StaticFileCache(root, 10, 1024, 1024);
+        assertEquals("old", new String(cache.get("/page.html").response().getBody(), StandardCharsets.UTF_8));
+
+        write("page.html", "new");
+        String body = null;
+        for (int i = 0; i < 100 && !"new".equals(body); i++) {
+            Thread.sleep(100);  // Wait for the watch service to report the change
+            body = new String(cache.get("/page.html").response().getBody(), StandardCharsets.UTF_8);
+        }
+        assertEquals("new", body);
+    }
+
+    public void testConditionalHeaders() throws Exception {
+        write("style.css", "body {}");
+        StaticFileCache cache = new StaticFileCache(root, 10, 1024, 1024);
+        StaticFileCache.StaticFile file = cache.get("/style.css");
+        String etag = file.response().getHeader("ETag");
+        String lastModified = file.response().getHeader("Last-Modified");
+
+        assertTrue(file.isNotModified(request("If-None-Match", etag)));
+        assertTrue(file.isNotModified(request("If-None-Match", "\"other\", W/" + etag)));
+        assertFalse(file.isNotModified(request("If-None-Match", "\"other\"")));
+        assertTrue(file.isNotModified(request("If-Modified-Since", lastModified)));
+        assertFalse(file.isNotModified(request("If-Modified-Since", "Thu, 01 Jan 1970 00:00:00 GMT")));
+        assertFalse(file.isNotModified(request("If-Modified-Since", "not a date")));
+    }
+
+    public void testRangeRequests() throws Exception {
+        write("data.txt", "0123456789");
+        StaticFileCache cache = new StaticFileCache(root, 10, 1024, 1024);
+        StaticFileCache.StaticFile file = cache.get("/data.txt");
+
+        HttpResponse partial = file.respond(request("Range", "bytes=2-5"));
+        assertEquals("206 Partial Content", partial.getStatus());
+        assertEquals("bytes 2-5/10", partial.getHeader("Content-Range"));
+        assertEquals("2345", StandardCharsets.UTF_8.decode(partial.getBodyBuffer()).toString());
+
+        assertEquals("bytes 7-9/10", file.respond(request("Range", "bytes=-3")).getHeader("Content-Range"));
+        assertEquals("416 Range Not Satisfiable", file.respond(request("Range", "bytes=20-")).getStatus());
+        assertEquals("200 OK", file.respond(request("Range", "bytes=0-1,4-5")).getStatus());
+    }
+
+    public void testStreamsFilesAboveMappedLimit() throws Exception {
+        write("video.bin", "0123456789");
+        StaticFileCache cache = new StaticFileCache(root, 10, 1024, 2, 1024, 4);
+        StaticFileCache.StaticFile file = cache.get("/video.bin");
+
+        assertNotNull(file.response().getBodyFile());
+        HttpResponse partial = file.respond(request("Range", "bytes=8-"));
+        assertEquals(2, partial.getContentLength());
+        assertEquals(2, partial.getBodyFile().remaining());
+    }
+
+    public void testCompressesTextFiles() throws Exception {
+        StringBuilder page = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            page.append("<p>line ").append(i).append("</p>\n");
+        }
+        write("page.html", page.toString());
+        StaticFileCache cache = new StaticFileCache(root, 10, 1 << 20, 1 << 20, 0, 0, 1024);
+        StaticFileCache.StaticFile file = cache.get("/page.html");
+
+        HttpResponse gzip = file.respond(request("Accept-Encoding", "deflate;q=0.5, gzip"));
+        assertEquals("gzip", gzip.getHeader("Content-Encoding"));
+        assertEquals("Accept-Encoding", gzip.getHeader("Vary"));
+        assertEquals(page.toString(), inflate(new GZIPInputStream(new ByteArrayInputStream(gzip.getBody()))));
+
+        HttpResponse deflate = file.respond(request("Accept-Encoding", "gzip;q=0, deflate"));
+        assertEquals("deflate", deflate.getHeader("Content-Encoding"));
+        assertEquals(page.toString(), inflate(new InflaterInputStream(new ByteArrayInputStream(deflate.getBody()))));
+
+        assertNull(file.respond(request("Accept-Encoding", "identity")).getHeader("Content-Encoding"));
+        assertFalse(gzip.getHeader("ETag").equals(file.response().getHeader("ETag")));
+        assertTrue(file.isNotModified(request("If-None-Match", gzip.getHeader("ETag"))));
+    }
+
+    public void testServesPrecompressedSibling() throws Exception {
+        write("app.js", "var a = 1;");
+        Files.write(root.resolve("app.js.gz"), new byte[] {1, 2, 3});
+        StaticFileCache cache = new StaticFileCache(root, 10, 1024, 1024);
+        StaticFileCache.StaticFile file = cache.get("/app.js");
+
+        HttpResponse gzip = file.respond(request("Accept-Encoding", "gzip, deflate"));
+        assertEquals("gzip", gzip.getHeader("Content-Encoding"));
+        assertEquals(3, gzip.getContentLength());
+        assertNull(file.respond(request("Accept-Encoding", "deflate")).getHeader("Content-Encoding"));
+    }
+
+    private String inflate(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            out.write(buffer, 0, n);
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private HttpRequest request(String header, String value) {
+        Map<String, String> headers = new HashMap<>();
+        headers.put(header.toLowerCase(), value);
+        return new HttpRequest("GET", "/style.css", "HTTP/1.1", headers);
+    }
+}
@@ -0,0 +1,157 @@
+package edu.escuelaing.arep;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.net.ConnectException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import edu.escuelaing.arep.annotations.GetMapping;
+
+/**
+ * The `TestFixtures` class holds what the tests that register controllers or boot a server
+ * share: registering test routes once per JVM, picking a free port, starting an engine on a
+ * thread of its own and talking HTTP/1.1 to it over a plain socket.
+ */
+final class TestFixtures {
+
+    /**
+     * The part of an engine the tests start.
+     */
+    interface Serving {
+        void serve() throws IOException;
+    }
+
+    private TestFixtures() {
+    }
+
+    /**
+     * Registers methods of a test controller under the path of their `@GetMapping`, unless
+     * the path is registered already: the registry is shared by every test of the JVM.
+     *
+     * @param controller the controller instance.
+     * @param methods the names of the methods to register.
+     */
+    static void registerRoutes(Object controller, String... methods) throws ReflectiveOperationException {
+        ControllerRegistry registry = SimpleWebServer.getRegistry();
+        synchronized (registry) {
+            for (String name : methods) {
+                Method method = method(controller.getClass(), name);
+                String path = method.getAnnotation(GetMapping.class).value();
+                if (registry.get(path) == null) {
+                    registry.add(path, RouteInvoker.create(controller, method));
+                }
+            }
+        }
+    }
+
+    private static Method method(Class<?> type, String name) throws NoSuchMethodException {
+        for (Method method : type.getMethods()) {
+            if (method.getName().equals(name)) {
+                return method;
+            }
+        }
+        throw new NoSuchMethodException(type.getName() + "." + name);
+    }
+
+    /**
+     * @return a port nothing listens on at the moment.
+     */
+    static int freePort() throws IOException {
+        try (ServerSocket probe = new ServerSocket(0)) {
+            return probe.getLocalPort();
+        }
+    }
+
+    /**
+     * Builds the configuration of a server listening on the loopback address.
+     *
+     * @param port the port to listen on.
+     * @param options further options, as on the command line.
+     * @return the configuration.
+     */
+    static ServerConfig config(int port, String... options) {
+        String[] args = Arrays.copyOf(new String[] {"--host=127.0.0.1", "--port=" + port}, 2 + options.length);
+        System.arraycopy(options, 0, args, 2, options.length);
+        return ServerConfig.fromArgs(args);
+    }
+
+    /**
+     * Starts serving on a new thread.
+     *
+     * @param serving the engine, usually `server::serve`.
+     * @return the started thread, which ends when the engine shuts down.
+     */
+    static Thread serve(Serving serving) {
+        Thread thread = new Thread(() -> {
+            try {
+                serving.serve();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Connects to a server that may still be starting, retrying for up to five seconds.
+     *
+     * @param port the port of the server.
+     * @return the connected socket, with a read timeout of five seconds.
+     */
+    static Socket connect(int port) throws Exception {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (true) {
+            try {
+                Socket socket = new Socket("127.0.0.1", port);
+                socket.setSoTimeout(5000);
+                return socket;
+            } catch (ConnectException e) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw e;
+                }
+                Thread.sleep(20);
+            }
+        }
+    }
+
+    /**
+     * Sends a GET request for a path.
+     */
+    static void send(Socket socket, String path) throws IOException {
+        socket.getOutputStream().write(("GET " + path + " HTTP/1.1\r\nHost: localhost\r\n\r\n")
+                .getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * Reads one response, framed by its `Content-length`.
+     *
+     * @return the head and the body of the response.
+     */
+    static String readResponse(InputStream in) throws IOException {
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        String head;
+        while (!(head = received.toString("ISO-8859-1")).endsWith("\r\n\r\n")) {
+            int b = in.read();
+            if (b == -1) {
+                throw new IOException("Connection closed after " + head);
+            }
+            received.write(b);
+        }
+        int start = head.indexOf("Content-length: ") + "Content-length: ".length();
+        int length = Integer.parseInt(head.substring(start, head.indexOf("\r\n", start)));
+        byte[] body = new byte[length];
+        for (int read = 0; read < length; ) {
+            int n = in.read(body, read, length - read);
+            if (n == -1) {
+                throw new IOException("Connection closed in the body");
+            }
+            read += n;
+        }
+        return head + new String(body, StandardCharsets.UTF_8);
+    }
+}